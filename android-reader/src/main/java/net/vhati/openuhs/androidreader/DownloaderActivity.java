@@ -1,17 +1,8 @@
 package net.vhati.openuhs.androidreader;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
@@ -24,6 +15,7 @@ import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.FileObserver;
 import android.text.InputType;
 import android.text.SpannableString;
 import android.text.util.Linkify;
@@ -47,28 +39,23 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.SearchView;
 import android.support.v7.widget.Toolbar;
 
-import com.fasterxml.jackson.core.Version;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.vhati.openuhs.androidreader.R;
 import net.vhati.openuhs.androidreader.AndroidUHSConstants;
 import net.vhati.openuhs.androidreader.downloader.CatalogAdapter;
-import net.vhati.openuhs.androidreader.downloader.CatalogItemDeserializer;
-import net.vhati.openuhs.androidreader.downloader.CatalogItemSerializer;
+import net.vhati.openuhs.androidreader.downloader.CatalogFetchTask;
+import net.vhati.openuhs.androidreader.downloader.CatalogFetchTask.CatalogFetchObserver;
+import net.vhati.openuhs.androidreader.downloader.CatalogFetchTask.CatalogFetchResult;
 import net.vhati.openuhs.androidreader.downloader.UHSFetchTask;
 import net.vhati.openuhs.androidreader.downloader.UHSFetchTask.UHSFetchObserver;
-import net.vhati.openuhs.androidreader.downloader.UHSFetchTask.UHSFetchResult;
-import net.vhati.openuhs.androidreader.downloader.StringFetchTask;
-import net.vhati.openuhs.androidreader.downloader.StringFetchTask.StringFetchObserver;
-import net.vhati.openuhs.androidreader.downloader.StringFetchTask.StringFetchResult;
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogIndex;
 import net.vhati.openuhs.core.downloader.CatalogParser;
 import net.vhati.openuhs.core.downloader.CatalogItem;
-import net.vhati.openuhs.core.downloader.CatalogItemComparator;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadResult;
+import net.vhati.openuhs.core.downloader.LocalLibraryIndex;
 
 
 public class DownloaderActivity extends AppCompatActivity implements UHSFetchObserver {
@@ -79,21 +66,19 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 
 	private ListView catalogListView = null;
 	private CatalogAdapter catalogAdapter = null;
-	private Comparator<CatalogItem> catalogTitleComparator = new CatalogItemComparator( CatalogItemComparator.SORT_TITLE );
-	private Comparator<CatalogItem> catalogDateComparator = Collections.reverseOrder( new CatalogItemComparator( CatalogItemComparator.SORT_DATE ) );
 
 	private File externalDir = null;
 	private File hintsDir = null;
 	private File cachedCatalogFile = null;
+	private CatalogCache catalogCache = null;
+	private LocalLibraryIndex libraryIndex = null;
+	private FileObserver hintsObserver = null;
 
-	private CatalogParser catalogParser = null;
-	private StringFetchTask catalogFetchTask = null;
+	private CatalogFetchTask catalogFetchTask = null;
 	private UHSFetchTask uhsFetchTask = null;
 
 	private ProgressDialog progressDlg = null;
 
-	ObjectMapper jsonMapper = null;
-
 
 	/** Called when the activity is first created. */
 	@Override
@@ -114,7 +99,15 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 
 		externalDir = this.getExternalFilesDir( null );
 		hintsDir = new File( externalDir, "hints" );
-		cachedCatalogFile = new File( externalDir, "cached_catalog.txt" );
+		cachedCatalogFile = new File( externalDir, "cached_catalog.bin" );
+		catalogCache = new CatalogCache( cachedCatalogFile );
+		catalogCache.setMemoryMapped( true );  // Mapped files can be replaced here, unlike on Windows.
+
+		// The text cache from earlier versions is never read anymore.
+		File legacyCatalogFile = new File( externalDir, "cached_catalog.txt" );
+		if ( legacyCatalogFile.exists() && !legacyCatalogFile.delete() ) {
+			logger.warn( "Failed to delete legacy cached catalog: {}", legacyCatalogFile.getAbsolutePath() );
+		}
 
 		if ( !hintsDir.exists() ) {
 			if ( hintsDir.mkdir() ) {
@@ -124,6 +117,26 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 			}
 		}
 
+		// Scan the hints dir once, then let the observer keep the index current.
+		libraryIndex = new LocalLibraryIndex( hintsDir );
+		libraryIndex.refresh();
+
+		int watchMask = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+		hintsObserver = new FileObserver( hintsDir.getAbsolutePath(), watchMask ) {
+			@Override
+			public void onEvent( int event, String path ) {
+				// This runs in a background thread.
+				if ( path == null ) return;
+
+				if ( (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0 ) {
+					libraryIndex.fileRemoved( path );
+				} else {
+					libraryIndex.fileChanged( path );
+				}
+			}
+		};
+		hintsObserver.startWatching();
+
 		catalogListView = (ListView)findViewById( R.id.catalogList );
 		catalogListView.setTextFilterEnabled( false );
 		this.registerForContextMenu( catalogListView );
@@ -145,11 +158,9 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 		});
 
 		catalogAdapter = new CatalogAdapter( this );
-		catalogAdapter.setSortFilter( catalogTitleComparator );
+		catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 		catalogListView.setAdapter( catalogAdapter );
 
-		catalogParser = new CatalogParser();
-
 		progressDlg = new ProgressDialog( this );
 			progressDlg.setProgressStyle( ProgressDialog.STYLE_HORIZONTAL );
 			progressDlg.setIndeterminate( true );
@@ -170,12 +181,6 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 			}
 		});
 
-		jsonMapper = new ObjectMapper();
-		SimpleModule uhsModule = new SimpleModule( "OpenUHS", new Version( 1, 0, 0, null, null, null ) );
-		uhsModule.addSerializer( CatalogItem.class, new CatalogItemSerializer() );
-		uhsModule.addDeserializer( CatalogItem.class, new CatalogItemDeserializer() );
-		jsonMapper.registerModule( uhsModule );
-
 		if ( cachedCatalogFile.exists() ) {
 			loadCatalog();
 		} else {
@@ -201,7 +206,7 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 			@Override 
 			public boolean onQueryTextChange( String query ) {
 				catalogAdapter.clearFilters();
-				catalogAdapter.setSortFilter( catalogTitleComparator );
+				catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 				catalogAdapter.setTitleFilter( query );
 				catalogAdapter.applyFilters();
 				return true; 
@@ -226,19 +231,19 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 			case R.id.catalogFilterLocalAction:
 				catalogAdapter.clearFilters();
 				catalogAdapter.setLocalFilterEnabled( true );
-				catalogAdapter.setSortFilter( catalogTitleComparator );
+				catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 				catalogAdapter.applyFilters();
 				return true;
 
 			case R.id.catalogSortTitleAction:
 				catalogAdapter.clearFilters();
-				catalogAdapter.setSortFilter( catalogTitleComparator );
+				catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 				catalogAdapter.applyFilters();
 				return true;
 
 			case R.id.catalogSortDateAction:
 				catalogAdapter.clearFilters();
-				catalogAdapter.setSortFilter( catalogDateComparator );
+				catalogAdapter.setSortOrder( CatalogIndex.SORT_DATE, true );
 				catalogAdapter.applyFilters();
 				return true;
 
@@ -312,6 +317,7 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 				uhsFile = new File( hintsDir, catItem.getName() );
 				if ( uhsFile.exists() ) {
 					uhsFile.delete();
+					libraryIndex.fileRemoved( catItem.getName() );
 					colorizeCatalogRow( catItem );
 					catalogAdapter.notifyDataSetChanged();
 				}
@@ -334,38 +340,41 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 		}
 	}
 
-	private void fetchUHS( CatalogItem catItem ) {
+	private void fetchUHS( CatalogItem... catItems ) {
 		cancelFetching();
-		logger.info( "Fetching \"{}\"", catItem.getName() );
+		for ( CatalogItem catItem : catItems ) {
+			logger.info( "Fetching \"{}\"", catItem.getName() );
+		}
 
 		uhsFetchTask = new UHSFetchTask( hintsDir );
 		uhsFetchTask.setUserAgent( CatalogParser.DEFAULT_USER_AGENT );
 		uhsFetchTask.setObserver( this );
-		uhsFetchTask.execute( catItem );
+		uhsFetchTask.execute( catItems );
 	}
 
 	private void fetchCatalog() {
 		cancelFetching();
 		logger.info( "Fetching catalog" );
 
-		catalogFetchTask = new StringFetchTask();
+		catalogFetchTask = new CatalogFetchTask();
 		catalogFetchTask.setUserAgent( CatalogParser.DEFAULT_USER_AGENT );
 		catalogFetchTask.setEncoding( CatalogParser.DEFAULT_CATALOG_ENCODING );
+		catalogFetchTask.setCatalogCache( catalogCache );
 
-		catalogFetchTask.setObserver(new StringFetchObserver() {
+		catalogFetchTask.setObserver(new CatalogFetchObserver() {
 			@Override
-			public void stringFetchStarted() {
-				catalogFetchStarted();
+			public void catalogFetchStarted() {
+				DownloaderActivity.this.catalogFetchStarted();
 			}
 
 			@Override
-			public void stringFetchUpdate( int progress ) {
-				catalogFetchUpdate( progress );
+			public void catalogFetchUpdate( int progress ) {
+				DownloaderActivity.this.catalogFetchUpdate( progress );
 			}
 
 			@Override
-			public void stringFetchEnded( StringFetchResult fetchResult ) {
-				catalogFetchEnded( fetchResult );
+			public void catalogFetchEnded( CatalogFetchResult fetchResult ) {
+				DownloaderActivity.this.catalogFetchEnded( fetchResult );
 			}
 		});
 
@@ -390,24 +399,41 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 	}
 
 	@Override
-	public void uhsFetchEnded( UHSFetchResult fetchResult ) {
+	public void uhsFetchEnded( List<DownloadResult> fetchResults ) {
 		// This won't run if cancelled.
 
 		progressDlg.dismiss();
-		if ( fetchResult.status == UHSFetchResult.STATUS_COMPLETED ) {
-			logger.info( "Saved \"{}\"", fetchResult.file.getName() );
-			Toast.makeText( this, String.format( "Saved %s", fetchResult.file.getName() ), Toast.LENGTH_SHORT ).show();
+		int savedCount = 0;
+		File savedFile = null;
+		Throwable lastError = null;
+
+		for ( DownloadResult fetchResult : fetchResults ) {
+			if ( fetchResult.status == DownloadResult.STATUS_COMPLETED ) {
+				logger.info( "Saved \"{}\"", fetchResult.file.getName() );
+				savedFile = fetchResult.file;
+				savedCount++;
+			}
+			else {
+				if ( fetchResult.status != DownloadResult.STATUS_CANCELLED ) {
+					Throwable t = fetchResult.errorCause;
+					logger.error( "Downloading \"{}\" failed: {}", fetchResult.catItem.getName(), (( t != null ) ? t : "Unknown error") );
+					lastError = (( t != null ) ? t : new Exception( "Unknown error" ));
+				}
+			}
+			libraryIndex.fileChanged( fetchResult.catItem.getName() );
+			colorizeCatalogRow( fetchResult.catItem );
 		}
-		else {
-			if ( fetchResult.status != UHSFetchResult.STATUS_CANCELLED ) {
-				Throwable t = fetchResult.errorCause;
-				logger.error( "Downloading \"{}\" failed: {}", fetchResult.catItem.getName(), (( t != null ) ? t : "Unknown error") );
 
-				String message = String.format( "Download failed: %s", (( t != null ) ? t : "Unknown error") );
-				Toast.makeText( this, message, Toast.LENGTH_LONG ).show();
-			}
+		if ( lastError != null ) {
+			String message = String.format( "Download failed: %s", lastError );
+			Toast.makeText( this, message, Toast.LENGTH_LONG ).show();
+		}
+		else if ( savedCount == 1 ) {
+			Toast.makeText( this, String.format( "Saved %s", savedFile.getName() ), Toast.LENGTH_SHORT ).show();
+		}
+		else if ( savedCount > 1 ) {
+			Toast.makeText( this, String.format( "Saved %d files", savedCount ), Toast.LENGTH_SHORT ).show();
 		}
-		colorizeCatalogRow( fetchResult.catItem );
 		catalogAdapter.notifyDataSetChanged();
 	}
 
@@ -426,17 +452,28 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 		progressDlg.setProgress( progress );
 	}
 
-	public void catalogFetchEnded( StringFetchResult fetchResult ) {
+	public void catalogFetchEnded( CatalogFetchResult fetchResult ) {
 		// This won't run if cancelled.
 
 		progressDlg.dismiss();
-		if ( fetchResult.status == StringFetchResult.STATUS_COMPLETED ) {
+		if ( fetchResult.status == CatalogFetchResult.STATUS_COMPLETED ) {
 			//Toast.makeText( this, "Fetched catalog", Toast.LENGTH_SHORT ).show();
 
-			List<CatalogItem> catalog = catalogParser.parseCatalog( fetchResult.content );
-			if ( catalog.size() > 0 ) {
-				setCatalog( catalog );
-				storeCatalog( catalog );
+			List<CatalogItem> catalog = fetchResult.catalog;
+			if ( fetchResult.notModified ) {
+				logger.info( "Catalog has not changed since the last fetch" );
+				Toast.makeText( this, "Catalog is up to date", Toast.LENGTH_SHORT ).show();
+			}
+			else if ( catalog.size() > 0 ) {
+				if ( fetchResult.diff != null ) {
+					logger.info( "Catalog fetched: {}", fetchResult.diff );
+
+					// Unchanged entries kept their instances, and their state flags.
+					setCatalog( catalog, fetchResult.diff.getAddedAndChanged() );
+				}
+				else {
+					setCatalog( catalog );
+				}
 			}
 			else {
 				logger.error( "Catalog was empty or parsing failed" );
@@ -444,7 +481,7 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 			}
 		}
 		else {
-			if ( fetchResult.status != StringFetchResult.STATUS_CANCELLED ) {
+			if ( fetchResult.status != CatalogFetchResult.STATUS_CANCELLED ) {
 				Throwable t = fetchResult.errorCause;
 				logger.error( "Download failed: {}", (( t != null ) ? t : "Unknown error") );
 
@@ -458,26 +495,12 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 	/**
 	 * Updates state flags on all catalog entries.
 	 * <p>
+	 * Local files are looked up in the LocalLibraryIndex, without touching the disk.
+	 * <p>
 	 * Note: Remember to call notifyDataSetChanged() on the ListView's ArrayAdapter afterward.
 	 */
 	public void colorizeCatalog( List<CatalogItem> catalog ) {
-
-		String[] hintNames = hintsDir.list();
-		Arrays.sort( hintNames );
-
-		for ( CatalogItem catItem : catalog ) {
-			catItem.resetState();
-
-			if ( Arrays.binarySearch( hintNames, catItem.getName() ) >= 0 ) {
-				catItem.setLocal( true );
-				File uhsFile = new File( hintsDir, catItem.getName() );
-				Date localDate = new Date( uhsFile.lastModified() );
-
-				if ( catItem.getDate() != null && catItem.getDate().after( localDate ) ) {
-					catItem.setNewer( true );
-				}
-			}
-		}
+		libraryIndex.colorize( catalog );
 	}
 
 	/**
@@ -486,18 +509,7 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 	 * Note: Remember to call notifyDataSetChanged() on the ListView's ArrayAdapter afterward.
 	 */
 	public void colorizeCatalogRow( CatalogItem catItem ) {
-		catItem.resetState();
-
-		if ( catItem.getName().length() > 0 ) {
-			File uhsFile = new File( hintsDir, catItem.getName() );
-			if ( uhsFile.exists() ) {
-				catItem.setLocal( true );
-
-				if ( catItem.getDate() != null && catItem.getDate().after( new Date( uhsFile.lastModified() ) ) ) {
-						catItem.setNewer( true );
-				}
-			}
-		}
+		libraryIndex.colorize( catItem );
 	}
 
 
@@ -505,70 +517,52 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 	 * Repopulates the catalog list with new items.
 	 */
 	public void setCatalog( List<CatalogItem> catalog ) {
-		colorizeCatalog( catalog );
+		setCatalog( catalog, catalog );
+	}
+
+	/**
+	 * Repopulates the catalog list with new items, updating state flags on some.
+	 *
+	 * @param catalog  the new catalog
+	 * @param staleItems  entries whose state flags need updating
+	 */
+	public void setCatalog( List<CatalogItem> catalog, List<CatalogItem> staleItems ) {
+		colorizeCatalog( staleItems );
 		catalogAdapter.setCatalog( catalog );
 		catalogAdapter.clearFilters();
-		catalogAdapter.setSortFilter( catalogTitleComparator );
+		catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 		catalogAdapter.applyFilters();
 	}
 
 	/**
-	 * Deserializes a cached catalog file.
+	 * Loads the catalog remembered by the CatalogCache.
+	 * <p>
+	 * Fetching the catalog updates the cache in the background.
 	 */
 	public void loadCatalog() {
 		logger.info( "Loading cached catalog" );
-		FileInputStream fis = null;
-		BufferedReader reader = null;
-		boolean failed = false;
 		try {
-			fis = new FileInputStream( cachedCatalogFile );
-			reader = new BufferedReader( new InputStreamReader( fis, "UTF-8" ) );
-			List<CatalogItem> catalog = jsonMapper.readValue( reader, new TypeReference<List<CatalogItem>>() {} );
-			setCatalog( catalog );
+			if ( !catalogCache.load() ) {
+				logger.info( "Discarding unrecognized cached catalog" );  // Perhaps an older format.
+				if ( cachedCatalogFile.exists() ) cachedCatalogFile.delete();
+				showWelcomeMessage();
+				return;
+			}
+			setCatalog( catalogCache.getCatalog() );
 			catalogAdapter.clearFilters();
 			catalogAdapter.setLocalFilterEnabled( true );
-			catalogAdapter.setSortFilter( catalogTitleComparator );
+			catalogAdapter.setSortOrder( CatalogIndex.SORT_TITLE, false );
 			catalogAdapter.applyFilters();
 
-			Date cacheDate = new Date( cachedCatalogFile.lastModified() );
+			long fetchTime = catalogCache.getFetchTime();
+			Date cacheDate = new Date( (( fetchTime > 0 ) ? fetchTime : cachedCatalogFile.lastModified()) );
 			String cacheDateString = new SimpleDateFormat( "yyyy-MM-dd" ).format( cacheDate );
 			Toast.makeText( this, String.format( "Last refresh: %s", cacheDateString ), Toast.LENGTH_SHORT ).show();
 		}
 		catch ( IOException e ) {
 			logger.error( "Error loading cached catalog", e );
 			Toast.makeText( this, String.format( "Error loading cached catalog: %s", e.getMessage() ), Toast.LENGTH_LONG ).show();
-			failed = true;
-		}
-		finally {
-			try {if ( reader != null ) reader.close();} catch ( IOException e ) {}
-			try {if ( fis != null ) fis.close();} catch ( IOException e ) {}
-			if ( failed && cachedCatalogFile.exists() ) cachedCatalogFile.delete();
-		}
-	}
-
-	/**
-	 * Serializes a catalog to a file.
-	 */
-	public void storeCatalog( List<CatalogItem> catalog ) {
-		logger.info( "Caching the catalog" );
-		FileOutputStream fos = null;
-		BufferedWriter writer = null;
-		boolean failed = false;
-		try {
-			fos = new FileOutputStream( cachedCatalogFile );
-			writer = new BufferedWriter( new OutputStreamWriter( fos, "UTF-8" ) );
-			//jsonMapper.writerWithType( new TypeReference<CatalogItem[]>() {} ).writeValue( writer, catalog.toArray( new CatalogItem[catalog.size()] ) );
-			jsonMapper.writerWithType( new TypeReference<List<CatalogItem>>() {} ).writeValue( writer, catalog );
-		}
-		catch ( IOException e ) {
-			logger.error( "Error caching catalog", e );
-			Toast.makeText( this, String.format( "Error caching catalog: %s", e.getMessage() ), Toast.LENGTH_LONG ).show();
-			failed = true;
-		}
-		finally {
-			try {if ( writer != null ) writer.close();} catch ( IOException e ) {}
-			try {if ( fos != null ) fos.close();} catch ( IOException e ) {}
-			if ( failed && cachedCatalogFile.exists() ) cachedCatalogFile.delete();
+			if ( cachedCatalogFile.exists() ) cachedCatalogFile.delete();
 		}
 	}
 
@@ -621,6 +615,7 @@ public class DownloaderActivity extends AppCompatActivity implements UHSFetchObs
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		if ( hintsObserver != null ) hintsObserver.stopWatching();
 		unbindDrawables( this.findViewById( android.R.id.content ) );
 		System.gc();
 	}
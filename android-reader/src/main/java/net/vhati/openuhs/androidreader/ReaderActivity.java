@@ -33,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import net.vhati.openuhs.androidreader.R;
 import net.vhati.openuhs.androidreader.AndroidUHSConstants;
 import net.vhati.openuhs.androidreader.reader.AudioNodeView;
+import net.vhati.openuhs.androidreader.reader.BitmapCache;
 import net.vhati.openuhs.androidreader.reader.DefaultNodeView;
 import net.vhati.openuhs.androidreader.reader.HotSpotNodeView;
 import net.vhati.openuhs.androidreader.reader.ImageNodeView;
@@ -43,6 +44,7 @@ import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSNode;
 import net.vhati.openuhs.core.UHSParser;
 import net.vhati.openuhs.core.UHSRootNode;
+import net.vhati.openuhs.core.UHSSnapshotCache;
 import net.vhati.openuhs.core.markup.DecoratedFragment;
 
 
@@ -99,10 +101,17 @@ public class ReaderActivity extends AppCompatActivity implements UHSReaderNavCtr
 		forwardBtn.setOnClickListener( this );
 		revealNextBtn.setOnClickListener( this );
 
+		// Decoded bitmaps are shared, so back/forward doesn't decode them again.
+		BitmapCache bitmapCache = new BitmapCache( Runtime.getRuntime().maxMemory() / 8 );
+		ImageNodeView imageView = new ImageNodeView( this );
+		imageView.setBitmapCache( bitmapCache );
+		HotSpotNodeView hotspotView = new HotSpotNodeView( this );
+		hotspotView.setBitmapCache( bitmapCache );
+
 		registerNodeView( new DefaultNodeView( this ) );
-		registerNodeView( new ImageNodeView( this ) );
+		registerNodeView( imageView );
 		registerNodeView( new AudioNodeView( this ) );
-		registerNodeView( new HotSpotNodeView( this ) );
+		registerNodeView( hotspotView );
 		registerNodeView( new RootNodeView( this ) );
 
 		reset();
@@ -246,6 +255,7 @@ public class ReaderActivity extends AppCompatActivity implements UHSReaderNavCtr
 
 			UHSParser uhsParser = new UHSParser();
 			uhsParser.setBinaryDeferred( true );
+			uhsParser.setSnapshotCache( new UHSSnapshotCache( new File( this.getCacheDir(), "snapshots" ) ) );
 			newRootNode = uhsParser.parseFile( f );
 		}
 		catch ( Exception e ) {
@@ -1,12 +1,8 @@
 package net.vhati.openuhs.androidreader.downloader;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.BitSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.view.View;
@@ -14,21 +10,30 @@ import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 
 import net.vhati.openuhs.androidreader.downloader.CatalogRowView;
+import net.vhati.openuhs.core.downloader.CatalogIndex;
 import net.vhati.openuhs.core.downloader.CatalogItem;
-import net.vhati.openuhs.core.downloader.CatalogItemComparator;
 
 
+/**
+ * An adapter that shows a filtered, sorted view of the catalog.
+ * <p>
+ * The catalog is held as a CatalogIndex, so re-sorting reuses cached
+ * permutations and title filtering searches precomputed text.
+ */
 public class CatalogAdapter extends BaseAdapter {
+	public static final int SORT_NONE = -1;
+
 	private int defaultColor = android.graphics.Color.BLACK;
 	private int localColor = android.graphics.Color.DKGRAY;
 	private int newerColor = android.graphics.Color.LTGRAY;
 
 	private boolean localFilter = false;
-	private Comparator<CatalogItem> sortFilter = null;
+	private int sortBy = SORT_NONE;
+	private boolean sortReversed = false;
 	private String titleFilter = null;
 
 	private final Context context;
-	private List<CatalogItem> originalCatalog = Collections.emptyList();
+	private CatalogIndex catalogIndex = new CatalogIndex();
 	private List<CatalogItem> filteredCatalog = new ArrayList<CatalogItem>();
 
 
@@ -81,15 +86,17 @@ public class CatalogAdapter extends BaseAdapter {
 	 * Sets a new original catalog to back this adapter.
 	 */
 	public void setCatalog( List<CatalogItem> newCatalog ) {
-		originalCatalog = newCatalog;
+		catalogIndex = new CatalogIndex( newCatalog );
 		applyFilters();
 	}
 
 	/**
 	 * Returns the original catalog backing this adapter.
+	 *
+	 * @return a read-only list
 	 */
 	public List<CatalogItem> getCatalog() {
-		return originalCatalog;
+		return catalogIndex.getCatalog();
 	}
 
 	/**
@@ -117,17 +124,23 @@ public class CatalogAdapter extends BaseAdapter {
 	}
 
 	/**
-	 * Sets a comparator to sort the catalog.
+	 * Sets a column to sort the catalog by.
 	 *
-	 * @para c  the comparator, or null
+	 * @param sortBy  one of CatalogIndex's SORT constants, or SORT_NONE for catalog order
+	 * @param reverse  true for descending order
 	 * @see #applyFilters()
 	 */
-	public void setSortFilter( Comparator<CatalogItem> c ) {
-		sortFilter = c;
+	public void setSortOrder( int sortBy, boolean reverse ) {
+		this.sortBy = sortBy;
+		this.sortReversed = reverse;
+	}
+
+	public int getSortColumn() {
+		return sortBy;
 	}
 
-	public Comparator<CatalogItem> getSortFilter() {
-		return sortFilter;
+	public boolean isSortReversed() {
+		return sortReversed;
 	}
 
 	/**
@@ -155,49 +168,36 @@ public class CatalogAdapter extends BaseAdapter {
 	 */
 	public void clearFilters() {
 		setLocalFilterEnabled( false );
-		setSortFilter( null );
+		setSortOrder( SORT_NONE, false );
 		setTitleFilter( null );
 	}
 
 	/**
-	 * Repopulates the filteredCatalog with items from the original catalog.
-	 * <p>
-	 * Note: Remember to call notifyDataSetChanged() afterward.
-	 */
-	protected void resetFilteredCatalog() {
-		filteredCatalog.clear();
-		filteredCatalog.addAll( originalCatalog );
-	}
-
-	/**
-	 * Resets, prunes, and sorts the filtered catalog.
+	 * Repopulates the filtered catalog, pruned and sorted.
 	 *
 	 * @see #clearFilters()
 	 * @see #setLocalFilterEnabled(boolean)
-	 * @see #setSortFilter(Comparator)
+	 * @see #setSortOrder(int, boolean)
 	 * @see #setTitleFilter(String)
 	 */
 	public void applyFilters() {
-		resetFilteredCatalog();
+		BitSet titleMatches = null;
+		if ( getTitleFilter() != null ) titleMatches = catalogIndex.findTitles( titleFilter );
 
-		if ( isLocalFilterEnabled() ) {
-			Iterator<CatalogItem> it = filteredCatalog.iterator();
-			while ( it.hasNext() ) {
-				if ( !it.next().isLocal() ) it.remove();
-			}
-		}
+		int[] order = (( sortBy != SORT_NONE ) ? catalogIndex.getOrder( sortBy ) : null);
+		int count = catalogIndex.size();
 
-		if ( getTitleFilter() != null ) {
-			Pattern titlePtn = Pattern.compile( Pattern.quote( titleFilter ), Pattern.CASE_INSENSITIVE );
+		filteredCatalog.clear();
+		for ( int i=0; i < count; i++ ) {
+			int row = (( sortReversed ) ? count-1 - i : i);
+			int index = (( order != null ) ? order[row] : row);
+			if ( titleMatches != null && !titleMatches.get( index ) ) continue;
 
-			Iterator<CatalogItem> it = filteredCatalog.iterator();
-			while ( it.hasNext() ) {
-				String itemTitle = it.next().getTitle();
-				if ( !titlePtn.matcher( itemTitle ).find() ) it.remove();
-			}
-		}
+			CatalogItem catItem = catalogIndex.get( index );
+			if ( isLocalFilterEnabled() && !catItem.isLocal() ) continue;
 
-		if ( getSortFilter() != null ) Collections.sort( filteredCatalog, sortFilter );
+			filteredCatalog.add( catItem );
+		}
 		this.notifyDataSetChanged();
 	}
 
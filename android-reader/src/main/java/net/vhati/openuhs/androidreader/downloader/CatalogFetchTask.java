@@ -0,0 +1,244 @@
+package net.vhati.openuhs.androidreader.downloader;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.AsyncTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.androidreader.AndroidUHSConstants;
+import net.vhati.openuhs.androidreader.downloader.FetchUnitException;
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogDiff;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+import net.vhati.openuhs.core.downloader.CatalogParser;
+import net.vhati.openuhs.core.downloader.CatalogParser.CatalogParserListener;
+
+
+/**
+ * A background task that downloads the catalog, parsing it as it arrives.
+ * <p>
+ * The catalog text is never held in memory whole.
+ * <p>
+ * If a CatalogCache is set, the request is conditional. When the server
+ * reports no changes, the cached catalog is the result. Otherwise the
+ * cache is updated, and the result includes a diff.
+ */
+public class CatalogFetchTask extends AsyncTask<String, Integer, CatalogFetchTask.CatalogFetchResult> {
+
+	// doInBackground()'s param is the first generic: [url].
+	// It reports the second generic, [a percentage], to onProgressUpdate().
+	// It returns the third generic [result] to onPostExecute().
+
+	private final Logger logger = LoggerFactory.getLogger( AndroidUHSConstants.LOG_TAG );
+
+	private CatalogFetchObserver delegate = null;
+	private String userAgent = System.getProperty( "http.agent" );
+	private String encoding = CatalogParser.DEFAULT_CATALOG_ENCODING;
+	private CatalogCache catalogCache = null;
+
+
+	public CatalogFetchTask() {
+	}
+
+
+	public void setObserver( CatalogFetchObserver delegate ) {
+		this.delegate = delegate;
+	}
+
+	public void setUserAgent( String s ) {
+		this.userAgent = s;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	public void setEncoding( String s ) {
+		this.encoding = s;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Sets a cache to make conditional requests with, and to update.
+	 *
+	 * @param c  a cache, or null
+	 */
+	public void setCatalogCache( CatalogCache c ) {
+		this.catalogCache = c;
+	}
+
+	public CatalogCache getCatalogCache() {
+		return catalogCache;
+	}
+
+
+	// This runs in a background thread, unlike the other methods here.
+	@Override
+	protected CatalogFetchResult doInBackground( String... urlStrings ) {
+		HttpURLConnection con = null;
+		InputStream downloadStream = null;
+		BufferedReader r = null;
+
+		String urlString = urlStrings[0];
+		CatalogFetchResult fetchResult = new CatalogFetchResult( urlString );
+		Exception ex = null;
+
+		try {
+			con = (HttpURLConnection)(new URL( urlString ).openConnection());
+			con.setRequestProperty( "User-Agent", userAgent );
+			if ( catalogCache != null ) catalogCache.prepareRequest( con );
+			con.connect();
+
+			if ( catalogCache != null && catalogCache.isNotModified( con ) ) {
+				catalogCache.touch( con );
+				storeCache();
+
+				fetchResult.notModified = true;
+				fetchResult.catalog = catalogCache.getCatalog();
+				fetchResult.status = CatalogFetchResult.STATUS_COMPLETED;
+				return fetchResult;
+			}
+
+			if ( con.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+				throw new FetchUnitException( "Server returned HTTP "+ con.getResponseCode() +" "+ con.getResponseMessage() );
+			}
+
+			// Get the file's length, if the server reports it. (possibly -1).
+			final int contentLength = con.getContentLength();
+
+			// Count bytes for progress, and bail out of the parser if cancelled.
+			downloadStream = new FilterInputStream( con.getInputStream() ) {
+				private long total = 0;
+				private int lastProgress = -1;
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return (( read( b, 0, 1 ) == -1 ) ? -1 : (b[0] & 0xFF));
+				}
+
+				@Override
+				public int read( byte[] b, int off, int len ) throws IOException {
+					if ( isCancelled() ) {
+						throw new InterruptedIOException( "Catalog fetch was cancelled" );
+					}
+					int count = super.read( b, off, len );
+					if ( count > 0 ) {
+						total += count;
+						if ( contentLength > 0 ) {
+							int progress = (int)Math.min( 100, total * 100 / contentLength );
+							if ( progress != lastProgress ) {  // Don't flood the UI thread.
+								lastProgress = progress;
+								publishProgress( progress );
+							}
+						}
+					}
+					return count;
+				}
+			};
+			r = new BufferedReader( new InputStreamReader( downloadStream, encoding ) );
+
+			final List<CatalogItem> catalog = new ArrayList<CatalogItem>();
+			CatalogParser catalogParser = new CatalogParser();
+			catalogParser.parseCatalog( r, new CatalogParserListener() {
+				@Override
+				public void catalogItemParsed( CatalogItem catItem ) {
+					catalog.add( catItem );
+				}
+			});
+			fetchResult.catalog = catalog;
+
+			if ( catalogCache != null ) {
+				fetchResult.diff = catalogCache.update( catalog, con );
+				fetchResult.catalog = fetchResult.diff.getMerged();
+				storeCache();
+			}
+
+			fetchResult.status = CatalogFetchResult.STATUS_COMPLETED;
+		}
+		catch ( InterruptedIOException e ) {
+			fetchResult.status = CatalogFetchResult.STATUS_CANCELLED;
+		}
+		catch ( Exception e ) {
+			ex = e;
+		}
+		finally {
+			try {if ( r != null ) r.close();} catch ( IOException e ) {}
+			try {if ( downloadStream != null ) downloadStream.close();} catch ( IOException e ) {}
+			if ( con != null ) con.disconnect();
+		}
+		if ( ex != null ) {
+			fetchResult.status = CatalogFetchResult.STATUS_ERROR;
+			fetchResult.errorCause = ex;
+		}
+
+		return fetchResult;
+	}
+
+	private void storeCache() {
+		try {
+			catalogCache.store();
+		}
+		catch ( IOException e ) {
+			logger.warn( "Could not store catalog cache", e );
+		}
+	}
+
+	@Override
+	protected void onPreExecute() {
+		super.onPreExecute();
+		if ( delegate != null ) delegate.catalogFetchStarted();
+	}
+
+	@Override
+	protected void onProgressUpdate( Integer... progress ) {
+		super.onProgressUpdate( progress );
+		if ( delegate != null ) delegate.catalogFetchUpdate( progress[0].intValue() );
+	}
+
+	@Override
+	protected void onPostExecute( CatalogFetchResult fetchResult ) {
+		if ( delegate != null ) delegate.catalogFetchEnded( fetchResult );
+	}
+
+
+
+	public static class CatalogFetchResult {
+		public static final int STATUS_DOWNLOADING = 0;
+		public static final int STATUS_COMPLETED = 1;
+		public static final int STATUS_CANCELLED = 2;
+		public static final int STATUS_ERROR = 3;
+
+		public String urlString;
+		public int status = STATUS_DOWNLOADING;
+		public Throwable errorCause = null;
+		public List<CatalogItem> catalog = null;
+		public boolean notModified = false;
+		public CatalogDiff diff = null;
+
+		public CatalogFetchResult( String urlString ) {
+			this.urlString = urlString;
+		}
+	}
+
+
+	public static interface CatalogFetchObserver {
+		public void catalogFetchStarted();
+		public void catalogFetchUpdate( int progress );
+		public void catalogFetchEnded( CatalogFetchResult fetchResult );
+	}
+}
@@ -1,19 +1,7 @@
 package net.vhati.openuhs.androidreader.reader;
 
-import java.io.InputStream;
-import java.io.IOException;
-
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.view.ViewGroup;
-import android.widget.FrameLayout;
-import android.widget.Toast;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import net.vhati.openuhs.androidreader.AndroidUHSConstants;
 import net.vhati.openuhs.androidreader.reader.NodeView;
 import net.vhati.openuhs.androidreader.reader.AudioPlayerView;
 import net.vhati.openuhs.core.ByteReference;
@@ -23,8 +11,6 @@ import net.vhati.openuhs.core.UHSNode;
 
 public class AudioNodeView extends NodeView {
 
-	private final Logger logger = LoggerFactory.getLogger( AndroidUHSConstants.LOG_TAG );
-
 	protected UHSAudioNode audioNode = null;
 	protected AudioPlayerView playerView = null;
 
@@ -53,31 +39,9 @@ public class AudioNodeView extends NodeView {
 		super.setNode( node, showAll );
 		audioNode = (UHSAudioNode)node;
 
+		// The player streams from the reference, reading only the header now.
 		ByteReference audioRef = audioNode.getRawAudioContent();
-		InputStream is = null;
-		try {
-			is = audioRef.getInputStream();
-			byte[] audioBytes = new byte[(int)audioRef.length()];
-			int offset = 0;
-			int count = 0;
-			while ( offset < audioBytes.length && (count=is.read( audioBytes, offset, audioBytes.length-offset )) >= 0 ) {
-				offset += count;
-			}
-			if ( offset < audioBytes.length ) {
-				throw new IOException( "Could not completely read audio content" );
-			}
-			playerView.setAudio( audioBytes );
-		}
-		catch ( IOException e ) {
-			logger.error( "Error loading binary content of {} node (\"{}\"): {}", audioNode.getType(), audioNode.getRawStringContent(), e );
-			Toast.makeText( this.getContext(), "Error loading audio", Toast.LENGTH_LONG ).show();
-
-			reset();
-			return;
-		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
-		}
+		playerView.setAudio( audioRef );
 	}
 
 	@Override
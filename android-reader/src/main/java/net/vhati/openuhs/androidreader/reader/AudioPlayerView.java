@@ -1,10 +1,7 @@
 package net.vhati.openuhs.androidreader.reader;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import android.content.Context;
 import android.media.AudioFormat;
@@ -23,22 +20,22 @@ import org.slf4j.LoggerFactory;
 
 import net.vhati.openuhs.androidreader.R;
 import net.vhati.openuhs.androidreader.AndroidUHSConstants;
+import net.vhati.openuhs.core.ByteReference;
 import net.vhati.openuhs.core.UHSAudioNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.WavHeader;
 
 
 public class AudioPlayerView extends LinearLayout {
 
 	private final Logger logger = LoggerFactory.getLogger( AndroidUHSConstants.LOG_TAG );
 
-	private static final int WAV_HEADER_SIZE = 44;
-
 	private Context context = null;
 	private Button playBtn = null;
 	private TextView playerLbl = null;
 
-	private byte[] audioBytes = null;
-	private WavFormat wavFormat = null;
+	private ByteReference audioRef = null;
+	private WavHeader wavHeader = null;
 	private TrackInfo trackInfo = null;
 
 	private AudioTrack currentTrack = null;
@@ -67,22 +64,29 @@ public class AudioPlayerView extends LinearLayout {
 
 
 
-	public void setAudio( byte[] audioBytes ) {
+	/**
+	 * Sets the sound to play.
+	 * <p>
+	 * Only the WAVE header is read now. Sample data is streamed from the
+	 * reference while playing.
+	 *
+	 * @param audioRef  the contents of a WAVE file, or null
+	 */
+	public void setAudio( ByteReference audioRef ) {
 		reset();
-		if ( audioBytes == null ) return;
+		if ( audioRef == null ) return;
 
-		this.audioBytes = audioBytes;
+		this.audioRef = audioRef;
 
 		try {
-			InputStream is = new ByteArrayInputStream( audioBytes );
-			wavFormat = readHeader( is );
-			trackInfo = createTrackInfo( wavFormat );
+			wavHeader = WavHeader.read( audioRef );
+			trackInfo = createTrackInfo( wavHeader );
 		}
 		catch ( Exception e ) {
 			Toast.makeText( this.getContext(), String.format( "Audio decoding failed: %s", e.getMessage() ), Toast.LENGTH_LONG ).show();
 			logger.error( "Audio decoding failed", e );
 
-			wavFormat = null;
+			wavHeader = null;
 			trackInfo = null;
 		}
 	}
@@ -94,8 +98,8 @@ public class AudioPlayerView extends LinearLayout {
 	public void reset() {
 		abortPlayback();
 
-		audioBytes = null;
-		wavFormat = null;
+		audioRef = null;
+		wavHeader = null;
 		trackInfo = null;
 	}
 
@@ -121,104 +125,33 @@ public class AudioPlayerView extends LinearLayout {
 
 
 	/**
-	 * Decodes WAV header info from an InputStream.
-	 * <p>
-	 * Afterward, the stream's position will be at the first data chunk.
-	 *
-	 * @param is  a stream supporting mark()
-	 * @return an object describing header info
+	 * Returns an object holding AudioTrack values needed to play a WAVE.
 	 */
-	public WavFormat readHeader( InputStream is ) throws IOException, WavException {
-		ByteOrder origOrder = null;
-
-		byte[] magic = new byte[4];
-		is.mark( magic.length );  // Setup backtracking.
-		is.read( magic, 0, magic.length );
-		is.reset();  // Unread.
-		if ( magic[0] == 0x52 && magic[1] == 0x49 && magic[2] == 0x46 && magic[3] == 0x46 ) {
-			origOrder = ByteOrder.LITTLE_ENDIAN;  // RIFF
-		}
-		else {
-			// RIFX, rare byte-swapped counterpart.
-			//origOrder = ByteOrder.BIG_ENDIAN;
-			// Dunno how to translate the data chunk later. *shrug*
-			throw new WavException( "Error: Sound bytes didn't begin with RIFF" );
-		}
-
-		ByteBuffer wavBuf = ByteBuffer.allocate( WAV_HEADER_SIZE );
-		wavBuf.order( origOrder );
-		is.read( wavBuf.array(), wavBuf.arrayOffset(), wavBuf.capacity() );
-		wavBuf.rewind();
-
-		wavBuf.order( ByteOrder.LITTLE_ENDIAN );
-		wavBuf.position( 20 );
-		int headerEncoding = wavBuf.getShort();
-		int headerChannels = wavBuf.getShort();
-		int headerRate = wavBuf.getInt();
-
-		wavBuf.position( wavBuf.position() + 6 );
-		int headerBits = wavBuf.getShort();
-
-		/*
-		 * Chunks begin with an id, 4 single-byte characters. Next comes the
-		 * chunk's total size (4-byte int). The characters can be read as an
-		 * int for testing.
-		 *
-		 * Data chunk begins with "data" (0x61746164).
-		 */
-		while ( wavBuf.getInt() != 0x61746164 ) {  // Skip ahead until the data chunk.
-			int chunkSize = wavBuf.getInt();
-			is.skip( chunkSize );
-
-			wavBuf.rewind();
-			is.read( wavBuf.array(), wavBuf.arrayOffset(), 8 );  // 4-byte id + 4-byte size.
-			wavBuf.rewind();
-		}
-		// In the data chunk now.
-		int dataSize = wavBuf.getInt();
-		if ( dataSize <= 0 ) {
-			throw new WavException( String.format( "Unsupported sound data chunk size: %d", dataSize ) );
-		}
-
-		WavFormat result = new WavFormat();
-		result.headerEncoding = headerEncoding;
-		result.headerChannels = headerChannels;
-		result.headerRate = headerRate;
-		result.headerBits = headerBits;
-		result.dataChunkPos = wavBuf.position();
-		result.dataChunkSize = dataSize;
-
-		return result;
-	}
-
-	/**
-	 * Returns an object holding AudioTrack values needed to play a WavFormat.
-	 */
-	private TrackInfo createTrackInfo( WavFormat wavFormat ) throws WavException {
+	private TrackInfo createTrackInfo( WavHeader wavHeader ) throws WavException {
 		int trackChannelCfg = 0;
-		if ( wavFormat.headerChannels == 1 ) {
+		if ( wavHeader.channels == 1 ) {
 			trackChannelCfg = AudioFormat.CHANNEL_OUT_MONO;
 		}
-		else if ( wavFormat.headerChannels == 2 ) {
+		else if ( wavHeader.channels == 2 ) {
 			trackChannelCfg = AudioFormat.CHANNEL_OUT_STEREO;
 		}
 		else {
-			throw new WavException( String.format( "Unsupported sound channels: %d", wavFormat.headerChannels ) );
+			throw new WavException( String.format( "Unsupported sound channels: %d", wavHeader.channels ) );
 		}
 
-		if ( wavFormat.headerEncoding != 1 ) {  // 1 is uncompressed, Linear PCM.
-			throw new WavException( String.format( "Unsupported sound encoding: %d", wavFormat.headerEncoding ) );
+		if ( wavHeader.formatTag != WavHeader.FORMAT_PCM ) {
+			throw new WavException( String.format( "Unsupported sound encoding: %d", wavHeader.formatTag ) );
 		}
-		if ( wavFormat.headerBits != 16 ) {
-			throw new WavException( String.format( "Unsupported sound bitness: %d", wavFormat.headerBits ) );
+		if ( wavHeader.bitsPerSample != 16 ) {
+			throw new WavException( String.format( "Unsupported sound bitness: %d", wavHeader.bitsPerSample ) );
 		}
 		int trackEncoding = AudioFormat.ENCODING_PCM_16BIT;
 
 		// This is a common range. Dunno how to ask Android for what it likes.
-		if ( wavFormat.headerRate < 11025 || wavFormat.headerRate > 48000 ) {
-			throw new WavException( String.format( "Unsupported sound rate: %d", wavFormat.headerRate ) );
+		if ( wavHeader.sampleRate < 11025 || wavHeader.sampleRate > 48000 ) {
+			throw new WavException( String.format( "Unsupported sound rate: %d", wavHeader.sampleRate ) );
 		}
-		int trackRate = wavFormat.headerRate;
+		int trackRate = wavHeader.sampleRate;
 
 		int trackBufferSize = AudioTrack.getMinBufferSize( trackRate, trackChannelCfg, trackEncoding );
 		if ( trackBufferSize == AudioTrack.ERROR ) {
@@ -259,7 +192,7 @@ public class AudioPlayerView extends LinearLayout {
 
 			track = new AudioTrack( AudioManager.STREAM_MUSIC, trackInfo.rate, trackInfo.channelCfg, trackInfo.encoding, trackInfo.bufferSize, AudioTrack.MODE_STREAM );
 
-			track.setNotificationMarkerPosition( wavFormat.getTotalFrames()-1 );
+			track.setNotificationMarkerPosition( (int)wavHeader.getTotalFrames()-1 );
 			track.setPlaybackPositionUpdateListener(new OnPlaybackPositionUpdateListener() {
 				@Override
 				public void onPeriodicNotification( AudioTrack track ) {
@@ -305,7 +238,7 @@ public class AudioPlayerView extends LinearLayout {
 			}
 		}
 
-		AudioStreamThread t = new AudioStreamThread( wavFormat, audioBytes, track );
+		AudioStreamThread t = new AudioStreamThread( wavHeader, trackInfo, audioRef, track );
 		currentStreamThread = t;
 		t.start();
 	}
@@ -315,18 +248,20 @@ public class AudioPlayerView extends LinearLayout {
 	private class AudioStreamThread extends Thread {
 		private volatile boolean aborting = false;
 
-		private WavFormat wavFormat;
-		private byte[] audioBytes;
+		private WavHeader wavHeader;
+		private TrackInfo trackInfo;
+		private ByteReference audioRef;
 		private AudioTrack track;
 
 
-		public AudioStreamThread( WavFormat wavFormat, byte[] audioBytes, AudioTrack track ) {
+		public AudioStreamThread( WavHeader wavHeader, TrackInfo trackInfo, ByteReference audioRef, AudioTrack track ) {
 			super();
 			this.setPriority( Thread.MIN_PRIORITY );
 			this.setDaemon( true );
 
-			this.wavFormat = wavFormat;
-			this.audioBytes = audioBytes;
+			this.wavHeader = wavHeader;
+			this.trackInfo = trackInfo;
+			this.audioRef = audioRef;
 			this.track = track;
 		}
 
@@ -337,15 +272,18 @@ public class AudioPlayerView extends LinearLayout {
 		@Override
 		public void run() {
 			logger.info( "Audio stream thread started" );
+			InputStream is = null;
 			try {
-				InputStream is = new ByteArrayInputStream( audioBytes );
-				is.skip( wavFormat.dataChunkPos );  // Skip to the data chunk.
+				is = audioRef.getInputStream();
+				WavHeader.skipFully( is, wavHeader.dataOffset );  // Skip to the data chunk.
 
-				byte[] buf = new byte[512];  // TODO: This should be half TrackInfo's buffer size.
-				int chunkRemaining = wavFormat.dataChunkSize;
+				// Read half the track's buffer at a time, in whole frames.
+				int frameSize = wavHeader.getBytesPerFrame();
+				byte[] buf = new byte[Math.max( frameSize, (trackInfo.bufferSize / 2) / frameSize * frameSize )];
+				long chunkRemaining = wavHeader.dataSize;
 				int bytesRead = 0;
 				while ( !aborting && chunkRemaining > 0 && (bytesRead=is.read( buf )) != -1 ) {
-					int writeRemaining = Math.min( bytesRead, chunkRemaining );
+					int writeRemaining = (int)Math.min( (long)bytesRead, chunkRemaining );
 
 					for ( int bytesWritten=0; !aborting && bytesWritten < writeRemaining; ) {
 						int writeResult;
@@ -369,7 +307,7 @@ public class AudioPlayerView extends LinearLayout {
 					}
 					chunkRemaining -= writeRemaining;
 				}
-				logger.info( "Audio bytes left unwritten ({}/{})", chunkRemaining, wavFormat.dataChunkSize );
+				logger.info( "Audio bytes left unwritten ({}/{})", chunkRemaining, wavHeader.dataSize );
 
 				// With MODE_STATIC, post a runnable to the UI thread to play() after writing.
 			}
@@ -384,6 +322,7 @@ public class AudioPlayerView extends LinearLayout {
 				});
 			}
 			finally {
+				try {if ( is != null ) is.close();} catch ( IOException e ) {}
 				logger.info( "Audio stream thread ended" );
 			}
 		}
@@ -391,24 +330,6 @@ public class AudioPlayerView extends LinearLayout {
 
 
 
-	public static class WavFormat {
-		public int headerEncoding = 0;
-		public int headerChannels = 0;
-		public int headerRate = 0;
-		public int headerBits = 0;
-		public long dataChunkPos = 0;
-		public int dataChunkSize = 0;
-
-		public int getBytesPerFrame() {
-			return headerChannels * (headerBits / 8);
-		}
-		public int getTotalFrames() {
-			return dataChunkSize / getBytesPerFrame();
-		}
-	}
-
-
-
 	public static class TrackInfo {
 		public int encoding = 0;
 		public int channelCfg = 0;
@@ -0,0 +1,142 @@
+package net.vhati.openuhs.androidreader.reader;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import net.vhati.openuhs.core.ByteBufferInputStream;
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.DecodedCache;
+
+
+/**
+ * A cache of decoded Bitmaps.
+ * <p>
+ * The variant number is a BitmapFactory inSampleSize. Bitmaps decoded
+ * at different sample sizes are cached separately. Sizes below 1 mean
+ * full size, same as 1, and share its entry.
+ * <p>
+ * Bitmaps from this cache may be shown by several views, and must not
+ * be recycled.
+ */
+public class BitmapCache extends DecodedCache<Bitmap> {
+
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param maxBytes  the total size of decoded pixels to hold strongly
+	 */
+	public BitmapCache( long maxBytes ) {
+		super( maxBytes );
+	}
+
+
+	/**
+	 * Returns a cached bitmap, decoding it if necessary.
+	 *
+	 * @param variant  an inSampleSize (0 or 1 for full size)
+	 */
+	@Override
+	public Bitmap get( ByteReference ref, int variant ) throws IOException {
+		return super.get( ref, Math.max( 1, variant ) );
+	}
+
+	@Override
+	public Bitmap peek( ByteReference ref, int variant ) {
+		return super.peek( ref, Math.max( 1, variant ) );
+	}
+
+
+	/**
+	 * Decodes a bitmap.
+	 *
+	 * @param variant  an inSampleSize (0 or 1 for full size)
+	 */
+	@Override
+	protected Bitmap decode( ByteReference ref, int variant ) throws IOException {
+		return decodeBitmap( ref, variant );
+	}
+
+	@Override
+	protected long sizeOf( Bitmap bitmap ) {
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+
+	/**
+	 * Decodes a Bitmap, without caching.
+	 */
+	public static Bitmap decodeBitmap( ByteReference ref ) throws IOException {
+		return decodeBitmap( ref, 1 );
+	}
+
+	/**
+	 * Decodes a reduced Bitmap, without caching.
+	 *
+	 * @param ref  the encoded bytes
+	 * @param sampleSize  a power of 2 to divide each dimension by (0 or 1 for full size)
+	 */
+	public static Bitmap decodeBitmap( ByteReference ref, int sampleSize ) throws IOException {
+		InputStream is = null;
+		try {
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inSampleSize = Math.max( 1, sampleSize );
+
+			is = new ByteBufferInputStream( ref.getByteBuffer() );
+			Bitmap bitmap = BitmapFactory.decodeStream( is, null, opts );
+			if ( bitmap == null ) throw new IOException( "Failed to decode bitmap" );
+			return bitmap;
+		}
+		finally {
+			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Reads an image's dimensions, without decoding pixels.
+	 * <p>
+	 * Only the header is read.
+	 *
+	 * @return an array of {width, height}
+	 */
+	public static int[] decodeBounds( ByteReference ref ) throws IOException {
+		InputStream is = null;
+		try {
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inJustDecodeBounds = true;
+
+			is = ref.getInputStream();
+			BitmapFactory.decodeStream( is, null, opts );
+			if ( opts.outWidth <= 0 || opts.outHeight <= 0 ) throw new IOException( "Failed to read bitmap dimensions" );
+			return new int[] {opts.outWidth, opts.outHeight};
+		}
+		finally {
+			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns the largest inSampleSize that keeps an image at least as detailed as a target area.
+	 * <p>
+	 * An image fit within the target (preserving aspect ratio) will
+	 * then need no upscaling.
+	 *
+	 * @param width  the full image width
+	 * @param height  the full image height
+	 * @param reqWidth  the target width
+	 * @param reqHeight  the target height
+	 * @return a power of 2
+	 */
+	public static int calculateSampleSize( int width, int height, int reqWidth, int reqHeight ) {
+		int sampleSize = 1;
+		if ( reqWidth <= 0 || reqHeight <= 0 ) return sampleSize;
+
+		while ( width / (sampleSize*2) >= reqWidth || height / (sampleSize*2) >= reqHeight ) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+}
@@ -12,6 +12,7 @@ import android.widget.ListView;
 import net.vhati.openuhs.androidreader.R;
 import net.vhati.openuhs.androidreader.reader.NodeView;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodeType;
 import net.vhati.openuhs.core.UHSRootNode;
 
 
@@ -148,7 +149,7 @@ public class DefaultNodeView extends NodeView {
 			if ( tmpNode.isLink() || this.getNavCtrl().isNodeVisitable( tmpNode ) ) {
 				// Clickable.
 			}
-			else if ( "Blank".equals( tmpNode.getType() ) == false ) {
+			else if ( tmpNode.getNodeType() != UHSNodeType.BLANK ) {
 				allClickable = false;
 			}
 		}
@@ -8,6 +8,7 @@ import java.util.List;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
@@ -15,6 +16,8 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.AsyncTask;
+import android.util.DisplayMetrics;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
 import android.view.MotionEvent;
@@ -30,12 +33,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.vhati.openuhs.androidreader.AndroidUHSConstants;
+import net.vhati.openuhs.androidreader.reader.BitmapCache;
 import net.vhati.openuhs.androidreader.reader.NodeView;
 import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.FileRegionByteReference;
 import net.vhati.openuhs.core.HotSpot;
+import net.vhati.openuhs.core.SharedFileChannel;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodeType;
 
 
 public class HotSpotNodeView extends NodeView {
@@ -49,6 +56,20 @@ public class HotSpotNodeView extends NodeView {
 
 	protected UHSHotSpotNode hotspotNode = null;
 	protected Bitmap mainBitmap = null;
+	protected int mainSampleSize = 1;
+	protected int[] mainBounds = null;
+	protected Rect mainSrcRect = new Rect();
+	protected BitmapCache bitmapCache = null;
+	private BitmapLoadTask loadTask = null;
+
+	protected BitmapRegionDecoder regionDecoder = null;
+	protected Bitmap regionBitmap = null;
+	protected Rect regionRect = new Rect();
+	protected int regionSampleSize = 1;
+	protected RectF regionDstRect = new RectF();
+	protected Rect visibleMainRect = new Rect();
+	private RegionLoadTask regionTask = null;
+	private boolean regionWanted = false;
 	protected RectF originalMainRect = null;
 	protected RectF currentMainRect = null;
 
@@ -83,21 +104,25 @@ public class HotSpotNodeView extends NodeView {
 			@Override
 			public boolean onSingleTapUp( MotionEvent e ) {
 				if ( hotspotNode != null ) {
-					for ( ZoneHolder zoneHolder : zoneHolders ) {
-						float paddedX = e.getX() + HotSpotNodeView.this.getPaddingLeft();
-						float paddedY = e.getY() + HotSpotNodeView.this.getPaddingTop();
-
-						if ( zoneHolder.currentZoneRect.contains( paddedX, paddedY ) ) {
-
-							if ( zoneHolder.imageRef != null ) {
-								zoneHolder.revealed = !zoneHolder.revealed;
-								HotSpotNodeView.this.invalidate();
-								// Keep looping through layers? Sure.
-							}
-							else if ( zoneHolder.linkTarget != -1 ) {
-								HotSpotNodeView.this.getNavCtrl().setReaderNode( zoneHolder.linkTarget );
-								break;
-							}
+					float paddedX = e.getX() + HotSpotNodeView.this.getPaddingLeft();
+					float paddedY = e.getY() + HotSpotNodeView.this.getPaddingTop();
+
+					// Undo the current pan and scale, to get coordinates on the main image.
+					int mainX = (int)Math.floor( paddedX / scale + panMainRect.left );
+					int mainY = (int)Math.floor( paddedY / scale + panMainRect.top );
+
+					// Zones are checked in child order, like the layers.
+					for ( int zoneIndex : hotspotNode.getSpotIndex().getZonesAt( mainX, mainY ) ) {
+						ZoneHolder zoneHolder = zoneHolders.get( zoneIndex );
+
+						if ( zoneHolder.imageRef != null ) {
+							zoneHolder.revealed = !zoneHolder.revealed;
+							HotSpotNodeView.this.invalidate();
+							// Keep looping through layers? Sure.
+						}
+						else if ( zoneHolder.linkTarget != -1 ) {
+							HotSpotNodeView.this.getNavCtrl().setReaderNode( zoneHolder.linkTarget );
+							break;
 						}
 					}
 				}
@@ -146,6 +171,21 @@ public class HotSpotNodeView extends NodeView {
 		});
 	}
 
+	/**
+	 * Sets a cache to hold decoded bitmaps, possibly shared with other views.
+	 * <p>
+	 * Revisiting a node will then reuse its main image and overlays.
+	 *
+	 * @param bitmapCache  a cache, or null to decode every time
+	 */
+	public void setBitmapCache( BitmapCache bitmapCache ) {
+		this.bitmapCache = bitmapCache;
+	}
+
+	public BitmapCache getBitmapCache() {
+		return bitmapCache;
+	}
+
 	@Override
 	public boolean accept( UHSNode node ) {
 		if ( node instanceof UHSHotSpotNode ) return true;
@@ -160,63 +200,13 @@ public class HotSpotNodeView extends NodeView {
 		super.setNode( node, showAll );
 		hotspotNode = (UHSHotSpotNode)node;
 
-		InputStream is = null;
+		ByteReference mainImageRef = hotspotNode.getRawImageContent();
 		try {
-			ByteReference mainImageRef = hotspotNode.getRawImageContent();
-
-			BitmapFactory.Options opts = new BitmapFactory.Options();
-			is = mainImageRef.getInputStream();
-			mainBitmap = BitmapFactory.decodeStream( is, null, opts );
-			if ( mainBitmap == null ) throw new IOException( "Failed to read main bitmap" );
-			is.close();
-			originalMainRect = new RectF( 0, 0, mainBitmap.getWidth(), mainBitmap.getHeight() );
-			currentMainRect = new RectF( originalMainRect );
-			panMainRect.offsetTo( (int)currentMainRect.centerX() - panMainRect.centerX(), (int)currentMainRect.centerY() - panMainRect.centerY() );
-
-			for ( int i=0; i < hotspotNode.getChildCount(); i++ ) {
-				UHSNode childNode = hotspotNode.getChild( i );
-				String childType = childNode.getType();
-
-				HotSpot spot = hotspotNode.getSpot( childNode );
-
-				ZoneHolder zoneHolder = new ZoneHolder();
-				zoneHolder.originalZoneRect = new RectF( spot.zoneX, spot.zoneY, spot.zoneX+spot.zoneW, spot.zoneY+spot.zoneH );
-				zoneHolder.currentZoneRect = new RectF( zoneHolder.originalZoneRect );
-				zoneHolder.title = childNode.getDecoratedStringContent();
-
-				if ( "Overlay".equals( childType ) && childNode instanceof UHSImageNode ) {
-					UHSImageNode overlayNode = (UHSImageNode)childNode;
-
-					zoneHolder.imageRef = overlayNode.getRawImageContent();
-					if ( zoneHolder.imageRef != null ) {
-
-						opts = new BitmapFactory.Options();
-						is = zoneHolder.imageRef.getInputStream();
-						Bitmap overlayBitmap = BitmapFactory.decodeStream( is, null, opts );
-						if ( overlayBitmap == null ) throw new IOException( "Failed to read overlay bitmap" );
-						is.close();
-
-						zoneHolder.imageBitmap = overlayBitmap;
-						zoneHolder.originalOverlayRect = new RectF( 0, 0, overlayBitmap.getWidth(), overlayBitmap.getHeight() );
-						zoneHolder.originalOverlayRect.offsetTo( spot.x, spot.y );
-						zoneHolder.currentOverlayRect = new RectF( zoneHolder.originalOverlayRect );
-
-						if ( showAll ) zoneHolder.revealed = true;
-					}
-				}
-				else if ( childNode.isLink() ) {  // Follow the link when clicked.
-					zoneHolder.linkTarget = childNode.getLinkTarget();
-				}
-				else if ( childNode.getId() != -1 ) {  // Visit that child when clicked.
-					zoneHolder.linkTarget = childNode.getId();
-				}
-				else {
-					logger.error( "Unexpected {} child of UHSHotSpotNode", childNode.getType() );
-				}
-
-				zoneHolders.add( zoneHolder );
-			}
-
+			// Only the header is read here, to pick a sample size before decoding.
+			// Large images are reduced to roughly screen resolution.
+			mainBounds = BitmapCache.decodeBounds( mainImageRef );
+			DisplayMetrics metrics = this.getResources().getDisplayMetrics();
+			mainSampleSize = BitmapCache.calculateSampleSize( mainBounds[0], mainBounds[1], metrics.widthPixels, metrics.heightPixels );
 		}
 		catch ( IOException e ) {
 			logger.error( "Error loading image: {}", e );
@@ -225,10 +215,80 @@ public class HotSpotNodeView extends NodeView {
 			reset();
 			return;
 		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+
+		// Lay out zones now, but leave bitmaps the cache doesn't have to a background task.
+
+		List<ZoneHolder> pendingHolders = new ArrayList<ZoneHolder>();
+
+		for ( int i=0; i < hotspotNode.getChildCount(); i++ ) {
+			UHSNode childNode = hotspotNode.getChild( i );
+
+			HotSpot spot = hotspotNode.getSpot( childNode );
+
+			ZoneHolder zoneHolder = new ZoneHolder();
+			zoneHolder.originalZoneRect = new RectF( spot.zoneX, spot.zoneY, spot.zoneX+spot.zoneW, spot.zoneY+spot.zoneH );
+			zoneHolder.currentZoneRect = new RectF( zoneHolder.originalZoneRect );
+			zoneHolder.title = childNode.getDecoratedStringContent();
+
+			if ( childNode.getNodeType() == UHSNodeType.OVERLAY && childNode instanceof UHSImageNode ) {
+				UHSImageNode overlayNode = (UHSImageNode)childNode;
+
+				zoneHolder.imageRef = overlayNode.getRawImageContent();
+				if ( zoneHolder.imageRef != null ) {
+					zoneHolder.originalOverlayRect = new RectF( spot.x, spot.y, spot.x, spot.y );  // Sized once decoded.
+					zoneHolder.currentOverlayRect = new RectF( zoneHolder.originalOverlayRect );
+
+					// Overlays are reduced by the same amount as the main image.
+					Bitmap overlayBitmap = (( bitmapCache != null ) ? bitmapCache.peek( zoneHolder.imageRef, mainSampleSize ) : null);
+					if ( overlayBitmap != null ) {
+						setZoneBitmap( zoneHolder, overlayBitmap );
+					} else {
+						pendingHolders.add( zoneHolder );
+					}
+
+					if ( showAll ) zoneHolder.revealed = true;
+				}
+			}
+			else if ( childNode.isLink() ) {  // Follow the link when clicked.
+				zoneHolder.linkTarget = childNode.getLinkTarget();
+			}
+			else if ( childNode.getId() != -1 ) {  // Visit that child when clicked.
+				zoneHolder.linkTarget = childNode.getId();
+			}
+			else {
+				logger.error( "Unexpected {} child of UHSHotSpotNode", childNode.getType() );
+			}
+
+			zoneHolders.add( zoneHolder );
+		}
+
+		Bitmap cachedMainBitmap = (( bitmapCache != null ) ? bitmapCache.peek( mainImageRef, mainSampleSize ) : null);
+		if ( cachedMainBitmap != null ) {
+			setMainBitmap( cachedMainBitmap );
+			mainImageRef = null;
+		}
+
+		if ( mainImageRef != null || !pendingHolders.isEmpty() ) {
+			loadTask = new BitmapLoadTask( mainImageRef, pendingHolders, mainSampleSize );
+			loadTask.execute();
 		}
 
+		this.requestLayout();
+		this.invalidate();
+	}
+
+	/**
+	 * Shows the main bitmap, fitting and centering it.
+	 * <p>
+	 * Content coordinates remain those of the full-size image, even if
+	 * the bitmap was reduced.
+	 */
+	private void setMainBitmap( Bitmap bitmap ) {
+		mainBitmap = bitmap;
+		originalMainRect = new RectF( 0, 0, mainBounds[0], mainBounds[1] );
+		currentMainRect = new RectF( originalMainRect );
+		panMainRect.offsetTo( (int)currentMainRect.centerX() - panMainRect.centerX(), (int)currentMainRect.centerY() - panMainRect.centerY() );
+
 		if ( this.getWidth() > 0 && this.getHeight() > 0 ) {
 			// After reusing this view, the next node triggers onMeasure().
 			// But onSizeChanged() only happens if the measured size is
@@ -240,22 +300,62 @@ public class HotSpotNodeView extends NodeView {
 		this.invalidate();
 	}
 
+	/**
+	 * Gives a zone its overlay bitmap.
+	 */
+	private void setZoneBitmap( ZoneHolder zoneHolder, Bitmap bitmap ) {
+		zoneHolder.imageBitmap = bitmap;
+		zoneHolder.originalOverlayRect.right = zoneHolder.originalOverlayRect.left + bitmap.getWidth() * mainSampleSize;
+		zoneHolder.originalOverlayRect.bottom = zoneHolder.originalOverlayRect.top + bitmap.getHeight() * mainSampleSize;
+
+		handleScale( scale );  // Reposition the new overlay rect, and invalidate.
+	}
+
+	/**
+	 * Decodes a bitmap, or fetches it from the cache.
+	 * <p>
+	 * This is called from background threads.
+	 */
+	private Bitmap readBitmap( ByteReference ref, int sampleSize ) throws IOException {
+		BitmapCache cache = bitmapCache;
+		if ( cache != null ) return cache.get( ref, sampleSize );
+		return BitmapCache.decodeBitmap( ref, sampleSize );
+	}
+
 	@Override
 	public void reset() {
-		if ( mainBitmap != null ) {
-			mainBitmap.recycle();
-			mainBitmap = null;
+		if ( loadTask != null ) {
+			// Don't interrupt: that would close a FileChannel other readers share.
+			loadTask.cancel( false );
+			loadTask = null;
 		}
-		originalMainRect = null;
-		currentMainRect = null;
 
-		for ( ZoneHolder zoneHolder : zoneHolders ) {
-			if ( zoneHolder.imageBitmap != null ) {
-				zoneHolder.imageBitmap.recycle();
+		if ( bitmapCache == null ) {  // Cached bitmaps may still be in use elsewhere.
+			if ( mainBitmap != null ) mainBitmap.recycle();
+
+			for ( ZoneHolder zoneHolder : zoneHolders ) {
+				if ( zoneHolder.imageBitmap != null ) {
+					zoneHolder.imageBitmap.recycle();
+				}
 			}
 		}
+		mainBitmap = null;
+		mainSampleSize = 1;
+		mainBounds = null;
+		originalMainRect = null;
+		currentMainRect = null;
 		zoneHolders.clear();
 
+		discardRegion();
+		if ( regionTask != null ) {
+			regionTask = null;  // It'll find itself stale and recycle its own decoder.
+		}
+		else if ( regionDecoder != null ) {
+			regionDecoder.recycle();
+		}
+		regionDecoder = null;
+		regionWanted = false;
+
 		hotspotNode = null;
 		resetScale();
 
@@ -276,7 +376,7 @@ public class HotSpotNodeView extends NodeView {
 		int minHeight = 0;
 
 		if ( resizeWidth || resizeHeight ) {  // Skip calc if not needed.
-			if ( hotspotNode != null ) {
+			if ( originalMainRect != null ) {
 				minWidth = (int)originalMainRect.width() + this.getPaddingLeft() + this.getPaddingRight();
 				minHeight = (int)originalMainRect.height() + this.getPaddingTop() + this.getPaddingBottom();
 			}
@@ -308,7 +408,7 @@ public class HotSpotNodeView extends NodeView {
 
 		viewRect.set( 0, 0, Math.max( 0, contentWidth ), Math.max( 0, contentHeight ) );
 
-		if ( hotspotNode != null ) {
+		if ( originalMainRect != null ) {
 			float fitX = contentWidth / originalMainRect.width();
 			float fitY = contentHeight / originalMainRect.height();
 			minScale = Math.min( fitX, fitY );
@@ -331,7 +431,7 @@ public class HotSpotNodeView extends NodeView {
 	 * After resizing, the pan rectangle will be centered on the same spot.
 	 */
 	private void handleScale( float newScale ) {
-		if ( hotspotNode == null ) return;
+		if ( originalMainRect == null ) return;
 
 		scale = newScale;
 
@@ -374,7 +474,7 @@ public class HotSpotNodeView extends NodeView {
 	 * already.)
 	 */
 	private void handleScroll( float distanceX, float distanceY ) {
-		if ( hotspotNode == null ) return;
+		if ( originalMainRect == null ) return;
 
 		float panOffsetX = distanceX / scale;  // TODO: Convert offset to scaled intra-main-image space.
 		float panOffsetY = distanceY / scale;
@@ -424,16 +524,74 @@ public class HotSpotNodeView extends NodeView {
 			}
 		}
 
+		updateRegion();
 		this.invalidate();
 	}
 
 
+	/**
+	 * Decodes a sharper region of the main image, if zoomed in beyond the main bitmap's detail.
+	 * <p>
+	 * The region covers the visible area plus a margin for panning,
+	 * at just enough resolution for the current scale. It's decoded in
+	 * the background, then drawn over the main bitmap.
+	 */
+	private void updateRegion() {
+		if ( mainBitmap == null ) return;
+
+		int neededSampleSize = 1;
+		while ( scale * neededSampleSize * 2 <= 1f ) {
+			neededSampleSize *= 2;
+		}
+		if ( neededSampleSize >= mainSampleSize ) {  // The main bitmap is detailed enough.
+			discardRegion();
+			return;
+		}
+
+		visibleMainRect.set( panMainRect );
+		if ( !visibleMainRect.intersect( 0, 0, mainBounds[0], mainBounds[1] ) ) return;
+
+		if ( regionBitmap != null && regionSampleSize == neededSampleSize && regionRect.contains( visibleMainRect ) ) return;
+
+		if ( regionTask != null ) {  // Check again when it's done.
+			regionWanted = true;
+			return;
+		}
+
+		Rect wantedRect = new Rect( visibleMainRect );
+		wantedRect.inset( -visibleMainRect.width()/4, -visibleMainRect.height()/4 );
+		wantedRect.intersect( 0, 0, mainBounds[0], mainBounds[1] );
+
+		regionTask = new RegionLoadTask( hotspotNode.getRawImageContent(), regionDecoder, wantedRect, neededSampleSize );
+		regionTask.execute();
+	}
+
+	/**
+	 * Forgets the current sharper region, if any.
+	 */
+	private void discardRegion() {
+		if ( regionBitmap != null ) {
+			regionBitmap.recycle();
+			regionBitmap = null;
+		}
+	}
+
+
 	@Override
 	protected void onDraw( Canvas canvas ) {
 		super.onDraw( canvas );
 
 		if ( mainBitmap != null ) {
-			canvas.drawBitmap( mainBitmap, panMainRect, viewRect, null );
+			// The bitmap may be reduced from the content coordinates panMainRect is in.
+			mainSrcRect.set( panMainRect.left / mainSampleSize, panMainRect.top / mainSampleSize, panMainRect.right / mainSampleSize, panMainRect.bottom / mainSampleSize );
+			canvas.drawBitmap( mainBitmap, mainSrcRect, viewRect, null );
+
+			if ( regionBitmap != null ) {
+				float scaleX = viewRect.width() / panMainRect.width();
+				float scaleY = viewRect.height() / panMainRect.height();
+				regionDstRect.set( viewRect.left + (regionRect.left - panMainRect.left) * scaleX, viewRect.top + (regionRect.top - panMainRect.top) * scaleY, viewRect.left + (regionRect.right - panMainRect.left) * scaleX, viewRect.top + (regionRect.bottom - panMainRect.top) * scaleY );
+				canvas.drawBitmap( regionBitmap, null, regionDstRect, null );
+			}
 		}
 
 		int zoneHoldersCount = zoneHolders.size();
@@ -449,10 +607,12 @@ public class HotSpotNodeView extends NodeView {
 		for ( int i=0; i < zoneHoldersCount; i++ ) {
 			ZoneHolder zoneHolder = zoneHolders.get( i );
 
-			if ( zoneHolder.imageBitmap != null ) {
+			if ( zoneHolder.imageRef != null ) {
 				if ( !zoneHolder.revealed ) {
-					rectPaint.setColor( overlayOutlineColor );
-					canvas.drawRect( zoneHolder.currentOverlayRect, rectPaint );
+					if ( zoneHolder.imageBitmap != null ) {  // Overlay size is unknown until decoded.
+						rectPaint.setColor( overlayOutlineColor );
+						canvas.drawRect( zoneHolder.currentOverlayRect, rectPaint );
+					}
 
 					rectPaint.setColor( overlayZoneColor );
 					canvas.drawRect( zoneHolder.currentZoneRect, rectPaint );
@@ -486,4 +646,203 @@ public class HotSpotNodeView extends NodeView {
 
 		public boolean revealed = false;
 	}
+
+
+
+	/**
+	 * A background task that decodes the main bitmap, then overlays in zone order.
+	 * <p>
+	 * Each bitmap is handed to the UI thread as soon as it's ready.
+	 * Results arriving after the view has moved on to another node are
+	 * ignored.
+	 */
+	private class BitmapLoadTask extends AsyncTask<Void, LoadedBitmap, IOException> {
+
+		// doInBackground() has no params.
+		// It reports the second generic, [a decoded bitmap], to onProgressUpdate().
+		// It returns the third generic [an error, or null] to onPostExecute().
+
+		private final ByteReference mainImageRef;
+		private final List<ZoneHolder> pendingHolders;
+		private final int sampleSize;
+
+
+		/**
+		 * Constructs a task.
+		 *
+		 * @param mainImageRef  the main image, or null if it's already shown
+		 * @param pendingHolders  zones whose overlays need decoding
+		 * @param sampleSize  an inSampleSize for every bitmap
+		 */
+		public BitmapLoadTask( ByteReference mainImageRef, List<ZoneHolder> pendingHolders, int sampleSize ) {
+			this.mainImageRef = mainImageRef;
+			this.pendingHolders = pendingHolders;
+			this.sampleSize = sampleSize;
+		}
+
+
+		// This runs in a background thread, unlike the other methods here.
+		@Override
+		protected IOException doInBackground( Void... params ) {
+			// Overlays live in the same file, so hold it open until they're all read.
+			SharedFileChannel binaryChannel = null;
+			try {
+				ByteReference firstRef = (( mainImageRef != null ) ? mainImageRef : pendingHolders.get( 0 ).imageRef);
+				if ( firstRef instanceof FileRegionByteReference ) {
+					SharedFileChannel firstChannel = ((FileRegionByteReference)firstRef).getChannel();
+					firstChannel.acquire();
+					binaryChannel = firstChannel;
+				}
+
+				if ( mainImageRef != null ) {
+					publishProgress( new LoadedBitmap( null, readBitmap( mainImageRef, sampleSize ) ) );
+				}
+
+				for ( ZoneHolder zoneHolder : pendingHolders ) {
+					if ( isCancelled() ) break;
+
+					publishProgress( new LoadedBitmap( zoneHolder, readBitmap( zoneHolder.imageRef, sampleSize ) ) );
+				}
+			}
+			catch ( IOException e ) {
+				return e;
+			}
+			finally {
+				if ( binaryChannel != null ) binaryChannel.release();
+			}
+			return null;
+		}
+
+		@Override
+		protected void onProgressUpdate( LoadedBitmap... values ) {
+			if ( loadTask != this ) return;
+
+			for ( LoadedBitmap loaded : values ) {
+				if ( loaded.zoneHolder == null ) {
+					setMainBitmap( loaded.bitmap );
+				} else {
+					setZoneBitmap( loaded.zoneHolder, loaded.bitmap );
+				}
+			}
+		}
+
+		@Override
+		protected void onPostExecute( IOException e ) {
+			if ( loadTask != this ) return;
+			loadTask = null;
+
+			if ( e != null ) {
+				logger.error( "Error loading image: {}", e );
+				Toast.makeText( HotSpotNodeView.this.getContext(), "Error loading image", Toast.LENGTH_LONG ).show();
+
+				reset();
+			}
+		}
+	}
+
+
+
+	/**
+	 * A background task that decodes part of the main image at a given sample size.
+	 * <p>
+	 * The region decoder is created on first use, then reused by later
+	 * tasks. A task that has gone stale recycles what it produced.
+	 */
+	private class RegionLoadTask extends AsyncTask<Void, Void, RegionLoadTask> {
+		private final ByteReference mainImageRef;
+		private final Rect rect;
+		private final int sampleSize;
+
+		private BitmapRegionDecoder decoder;
+		private Bitmap bitmap = null;
+		private IOException error = null;
+
+
+		/**
+		 * Constructs a task.
+		 *
+		 * @param mainImageRef  the main image
+		 * @param decoder  an existing decoder for it, or null
+		 * @param rect  the region to decode, in full-size coordinates
+		 * @param sampleSize  an inSampleSize
+		 */
+		public RegionLoadTask( ByteReference mainImageRef, BitmapRegionDecoder decoder, Rect rect, int sampleSize ) {
+			this.mainImageRef = mainImageRef;
+			this.decoder = decoder;
+			this.rect = rect;
+			this.sampleSize = sampleSize;
+		}
+
+
+		// This runs in a background thread, unlike the other methods here.
+		@Override
+		protected RegionLoadTask doInBackground( Void... params ) {
+			InputStream is = null;
+			try {
+				if ( decoder == null ) {
+					is = mainImageRef.getInputStream();
+					decoder = BitmapRegionDecoder.newInstance( is, false );
+					if ( decoder == null ) throw new IOException( "Failed to create a region decoder" );
+				}
+
+				BitmapFactory.Options opts = new BitmapFactory.Options();
+				opts.inSampleSize = sampleSize;
+				bitmap = decoder.decodeRegion( rect, opts );
+				if ( bitmap == null ) throw new IOException( "Failed to decode bitmap region" );
+			}
+			catch ( IOException e ) {
+				error = e;
+			}
+			finally {
+				try {if ( is != null ) is.close();} catch ( IOException e ) {}
+			}
+			return this;
+		}
+
+		@Override
+		protected void onPostExecute( RegionLoadTask result ) {
+			if ( regionTask != this ) {
+				if ( bitmap != null ) bitmap.recycle();
+				if ( decoder != null && decoder != regionDecoder ) decoder.recycle();
+				return;
+			}
+			regionTask = null;
+
+			if ( error != null ) {
+				logger.warn( "Error loading image region: {}", error );
+				return;  // Stick with the main bitmap.
+			}
+
+			regionDecoder = decoder;
+			discardRegion();
+			regionBitmap = bitmap;
+			regionRect.set( rect );
+			regionSampleSize = sampleSize;
+			HotSpotNodeView.this.invalidate();
+
+			if ( regionWanted ) {
+				regionWanted = false;
+				updateRegion();
+			}
+		}
+	}
+
+
+
+	private static class LoadedBitmap {
+		public final ZoneHolder zoneHolder;
+		public final Bitmap bitmap;
+
+
+		/**
+		 * Constructs a result.
+		 *
+		 * @param zoneHolder  the zone the bitmap belongs to, or null for the main bitmap
+		 * @param bitmap  the decoded bitmap
+		 */
+		public LoadedBitmap( ZoneHolder zoneHolder, Bitmap bitmap ) {
+			this.zoneHolder = zoneHolder;
+			this.bitmap = bitmap;
+		}
+	}
 }
@@ -1,11 +1,9 @@
 package net.vhati.openuhs.androidreader.reader;
 
-import java.io.InputStream;
 import java.io.IOException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
@@ -15,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.vhati.openuhs.androidreader.AndroidUHSConstants;
+import net.vhati.openuhs.androidreader.reader.BitmapCache;
 import net.vhati.openuhs.androidreader.reader.NodeView;
 import net.vhati.openuhs.core.ByteReference;
 import net.vhati.openuhs.core.HotSpot;
@@ -29,6 +28,7 @@ public class ImageNodeView extends NodeView {
 	protected UHSImageNode imageNode = null;
 
 	protected ImageView imageView;
+	protected BitmapCache bitmapCache = null;
 
 
 	public ImageNodeView( Context context ) {
@@ -39,6 +39,19 @@ public class ImageNodeView extends NodeView {
 		imageView = new ImageView( context );
 	}
 
+	/**
+	 * Sets a cache to hold decoded bitmaps, possibly shared with other views.
+	 *
+	 * @param bitmapCache  a cache, or null to decode every time
+	 */
+	public void setBitmapCache( BitmapCache bitmapCache ) {
+		this.bitmapCache = bitmapCache;
+	}
+
+	public BitmapCache getBitmapCache() {
+		return bitmapCache;
+	}
+
 	@Override
 	public boolean accept( UHSNode node ) {
 		if ( node instanceof UHSImageNode ) return true;
@@ -53,11 +66,9 @@ public class ImageNodeView extends NodeView {
 		super.setNode( node, showAll );
 		imageNode = (UHSImageNode)node;
 
-		InputStream is = null;
 		try {
 			ByteReference imageRef = imageNode.getRawImageContent();
-			is = imageRef.getInputStream();
-			Bitmap imageBitmap = BitmapFactory.decodeStream( is );
+			Bitmap imageBitmap = (( bitmapCache != null ) ? bitmapCache.get( imageRef ) : BitmapCache.decodeBitmap( imageRef ));
 			imageView.setImageBitmap( imageBitmap );
 			this.addView( imageView );
 		}
@@ -65,9 +76,6 @@ public class ImageNodeView extends NodeView {
 			logger.error( "Error loading binary content of {} node (\"{}\"): {}", imageNode.getType(), imageNode.getRawStringContent(), e );
 			Toast.makeText( this.getContext(), "Error loading image", Toast.LENGTH_LONG ).show();
 		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
-		}
 
 		this.requestLayout();
 		this.invalidate();
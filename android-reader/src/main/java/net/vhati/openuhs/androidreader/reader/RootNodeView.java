@@ -93,20 +93,16 @@ public class RootNodeView extends NodeView {
 					UHSNode childNode = nodeList.get( position );
 					((UHSTextView)childView).setNode( childNode, RootNodeView.this.getNavCtrl().isNodeVisitable( childNode ) );
 
-					if ( "Version".equals( childNode.getType() ) ) {
-						((UHSTextView)childView).setOverrideText( String.format( "%s: %s", childNode.getType(), childNode.getRawStringContent() ) );
-					}
-					else if ( "Incentive".equals( childNode.getType() ) ) {
-						((UHSTextView)childView).setOverrideText( String.format( "%s: %s", childNode.getType(), childNode.getRawStringContent() ) );
-					}
-					else if ( "Info".equals( childNode.getType() ) ) {
-						((UHSTextView)childView).setOverrideText( String.format( "%s: %s", childNode.getType(), childNode.getRawStringContent() ) );
-					}
-					else if ( "Credits".equals( childNode.getType() ) ) {
-						((UHSTextView)childView).setOverrideText( String.format( "%s: %s", childNode.getType(), childNode.getRawStringContent() ) );
-					}
-					else {
-						((UHSTextView)childView).setOverrideText( null );
+					switch ( childNode.getNodeType() ) {
+						case VERSION:
+						case INCENTIVE:
+						case INFO:
+						case CREDITS:
+							((UHSTextView)childView).setOverrideText( String.format( "%s: %s", childNode.getType(), childNode.getRawStringContent() ) );
+							break;
+						default:
+							((UHSTextView)childView).setOverrideText( null );
+							break;
 					}
 				}
 
@@ -3,26 +3,71 @@ package net.vhati.openuhs.core;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import net.vhati.openuhs.core.ByteReference;
 
 
+/**
+ * A reference to bytes held in memory.
+ * <p>
+ * The reference may cover just a slice of a larger array, so that many
+ * references can share one buffer without copying.
+ */
 public class ArrayByteReference implements ByteReference {
-	protected byte[] data;
+	protected final byte[] data;
+	protected final int offset;
+	protected final int length;
 
 
 	public ArrayByteReference( byte[] data ) {
+		this( data, 0, data.length );
+	}
+
+	/**
+	 * Constructs a reference to a slice of an array.
+	 * <p>
+	 * The array is not copied, and should not be modified afterward.
+	 *
+	 * @param data  the backing array
+	 * @param offset  the index of the first byte
+	 * @param length  the number of bytes
+	 */
+	public ArrayByteReference( byte[] data, int offset, int length ) {
+		if ( offset < 0 || length < 0 || offset > data.length - length ) {
+			throw new IllegalArgumentException( String.format( "Offset (%d) and length (%d) lie outside the array (%d)", offset, length, data.length ) );
+		}
 		this.data = data;
+		this.offset = offset;
+		this.length = length;
 	}
 
 
 	@Override
 	public long length() {
-		return data.length;
+		return length;
 	}
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return new ByteArrayInputStream( data );
+		return new ByteArrayInputStream( data, offset, length );
+	}
+
+	/**
+	 * Returns a read-only view of the array, without copying.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer() throws IOException {
+		return ByteBuffer.wrap( data, offset, length ).slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public long transferTo( WritableByteChannel target ) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap( data, offset, length );
+		while ( buf.hasRemaining() ) {
+			target.write( buf );
+		}
+		return length;
 	}
 }
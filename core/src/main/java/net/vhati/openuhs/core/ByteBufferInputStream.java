@@ -0,0 +1,71 @@
+package net.vhati.openuhs.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An InputStream reading from a ByteBuffer, without copying it.
+ * <p>
+ * The buffer's remaining bytes are consumed. Use duplicate() first
+ * to leave the original's position alone.
+ * <p>
+ * Mark and reset are supported, for decoders that peek at a header.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buf;
+	private int markPos = -1;
+
+
+	public ByteBufferInputStream( ByteBuffer buf ) {
+		this.buf = buf;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		if ( !buf.hasRemaining() ) return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		if ( len == 0 ) return 0;
+		if ( !buf.hasRemaining() ) return -1;
+
+		len = Math.min( len, buf.remaining() );
+		buf.get( b, off, len );
+		return len;
+	}
+
+	@Override
+	public long skip( long n ) throws IOException {
+		if ( n <= 0 ) return 0;
+
+		int skipped = (int)Math.min( n, (long)buf.remaining() );
+		buf.position( buf.position() + skipped );
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buf.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark( int readlimit ) {
+		markPos = buf.position();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if ( markPos == -1 ) throw new IOException( "Stream not marked" );
+		buf.position( markPos );
+	}
+}
@@ -2,10 +2,27 @@ package net.vhati.openuhs.core;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 
 public interface ByteReference {
 	public long length();
 
 	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the referenced bytes as a read-only buffer.
+	 * <p>
+	 * The buffer's position will be 0 and its limit will be length().
+	 */
+	public ByteBuffer getByteBuffer() throws IOException;
+
+	/**
+	 * Writes the referenced bytes to a channel.
+	 *
+	 * @param target  a channel to write to
+	 * @return the number of bytes written
+	 */
+	public long transferTo( WritableByteChannel target ) throws IOException;
 }
@@ -0,0 +1,105 @@
+package net.vhati.openuhs.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.vhati.openuhs.core.SharedFileChannel;
+
+
+/**
+ * An InputStream over a region of a SharedFileChannel.
+ * <p>
+ * The stream holds a lease on the channel until it is closed.
+ * Reads are positional and buffered, so there's no skipping to
+ * the region's start.
+ */
+public class ChannelRangeInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 8192;
+
+	private SharedFileChannel channel;
+	private long position;
+	private long remaining;
+	private final ByteBuffer buf;
+
+
+	public ChannelRangeInputStream( SharedFileChannel channel, long offset, long length ) throws IOException {
+		this.channel = channel;
+		this.position = offset;
+		this.remaining = length;
+
+		buf = ByteBuffer.allocate( (int)Math.min( (long)BUFFER_SIZE, Math.max( length, 1 ) ) );
+		buf.limit( 0 );
+
+		channel.acquire();
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		if ( !fill() ) return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		if ( len == 0 ) return 0;
+		if ( !fill() ) return -1;
+
+		len = Math.min( len, buf.remaining() );
+		buf.get( b, off, len );
+		return len;
+	}
+
+	@Override
+	public long skip( long n ) throws IOException {
+		if ( n <= 0 ) return 0;
+
+		long buffered = Math.min( n, (long)buf.remaining() );
+		buf.position( buf.position() + (int)buffered );
+
+		long jumped = Math.min( n - buffered, remaining );
+		position += jumped;
+		remaining -= jumped;
+
+		return buffered + jumped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min( (long)buf.remaining() + remaining, Integer.MAX_VALUE );
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( channel != null ) {
+			channel.release();
+			channel = null;
+		}
+	}
+
+
+	/**
+	 * Refills the buffer if it's empty.
+	 *
+	 * @return true if bytes are available, false at the end of the region
+	 */
+	private boolean fill() throws IOException {
+		if ( buf.hasRemaining() ) return true;
+		if ( remaining <= 0 ) return false;
+		if ( channel == null ) throw new IOException( "Stream closed" );
+
+		buf.clear();
+		buf.limit( (int)Math.min( (long)buf.capacity(), remaining ) );
+		int count = channel.read( buf, position );
+		buf.flip();
+
+		if ( count <= 0 ) {
+			remaining = 0;  // The file was shorter than expected.
+			return false;
+		}
+		position += count;
+		remaining -= count;
+		return true;
+	}
+}
@@ -0,0 +1,301 @@
+package net.vhati.openuhs.core;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.vhati.openuhs.core.ArrayByteReference;
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.FileRegionByteReference;
+
+
+/**
+ * A bounded cache of objects decoded from ByteReferences (e.g., images).
+ * <p>
+ * Recently used values are held strongly, up to a budget in bytes.
+ * Least-recently-used values beyond that are demoted to soft
+ * references, which the garbage collector may clear under memory
+ * pressure. A demoted value that survives is promoted again when
+ * requested.
+ * <p>
+ * Keys are based on where the bytes come from. File regions sharing a
+ * SharedFileChannel match by offset and length, as do array slices
+ * sharing a backing array. Other references match by identity. An
+ * optional variant number tells apart different decodings of the same
+ * bytes (e.g., at reduced sizes).
+ * <p>
+ * Keys only hold their sources weakly, so caching a value doesn't keep
+ * a file's whole binary hunk in memory. Once a source is collected, its
+ * entries are dropped.
+ * <p>
+ * Values may be handed to several callers at once, so callers must not
+ * modify or dispose of them.
+ * <p>
+ * This class is thread-safe. Decoding happens outside the lock, so two
+ * threads missing on the same key may both decode it.
+ */
+public abstract class DecodedCache<T> {
+	private final Map<Object, T> strongMap = new LinkedHashMap<Object, T>( 16, 0.75f, true );
+	private final Map<Object, SoftEntry<T>> softMap = new HashMap<Object, SoftEntry<T>>();
+	private final ReferenceQueue<T> softQueue = new ReferenceQueue<T>();
+	private final ReferenceQueue<Object> sourceQueue = new ReferenceQueue<Object>();
+
+	private final long maxBytes;
+	private long strongBytes = 0;
+
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param maxBytes  the total size of values to hold strongly
+	 */
+	public DecodedCache( long maxBytes ) {
+		if ( maxBytes < 0 ) {
+			throw new IllegalArgumentException( String.format( "Cache size (%d) must not be negative", maxBytes ) );
+		}
+		this.maxBytes = maxBytes;
+	}
+
+
+	/**
+	 * Decodes a value from bytes, on a cache miss.
+	 *
+	 * @param ref  the encoded bytes
+	 * @param variant  a subclass-specific decoding option, 0 by default
+	 * @return the decoded value (never null)
+	 */
+	protected abstract T decode( ByteReference ref, int variant ) throws IOException;
+
+	/**
+	 * Returns the approximate memory used by a value, in bytes.
+	 */
+	protected abstract long sizeOf( T value );
+
+
+	/**
+	 * Returns the decoded value of a ByteReference, decoding it if necessary.
+	 *
+	 * @param ref  the encoded bytes
+	 * @return the decoded value
+	 */
+	public T get( ByteReference ref ) throws IOException {
+		return get( ref, 0 );
+	}
+
+	/**
+	 * Returns a decoded variant of a ByteReference, decoding it if necessary.
+	 *
+	 * @param ref  the encoded bytes
+	 * @param variant  a subclass-specific decoding option
+	 * @return the decoded value
+	 */
+	public T get( ByteReference ref, int variant ) throws IOException {
+		Object key = createKey( ref, variant );
+
+		T value = getCached( key );
+		if ( value != null ) return value;
+
+		value = decode( ref, variant );
+		if ( value == null ) {
+			throw new IOException( "Decoding produced nothing" );
+		}
+		put( key, value );
+		return value;
+	}
+
+	/**
+	 * Returns the decoded value of a ByteReference, or null if it isn't cached.
+	 */
+	public T peek( ByteReference ref ) {
+		return peek( ref, 0 );
+	}
+
+	/**
+	 * Returns a decoded variant of a ByteReference, or null if it isn't cached.
+	 */
+	public T peek( ByteReference ref, int variant ) {
+		return getCached( createKey( ref, variant ) );
+	}
+
+	/**
+	 * Discards every cached value.
+	 */
+	public synchronized void clear() {
+		strongMap.clear();
+		softMap.clear();
+		strongBytes = 0;
+		while ( softQueue.poll() != null );
+		while ( sourceQueue.poll() != null );
+	}
+
+	/**
+	 * Returns the total size of values held strongly, in bytes.
+	 */
+	public synchronized long getStrongBytes() {
+		return strongBytes;
+	}
+
+
+	private synchronized T getCached( Object key ) {
+		purgeClearedEntries();
+
+		T value = strongMap.get( key );  // Also marks it as recently used.
+		if ( value != null ) return value;
+
+		SoftEntry<T> entry = softMap.remove( key );
+		if ( entry != null ) {
+			value = entry.get();
+			if ( value != null ) store( key, value );  // Promote it.
+		}
+		return value;
+	}
+
+	private synchronized void put( Object key, T value ) {
+		purgeClearedEntries();
+
+		softMap.remove( key );
+		store( key, value );
+	}
+
+	/**
+	 * Adds a strong entry, then demotes the eldest entries until the budget is met.
+	 * <p>
+	 * The newest entry is always kept strongly, even if it's larger than the budget.
+	 */
+	private void store( Object key, T value ) {
+		T prevValue = strongMap.put( key, value );
+		if ( prevValue != null ) strongBytes -= sizeOf( prevValue );
+		strongBytes += sizeOf( value );
+
+		Iterator<Map.Entry<Object, T>> it = strongMap.entrySet().iterator();
+		while ( strongBytes > maxBytes && strongMap.size() > 1 && it.hasNext() ) {
+			Map.Entry<Object, T> eldest = it.next();
+			if ( eldest.getKey().equals( key ) ) continue;
+
+			strongBytes -= sizeOf( eldest.getValue() );
+			softMap.put( eldest.getKey(), new SoftEntry<T>( eldest.getKey(), eldest.getValue(), softQueue ) );
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes soft entries whose values have been collected, and entries
+	 * whose sources have been collected.
+	 */
+	@SuppressWarnings("unchecked")
+	private void purgeClearedEntries() {
+		SoftEntry<T> entry;
+		while ( (entry=(SoftEntry<T>)softQueue.poll()) != null ) {
+			if ( softMap.get( entry.key ) == entry ) softMap.remove( entry.key );
+		}
+
+		SourceReference sourceRef;
+		while ( (sourceRef=(SourceReference)sourceQueue.poll()) != null ) {
+			RegionKey key = sourceRef.key;
+			T value = strongMap.remove( key );
+			if ( value != null ) strongBytes -= sizeOf( value );
+			softMap.remove( key );
+		}
+	}
+
+
+	/**
+	 * Returns a key identifying where a reference's bytes come from.
+	 */
+	private Object createKey( ByteReference ref, int variant ) {
+		if ( ref instanceof FileRegionByteReference ) {
+			FileRegionByteReference regionRef = (FileRegionByteReference)ref;
+			return new RegionKey( regionRef.getChannel(), regionRef.getOffset(), regionRef.length(), variant, sourceQueue );
+		}
+		if ( ref instanceof ArrayByteReference ) {
+			ArrayByteReference arrayRef = (ArrayByteReference)ref;
+			return new RegionKey( arrayRef.data, arrayRef.offset, arrayRef.length, variant, sourceQueue );
+		}
+		return new RegionKey( ref, 0, ref.length(), variant, sourceQueue );
+	}
+
+
+
+	/**
+	 * A weakly held source object (compared by identity), with an offset, length, and variant.
+	 * <p>
+	 * Once the source is collected, a key only equals itself.
+	 */
+	private static class RegionKey {
+		public final SourceReference sourceRef;
+		public final long offset;
+		public final long length;
+		public final int variant;
+		private final int hash;
+
+
+		public RegionKey( Object source, long offset, long length, int variant, ReferenceQueue<Object> queue ) {
+			this.sourceRef = new SourceReference( source, this, queue );
+			this.offset = offset;
+			this.length = length;
+			this.variant = variant;
+
+			int result = 79;
+			int salt = 41;
+
+			result = salt * result + System.identityHashCode( source );
+			result = salt * result + (int)(offset ^ (offset >>> 32));
+			result = salt * result + (int)(length ^ (length >>> 32));
+			result = salt * result + variant;
+			this.hash = result;
+		}
+
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( o == this ) return true;
+			if ( !(o instanceof RegionKey) ) return false;
+
+			RegionKey other = (RegionKey)o;
+			if ( hash != other.hash || offset != other.offset || length != other.length || variant != other.variant ) return false;
+
+			Object source = sourceRef.get();
+			return ( source != null && source == other.sourceRef.get() );
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+
+
+	/**
+	 * A weak reference to a key's source, that remembers the key, to be purged once cleared.
+	 */
+	private static class SourceReference extends WeakReference<Object> {
+		public final RegionKey key;
+
+
+		public SourceReference( Object source, RegionKey key, ReferenceQueue<Object> queue ) {
+			super( source, queue );
+			this.key = key;
+		}
+	}
+
+
+
+	/**
+	 * A soft reference that remembers its key, to be purged once cleared.
+	 */
+	private static class SoftEntry<T> extends SoftReference<T> {
+		public final Object key;
+
+
+		public SoftEntry( Object key, T value, ReferenceQueue<T> queue ) {
+			super( value, queue );
+			this.key = key;
+		}
+	}
+}
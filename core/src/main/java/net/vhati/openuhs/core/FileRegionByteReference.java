@@ -1,27 +1,62 @@
 package net.vhati.openuhs.core;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import net.vhati.openuhs.core.ByteReference;
-import net.vhati.openuhs.core.RangeInputStream;
+import net.vhati.openuhs.core.ChannelRangeInputStream;
+import net.vhati.openuhs.core.SharedFileChannel;
 
 
+/**
+ * A reference to a region within a file, read on demand.
+ * <p>
+ * Regions of the same file should share a SharedFileChannel, so that
+ * a lease on it lets them all be read with a single open().
+ */
 public class FileRegionByteReference implements ByteReference {
-	protected final File f;
+	protected final SharedFileChannel channel;
 	protected final long offset;
 	protected final long length;
 
 
-	public FileRegionByteReference( File f, long offset, long length ) {
-		this.f = f;
+	public FileRegionByteReference( SharedFileChannel channel, long offset, long length ) {
+		this.channel = channel;
 		this.offset = offset;
 		this.length = length;
 	}
 
+	/**
+	 * Constructs a reference with a channel of its own.
+	 */
+	public FileRegionByteReference( File f, long offset, long length ) {
+		this( new SharedFileChannel( f ), offset, length );
+	}
+
+
+	/**
+	 * Returns the file this region lies within.
+	 */
+	public File getFile() {
+		return channel.getFile();
+	}
+
+	/**
+	 * Returns the channel this region is read through.
+	 */
+	public SharedFileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the position of this region within the file.
+	 */
+	public long getOffset() {
+		return offset;
+	}
 
 	@Override
 	public long length() {
@@ -30,13 +65,36 @@ public class FileRegionByteReference implements ByteReference {
 
 	@Override
 	public InputStream getInputStream() throws IOException {
-		FileInputStream fis = null;
-		try {
-			return new RangeInputStream( new BufferedInputStream( new FileInputStream( f ) ), offset, length );
+		return new ChannelRangeInputStream( channel, offset, length );
+	}
+
+	/**
+	 * Returns a new buffer, filled with a positional read.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer() throws IOException {
+		if ( length > Integer.MAX_VALUE ) {
+			throw new IOException( String.format( "File region is too large for a buffer (%d bytes)", length ) );
 		}
-		catch ( IOException e ) {
-			try {if ( fis != null ) fis.close();} catch( IOException f ) {}
-			throw e;
+
+		ByteBuffer buf = ByteBuffer.allocate( (int)length );
+		int count = channel.read( buf, offset );
+		if ( count < length ) {
+			throw new IOException( String.format( "File region ended early (%d of %d bytes): %s", count, length, channel.getFile().getAbsolutePath() ) );
+		}
+		buf.flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the region to a channel, letting the OS copy directly where it can.
+	 */
+	@Override
+	public long transferTo( WritableByteChannel target ) throws IOException {
+		long count = channel.transferTo( offset, length, target );
+		if ( count < length ) {
+			throw new IOException( String.format( "File region ended early (%d of %d bytes): %s", count, length, channel.getFile().getAbsolutePath() ) );
 		}
+		return count;
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,222 @@
+package net.vhati.openuhs.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.vhati.openuhs.core.HotSpot;
+
+
+/**
+ * A uniform grid over HotSpot zones, for fast hit-testing.
+ * <p>
+ * Zones are identified by their index in the list given to the
+ * constructor (for a UHSHotSpotNode, the child index). A zone contains
+ * points from its top-left corner, up to but excluding its right and
+ * bottom edges. Zones with no area are never hit.
+ * <p>
+ * The index is a snapshot. Changing a HotSpot afterward won't be
+ * noticed.
+ *
+ * @see net.vhati.openuhs.core.UHSHotSpotNode#getSpotIndex()
+ */
+public class HotSpotIndex {
+	private static final int[] NO_ZONES = new int[0];
+
+	private final int[] zoneXs;
+	private final int[] zoneYs;
+	private final int[] zoneWs;
+	private final int[] zoneHs;
+
+	private int gridX = 0;
+	private int gridY = 0;
+	private int cellW = 1;
+	private int cellH = 1;
+	private int cols = 0;
+	private int rows = 0;
+	private int[][] cells = new int[0][];
+
+
+	/**
+	 * Constructs an index.
+	 *
+	 * @param spots  a list of HotSpots (nulls are ignored)
+	 */
+	public HotSpotIndex( List<HotSpot> spots ) {
+		int count = spots.size();
+		zoneXs = new int[count];
+		zoneYs = new int[count];
+		zoneWs = new int[count];
+		zoneHs = new int[count];
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		int zoneCount = 0;
+
+		for ( int i=0; i < count; i++ ) {
+			HotSpot spot = spots.get( i );
+			if ( spot == null || spot.zoneW <= 0 || spot.zoneH <= 0 ) continue;
+
+			zoneXs[i] = spot.zoneX;
+			zoneYs[i] = spot.zoneY;
+			zoneWs[i] = spot.zoneW;
+			zoneHs[i] = spot.zoneH;
+
+			minX = Math.min( minX, spot.zoneX );
+			minY = Math.min( minY, spot.zoneY );
+			maxX = Math.max( maxX, spot.zoneX + spot.zoneW );
+			maxY = Math.max( maxY, spot.zoneY + spot.zoneH );
+			zoneCount++;
+		}
+		if ( zoneCount == 0 ) return;
+
+		// Aim for about one zone per cell.
+		int cellsPerAxis = (int)Math.ceil( Math.sqrt( zoneCount ) );
+		gridX = minX;
+		gridY = minY;
+		cellW = Math.max( 1, (int)Math.ceil( (double)(maxX - minX) / cellsPerAxis ) );
+		cellH = Math.max( 1, (int)Math.ceil( (double)(maxY - minY) / cellsPerAxis ) );
+		cols = ((maxX - minX) + cellW - 1) / cellW;
+		rows = ((maxY - minY) + cellH - 1) / cellH;
+
+		// Count each cell's zones, then fill arrays of exactly that size.
+		int[] cellSizes = new int[cols * rows];
+		for ( int i=0; i < count; i++ ) {
+			if ( zoneWs[i] <= 0 ) continue;
+			for ( int row=getRow( zoneYs[i] ); row <= getRow( zoneYs[i] + zoneHs[i] - 1 ); row++ ) {
+				for ( int col=getCol( zoneXs[i] ); col <= getCol( zoneXs[i] + zoneWs[i] - 1 ); col++ ) {
+					cellSizes[row * cols + col]++;
+				}
+			}
+		}
+
+		cells = new int[cols * rows][];
+		for ( int c=0; c < cells.length; c++ ) {
+			cells[c] = (( cellSizes[c] > 0 ) ? new int[cellSizes[c]] : NO_ZONES);
+			cellSizes[c] = 0;
+		}
+
+		for ( int i=0; i < count; i++ ) {
+			if ( zoneWs[i] <= 0 ) continue;
+			for ( int row=getRow( zoneYs[i] ); row <= getRow( zoneYs[i] + zoneHs[i] - 1 ); row++ ) {
+				for ( int col=getCol( zoneXs[i] ); col <= getCol( zoneXs[i] + zoneWs[i] - 1 ); col++ ) {
+					int c = row * cols + col;
+					cells[c][cellSizes[c]++] = i;  // Indices stay ascending.
+				}
+			}
+		}
+	}
+
+
+	private int getCol( int x ) {
+		return (x - gridX) / cellW;
+	}
+
+	private int getRow( int y ) {
+		return (y - gridY) / cellH;
+	}
+
+
+	/**
+	 * Returns the zones containing a point.
+	 *
+	 * @param x  a horizontal coordinate on the main image
+	 * @param y  a vertical coordinate on the main image
+	 * @return zone indices, in ascending order (possibly empty)
+	 */
+	public int[] getZonesAt( int x, int y ) {
+		if ( x < gridX || y < gridY ) return NO_ZONES;
+		int col = getCol( x );
+		int row = getRow( y );
+		if ( col >= cols || row >= rows ) return NO_ZONES;
+
+		int[] cell = cells[row * cols + col];
+		int hitCount = 0;
+		for ( int i : cell ) {
+			if ( zoneContains( i, x, y ) ) hitCount++;
+		}
+		if ( hitCount == cell.length ) return cell.clone();
+
+		int[] result = new int[hitCount];
+		int n = 0;
+		for ( int i : cell ) {
+			if ( zoneContains( i, x, y ) ) result[n++] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the first zone containing a point, or -1.
+	 *
+	 * @param x  a horizontal coordinate on the main image
+	 * @param y  a vertical coordinate on the main image
+	 */
+	public int getFirstZoneAt( int x, int y ) {
+		if ( x < gridX || y < gridY ) return -1;
+		int col = getCol( x );
+		int row = getRow( y );
+		if ( col >= cols || row >= rows ) return -1;
+
+		for ( int i : cells[row * cols + col] ) {
+			if ( zoneContains( i, x, y ) ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns every pair of zones whose areas overlap.
+	 * <p>
+	 * Overlapping zones make a click ambiguous. Readers act on all of
+	 * them, which may not be what the author intended.
+	 *
+	 * @return a list of {lowerIndex, higherIndex} pairs, ordered by lowerIndex then higherIndex
+	 */
+	public List<int[]> getOverlappingZones() {
+		List<int[]> result = new ArrayList<int[]>();
+
+		for ( int i=0; i < zoneWs.length; i++ ) {
+			if ( zoneWs[i] <= 0 ) continue;
+
+			int rowA = getRow( zoneYs[i] );
+			int colA = getCol( zoneXs[i] );
+			int rowB = getRow( zoneYs[i] + zoneHs[i] - 1 );
+			int colB = getCol( zoneXs[i] + zoneWs[i] - 1 );
+
+			// Check later zones, each only in the first cell the two have in common.
+			for ( int row=rowA; row <= rowB; row++ ) {
+				for ( int col=colA; col <= colB; col++ ) {
+					for ( int j : cells[row * cols + col] ) {
+						if ( j <= i || !zonesIntersect( i, j ) ) continue;
+
+						int firstRow = Math.max( rowA, getRow( zoneYs[j] ) );
+						int firstCol = Math.max( colA, getCol( zoneXs[j] ) );
+						if ( row == firstRow && col == firstCol ) {
+							result.add( new int[] {i, j} );
+						}
+					}
+				}
+			}
+		}
+
+		// Pairs were found cell by cell. Sort each zone's partners.
+		Collections.sort( result, new Comparator<int[]>() {
+			@Override
+			public int compare( int[] a, int[] b ) {
+				if ( a[0] != b[0] ) return (( a[0] < b[0] ) ? -1 : 1);
+				if ( a[1] != b[1] ) return (( a[1] < b[1] ) ? -1 : 1);
+				return 0;
+			}
+		});
+		return result;
+	}
+
+
+	private boolean zoneContains( int i, int x, int y ) {
+		return ( x >= zoneXs[i] && x < zoneXs[i] + zoneWs[i] && y >= zoneYs[i] && y < zoneYs[i] + zoneHs[i] );
+	}
+
+	private boolean zonesIntersect( int i, int j ) {
+		return ( zoneXs[i] < zoneXs[j] + zoneWs[j] && zoneXs[j] < zoneXs[i] + zoneWs[i] && zoneYs[i] < zoneYs[j] + zoneHs[j] && zoneYs[j] < zoneYs[i] + zoneHs[i] );
+	}
+}
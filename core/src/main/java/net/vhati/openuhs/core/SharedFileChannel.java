@@ -0,0 +1,143 @@
+package net.vhati.openuhs.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A read-only FileChannel, shared by every region referencing a file.
+ * <p>
+ * The channel is reference-counted. It opens with the first call to
+ * acquire(), and closes when every acquire() has been matched by a
+ * release().
+ * <p>
+ * Reads are positional, so concurrent readers don't disturb each other.
+ * A read made while nobody holds a lease will briefly open the file for
+ * itself. To read many regions with a single open(), acquire a lease
+ * around them.
+ *
+ * @see net.vhati.openuhs.core.FileRegionByteReference
+ */
+public class SharedFileChannel {
+	private final File f;
+
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private int refCount = 0;
+
+
+	public SharedFileChannel( File f ) {
+		this.f = f;
+	}
+
+
+	public File getFile() {
+		return f;
+	}
+
+
+	/**
+	 * Registers interest in the channel, opening it if necessary.
+	 */
+	public synchronized void acquire() throws IOException {
+		if ( refCount == 0 ) open();
+		refCount++;
+	}
+
+	/**
+	 * Withdraws interest in the channel, closing it if nobody else holds a lease.
+	 */
+	public synchronized void release() {
+		if ( refCount <= 0 ) return;
+
+		refCount--;
+		if ( refCount == 0 ) close();
+	}
+
+	/**
+	 * Returns true if any leases are outstanding.
+	 */
+	public synchronized boolean isAcquired() {
+		return ( refCount > 0 );
+	}
+
+
+	/**
+	 * Reads bytes from a position in the file, until dst is full or the file ends.
+	 *
+	 * @param dst  a buffer to fill
+	 * @param position  the file offset to begin reading from
+	 * @return the number of bytes read
+	 */
+	public int read( ByteBuffer dst, long position ) throws IOException {
+		acquire();
+		try {
+			FileChannel chan = getOpenChannel();
+
+			int total = 0;
+			while ( dst.hasRemaining() ) {
+				int count = chan.read( dst, position+total );
+				if ( count == -1 ) break;
+				total += count;
+			}
+			return total;
+		}
+		finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * Writes bytes from a position in the file to another channel, until count or the file ends.
+	 *
+	 * @param position  the file offset to begin reading from
+	 * @param count  the number of bytes to transfer
+	 * @param target  a channel to write to
+	 * @return the number of bytes transferred
+	 */
+	public long transferTo( long position, long count, WritableByteChannel target ) throws IOException {
+		acquire();
+		try {
+			FileChannel chan = getOpenChannel();
+
+			long total = 0;
+			while ( total < count ) {
+				long n = chan.transferTo( position+total, count-total, target );
+				if ( n <= 0 ) break;  // The file ended.
+				total += n;
+			}
+			return total;
+		}
+		finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * Returns the channel, reopening it if it had been closed by an interrupted thread.
+	 */
+	private synchronized FileChannel getOpenChannel() throws IOException {
+		if ( channel == null || !channel.isOpen() ) {
+			close();
+			open();
+		}
+		return channel;
+	}
+
+	private void open() throws IOException {
+		raf = new RandomAccessFile( f, "r" );
+		channel = raf.getChannel();
+	}
+
+	private void close() {
+		try {if ( raf != null ) raf.close();} catch ( IOException e ) {}
+		raf = null;
+		channel = null;
+	}
+}
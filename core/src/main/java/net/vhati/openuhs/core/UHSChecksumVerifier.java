@@ -0,0 +1,148 @@
+package net.vhati.openuhs.core;
+
+import net.vhati.openuhs.core.CRC16;
+
+
+/**
+ * Checks the security checksum of a UHS file, as its bytes go by.
+ * <p>
+ * The file's length needn't be known in advance. The last two bytes
+ * seen are held back from the CRC, since they may turn out to be the
+ * stored checksum, once the stream ends.
+ * <p>
+ * Only files in the 9x format have a checksum, signaled by an
+ * "** END OF 88A FORMAT **" line before the binary hunk. Files only in
+ * the 88a format always pass.
+ * <p>
+ * This lets a caller that's already writing a file (e.g., while
+ * unzipping a download) verify it without reading it back.
+ *
+ * @see net.vhati.openuhs.core.UHSParser#verifyChecksum(java.io.File)
+ */
+public class UHSChecksumVerifier {
+
+	private static final byte[] MARKER = new byte[] {
+		'*', '*', ' ', 'E', 'N', 'D', ' ', 'O', 'F', ' ', '8', '8', 'A', ' ',
+		'F', 'O', 'R', 'M', 'A', 'T', ' ', '*', '*'
+	};
+
+	private final CRC16 crc = new CRC16();
+	private final byte[] held = new byte[2];
+	private int heldCount = 0;
+	private long length = 0;
+
+	private boolean markerFound = false;
+	private boolean binFound = false;
+	private int lineLen = 0;  // Bytes in the current line, including any CR.
+	private int lineMatched = 0;  // Leading bytes of the current line that match the marker.
+	private int prevByte = -1;
+
+
+	public UHSChecksumVerifier() {
+	}
+
+
+	/**
+	 * Feeds the next byte of the file.
+	 */
+	public void update( int b ) {
+		scan( b & 0xFF );
+		length++;
+
+		if ( heldCount == 2 ) {
+			crc.update( held[0] );
+			held[0] = held[1];
+			held[1] = (byte)b;
+		} else {
+			held[heldCount++] = (byte)b;
+		}
+	}
+
+	/**
+	 * Feeds the next bytes of the file.
+	 */
+	public void update( byte[] b, int off, int len ) {
+		if ( len < 2 ) {
+			for ( int i=0; i < len; i++ ) {
+				update( b[off+i] );
+			}
+			return;
+		}
+
+		for ( int i=0; !markerFound && !binFound && i < len; i++ ) {
+			scan( b[off+i] & 0xFF );
+		}
+		length += len;
+
+		// Release what was held, then hold this chunk's last two bytes.
+		// Let the CRC class clear out the signedness
+		if ( heldCount > 0 ) crc.update( held, 0, heldCount );
+		crc.update( b, off, len-2 );
+		held[0] = b[off+len-2];
+		held[1] = b[off+len-1];
+		heldCount = 2;
+	}
+
+	private void scan( int b ) {
+		if ( markerFound || binFound ) return;
+
+		if ( b == 0x1a ) {
+			binFound = true;
+		}
+		else if ( b == '\n' ) {
+			int textLen = (( prevByte == '\r' ) ? lineLen-1 : lineLen);
+			if ( textLen == MARKER.length && lineMatched >= MARKER.length ) markerFound = true;
+			lineLen = 0;
+			lineMatched = 0;
+		}
+		else {
+			if ( lineMatched == lineLen && lineLen < MARKER.length && b == MARKER[lineLen] ) lineMatched++;
+			lineLen++;
+		}
+		prevByte = b;
+	}
+
+
+	/**
+	 * Returns the number of bytes fed so far.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the bytes so far include the 9x format's marker line.
+	 */
+	public boolean hasChecksum() {
+		return markerFound;
+	}
+
+	/**
+	 * Returns the CRC16 of all but the last two bytes fed so far.
+	 */
+	public int getCalculatedChecksum() {
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Returns the last two bytes fed so far, as a checksum.
+	 *
+	 * @return an unsigned short, or -1 if fewer than two bytes were fed
+	 */
+	public int getStoredChecksum() {
+		if ( heldCount < 2 ) return -1;
+		return ( (held[1] & 0xFF) << 8 | (held[0] & 0xFF) );
+	}
+
+	/**
+	 * Returns true if the file, having ended, passes its check.
+	 *
+	 * @return true if the stored checksum matched the calculated one, or there was none
+	 */
+	public boolean isValid() {
+		if ( !markerFound ) return true;
+
+		int storedSum = getStoredChecksum();
+		return ( storedSum != -1 && storedSum == getCalculatedChecksum() );
+	}
+}
@@ -0,0 +1,276 @@
+package net.vhati.openuhs.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.FileRegionByteReference;
+import net.vhati.openuhs.core.SharedFileChannel;
+import net.vhati.openuhs.core.UHSAudioNode;
+import net.vhati.openuhs.core.UHSImageNode;
+import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
+
+
+/**
+ * Writes the binary content of nodes (images, sounds) to files.
+ * <p>
+ * Each file is named "basename + number + _id + extension". Files are
+ * numbered in tree order before any are written, so names are the
+ * same whether or not an executor is used.
+ * <p>
+ * Content is written with channel transfers. File regions go straight
+ * from the UHS file to the destination, letting the OS copy them
+ * without passing through the heap. Only a few signature bytes are
+ * read to pick an extension. Content already in memory is sniffed and
+ * written in place.
+ * <p>
+ * Totals are kept across calls to extract(), for reporting throughput.
+ */
+public class UHSExtractor {
+	private ExecutorService executor = null;
+
+	private final AtomicLong filesWritten = new AtomicLong( 0 );
+	private final AtomicLong bytesWritten = new AtomicLong( 0 );
+	private final AtomicLong elapsedNanos = new AtomicLong( 0 );
+
+
+	public UHSExtractor() {
+	}
+
+
+	/**
+	 * Sets an executor to write files in parallel.
+	 * <p>
+	 * A fixed-size pool bounds how many files are open at once. The
+	 * executor is not shut down afterward.
+	 *
+	 * @param executor  an executor, or null to write sequentially (default)
+	 */
+	public void setExecutor( ExecutorService executor ) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Returns how many signature bytes guessFileExtension() wants to see.
+	 * <p>
+	 * Content shorter than this is passed in whole.
+	 */
+	protected int getSignatureLength() {
+		return 0;
+	}
+
+	/**
+	 * Returns a file extension for some content, based on its first few bytes.
+	 * <p>
+	 * This implementation always returns "bin". Subclasses may recognize
+	 * formats.
+	 *
+	 * @param buf  the start of the content (at most getSignatureLength() bytes), which may be read freely
+	 * @return an extension, without a dot
+	 */
+	protected String guessFileExtension( ByteBuffer buf ) throws IOException {
+		return "bin";
+	}
+
+
+	/**
+	 * Extracts the binary content of a node and its descendents to files.
+	 *
+	 * @param currentNode  a node to start extracting from
+	 * @param destDir  the destination dir
+	 * @param basename  prefix for extracted files
+	 * @param n  a number for uniqueness, incrementing with each file
+	 * @return a new value for n
+	 */
+	public int extract( UHSNode currentNode, final File destDir, final String basename, int n ) throws IOException {
+		final List<UHSNode> binaryNodes = new ArrayList<UHSNode>();
+
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( currentNode, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				if ( getBinaryContent( path.getNode() ) != null ) {
+					binaryNodes.add( path.getNode() );
+				}
+				return CONTINUE;
+			}
+		});
+
+		// Hold the UHS file open until every region in it has been copied.
+		Map<SharedFileChannel, Boolean> leasedChannels = new IdentityHashMap<SharedFileChannel, Boolean>();
+		long startNano = System.nanoTime();
+		try {
+			for ( UHSNode binaryNode : binaryNodes ) {
+				ByteReference contentRef = getBinaryContent( binaryNode );
+				if ( contentRef instanceof FileRegionByteReference ) {
+					SharedFileChannel channel = ((FileRegionByteReference)contentRef).getChannel();
+					if ( !leasedChannels.containsKey( channel ) ) {
+						channel.acquire();
+						leasedChannels.put( channel, Boolean.TRUE );
+					}
+				}
+			}
+
+			if ( executor == null ) {
+				for ( UHSNode binaryNode : binaryNodes ) {
+					extractContent( binaryNode, destDir, basename, n++ );
+				}
+				return n;
+			}
+
+			List<Future<Void>> futures = new ArrayList<Future<Void>>( binaryNodes.size() );
+			for ( final UHSNode binaryNode : binaryNodes ) {
+				final int fileNum = n++;
+				futures.add( executor.submit( new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						extractContent( binaryNode, destDir, basename, fileNum );
+						return null;
+					}
+				}) );
+			}
+
+			try {
+				for ( Future<Void> future : futures ) {
+					future.get();
+				}
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IOException( "Extraction was interrupted", e );
+			}
+			catch ( ExecutionException e ) {
+				Throwable cause = e.getCause();
+				if ( cause instanceof IOException ) throw (IOException)cause;
+				if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+				throw new IOException( "Extraction failed", cause );
+			}
+			finally {
+				for ( Future<Void> future : futures ) {
+					future.cancel( false );  // No-op for finished ones.
+				}
+			}
+
+			return n;
+		}
+		finally {
+			elapsedNanos.addAndGet( System.nanoTime() - startNano );
+
+			for ( SharedFileChannel channel : leasedChannels.keySet() ) {
+				channel.release();
+			}
+		}
+	}
+
+	/**
+	 * Writes the binary content of a single node to a file.
+	 */
+	private void extractContent( UHSNode currentNode, File destDir, String basename, int n ) throws IOException {
+		ByteReference contentRef = getBinaryContent( currentNode );
+
+		int id = currentNode.getId();
+		String idStr = (( id == -1 ) ? "" : "_"+id);
+
+		File destFile = null;
+		FileOutputStream fos = null;
+		try {
+			String extension = guessFileExtension( readSignature( contentRef ) );
+
+			destFile = new File( destDir, (basename + n + idStr +"."+ extension) );
+
+			fos = new FileOutputStream( destFile );
+			long count = contentRef.transferTo( fos.getChannel() );
+
+			filesWritten.incrementAndGet();
+			bytesWritten.addAndGet( count );
+		}
+		catch ( IOException e ) {
+			throw new IOException( String.format( "Error extracting binary content of %s node (\"%s\") to a file: %s", currentNode.getType(), currentNode.getRawStringContent(), (( destFile != null ) ? destFile.getAbsolutePath() : null ) ), e );
+		}
+		finally {
+			try {if ( fos != null ) fos.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Returns the first few bytes of some content.
+	 * <p>
+	 * File regions get a small positional read. Anything else is
+	 * already in memory, so its own buffer is used.
+	 */
+	private ByteBuffer readSignature( ByteReference contentRef ) throws IOException {
+		int sigLength = (int)Math.min( (long)getSignatureLength(), contentRef.length() );
+
+		if ( contentRef instanceof FileRegionByteReference ) {
+			FileRegionByteReference regionRef = (FileRegionByteReference)contentRef;
+			ByteBuffer buf = ByteBuffer.allocate( sigLength );
+			regionRef.getChannel().read( buf, regionRef.getOffset() );
+			buf.flip();
+			return buf;
+		}
+
+		ByteBuffer buf = contentRef.getByteBuffer();
+		buf.limit( sigLength );
+		return buf;
+	}
+
+
+	/**
+	 * Returns the number of files written so far.
+	 */
+	public long getFilesWritten() {
+		return filesWritten.get();
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Returns the time spent in extract() so far, in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos.get();
+	}
+
+	/**
+	 * Returns the overall write rate so far, in bytes per second.
+	 */
+	public double getBytesPerSecond() {
+		long nanos = elapsedNanos.get();
+		if ( nanos <= 0 ) return 0;
+		return (double)bytesWritten.get() * 1000000000 / nanos;
+	}
+
+
+	/**
+	 * Returns a node's image or audio content, or null.
+	 */
+	public static ByteReference getBinaryContent( UHSNode node ) {
+		if ( node instanceof UHSImageNode ) {  // Includes UHSHotSpotNode subclass.
+			return ((UHSImageNode)node).getRawImageContent();
+		}
+		else if ( node instanceof UHSAudioNode ) {
+			return ((UHSAudioNode)node).getRawAudioContent();
+		}
+		return null;
+	}
+}
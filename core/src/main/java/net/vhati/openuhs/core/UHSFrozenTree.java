@@ -0,0 +1,1092 @@
+package net.vhati.openuhs.core;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.openuhs.core.ArrayByteReference;
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.FileRegionByteReference;
+import net.vhati.openuhs.core.HotSpot;
+import net.vhati.openuhs.core.SharedFileChannel;
+import net.vhati.openuhs.core.UHSAudioNode;
+import net.vhati.openuhs.core.UHSBatchNode;
+import net.vhati.openuhs.core.UHSHotSpotNode;
+import net.vhati.openuhs.core.UHSImageNode;
+import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSParser;
+import net.vhati.openuhs.core.UHSRootNode;
+import net.vhati.openuhs.core.markup.DecoratedFragment;
+import net.vhati.openuhs.core.markup.StringDecorator;
+
+
+/**
+ * An immutable, flattened copy of a UHSNode tree, serving as the
+ * serialization format for snapshots.
+ * <p>
+ * Nodes are addressed by int indexes (the root is always 0). Instead of
+ * an object per node, attributes are held in parallel primitive arrays,
+ * which can be written and read in bulk.
+ * <ul>
+ * <li>Types are byte codes into a table of distinct type strings.</li>
+ * <li>Decorators are tags for the parser's shared instances.</li>
+ * <li>Children are ranges within a single flattened index array.</li>
+ * <li>All string content lives in one char[] arena per tree.</li>
+ * </ul>
+ * <p>
+ * Reveal progress is not stored. That's up to the viewer.
+ * <p>
+ * UHSSnapshotCache uses this to skip parsing when a file is reopened.
+ * Readers still work with the UHSNode tree from thaw(), so a frozen
+ * tree is only an intermediate form and does not reduce heap usage
+ * while a file is open.
+ *
+ * @see #freeze(UHSRootNode)
+ * @see #thaw()
+ * @see net.vhati.openuhs.core.UHSSnapshotCache
+ */
+public class UHSFrozenTree {
+	/** A node with only string content. */
+	public static final byte KIND_PLAIN = 0;
+
+	/** A UHSImageNode. */
+	public static final byte KIND_IMAGE = 1;
+
+	/** A UHSHotSpotNode, whose child slots have HotSpots. */
+	public static final byte KIND_HOTSPOT = 2;
+
+	/** A UHSAudioNode. */
+	public static final byte KIND_AUDIO = 3;
+
+	/** A UHSBatchNode, whose child slots have addon flags. */
+	public static final byte KIND_BATCH = 4;
+
+	/** A UHSRootNode. */
+	public static final byte KIND_ROOT = 5;
+
+	private static final int SPOT_INTS = 6;
+
+	private static final byte BINARY_NONE = 0;
+	private static final byte BINARY_REGION = 1;
+	private static final byte BINARY_INLINE = 2;
+
+	private final int nodeCount;
+
+	private final String[] typeTable;
+	private final byte[] typeCodes;
+	private final byte[] kinds;
+	private final int[] ids;
+	private final int[] linkTargets;
+	private final byte[] restrictions;
+
+	private final int[] childStarts;
+	private final int[] childCounts;
+	private final int[] childSlots;
+
+	private final int[] spotSlots;    // SPOT_INTS per child slot, or null.
+	private final boolean[] addonSlots;  // One per child slot, or null.
+
+	private final char[] textArena;
+	private final int[] textOffsets;
+	private final int[] textLengths;
+
+	private final byte[] decoratorCodes;  // Tags from UHSParser, -1 for none.
+
+	private final ByteReference[] binaryRefs;  // Null when no node has any.
+
+	private final int[] linkIds;      // Sorted.
+	private final int[] linkIndexes;  // Parallel to linkIds.
+
+	private final boolean legacy;
+	private final UHSFrozenTree legacyTree;
+
+
+	private UHSFrozenTree( Builder b, boolean legacy, UHSFrozenTree legacyTree ) {
+		nodeCount = b.nodes.size();
+
+		typeTable = b.typeList.toArray( new String[b.typeList.size()] );
+		typeCodes = b.typeCodes;
+		kinds = b.kinds;
+		ids = b.ids;
+		linkTargets = b.linkTargets;
+		restrictions = b.restrictions;
+
+		childStarts = b.childStarts;
+		childCounts = b.childCounts;
+		childSlots = b.childSlots;
+		spotSlots = b.spotSlots;
+		addonSlots = b.addonSlots;
+
+		if ( b.textArena != null ) {
+			textArena = b.textArena;
+		} else {
+			textArena = new char[b.textBuf.length()];
+			b.textBuf.getChars( 0, textArena.length, textArena, 0 );
+		}
+		textOffsets = b.textOffsets;
+		textLengths = b.textLengths;
+
+		decoratorCodes = b.decoratorCodes;
+
+		binaryRefs = b.binaryRefs;
+
+		linkIds = b.linkIds;
+		linkIndexes = b.linkIndexes;
+
+		this.legacy = legacy;
+		this.legacyTree = legacyTree;
+	}
+
+
+	/**
+	 * Returns a frozen copy of a tree.
+	 * <p>
+	 * The original tree is not modified, and can be discarded afterward.
+	 * ByteReferences are shared, not copied.
+	 * <p>
+	 * A node that appears under several parents will be stored once.
+	 *
+	 * @param rootNode  the root of an existing tree
+	 * @return a new frozen tree
+	 * @throws IllegalArgumentException if the tree has more than 256 distinct types, or a decorator UHSParser doesn't assign
+	 */
+	public static UHSFrozenTree freeze( UHSRootNode rootNode ) {
+		UHSFrozenTree legacyTree = null;
+		if ( rootNode.getLegacyRootNode() != null ) {
+			legacyTree = freeze( rootNode.getLegacyRootNode() );
+		}
+
+		Builder b = new Builder();
+		b.build( rootNode );
+
+		return new UHSFrozenTree( b, rootNode.isLegacy(), legacyTree );
+	}
+
+
+	/**
+	 * Returns a new mutable tree equivalent to this one.
+	 * <p>
+	 * Links will be registered with the new root node.
+	 */
+	public UHSRootNode thaw() {
+		UHSNode[] thawed = new UHSNode[nodeCount];
+		for ( int i=0; i < nodeCount; i++ ) {
+			UHSNode node;
+			String type = getType( i );
+			switch ( kinds[i] ) {
+				case KIND_ROOT:
+					node = new UHSRootNode();
+					break;
+				case KIND_HOTSPOT:
+					node = new UHSHotSpotNode( type );
+					((UHSImageNode)node).setRawImageContent( getBinaryContent( i ) );
+					break;
+				case KIND_IMAGE:
+					node = new UHSImageNode( type );
+					((UHSImageNode)node).setRawImageContent( getBinaryContent( i ) );
+					break;
+				case KIND_AUDIO:
+					node = new UHSAudioNode( type );
+					((UHSAudioNode)node).setRawAudioContent( getBinaryContent( i ) );
+					break;
+				case KIND_BATCH:
+					node = new UHSBatchNode( type );
+					break;
+				default:
+					node = new UHSNode( type );
+					break;
+			}
+			node.setId( ids[i] );
+			node.setRestriction( restrictions[i] );
+			node.setRawStringContent( getRawStringContent( i ) );
+			node.setStringContentDecorator( getStringContentDecorator( i ) );
+			thawed[i] = node;
+		}
+
+		for ( int i=0; i < nodeCount; i++ ) {
+			UHSNode node = thawed[i];
+
+			for ( int c=0; c < childCounts[i]; c++ ) {
+				int slot = childStarts[i] + c;
+				node.addChild( thawed[childSlots[slot]] );
+
+				if ( kinds[i] == KIND_HOTSPOT ) {
+					((UHSHotSpotNode)node).setSpot( c, getSpot( i, c ) );
+				}
+				else if ( kinds[i] == KIND_BATCH ) {
+					((UHSBatchNode)node).setAddon( c, addonSlots[slot] );
+				}
+			}
+			if ( linkTargets[i] != -1 ) node.setLinkTarget( linkTargets[i] );
+		}
+
+		UHSRootNode rootNode = (UHSRootNode)thawed[0];
+		for ( int i=0; i < linkIndexes.length; i++ ) {
+			rootNode.addLink( thawed[linkIndexes[i]] );
+		}
+		rootNode.setLegacy( legacy );
+		if ( legacyTree != null ) {
+			rootNode.setLegacyRootNode( legacyTree.thaw() );
+		}
+
+		return rootNode;
+	}
+
+
+	/**
+	 * Returns the number of distinct nodes in this tree.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the index of the root node (always 0).
+	 */
+	public int getRootIndex() {
+		return 0;
+	}
+
+	/**
+	 * Returns true if this tree is a non-canonical message for old readers.
+	 *
+	 * @see UHSRootNode#isLegacy()
+	 */
+	public boolean isLegacy() {
+		return legacy;
+	}
+
+	/**
+	 * Returns the frozen legacy tree for old readers, or null.
+	 *
+	 * @see UHSRootNode#getLegacyRootNode()
+	 */
+	public UHSFrozenTree getLegacyTree() {
+		return legacyTree;
+	}
+
+
+	/**
+	 * Returns a node's type string.
+	 * <p>
+	 * The returned string is shared by every node of that type.
+	 */
+	public String getType( int index ) {
+		return typeTable[typeCodes[index] & 0xFF];
+	}
+
+	/**
+	 * Returns a node's type as a code, unique within this tree.
+	 *
+	 * @see #getTypeForCode(int)
+	 */
+	public int getTypeCode( int index ) {
+		return typeCodes[index] & 0xFF;
+	}
+
+	/**
+	 * Returns the type string represented by a code.
+	 *
+	 * @see #getTypeCode(int)
+	 */
+	public String getTypeForCode( int code ) {
+		return typeTable[code];
+	}
+
+	/**
+	 * Returns the code for a type string, or -1 if no node has that type.
+	 */
+	public int getCodeForType( String type ) {
+		for ( int i=0; i < typeTable.length; i++ ) {
+			if ( typeTable[i].equals( type ) ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a node's kind, reflecting the UHSNode subclass it was frozen from.
+	 *
+	 * @return one of the KIND_* constants
+	 */
+	public byte getKind( int index ) {
+		return kinds[index];
+	}
+
+
+	public int getId( int index ) {
+		return ids[index];
+	}
+
+	public int getLinkTarget( int index ) {
+		return linkTargets[index];
+	}
+
+	public boolean isLink( int index ) {
+		return ( linkTargets[index] != -1 );
+	}
+
+	public int getRestriction( int index ) {
+		return restrictions[index];
+	}
+
+
+	public int getChildCount( int index ) {
+		return childCounts[index];
+	}
+
+	public boolean isGroup( int index ) {
+		return ( childCounts[index] > 0 );
+	}
+
+	/**
+	 * Returns the index of a node's nth child.
+	 *
+	 * @param index  the parent node
+	 * @param n  a position among that node's children
+	 * @return a node index, or -1 (if out of range)
+	 */
+	public int getChild( int index, int n ) {
+		if ( n < 0 || n >= childCounts[index] ) return -1;
+		return childSlots[childStarts[index] + n];
+	}
+
+	/**
+	 * Returns the zone/position of a hotspot node's nth child.
+	 *
+	 * @return a new HotSpot, or null if the node is not a hotspot node
+	 */
+	public HotSpot getSpot( int index, int n ) {
+		if ( kinds[index] != KIND_HOTSPOT || n < 0 || n >= childCounts[index] ) return null;
+
+		int p = (childStarts[index] + n) * SPOT_INTS;
+		return new HotSpot( spotSlots[p], spotSlots[p+1], spotSlots[p+2], spotSlots[p+3], spotSlots[p+4], spotSlots[p+5] );
+	}
+
+	/**
+	 * Returns the batch status of a batch node's nth child.
+	 */
+	public boolean isAddon( int index, int n ) {
+		if ( kinds[index] != KIND_BATCH || n < 0 || n >= childCounts[index] ) return false;
+		return addonSlots[childStarts[index] + n];
+	}
+
+
+	/**
+	 * Returns the length of a node's string content, without building a String.
+	 */
+	public int getRawStringLength( int index ) {
+		return textLengths[index];
+	}
+
+	/**
+	 * Copies a node's string content into an existing buffer.
+	 *
+	 * @param index  a node index
+	 * @param dst  a destination array, at least getRawStringLength() long
+	 * @param dstOffset  where to begin writing in dst
+	 */
+	public void getRawStringChars( int index, char[] dst, int dstOffset ) {
+		System.arraycopy( textArena, textOffsets[index], dst, dstOffset, textLengths[index] );
+	}
+
+	/**
+	 * Returns a node's string content.
+	 * <p>
+	 * A new String is created from the text arena on each call.
+	 */
+	public String getRawStringContent( int index ) {
+		return new String( textArena, textOffsets[index], textLengths[index] );
+	}
+
+	public StringDecorator getStringContentDecorator( int index ) {
+		int code = decoratorCodes[index];
+		if ( code == -1 ) return null;
+		return UHSParser.getSharedDecorator( code );
+	}
+
+	/**
+	 * Returns content, with markup parsed if a decorator is set, raw otherwise.
+	 *
+	 * @see UHSNode#getDecoratedStringContent()
+	 */
+	public String getDecoratedStringContent( int index ) {
+		String raw = getRawStringContent( index );
+		StringDecorator decorator = getStringContentDecorator( index );
+		if ( decorator == null ) return raw;
+
+		StringBuilder buf = new StringBuilder( raw.length() );
+		for ( DecoratedFragment frag : decorator.getDecoratedString( raw ) ) {
+			buf.append( frag.fragment );
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Returns a node's image or audio content, or null.
+	 */
+	public ByteReference getBinaryContent( int index ) {
+		if ( binaryRefs == null ) return null;
+		return binaryRefs[index];
+	}
+
+
+	/**
+	 * Returns the index of a link target node, or -1 if not found.
+	 *
+	 * @see UHSRootNode#getNodeByLinkId(int)
+	 */
+	public int getIndexByLinkId( int id ) {
+		int n = Arrays.binarySearch( linkIds, id );
+		if ( n < 0 ) return -1;
+		return linkIndexes[n];
+	}
+
+	public int getLinkCount() {
+		return linkIds.length;
+	}
+
+
+	/**
+	 * Returns the title of this hint tree, or null.
+	 *
+	 * @see UHSRootNode#getUHSTitle()
+	 */
+	public String getUHSTitle() {
+		int subjectIndex = getFirstChild( 0, "Subject" );
+		if ( subjectIndex == -1 ) return null;
+
+		String result = getDecoratedStringContent( subjectIndex );
+		return (( result.length() > 0 ) ? result : null);
+	}
+
+	/**
+	 * Returns the index of a node's first child of a given type, or -1.
+	 */
+	public int getFirstChild( int index, String type ) {
+		int code = getCodeForType( type );
+		if ( code == -1 ) return -1;
+
+		for ( int c=0; c < childCounts[index]; c++ ) {
+			int childIndex = childSlots[childStarts[index] + c];
+			if ( (typeCodes[childIndex] & 0xFF) == code ) return childIndex;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * Serializes this tree, for later use with readFrom().
+	 * <p>
+	 * Binary content that lies within binaryFile is stored as an offset
+	 * and length. Any other binary content is copied inline.
+	 * <p>
+	 * Decorators are stored as tags for UHSParser's shared instances.
+	 *
+	 * @param out  a stream to write to
+	 * @param binaryFile  the file that deferred binary content was read from, or null
+	 * @see #readFrom(ByteBuffer, File, boolean)
+	 */
+	public void writeTo( DataOutputStream out, File binaryFile ) throws IOException {
+		writeTo( out, binaryFile, null, -1 );
+	}
+
+	/**
+	 * Serializes this tree, for later use with readFrom().
+	 * <p>
+	 * Content that was preloaded into slices of a binary hunk array is
+	 * also stored as an offset and length, so long as the array's
+	 * position within binaryFile is known.
+	 *
+	 * @param out  a stream to write to
+	 * @param binaryFile  the file that binary content was read from, or null
+	 * @param binaryHunk  an array holding binaryFile's bytes from binaryHunkOffset onward, or null
+	 * @param binaryHunkOffset  the file offset of the array's first byte, or -1
+	 * @see #writeTo(DataOutputStream, File)
+	 */
+	public void writeTo( DataOutputStream out, File binaryFile, byte[] binaryHunk, long binaryHunkOffset ) throws IOException {
+		if ( binaryFile == null || binaryHunkOffset < 0 ) binaryHunk = null;
+
+		out.writeInt( nodeCount );
+
+		out.writeInt( typeTable.length );
+		for ( String type : typeTable ) {
+			writeString( out, type );
+		}
+		writeBytes( out, typeCodes );
+		writeBytes( out, kinds );
+		writeInts( out, ids );
+		writeInts( out, linkTargets );
+		writeBytes( out, restrictions );
+
+		writeInts( out, childStarts );
+		writeInts( out, childCounts );
+		writeInts( out, childSlots );
+		out.writeBoolean( spotSlots != null );
+		if ( spotSlots != null ) writeInts( out, spotSlots );
+		out.writeBoolean( addonSlots != null );
+		if ( addonSlots != null ) {
+			out.writeInt( addonSlots.length );
+			for ( boolean addon : addonSlots ) {
+				out.writeBoolean( addon );
+			}
+		}
+
+		out.writeInt( textArena.length );
+		for ( char c : textArena ) {
+			out.writeChar( c );
+		}
+		writeInts( out, textOffsets );
+		writeInts( out, textLengths );
+
+		writeBytes( out, decoratorCodes );
+
+		out.writeBoolean( binaryRefs != null );
+		if ( binaryRefs != null ) {
+			for ( ByteReference binRef : binaryRefs ) {
+				writeBinary( out, binRef, binaryFile, binaryHunk, binaryHunkOffset );
+			}
+		}
+
+		writeInts( out, linkIds );
+		writeInts( out, linkIndexes );
+
+		out.writeBoolean( legacy );
+		out.writeBoolean( legacyTree != null );
+		if ( legacyTree != null ) legacyTree.writeTo( out, binaryFile, binaryHunk, binaryHunkOffset );
+	}
+
+	/**
+	 * Deserializes a tree written by writeTo().
+	 * <p>
+	 * The buffer's position will be advanced past the tree.
+	 *
+	 * @param buf  a big-endian buffer to read from
+	 * @param binaryFile  the file that binary offsets refer to
+	 * @param binaryDeferred  true to reference binary regions, false to read them into arrays
+	 * @return a new frozen tree
+	 * @throws IOException if the data was malformed or inconsistent, or binary content couldn't be read
+	 * @see #writeTo(DataOutputStream, File)
+	 */
+	public static UHSFrozenTree readFrom( ByteBuffer buf, File binaryFile, boolean binaryDeferred ) throws IOException {
+		SharedFileChannel binaryChannel = null;
+		if ( binaryFile != null ) binaryChannel = new SharedFileChannel( binaryFile );
+
+		boolean leased = false;
+		try {
+			if ( binaryChannel != null && !binaryDeferred ) {
+				binaryChannel.acquire();  // Read every region with one open().
+				leased = true;
+			}
+			return readFrom( buf, binaryChannel, binaryDeferred, false );
+		}
+		catch ( BufferUnderflowException e ) {
+			throw new IOException( "Unexpected end of frozen tree data", e );
+		}
+		catch ( IllegalArgumentException e ) {
+			throw new IOException( "Malformed frozen tree data", e );
+		}
+		finally {
+			if ( leased ) binaryChannel.release();
+		}
+	}
+
+	private static UHSFrozenTree readFrom( ByteBuffer buf, SharedFileChannel binaryChannel, boolean binaryDeferred, boolean nested ) throws IOException {
+		Builder b = new Builder();
+		int n = buf.getInt();
+		if ( n < 1 || n > buf.remaining() ) {
+			throw new IOException( String.format( "Frozen tree node count (%d) is out of range", n ) );
+		}
+
+		int typeCount = readLength( buf, 4 );
+		if ( typeCount > 256 ) {
+			throw new IOException( String.format( "Frozen tree type count (%d) is out of range", typeCount ) );
+		}
+		for ( int i=0; i < typeCount; i++ ) {
+			b.typeList.add( readString( buf ) );
+		}
+		b.typeCodes = readBytes( buf );
+		b.kinds = readBytes( buf );
+		b.ids = readInts( buf );
+		b.linkTargets = readInts( buf );
+		b.restrictions = readBytes( buf );
+
+		b.childStarts = readInts( buf );
+		b.childCounts = readInts( buf );
+		b.childSlots = readInts( buf );
+		if ( buf.get() != 0 ) b.spotSlots = readInts( buf );
+		if ( buf.get() != 0 ) {
+			b.addonSlots = new boolean[readLength( buf, 1 )];
+			for ( int i=0; i < b.addonSlots.length; i++ ) {
+				b.addonSlots[i] = ( buf.get() != 0 );
+			}
+		}
+
+		b.textArena = new char[readLength( buf, 2 )];
+		buf.asCharBuffer().get( b.textArena );
+		buf.position( buf.position() + b.textArena.length*2 );
+		b.textOffsets = readInts( buf );
+		b.textLengths = readInts( buf );
+
+		b.decoratorCodes = readBytes( buf );
+
+		if ( buf.get() != 0 ) {
+			b.binaryRefs = new ByteReference[n];
+			for ( int i=0; i < n; i++ ) {
+				b.binaryRefs[i] = readBinary( buf, binaryChannel, binaryDeferred );
+			}
+		}
+
+		b.linkIds = readInts( buf );
+		b.linkIndexes = readInts( buf );
+
+		checkArrays( b, n );
+
+		// The constructor only needs the count from the node list.
+		for ( int i=0; i < n; i++ ) {
+			b.nodes.add( null );
+		}
+
+		boolean legacy = ( buf.get() != 0 );
+		UHSFrozenTree legacyTree = null;
+		if ( buf.get() != 0 ) {
+			if ( nested ) throw new IOException( "Frozen legacy tree has a legacy tree of its own" );
+			legacyTree = readFrom( buf, binaryChannel, binaryDeferred, true );
+		}
+
+		return new UHSFrozenTree( b, legacy, legacyTree );
+	}
+
+
+	/**
+	 * Checks that deserialized arrays agree with each other.
+	 * <p>
+	 * Afterward, thaw() and the getters can't index out of bounds, and
+	 * following children from any node will end.
+	 *
+	 * @param n  the node count
+	 * @throws IOException if anything is out of range
+	 */
+	private static void checkArrays( Builder b, int n ) throws IOException {
+		checkLength( "type", b.typeCodes.length, n );
+		checkLength( "kind", b.kinds.length, n );
+		checkLength( "id", b.ids.length, n );
+		checkLength( "link target", b.linkTargets.length, n );
+		checkLength( "restriction", b.restrictions.length, n );
+		checkLength( "child start", b.childStarts.length, n );
+		checkLength( "child count", b.childCounts.length, n );
+		checkLength( "text offset", b.textOffsets.length, n );
+		checkLength( "text length", b.textLengths.length, n );
+		checkLength( "decorator", b.decoratorCodes.length, n );
+		checkLength( "link index", b.linkIndexes.length, b.linkIds.length );
+		if ( b.spotSlots != null ) checkLength( "hotspot", b.spotSlots.length, (long)b.childSlots.length * SPOT_INTS );
+		if ( b.addonSlots != null ) checkLength( "addon", b.addonSlots.length, b.childSlots.length );
+
+		if ( b.kinds[0] != KIND_ROOT ) throw new IOException( "Frozen tree does not begin with a root node" );
+
+		for ( int i=0; i < n; i++ ) {
+			if ( (b.typeCodes[i] & 0xFF) >= b.typeList.size() ) {
+				throw new IOException( String.format( "Frozen tree node %d has an unknown type code", i ) );
+			}
+
+			byte kind = b.kinds[i];
+			if ( kind < KIND_PLAIN || kind > KIND_ROOT ) {
+				throw new IOException( String.format( "Frozen tree node %d has an unknown kind (%d)", i, kind ) );
+			}
+
+			int restriction = b.restrictions[i];
+			if ( restriction != UHSNode.RESTRICT_NONE && restriction != UHSNode.RESTRICT_NAG && restriction != UHSNode.RESTRICT_REGONLY ) {
+				throw new IOException( String.format( "Frozen tree node %d has an unknown restriction (%d)", i, restriction ) );
+			}
+
+			int start = b.childStarts[i];
+			int count = b.childCounts[i];
+			if ( start < 0 || count < 0 || start > b.childSlots.length - count ) {
+				throw new IOException( String.format( "Frozen tree node %d has children outside the slot array", i ) );
+			}
+			if ( count > 0 && kind == KIND_HOTSPOT && b.spotSlots == null ) {
+				throw new IOException( String.format( "Frozen tree node %d is missing hotspots", i ) );
+			}
+			if ( count > 0 && kind == KIND_BATCH && b.addonSlots == null ) {
+				throw new IOException( String.format( "Frozen tree node %d is missing addon flags", i ) );
+			}
+
+			int offset = b.textOffsets[i];
+			int length = b.textLengths[i];
+			if ( offset < 0 || length < 0 || offset > b.textArena.length - length ) {
+				throw new IOException( String.format( "Frozen tree node %d has text outside the arena", i ) );
+			}
+
+			int code = b.decoratorCodes[i];
+			if ( code != -1 && UHSParser.getSharedDecorator( code ) == null ) {
+				throw new IOException( String.format( "Frozen tree node %d has an unknown decorator tag (%d)", i, code ) );
+			}
+		}
+
+		for ( int slot=0; slot < b.childSlots.length; slot++ ) {
+			int childIndex = b.childSlots[slot];
+			if ( childIndex < 0 || childIndex >= n ) {
+				throw new IOException( String.format( "Frozen tree child slot %d is out of range (%d)", slot, childIndex ) );
+			}
+		}
+
+		for ( int i=0; i < b.linkIds.length; i++ ) {
+			if ( b.linkIndexes[i] < 0 || b.linkIndexes[i] >= n ) {
+				throw new IOException( String.format( "Frozen tree link %d is out of range (%d)", i, b.linkIndexes[i] ) );
+			}
+			if ( i > 0 && b.linkIds[i] < b.linkIds[i-1] ) {
+				throw new IOException( "Frozen tree link ids are not sorted" );
+			}
+		}
+
+		checkAcyclic( b, n );
+	}
+
+	private static void checkLength( String name, long actual, long expected ) throws IOException {
+		if ( actual != expected ) {
+			throw new IOException( String.format( "Frozen tree has %d %s entries, expected %d", actual, name, expected ) );
+		}
+	}
+
+	/**
+	 * Checks that no node is its own descendant.
+	 * <p>
+	 * This is an iterative depth-first search, so a deep tree won't
+	 * overflow the stack.
+	 */
+	private static void checkAcyclic( Builder b, int n ) throws IOException {
+		byte[] states = new byte[n];  // 0 = unvisited, 1 = on the current path, 2 = done.
+		int[] pathNodes = new int[n];
+		int[] pathNext = new int[n];  // The next child to follow, for each node on the path.
+
+		for ( int i=0; i < n; i++ ) {
+			if ( states[i] != 0 ) continue;
+
+			int depth = 0;
+			pathNodes[0] = i;
+			pathNext[0] = 0;
+			states[i] = 1;
+			while ( depth >= 0 ) {
+				int node = pathNodes[depth];
+				if ( pathNext[depth] == b.childCounts[node] ) {
+					states[node] = 2;
+					depth--;
+					continue;
+				}
+				int child = b.childSlots[b.childStarts[node] + pathNext[depth]];
+				pathNext[depth]++;
+
+				if ( states[child] == 1 ) {
+					throw new IOException( String.format( "Frozen tree node %d is its own descendant", child ) );
+				}
+				if ( states[child] == 0 ) {
+					states[child] = 1;
+					depth++;
+					pathNodes[depth] = child;
+					pathNext[depth] = 0;
+				}
+			}
+		}
+	}
+
+
+	private static void writeString( DataOutputStream out, String s ) throws IOException {
+		out.writeInt( s.length() );
+		out.writeChars( s );
+	}
+
+	private static String readString( ByteBuffer buf ) throws IOException {
+		char[] chars = new char[readLength( buf, 2 )];
+		for ( int i=0; i < chars.length; i++ ) {
+			chars[i] = buf.getChar();
+		}
+		return new String( chars );
+	}
+
+	private static void writeBytes( DataOutputStream out, byte[] a ) throws IOException {
+		out.writeInt( a.length );
+		out.write( a );
+	}
+
+	private static byte[] readBytes( ByteBuffer buf ) throws IOException {
+		byte[] result = new byte[readLength( buf, 1 )];
+		buf.get( result );
+		return result;
+	}
+
+	private static void writeInts( DataOutputStream out, int[] a ) throws IOException {
+		out.writeInt( a.length );
+		for ( int v : a ) {
+			out.writeInt( v );
+		}
+	}
+
+	private static int[] readInts( ByteBuffer buf ) throws IOException {
+		int[] result = new int[readLength( buf, 4 )];
+		buf.asIntBuffer().get( result );
+		buf.position( buf.position() + result.length*4 );
+		return result;
+	}
+
+	/**
+	 * Reads an array length, which must fit in the remaining data.
+	 * <p>
+	 * Garbage won't trigger a huge allocation.
+	 *
+	 * @param elementSize  the number of bytes each element takes
+	 */
+	private static int readLength( ByteBuffer buf, int elementSize ) throws IOException {
+		int n = buf.getInt();
+		if ( n < 0 || n > buf.remaining() / elementSize ) {
+			throw new IOException( String.format( "Frozen tree array length (%d) exceeds the remaining data", n ) );
+		}
+		return n;
+	}
+
+	private static void writeBinary( DataOutputStream out, ByteReference binRef, File binaryFile, byte[] binaryHunk, long binaryHunkOffset ) throws IOException {
+		if ( binRef == null ) {
+			out.writeByte( BINARY_NONE );
+		}
+		else if ( binaryFile != null && binRef instanceof FileRegionByteReference && binaryFile.equals( ((FileRegionByteReference)binRef).getFile() ) ) {
+			out.writeByte( BINARY_REGION );
+			out.writeLong( ((FileRegionByteReference)binRef).getOffset() );
+			out.writeLong( binRef.length() );
+		}
+		else if ( binaryHunk != null && binRef instanceof ArrayByteReference && ((ArrayByteReference)binRef).data == binaryHunk ) {
+			out.writeByte( BINARY_REGION );
+			out.writeLong( binaryHunkOffset + ((ArrayByteReference)binRef).offset );
+			out.writeLong( binRef.length() );
+		}
+		else {
+			out.writeByte( BINARY_INLINE );
+			out.writeInt( (int)binRef.length() );
+
+			long total = binRef.transferTo( Channels.newChannel( out ) );
+			if ( total != binRef.length() ) {
+				throw new IOException( String.format( "Binary content ended early (%d of %d bytes)", total, binRef.length() ) );
+			}
+		}
+	}
+
+	private static ByteReference readBinary( ByteBuffer buf, SharedFileChannel binaryChannel, boolean binaryDeferred ) throws IOException {
+		byte tag = buf.get();
+		if ( tag == BINARY_NONE ) {
+			return null;
+		}
+		else if ( tag == BINARY_REGION ) {
+			long offset = buf.getLong();
+			long length = buf.getLong();
+			if ( binaryChannel == null ) {
+				throw new IOException( "Frozen tree references binary regions, but no file was given" );
+			}
+			if ( offset < 0 || length < 0 || length > Integer.MAX_VALUE || offset > binaryChannel.getFile().length() - length ) {
+				throw new IOException( String.format( "Binary region (offset %d, length %d) lies outside the file: %s", offset, length, binaryChannel.getFile().getAbsolutePath() ) );
+			}
+			if ( binaryDeferred ) {
+				return new FileRegionByteReference( binaryChannel, offset, length );
+			}
+
+			byte[] data = new byte[(int)length];
+			if ( binaryChannel.read( ByteBuffer.wrap( data ), offset ) < length ) {
+				throw new IOException( String.format( "Binary region ended early: %s", binaryChannel.getFile().getAbsolutePath() ) );
+			}
+			return new ArrayByteReference( data );
+		}
+		else if ( tag == BINARY_INLINE ) {
+			byte[] data = new byte[readLength( buf, 1 )];
+			buf.get( data );
+			return new ArrayByteReference( data );
+		}
+		else {
+			throw new IOException( String.format( "Unexpected binary tag in frozen tree: %d", tag ) );
+		}
+	}
+
+
+	/**
+	 * Accumulates arrays while walking a mutable tree.
+	 */
+	private static class Builder {
+		public List<UHSNode> nodes = new ArrayList<UHSNode>();
+		public Map<UHSNode, Integer> indexMap = new IdentityHashMap<UHSNode, Integer>();
+
+		public List<String> typeList = new ArrayList<String>();
+		public Map<String, Integer> typeMap = new HashMap<String, Integer>();
+
+		public StringBuilder textBuf = new StringBuilder();
+		public char[] textArena = null;  // Set instead of textBuf when reading.
+
+		public byte[] typeCodes;
+		public byte[] kinds;
+		public int[] ids;
+		public int[] linkTargets;
+		public byte[] restrictions;
+		public int[] childStarts;
+		public int[] childCounts;
+		public int[] childSlots;
+		public int[] spotSlots = null;
+		public boolean[] addonSlots = null;
+		public int[] textOffsets;
+		public int[] textLengths;
+		public byte[] decoratorCodes;
+		public ByteReference[] binaryRefs = null;
+		public int[] linkIds;
+		public int[] linkIndexes;
+
+
+		public void build( UHSRootNode rootNode ) {
+			// Breadth-first, so each node's children get consecutive indexes.
+			int slotCount = 0;
+			register( rootNode );
+			for ( int i=0; i < nodes.size(); i++ ) {
+				UHSNode node = nodes.get( i );
+				for ( int c=0; c < node.getChildCount(); c++ ) {
+					register( node.getChild( c ) );
+					slotCount++;
+				}
+			}
+
+			int n = nodes.size();
+			typeCodes = new byte[n];
+			kinds = new byte[n];
+			ids = new int[n];
+			linkTargets = new int[n];
+			restrictions = new byte[n];
+			childStarts = new int[n];
+			childCounts = new int[n];
+			childSlots = new int[slotCount];
+			textOffsets = new int[n];
+			textLengths = new int[n];
+			decoratorCodes = new byte[n];
+
+			List<Integer> linkList = new ArrayList<Integer>();
+			int slot = 0;
+			for ( int i=0; i < n; i++ ) {
+				UHSNode node = nodes.get( i );
+
+				typeCodes[i] = (byte)internType( node.getType() );
+				kinds[i] = getKind( node );
+				ids[i] = node.getId();
+				linkTargets[i] = node.getLinkTarget();
+				restrictions[i] = (byte)node.getRestriction();
+
+				String content = node.getRawStringContent();
+				textOffsets[i] = textBuf.length();
+				textLengths[i] = content.length();
+				textBuf.append( content );
+
+				decoratorCodes[i] = (byte)internDecorator( node.getStringContentDecorator() );
+
+				ByteReference binRef = null;
+				if ( node instanceof UHSImageNode ) {
+					binRef = ((UHSImageNode)node).getRawImageContent();
+				}
+				else if ( node instanceof UHSAudioNode ) {
+					binRef = ((UHSAudioNode)node).getRawAudioContent();
+				}
+				if ( binRef != null ) {
+					if ( binaryRefs == null ) binaryRefs = new ByteReference[n];
+					binaryRefs[i] = binRef;
+				}
+
+				if ( node.getId() != -1 ) linkList.add( new Integer( i ) );
+
+				childStarts[i] = slot;
+				childCounts[i] = node.getChildCount();
+				for ( int c=0; c < node.getChildCount(); c++ ) {
+					UHSNode childNode = node.getChild( c );
+					childSlots[slot] = indexMap.get( childNode ).intValue();
+
+					if ( node instanceof UHSHotSpotNode ) {
+						if ( spotSlots == null ) spotSlots = new int[slotCount * SPOT_INTS];
+						HotSpot spot = ((UHSHotSpotNode)node).getSpot( c );
+						int p = slot * SPOT_INTS;
+						spotSlots[p] = spot.zoneX;
+						spotSlots[p+1] = spot.zoneY;
+						spotSlots[p+2] = spot.zoneW;
+						spotSlots[p+3] = spot.zoneH;
+						spotSlots[p+4] = spot.x;
+						spotSlots[p+5] = spot.y;
+					}
+					else if ( node instanceof UHSBatchNode ) {
+						if ( addonSlots == null ) addonSlots = new boolean[slotCount];
+						addonSlots[slot] = ((UHSBatchNode)node).isAddon( c );
+					}
+					slot++;
+				}
+			}
+
+			// Index nodes by id, for link resolution.
+			Integer[] sortedLinks = linkList.toArray( new Integer[linkList.size()] );
+			Arrays.sort( sortedLinks, new Comparator<Integer>() {
+				@Override
+				public int compare( Integer a, Integer b ) {
+					int idA = ids[a.intValue()];
+					int idB = ids[b.intValue()];
+					return (( idA < idB ) ? -1 : (( idA == idB ) ? 0 : 1));
+				}
+			});
+			linkIds = new int[sortedLinks.length];
+			linkIndexes = new int[sortedLinks.length];
+			for ( int i=0; i < sortedLinks.length; i++ ) {
+				linkIndexes[i] = sortedLinks[i].intValue();
+				linkIds[i] = ids[linkIndexes[i]];
+			}
+		}
+
+		private void register( UHSNode node ) {
+			if ( indexMap.containsKey( node ) ) return;
+
+			indexMap.put( node, new Integer( nodes.size() ) );
+			nodes.add( node );
+		}
+
+		private int internType( String type ) {
+			Integer code = typeMap.get( type );
+			if ( code == null ) {
+				if ( typeList.size() > 255 ) {
+					throw new IllegalArgumentException( String.format( "Too many distinct node types to freeze (%d)", typeList.size()+1 ) );
+				}
+				code = new Integer( typeList.size() );
+				typeMap.put( type, code );
+				typeList.add( type );
+			}
+			return code.intValue();
+		}
+
+		/**
+		 * Returns a tag for a decorator's class, or -1 for null.
+		 * <p>
+		 * Decorators are stateless, so the parser's shared instance of
+		 * each class will stand in when thawed.
+		 */
+		private int internDecorator( StringDecorator decorator ) {
+			if ( decorator == null ) return -1;
+
+			int tag = UHSParser.getDecoratorTag( decorator );
+			if ( tag == -1 ) {
+				throw new IllegalArgumentException( String.format( "Decorator can't be frozen: %s", decorator.getClass().getName() ) );
+			}
+			return tag;
+		}
+
+		private static byte getKind( UHSNode node ) {
+			if ( node instanceof UHSRootNode ) return KIND_ROOT;
+			if ( node instanceof UHSHotSpotNode ) return KIND_HOTSPOT;
+			if ( node instanceof UHSImageNode ) return KIND_IMAGE;
+			if ( node instanceof UHSAudioNode ) return KIND_AUDIO;
+			if ( node instanceof UHSBatchNode ) return KIND_BATCH;
+			return KIND_PLAIN;
+		}
+	}
+}
@@ -1,9 +1,9 @@
 package net.vhati.openuhs.core;
 
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -164,18 +164,7 @@ public class UHSGenerationContext {
 	 * Writes data from a ByteReference to the binary hunk output stream.
 	 */
 	public void writeBinarySegment( ByteReference ref ) throws IOException {
-		InputStream is = null;
-		try {
-			is = ref.getInputStream();
-			byte[] buf = new byte[512];
-			int count;
-			while ( (count=is.read( buf )) != -1 ) {
-				binStream.write( buf, 0, count );
-			}
-		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
-		}
+		ref.transferTo( Channels.newChannel( binStream ) );
 	}
 
 
@@ -5,6 +5,7 @@ import java.util.Vector;
 
 import net.vhati.openuhs.core.ExtraNodeId;
 import net.vhati.openuhs.core.HotSpot;
+import net.vhati.openuhs.core.HotSpotIndex;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
 
@@ -21,6 +22,7 @@ import net.vhati.openuhs.core.UHSNode;
  */
 public class UHSHotSpotNode extends UHSImageNode {
 	private List<HotSpot> spots = new Vector<HotSpot>();
+	private volatile HotSpotIndex spotIndex = null;
 
 
 	public UHSHotSpotNode( String inType ) {
@@ -51,6 +53,23 @@ public class UHSHotSpotNode extends UHSImageNode {
 		return spots.get( n );
 	}
 
+	/**
+	 * Returns an index for finding which children's zones contain a point.
+	 * <p>
+	 * It's built on first use, and rebuilt after children or spots are
+	 * set. Modifying a HotSpot object directly won't be noticed.
+	 *
+	 * @return an index whose zone numbers are child indices
+	 */
+	public HotSpotIndex getSpotIndex() {
+		HotSpotIndex result = spotIndex;
+		if ( result == null ) {
+			result = new HotSpotIndex( spots );
+			spotIndex = result;
+		}
+		return result;
+	}
+
 	/**
 	 * Sets the zone/position of a child.
 	 *
@@ -62,6 +81,7 @@ public class UHSHotSpotNode extends UHSImageNode {
 		if ( index == -1 ) return;
 
 		spots.set( index, spot );
+		spotIndex = null;
 	}
 
 	/**
@@ -73,6 +93,7 @@ public class UHSHotSpotNode extends UHSImageNode {
 	public void setSpot( int n, HotSpot spot ) {
 		if ( super.getChildCount()-1 < n ) return;
 		spots.set( n, spot );
+		spotIndex = null;
 	}
 
 
@@ -107,6 +128,7 @@ public class UHSHotSpotNode extends UHSImageNode {
 				spots.add( new HotSpot() );
 			}
 		}
+		spotIndex = null;
 	}
 
 
@@ -114,6 +136,7 @@ public class UHSHotSpotNode extends UHSImageNode {
 	public void addChild( UHSNode newChild ) {
 		super.addChild( newChild );
 		spots.add( new HotSpot() );
+		spotIndex = null;
 	}
 
 	@Override
@@ -122,12 +145,14 @@ public class UHSHotSpotNode extends UHSImageNode {
 		if ( index == -1 ) return;
 		super.removeChild( index );
 		spots.remove( index );
+		spotIndex = null;
 	}
 
 	@Override
 	public void removeAllChildren() {
 		super.removeAllChildren();
 		spots.clear();
+		spotIndex = null;
 	}
 
 
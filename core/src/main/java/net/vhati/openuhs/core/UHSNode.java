@@ -4,6 +4,10 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeType;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
 import net.vhati.openuhs.core.markup.DecoratedFragment;
 import net.vhati.openuhs.core.markup.StringDecorator;
 
@@ -42,6 +46,7 @@ public class UHSNode {
 	public static final int RESTRICT_REGONLY = 2;
 
 	protected String type = "";
+	protected UHSNodeType nodeType = UHSNodeType.OTHER;
 	protected int id = -1;
 	protected int linkIndex = -1;                                // Either Link or group, not both
 	protected int restriction = RESTRICT_NONE;
@@ -62,14 +67,31 @@ public class UHSNode {
 	}
 
 
+	/**
+	 * Sets this node's type.
+	 * <p>
+	 * Registered types are swapped for their canonical string.
+	 *
+	 * @see net.vhati.openuhs.core.UHSNodeType
+	 */
 	public void setType( String type ) {
-		this.type = type;
+		nodeType = UHSNodeType.forName( type );
+		this.type = (( nodeType != UHSNodeType.OTHER ) ? nodeType.getTypeName() : type);
 	}
 
 	public String getType() {
 		return type;
 	}
 
+	/**
+	 * Returns the registered constant for this node's type.
+	 *
+	 * @return a UHSNodeType, or OTHER if the type string was not registered
+	 */
+	public UHSNodeType getNodeType() {
+		return nodeType;
+	}
+
 
 	/**
 	 * Sets this node's id.
@@ -101,11 +123,15 @@ public class UHSNode {
 	 * before and after changes. If the offset would
 	 * result in a negative id, the id becomes -1. This
 	 * does not affect the ids of children.
+	 * <p>
+	 * To renumber many nodes at once, see the root node's bulk methods.
 	 *
 	 * @param offset  an amount to add/subtract
 	 * @param rootNode  an existing root node
 	 * @see UHSRootNode#removeLink(UHSNode)
 	 * @see UHSRootNode#addLink(UHSNode)
+	 * @see UHSRootNode#shiftIdRange(int, int, int, boolean)
+	 * @see UHSRootNode#shiftSubtreeIds(UHSNode, int, boolean)
 	 */
 	public void shiftId( int offset, UHSRootNode rootNode ) {
 		if ( id >= 0 && id + offset >= 0 ) {
@@ -387,23 +413,33 @@ public class UHSNode {
 
 
 	/**
-	 * Recursively prints the indented contents of this node and its children.
+	 * Prints the indented contents of this node and its descendants.
 	 *
 	 * @param indent  indention prefix
 	 * @param spacer  indention padding with each level
 	 * @param outStream  a stream to print to
 	 * @see #getPrintableContent()
 	 */
-	public void printNode( String indent, String spacer, PrintStream outStream ) {
-		int id = getId();
-		String idStr = (( id == -1 ) ? "" : "^"+ id +"^ " );
-		String linkStr = ((!isLink()) ? "" : " (^Link to "+ getLinkTarget() +"^)");
-
-		outStream.println( indent + idStr + getType() +": "+ getPrintableContent() + linkStr );
-
-		for ( int i=0; i < getChildCount(); i++ ) {
-			getChild( i ).printNode( indent+spacer, spacer, outStream );
-		}
+	public void printNode( final String indent, final String spacer, final PrintStream outStream ) {
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( this, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				UHSNode node = path.getNode();
+				int id = node.getId();
+				String idStr = (( id == -1 ) ? "" : "^"+ id +"^ " );
+				String linkStr = ((!node.isLink()) ? "" : " (^Link to "+ node.getLinkTarget() +"^)");
+
+				StringBuilder buf = new StringBuilder( indent );
+				for ( int i=0; i < path.getDepth(); i++ ) {
+					buf.append( spacer );
+				}
+				buf.append( idStr ).append( node.getType() ).append( ": " ).append( node.getPrintableContent() ).append( linkStr );
+
+				outStream.println( buf.toString() );
+				return CONTINUE;
+			}
+		});
 	}
 
 	/**
@@ -0,0 +1,64 @@
+package net.vhati.openuhs.core;
+
+import net.vhati.openuhs.core.UHSNode;
+
+
+/**
+ * A node visited during a walk, along with the chain of nodes above it.
+ * <p>
+ * Paths are immutable and share their ancestors, so they're safe to
+ * hold onto, and to pass between threads.
+ *
+ * @see net.vhati.openuhs.core.UHSNodeWalker
+ */
+public class UHSNodePath {
+	private final UHSNode node;
+	private final UHSNodePath parentPath;
+	private final int depth;
+
+
+	/**
+	 * Constructs a path for the node a walk starts from.
+	 */
+	public UHSNodePath( UHSNode node ) {
+		this( node, null );
+	}
+
+	/**
+	 * Constructs a path for a child node.
+	 *
+	 * @param node  the child node
+	 * @param parentPath  the path of the child's parent, or null
+	 */
+	public UHSNodePath( UHSNode node, UHSNodePath parentPath ) {
+		this.node = node;
+		this.parentPath = parentPath;
+		this.depth = (( parentPath != null ) ? parentPath.getDepth()+1 : 0);
+	}
+
+
+	public UHSNode getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the path of this node's parent, or null at the start of a walk.
+	 */
+	public UHSNodePath getParentPath() {
+		return parentPath;
+	}
+
+	/**
+	 * Returns this node's parent, or null at the start of a walk.
+	 */
+	public UHSNode getParentNode() {
+		return (( parentPath != null ) ? parentPath.getNode() : null);
+	}
+
+	/**
+	 * Returns the number of levels below the node the walk started from.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+}
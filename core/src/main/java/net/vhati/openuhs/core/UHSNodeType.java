@@ -0,0 +1,86 @@
+package net.vhati.openuhs.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A registry of the node type strings that parsers produce.
+ * <p>
+ * Each UHSNode looks up its type here once, when the type is set.
+ * Writers and readers can then switch on the constant, rather than
+ * comparing strings. Registered nodes also share a single canonical
+ * type string.
+ * <p>
+ * Types not listed here (e.g., a reader's search results) map to
+ * OTHER, and keep whatever string they were given.
+ *
+ * @see net.vhati.openuhs.core.UHSNode#getNodeType()
+ */
+public enum UHSNodeType {
+	OTHER( null ),
+	ROOT( "Root" ),
+	SUBJECT( "Subject" ),
+	QUESTION( "Question" ),
+	NEST_HINT( "NestHint" ),
+	HINT( "Hint" ),
+	HINT_DATA( "HintData" ),
+	COMMENT( "Comment" ),
+	COMMENT_DATA( "CommentData" ),
+	CREDIT( "Credit" ),
+	CREDIT_DATA( "CreditData" ),
+	CREDITS( "Credits" ),
+	CREDITS_DATA( "CreditsData" ),
+	TEXT( "Text" ),
+	TEXT_DATA( "TextData" ),
+	LINK( "Link" ),
+	HYPERPNG( "Hyperpng" ),
+	HYPERGIF( "Hypergif" ),
+	OVERLAY( "Overlay" ),
+	SOUND( "Sound" ),
+	BLANK( "Blank" ),
+	VERSION( "Version" ),
+	VERSION_DATA( "VersionData" ),
+	INFO( "Info" ),
+	INFO_DATA( "InfoData" ),
+	INCENTIVE( "Incentive" ),
+	INCENTIVE_DATA( "IncentiveData" ),
+	UNKNOWN( "Unknown" );
+
+	private static final Map<String, UHSNodeType> nameMap = new HashMap<String, UHSNodeType>();
+
+	static {
+		for ( UHSNodeType t : values() ) {
+			if ( t.typeName != null ) nameMap.put( t.typeName, t );
+		}
+	}
+
+	private final String typeName;
+
+
+	private UHSNodeType( String typeName ) {
+		this.typeName = typeName;
+	}
+
+
+	/**
+	 * Returns the canonical type string, or null for OTHER.
+	 */
+	public String getTypeName() {
+		return typeName;
+	}
+
+
+	/**
+	 * Returns the registered constant for a type string.
+	 *
+	 * @param typeName  a node type string
+	 * @return the matching constant, or OTHER
+	 */
+	public static UHSNodeType forName( String typeName ) {
+		if ( typeName == null ) return OTHER;
+
+		UHSNodeType result = nameMap.get( typeName );
+		return (( result != null ) ? result : OTHER);
+	}
+}
@@ -0,0 +1,32 @@
+package net.vhati.openuhs.core;
+
+import net.vhati.openuhs.core.UHSNodePath;
+
+
+/**
+ * A callback for each node encountered by a UHSNodeWalker.
+ * <p>
+ * When walking in parallel, visitNode() will be called from several
+ * threads at once, and must be thread-safe.
+ *
+ * @see net.vhati.openuhs.core.UHSNodeWalker
+ */
+public interface UHSNodeVisitor {
+	/** Proceed to this node's children. */
+	public static final int CONTINUE = 0;
+
+	/** Don't descend into this node's children. */
+	public static final int SKIP_CHILDREN = 1;
+
+	/** Stop the entire walk as soon as possible. */
+	public static final int TERMINATE = 2;
+
+
+	/**
+	 * Visits a node.
+	 *
+	 * @param path  the node, and the nodes above it
+	 * @return CONTINUE, SKIP_CHILDREN, or TERMINATE
+	 */
+	public int visitNode( UHSNodePath path );
+}
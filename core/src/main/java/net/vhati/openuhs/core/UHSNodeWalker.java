@@ -0,0 +1,223 @@
+package net.vhati.openuhs.core;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeType;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+
+
+/**
+ * Walks a node and its descendants, passing each to a UHSNodeVisitor.
+ * <p>
+ * Nodes are visited depth-first, parents before children, in child
+ * order. Link targets are not followed.
+ * <p>
+ * If an executor is set, subtrees near the top of the tree will be
+ * handed off to it and walked concurrently. Order is then not
+ * guaranteed, beyond parents being visited before their children.
+ * Whichever thread calls walk() takes part in the work, walking one
+ * subtree itself, and blocks until every subtree is done.
+ * <p>
+ * A type filter limits which nodes the visitor sees. Nodes of other
+ * types are still descended into.
+ *
+ * @see net.vhati.openuhs.core.UHSNodeVisitor
+ */
+public class UHSNodeWalker {
+	private Set<UHSNodeType> typeFilter = null;
+	private ExecutorService executor = null;
+	private int forkDepth = 2;
+
+
+	public UHSNodeWalker() {
+	}
+
+
+	/**
+	 * Limits the visitor to nodes of certain types.
+	 *
+	 * @param types  types to visit, or null to visit all nodes (default)
+	 */
+	public void setTypeFilter( UHSNodeType... types ) {
+		if ( types == null || types.length == 0 ) {
+			typeFilter = null;
+		} else {
+			typeFilter = EnumSet.noneOf( UHSNodeType.class );
+			for ( UHSNodeType t : types ) {
+				typeFilter.add( t );
+			}
+		}
+	}
+
+	/**
+	 * Sets an executor to walk subtrees in parallel.
+	 * <p>
+	 * The executor is not shut down afterward.
+	 *
+	 * @param executor  an executor, or null to walk sequentially (default)
+	 */
+	public void setExecutor( ExecutorService executor ) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets how deep subtrees may be to still be handed to the executor.
+	 * <p>
+	 * Children of nodes at a lower depth become separate tasks, except
+	 * for the last, which the forking thread walks itself. Deeper
+	 * subtrees are walked by whichever thread reached them.
+	 *
+	 * @param n  a depth, relative to the starting node (default is 2)
+	 */
+	public void setForkDepth( int n ) {
+		forkDepth = n;
+	}
+
+
+	/**
+	 * Walks a node and its descendants.
+	 * <p>
+	 * An unchecked exception thrown by the visitor ends the walk and is
+	 * rethrown here. If the calling thread is interrupted while waiting,
+	 * the walk is terminated and the thread's interrupt status is set.
+	 *
+	 * @param startNode  the first node to visit
+	 * @param visitor  a callback for each node
+	 * @return true if the walk finished, false if it was terminated
+	 */
+	public boolean walk( UHSNode startNode, UHSNodeVisitor visitor ) {
+		WalkState state = new WalkState( visitor );
+
+		try {
+			walkNode( new UHSNodePath( startNode ), state );
+		}
+		catch ( RuntimeException e ) {
+			state.fail( e );
+		}
+		catch ( Error e ) {
+			state.fail( e );
+		}
+		state.finishTask();
+
+		if ( executor != null ) {
+			try {
+				state.awaitTasks();
+			}
+			catch ( InterruptedException e ) {
+				state.terminated = true;
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if ( state.failure instanceof RuntimeException ) {
+			throw (RuntimeException)state.failure;
+		}
+		else if ( state.failure instanceof Error ) {
+			throw (Error)state.failure;
+		}
+
+		return !state.terminated;
+	}
+
+
+	private void walkNode( UHSNodePath path, WalkState state ) {
+		if ( state.terminated ) return;
+
+		UHSNode node = path.getNode();
+		if ( typeFilter == null || typeFilter.contains( node.getNodeType() ) ) {
+			int result = state.visitor.visitNode( path );
+			if ( result == UHSNodeVisitor.TERMINATE ) {
+				state.terminated = true;
+				return;
+			}
+			if ( result == UHSNodeVisitor.SKIP_CHILDREN ) return;
+		}
+
+		boolean forking = ( executor != null && path.getDepth() < forkDepth );
+		int childCount = node.getChildCount();
+
+		for ( int i=0; i < childCount; i++ ) {
+			if ( state.terminated ) return;
+
+			// The last child is kept, so this thread has work while the others run.
+			UHSNodePath childPath = new UHSNodePath( node.getChild( i ), path );
+			if ( forking && i < childCount-1 ) {
+				forkNode( childPath, state );
+			} else {
+				walkNode( childPath, state );
+			}
+		}
+	}
+
+	private void forkNode( final UHSNodePath path, final WalkState state ) {
+		state.pendingTasks.incrementAndGet();
+
+		Runnable r = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					walkNode( path, state );
+				}
+				catch ( RuntimeException e ) {
+					state.fail( e );
+				}
+				catch ( Error e ) {
+					state.fail( e );
+				}
+				finally {
+					state.finishTask();
+				}
+			}
+		};
+
+		try {
+			executor.execute( r );
+		}
+		catch ( RejectedExecutionException e ) {
+			r.run();  // The executor is saturated or shut down, so do it here.
+		}
+	}
+
+
+
+	/**
+	 * Bookkeeping shared by every thread taking part in a walk.
+	 */
+	private static class WalkState {
+		public final UHSNodeVisitor visitor;
+		public final AtomicInteger pendingTasks = new AtomicInteger( 1 );  // Starts with the caller's.
+		public volatile boolean terminated = false;
+		public Throwable failure = null;
+
+
+		public WalkState( UHSNodeVisitor visitor ) {
+			this.visitor = visitor;
+		}
+
+
+		public synchronized void fail( Throwable t ) {
+			if ( failure == null ) failure = t;
+			terminated = true;
+		}
+
+		public void finishTask() {
+			if ( pendingTasks.decrementAndGet() == 0 ) {
+				synchronized ( this ) {
+					this.notifyAll();
+				}
+			}
+		}
+
+		public synchronized void awaitTasks() throws InterruptedException {
+			while ( pendingTasks.get() > 0 ) {
+				this.wait();
+			}
+		}
+	}
+}
@@ -15,6 +15,7 @@ import net.vhati.openuhs.core.ArrayByteReference;
 import net.vhati.openuhs.core.ByteReference;
 import net.vhati.openuhs.core.ExtraNodeId;
 import net.vhati.openuhs.core.FileRegionByteReference;
+import net.vhati.openuhs.core.SharedFileChannel;
 import net.vhati.openuhs.core.UHSRootNode;
 
 
@@ -31,6 +32,7 @@ public class UHSParseContext {
 
 	protected boolean binaryDeferred = false;
 	protected File file = null;
+	protected SharedFileChannel binaryChannel = null;
 	protected long binHunkOffset = -1;
 	protected UHSRootNode rootNode = null;
 	protected int[] encryptionKey = null;
@@ -66,12 +68,23 @@ public class UHSParseContext {
 	 */
 	public void setFile( File file ) {
 		this.file = file;
+		binaryChannel = null;
 	}
 
 	public File getFile() {
 		return file;
 	}
 
+	/**
+	 * Returns a channel, shared by every deferred reference into the file.
+	 */
+	public SharedFileChannel getBinaryChannel() {
+		if ( binaryChannel == null && file != null ) {
+			binaryChannel = new SharedFileChannel( file );
+		}
+		return binaryChannel;
+	}
+
 
 	/**
 	 * Sets the offset, from the beginning of the UHS file, to the binary hunk.
@@ -91,6 +104,9 @@ public class UHSParseContext {
 
 	/**
 	 * Sets the binary hunk: either a preloaded array, or null.
+	 * <p>
+	 * References into the array will share it, so it must not be
+	 * modified afterward.
 	 *
 	 * @param binHunk  the array, can be null if binaryDeferred is true
 	 * @see #setBinaryHunkLength(long)
@@ -99,6 +115,10 @@ public class UHSParseContext {
 		this.binHunk = binHunk;
 	}
 
+	public byte[] getBinaryHunk() {
+		return binHunk;
+	}
+
 	/**
 	 * Sets the length of the binary hunk.
 	 *
@@ -193,7 +213,7 @@ public class UHSParseContext {
 	 * Images, comments, sounds, etc., are stored there.
 	 * <p>
 	 * If the binary hunk has been set to an array, an ArrayByteReference
-	 * will be returned. Otherwise, a FileRegionByteReference will be
+	 * sharing that array will be returned. Otherwise, a FileRegionByteReference will be
 	 * returned, as long as the binary hunk offset has been set.
 	 * <p>
 	 * The offset here is relative to the start of the binary hunk, NOT the beginning of the file.
@@ -214,7 +234,7 @@ public class UHSParseContext {
 
 		if ( isBinaryDeferred() ) {
 			if ( binHunkOffset >= 0 ) {
-				return new FileRegionByteReference( file, binHunkOffset+offset, length );
+				return new FileRegionByteReference( getBinaryChannel(), binHunkOffset+offset, length );
 			}
 			else {
 				throw new IllegalStateException( "Binary hunk offset was not set" );
@@ -222,9 +242,7 @@ public class UHSParseContext {
 		}
 		else {
 			if ( binHunk != null ) {
-				byte[] data = new byte[length];
-				System.arraycopy( binHunk, (int)offset, data, 0, length );
-				return new ArrayByteReference( data );
+				return new ArrayByteReference( binHunk, (int)offset, length );  // Share, don't copy.
 			}
 			else {
 				throw new IllegalStateException( "Binary hunk array was not set" );
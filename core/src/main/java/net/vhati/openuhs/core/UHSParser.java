@@ -1,7 +1,6 @@
 package net.vhati.openuhs.core;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -18,6 +17,7 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -29,12 +29,15 @@ import net.vhati.openuhs.core.ExtraNodeId;
 import net.vhati.openuhs.core.HotSpot;
 import net.vhati.openuhs.core.UHSAudioNode;
 import net.vhati.openuhs.core.UHSBatchNode;
+import net.vhati.openuhs.core.UHSChecksumVerifier;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
 import net.vhati.openuhs.core.UHSParseContext;
 import net.vhati.openuhs.core.UHSParseException;
 import net.vhati.openuhs.core.UHSRootNode;
+import net.vhati.openuhs.core.UHSSnapshotCache;
+import net.vhati.openuhs.core.markup.StringDecorator;
 import net.vhati.openuhs.core.markup.Version88CreditsDecorator;
 import net.vhati.openuhs.core.markup.Version9xCommentDecorator;
 import net.vhati.openuhs.core.markup.Version9xCreditDecorator;
@@ -52,10 +55,38 @@ import net.vhati.openuhs.core.markup.Version9xVersionDecorator;
  */
 public class UHSParser {
 
+	/**
+	 * A revision number for the trees this parser builds.
+	 * <p>
+	 * Bump it whenever a change would build a different tree from the
+	 * same file, so snapshots made by older code are discarded.
+	 *
+	 * @see net.vhati.openuhs.core.UHSSnapshotCache
+	 */
+	public static final int OUTPUT_VERSION = 1;
+
 	private final Logger logger = LoggerFactory.getLogger( UHSParser.class );
 
+	// Decorators are stateless, so every parsed node can share these.
+	private static final StringDecorator credits88Decorator = new Version88CreditsDecorator();
+	private static final StringDecorator titleDecorator = new Version9xTitleDecorator();
+	private static final StringDecorator hintDecorator = new Version9xHintDecorator();
+	private static final StringDecorator commentDecorator = new Version9xCommentDecorator();
+	private static final StringDecorator creditDecorator = new Version9xCreditDecorator();
+	private static final StringDecorator textDecorator = new Version9xTextDecorator();
+	private static final StringDecorator versionDecorator = new Version9xVersionDecorator();
+	private static final StringDecorator infoDecorator = new Version9xInfoDecorator();
+	private static final StringDecorator incentiveDecorator = new Version9xIncentiveDecorator();
+
+	// Snapshots refer to these by position, so only append to this.
+	private static final StringDecorator[] sharedDecorators = new StringDecorator[] {
+		credits88Decorator, titleDecorator, hintDecorator, commentDecorator, creditDecorator,
+		textDecorator, versionDecorator, infoDecorator, incentiveDecorator
+	};
+
 	private boolean binaryDeferred = false;
 	private boolean force88a = false;
+	private UHSSnapshotCache snapshotCache = null;
 
 
 	public UHSParser() {
@@ -84,6 +115,48 @@ public class UHSParser {
 		force88a = b;
 	}
 
+	/**
+	 * Sets a cache of previously parsed trees.
+	 * <p>
+	 * When set, parseFile() will return a tree from an up-to-date
+	 * snapshot instead of parsing, and store a snapshot after parsing.
+	 * Snapshots are not used when forcing 88a.
+	 *
+	 * @param cache  a cache, or null to always parse (default is null)
+	 */
+	public void setSnapshotCache( UHSSnapshotCache cache ) {
+		snapshotCache = cache;
+	}
+
+	public UHSSnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+
+
+	/**
+	 * Returns a tag for a decorator of a class this parser assigns.
+	 *
+	 * @return a small non-negative number, or -1 if the class is not one of them
+	 * @see #getSharedDecorator(int)
+	 */
+	static int getDecoratorTag( StringDecorator decorator ) {
+		for ( int i=0; i < sharedDecorators.length; i++ ) {
+			if ( sharedDecorators[i].getClass() == decorator.getClass() ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the shared decorator instance for a tag.
+	 *
+	 * @return a decorator, or null if the tag is unknown
+	 * @see #getDecoratorTag(StringDecorator)
+	 */
+	static StringDecorator getSharedDecorator( int tag ) {
+		if ( tag < 0 || tag >= sharedDecorators.length ) return null;
+		return sharedDecorators[tag];
+	}
+
 
 	/**
 	 * Generates a decryption key for various hunks' text in the 9x format.
@@ -308,7 +381,7 @@ public class UHSParser {
 		CharBuffer cb = CharBuffer.allocate( 8192 );
 		StringBuilder builder = new StringBuilder();
 		List<String> carvedLines = new ArrayList<String>();
-		ByteArrayOutputStream binStream = new ByteArrayOutputStream();
+		ByteBuffer binBuf = null;  // Wraps the binary hunk array, filled in place.
 		boolean binFound = false;
 		boolean eofFound = false;
 		CoderResult decodeResult = null;
@@ -336,8 +409,16 @@ public class UHSParser {
 
 						//logger.debug( "Binary hunk found: {}", binHunkOffset );
 
-						while ( binWanted && bb.hasRemaining() ) {  // Dump the binary part.
-							binStream.write( bb.get() );
+						if ( binWanted ) {  // Dump the binary part.
+							long binSize = fChan.size() - binHunkOffset;
+							if ( binSize > Integer.MAX_VALUE ) {
+								throw new UHSParseException( String.format( "Binary hunk is too large (%d bytes)", binSize ) );
+							}
+							binBuf = ByteBuffer.wrap( new byte[(int)binSize] );
+
+							ByteBuffer leftover = bb.slice();
+							if ( leftover.remaining() > binBuf.remaining() ) leftover.limit( binBuf.remaining() );
+							binBuf.put( leftover );
 						}
 						bb.limit( binPos );            // Prepare to decode just the text part.
 					}
@@ -400,23 +481,24 @@ public class UHSParser {
 
 			// Collect the rest of the binary lingering in the file.
 			if ( binWanted && binFound ) {
-				while ( !eofFound ) {
-					bb.clear();
-					eofFound = ( (count=fChan.read( bb )) == -1 );
-					bb.flip();
-
-					while ( bb.hasRemaining() ) {
-						binStream.write( bb.get() );
-					}
-				}
+				while ( binBuf.hasRemaining() && fChan.read( binBuf ) != -1 );
 			}
 
-			//logger.debug( "File channel finished reading binary, binHunk length: {}", binStream.size() );
+			//logger.debug( "File channel finished reading binary, binHunk length: {}", binBuf.position() );
 
 			//for ( int i=0; i < 20; i++ ) logger.debug( "Line {}: {}", i, carvedLines.get( i ) );
 
 			context.setAllLines( carvedLines );
-			if ( binWanted ) context.setBinaryHunk( binStream.toByteArray() );
+			if ( binWanted && binFound ) {
+				byte[] binHunk = binBuf.array();
+				if ( binBuf.hasRemaining() ) {  // The file shrank while being read.
+					binHunk = Arrays.copyOf( binHunk, binBuf.position() );
+				}
+				context.setBinaryHunk( binHunk );
+			}
+			else if ( binWanted ) {
+				context.setBinaryHunk( new byte[0] );
+			}
 			context.setBinaryHunkOffset( binHunkOffset );
 			if ( binHunkOffset >= 0 ) context.setBinaryHunkLength( context.getFile().length() - binHunkOffset );
 		}
@@ -438,6 +520,24 @@ public class UHSParser {
 	 * @see #parse9xFormat(UHSParseContext)
 	 */
 	public UHSRootNode parseFile( File f ) throws IOException, UHSParseException {
+		boolean snapshotting = ( snapshotCache != null && !force88a );
+
+		if ( snapshotting ) {
+			try {
+				UHSRootNode cachedRootNode = snapshotCache.load( f, binaryDeferred );
+				if ( cachedRootNode != null ) return cachedRootNode;
+			}
+			catch ( IOException e ) {
+				logger.warn( "Snapshot of {} was unusable, parsing instead", f.getName(), e );
+				snapshotCache.remove( f );
+			}
+			catch ( RuntimeException e ) {
+				// Validation should have caught bad data, but a snapshot must never prevent parsing.
+				logger.error( "Unexpected error loading snapshot of {}, parsing instead", f.getName(), e );
+				snapshotCache.remove( f );
+			}
+		}
+
 		int index = 0;  // Increment after getting lines, and this will be the pending 0-based index.
 
 		UHSParseContext context = new UHSParseContext();
@@ -474,6 +574,18 @@ public class UHSParser {
 			throw new UHSParseException( String.format( "Parsing failed: %s", e.getMessage() ), e );
 		}
 
+		if ( snapshotting ) {
+			try {
+				snapshotCache.store( f, rootNode, f, context.getBinaryHunk(), context.getBinaryHunkOffset() );
+			}
+			catch ( IOException e ) {
+				logger.warn( "Could not store a snapshot of {}", f.getName(), e );
+			}
+			catch ( IllegalArgumentException e ) {
+				logger.warn( "Could not store a snapshot of {}", f.getName(), e );
+			}
+		}
+
 		return rootNode;
 	}
 
@@ -656,7 +768,7 @@ public class UHSParser {
 			}
 			UHSNode creditsDataNode = new UHSNode( "CreditsData" );
 				creditsDataNode.setRawStringContent( creditsDataBuf.toString() );
-				creditsDataNode.setStringContentDecorator( new Version88CreditsDecorator() );
+				creditsDataNode.setStringContentDecorator( credits88Decorator );
 				creditsNode.addChild( creditsDataNode );
 
 			return ( fudged + index );  // Index was reset after the header lines.
@@ -858,7 +970,7 @@ public class UHSParser {
 
 		UHSNode newNode = new UHSNode( "Subject" );
 			newNode.setRawStringContent( context.getLine( index ) );
-			newNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			newNode.setStringContentDecorator( titleDecorator );
 			newNode.setId( startIndex );
 			currentNode.addChild( newNode );
 			context.getRootNode().addLink( newNode );
@@ -940,7 +1052,7 @@ public class UHSParser {
 
 		UHSBatchNode hintNode = new UHSBatchNode( "NestHint" );
 			hintNode.setRawStringContent( context.getLine( index ) );
-			hintNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			hintNode.setStringContentDecorator( titleDecorator );
 			hintNode.setId( startIndex );
 			currentNode.addChild( hintNode );
 			context.getRootNode().addLink( hintNode );
@@ -957,7 +1069,7 @@ public class UHSParser {
 				// A hint, add pending content
 				if ( tmpContent.length() > 0 ) {
 					newNode.setRawStringContent( tmpContent.toString() );
-					newNode.setStringContentDecorator( new Version9xHintDecorator() );
+					newNode.setStringContentDecorator( hintDecorator );
 					hintNode.addChild( newNode );
 					hintNode.setAddon( newNode, !firstInBatch );
 
@@ -970,7 +1082,7 @@ public class UHSParser {
 				// Nested hunk, add pending content
 				if ( tmpContent.length() > 0 ) {
 					newNode.setRawStringContent( tmpContent.toString() );
-					newNode.setStringContentDecorator( new Version9xHintDecorator() );
+					newNode.setStringContentDecorator( hintDecorator );
 					hintNode.addChild( newNode );
 					hintNode.setAddon( newNode, !firstInBatch );
 					firstInBatch = false;  // There was content ahead of the equals sign.
@@ -999,7 +1111,7 @@ public class UHSParser {
 
 			if ( j == innerCount-1 && tmpContent.length() > 0 ) {
 				newNode.setRawStringContent( tmpContent.toString() );
-				newNode.setStringContentDecorator( new Version9xHintDecorator() );
+				newNode.setStringContentDecorator( hintDecorator );
 				hintNode.addChild( newNode );
 				hintNode.setAddon( newNode, !firstInBatch );
 				firstInBatch = false;
@@ -1039,7 +1151,7 @@ public class UHSParser {
 
 		UHSNode hintNode = new UHSNode( "Hint" );
 			hintNode.setRawStringContent( context.getLine( index ) );
-			hintNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			hintNode.setStringContentDecorator( titleDecorator );
 			hintNode.setId( startIndex );
 			currentNode.addChild( hintNode );
 			context.getRootNode().addLink( hintNode );
@@ -1053,7 +1165,7 @@ public class UHSParser {
 			if ( tmp.equals( "-" ) ) {
 				if ( tmpContent.length() > 0 ) {
 					newNode.setRawStringContent( tmpContent.toString() );
-					newNode.setStringContentDecorator( new Version9xHintDecorator() );
+					newNode.setStringContentDecorator( hintDecorator );
 					hintNode.addChild( newNode );
 					newNode = new UHSNode( "HintData" );
 					tmpContent.delete( 0, tmpContent.length() );
@@ -1068,7 +1180,7 @@ public class UHSParser {
 
 			if ( j == innerCount-1 && tmpContent.length() > 0 ) {
 				newNode.setRawStringContent( tmpContent.toString() );
-				newNode.setStringContentDecorator( new Version9xHintDecorator() );
+				newNode.setStringContentDecorator( hintDecorator );
 				hintNode.addChild( newNode );
 			}
 		}
@@ -1105,7 +1217,7 @@ public class UHSParser {
 
 		UHSNode commentNode = new UHSNode( "Comment" );
 			commentNode.setRawStringContent( context.getLine( index ) );
-			commentNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			commentNode.setStringContentDecorator( titleDecorator );
 			commentNode.setId( startIndex );
 			currentNode.addChild( commentNode );
 			context.getRootNode().addLink( commentNode );
@@ -1120,7 +1232,7 @@ public class UHSParser {
 			tmpContent.append( context.getLine( index+j ) );
 		}
 		newNode.setRawStringContent( tmpContent.toString() );
-		newNode.setStringContentDecorator( new Version9xCommentDecorator() );
+		newNode.setStringContentDecorator( commentDecorator );
 		commentNode.addChild( newNode );
 
 		index += innerCount;
@@ -1162,7 +1274,7 @@ public class UHSParser {
 
 		UHSNode creditNode = new UHSNode( "Credit" );
 			creditNode.setRawStringContent( context.getLine( index ) );
-			creditNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			creditNode.setStringContentDecorator( titleDecorator );
 			creditNode.setId( startIndex );
 			currentNode.addChild( creditNode );
 			context.getRootNode().addLink( creditNode );
@@ -1177,7 +1289,7 @@ public class UHSParser {
 			tmpContent.append( context.getLine( index+j ) );
 		}
 		newNode.setRawStringContent( tmpContent.toString() );
-		newNode.setStringContentDecorator( new Version9xCreditDecorator() );
+		newNode.setStringContentDecorator( creditDecorator );
 		creditNode.addChild( newNode );
 
 		index += innerCount;
@@ -1218,7 +1330,7 @@ public class UHSParser {
 		tmp ="";
 		UHSNode textNode = new UHSNode( "Text" );
 			textNode.setRawStringContent( context.getLine( index ) );
-			textNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			textNode.setStringContentDecorator( titleDecorator );
 			textNode.setId( startIndex );
 			currentNode.addChild( textNode );
 			context.getRootNode().addLink( textNode );
@@ -1246,7 +1358,7 @@ public class UHSParser {
 		}
 
 		newNode.setRawStringContent( tmpContent.toString() );
-		newNode.setStringContentDecorator( new Version9xTextDecorator() );
+		newNode.setStringContentDecorator( textDecorator );
 		textNode.addChild( newNode );
 
 		return index-startIndex;
@@ -1278,7 +1390,7 @@ public class UHSParser {
 
 		UHSNode newNode = new UHSNode( "Link" );
 			newNode.setRawStringContent( context.getLine( index ) );
-			newNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			newNode.setStringContentDecorator( titleDecorator );
 			newNode.setId( startIndex );
 			currentNode.addChild( newNode );
 			context.getRootNode().addLink( newNode );
@@ -1531,7 +1643,7 @@ public class UHSParser {
 		tmp ="";
 		UHSAudioNode soundNode = new UHSAudioNode( "Sound" );
 			soundNode.setRawStringContent( context.getLine( index ) );
-			soundNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			soundNode.setStringContentDecorator( titleDecorator );
 			soundNode.setId( startIndex );
 			currentNode.addChild( soundNode );
 			context.getRootNode().addLink( soundNode );
@@ -1625,7 +1737,7 @@ public class UHSParser {
 
 		UHSNode versionNode = new UHSNode( "Version" );
 			versionNode.setRawStringContent( context.getLine( index ) );
-			versionNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			versionNode.setStringContentDecorator( titleDecorator );
 			versionNode.setId( startIndex );
 			currentNode.addChild( versionNode );
 			context.getRootNode().addLink( versionNode );
@@ -1640,7 +1752,7 @@ public class UHSParser {
 			tmpContent.append( context.getLine( index+j ) );
 		}
 		newNode.setRawStringContent( tmpContent.toString() );
-		newNode.setStringContentDecorator( new Version9xVersionDecorator() );
+		newNode.setStringContentDecorator( versionDecorator );
 		versionNode.addChild( newNode );
 
 		index += innerCount;
@@ -1694,7 +1806,7 @@ public class UHSParser {
 
 		UHSNode infoNode = new UHSNode( "Info" );
 			infoNode.setRawStringContent( context.getLine( index ) );
-			infoNode.setStringContentDecorator( new Version9xTitleDecorator() );
+			infoNode.setStringContentDecorator( titleDecorator );
 			infoNode.setId( startIndex );
 			currentNode.addChild( infoNode );
 			context.getRootNode().addLink( infoNode );
@@ -1713,7 +1825,7 @@ public class UHSParser {
 			}
 
 			newNode.setRawStringContent( tmpContent.toString() );
-			newNode.setStringContentDecorator( new Version9xInfoDecorator() );
+			newNode.setStringContentDecorator( infoDecorator );
 			infoNode.addChild( newNode );
 		}
 
@@ -1786,7 +1898,7 @@ public class UHSParser {
 				tmpContent.append( tmp );
 			}
 			newNode.setRawStringContent( tmpContent.toString() );
-			newNode.setStringContentDecorator( new Version9xIncentiveDecorator() );
+			newNode.setStringContentDecorator( incentiveDecorator );
 			incentiveNode.addChild( newNode );
 
 			applyRestrictions( context, newNode.getDecoratedStringContent() );
@@ -1931,6 +2043,43 @@ public class UHSParser {
 		return result;
 	}
 
+	/**
+	 * Checks the security checksum of a UHS file, in a single pass.
+	 * <p>
+	 * Only files in the 9x format have a checksum, signaled by an
+	 * "** END OF 88A FORMAT **" line before the binary hunk. Files only in
+	 * the 88a format always pass.
+	 *
+	 * @param f  a file to check
+	 * @return true if the stored checksum matched the calculated one, or there was none
+	 * @see #calcChecksum(File)
+	 */
+	public boolean verifyChecksum( File f ) throws IOException {
+		UHSChecksumVerifier verifier = new UHSChecksumVerifier();
+
+		InputStream is = null;
+		try {
+			is = new FileInputStream( f );
+			byte[] buf = new byte[8192];
+			int count;
+			while ( (count=is.read( buf )) != -1 ) {
+				verifier.update( buf, 0, count );
+			}
+		}
+		catch ( IOException e ) {
+			throw new IOException( String.format( "Could not verify checksum of: %s", f.getAbsolutePath() ), e );
+		}
+		finally {
+			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+		}
+
+		boolean valid = verifier.isValid();
+		if ( !valid ) {
+			logger.debug( "Calculated CRC differs from CRC stored in {}: {} vs {}", f.getName(), verifier.getCalculatedChecksum(), verifier.getStoredChecksum() );
+		}
+		return valid;
+	}
+
 	/**
 	 * Reads the security checksum stored in a UHS file.
 	 */
@@ -1,24 +1,33 @@
 package net.vhati.openuhs.core;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
 
 
 /**
  * A node to hold all others.
  * <p>
  * Additionally a root node is responsible for tracking ids to resolve link
- * targets.
+ * targets. Ids are indexed in order, so whole ranges can be renumbered
+ * at once.
  */
 public class UHSRootNode extends UHSNode {
 	private boolean legacy = false;
 	private UHSRootNode legacyRootNode = null;
 
-	private Map<String, UHSNode> linkMap = new HashMap<String, UHSNode>();
+	private NavigableMap<Integer, UHSNode> linkMap = new TreeMap<Integer, UHSNode>();
 
 
 	public UHSRootNode() {
@@ -65,7 +74,7 @@ public class UHSRootNode extends UHSNode {
 	 * @param newLink  the node to add
 	 */
 	public void addLink( UHSNode newLink ) {
-		linkMap.put( newLink.getId()+"", newLink );
+		linkMap.put( new Integer( newLink.getId() ), newLink );
 	}
 
 	/**
@@ -74,8 +83,7 @@ public class UHSRootNode extends UHSNode {
 	 * @param id  ID of the node to remove
 	 */
 	public void removeLinkById( int id ) {
-		if ( !linkMap.containsKey( id+"" ) ) return;
-		linkMap.remove( id+"" );
+		linkMap.remove( new Integer( id ) );
 	}
 
 	/**
@@ -85,7 +93,7 @@ public class UHSRootNode extends UHSNode {
 	 * @see #addLink(UHSNode)
 	 */
 	public void removeLink( UHSNode doomedLink ) {
-		linkMap.remove( doomedLink.getId()+"" );
+		linkMap.remove( new Integer( doomedLink.getId() ) );
 	}
 
 	/**
@@ -106,7 +114,7 @@ public class UHSRootNode extends UHSNode {
 	 * @return the node, or null if not found
 	 */
 	public UHSNode getNodeByLinkId( int id ) {
-		UHSNode targetNode = linkMap.get( id+"" );
+		UHSNode targetNode = linkMap.get( new Integer( id ) );
 
 		return targetNode;
 	}
@@ -134,6 +142,159 @@ public class UHSRootNode extends UHSNode {
 	}
 
 
+	/**
+	 * Offsets the ids of all registered nodes within a range.
+	 * <p>
+	 * Nodes are re-indexed in one pass, rather than individually
+	 * removed and added.
+	 *
+	 * @param minId  the lowest id to shift (inclusive)
+	 * @param maxId  the highest id to shift (inclusive)
+	 * @param offset  an amount to add/subtract
+	 * @param retargetLinks  true to also update link nodes throughout this tree that target the range
+	 * @return the number of nodes renumbered
+	 * @throws IllegalArgumentException if an id would become negative or collide with a node outside the range
+	 */
+	public int shiftIdRange( int minId, int maxId, int offset, boolean retargetLinks ) {
+		if ( minId > maxId || offset == 0 ) return 0;
+
+		NavigableMap<Integer, UHSNode> rangeMap = linkMap.subMap( new Integer( minId ), true, new Integer( maxId ), true );
+		if ( rangeMap.isEmpty() ) return 0;
+
+		List<UHSNode> movingNodes = new ArrayList<UHSNode>( rangeMap.values() );
+		for ( UHSNode node : movingNodes ) {
+			int newId = node.getId() + offset;
+			if ( newId < 0 ) {
+				throw new IllegalArgumentException( String.format( "Shifting id %d by %d would make it negative", node.getId(), offset ) );
+			}
+			if ( ( newId < minId || newId > maxId ) && linkMap.containsKey( new Integer( newId ) ) ) {
+				throw new IllegalArgumentException( String.format( "Shifting id %d by %d would collide with an existing node", node.getId(), offset ) );
+			}
+		}
+
+		rangeMap.clear();
+		for ( UHSNode node : movingNodes ) {
+			node.setId( node.getId() + offset );
+			linkMap.put( new Integer( node.getId() ), node );
+		}
+
+		if ( retargetLinks ) {
+			retargetLinks( this, minId, maxId, null, offset );
+		}
+
+		return movingNodes.size();
+	}
+
+	/**
+	 * Offsets the ids of a node and all its descendants.
+	 * <p>
+	 * Registered nodes remain registered under their new ids. The
+	 * subtree may be attached anywhere, even elsewhere, as long as
+	 * its registered nodes were added to this root.
+	 *
+	 * @param subtreeNode  the top of the subtree
+	 * @param offset  an amount to add/subtract
+	 * @param retargetLinks  true to also update link nodes within the subtree that target it
+	 * @return the number of nodes renumbered
+	 * @throws IllegalArgumentException if an id would become negative or collide with a node outside the subtree
+	 */
+	public int shiftSubtreeIds( UHSNode subtreeNode, int offset, boolean retargetLinks ) {
+		if ( offset == 0 ) return 0;
+
+		final List<UHSNode> movingNodes = new ArrayList<UHSNode>();
+		final Map<UHSNode, Boolean> movingSet = new IdentityHashMap<UHSNode, Boolean>();
+
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( subtreeNode, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				UHSNode node = path.getNode();
+				if ( node.getId() != -1 && !movingSet.containsKey( node ) ) {
+					movingNodes.add( node );
+					movingSet.put( node, Boolean.TRUE );
+				}
+				return CONTINUE;
+			}
+		});
+		if ( movingNodes.isEmpty() ) return 0;
+
+		int minId = Integer.MAX_VALUE;
+		int maxId = Integer.MIN_VALUE;
+		for ( UHSNode node : movingNodes ) {
+			int newId = node.getId() + offset;
+			if ( newId < 0 ) {
+				throw new IllegalArgumentException( String.format( "Shifting id %d by %d would make it negative", node.getId(), offset ) );
+			}
+			UHSNode existingNode = linkMap.get( new Integer( newId ) );
+			if ( existingNode != null && !movingSet.containsKey( existingNode ) ) {
+				throw new IllegalArgumentException( String.format( "Shifting id %d by %d would collide with an existing node", node.getId(), offset ) );
+			}
+			minId = Math.min( minId, node.getId() );
+			maxId = Math.max( maxId, node.getId() );
+		}
+
+		List<UHSNode> registeredNodes = new ArrayList<UHSNode>( movingNodes.size() );
+		for ( UHSNode node : movingNodes ) {
+			Integer key = new Integer( node.getId() );
+			if ( linkMap.get( key ) == node ) {
+				linkMap.remove( key );
+				registeredNodes.add( node );
+			}
+		}
+
+		if ( retargetLinks ) {
+			retargetLinks( subtreeNode, minId, maxId, movingSet, offset );
+		}
+
+		for ( UHSNode node : movingNodes ) {
+			node.setId( node.getId() + offset );
+		}
+		for ( UHSNode node : registeredNodes ) {
+			linkMap.put( new Integer( node.getId() ), node );
+		}
+
+		return movingNodes.size();
+	}
+
+	/**
+	 * Offsets link targets within a range, for nodes beneath a given node.
+	 *
+	 * @param startNode  the top of the tree to search for link nodes
+	 * @param minId  the lowest target to shift (inclusive)
+	 * @param maxId  the highest target to shift (inclusive)
+	 * @param targetSet  nodes whose current ids may be targeted, or null for any id in range
+	 * @param offset  an amount to add/subtract
+	 */
+	private void retargetLinks( UHSNode startNode, final int minId, final int maxId, Map<UHSNode, Boolean> targetSet, final int offset ) {
+		final Set<Integer> targetIds;
+		if ( targetSet != null ) {
+			targetIds = new HashSet<Integer>();
+			for ( UHSNode node : targetSet.keySet() ) {
+				targetIds.add( new Integer( node.getId() ) );
+			}
+		} else {
+			targetIds = null;
+		}
+		final Map<UHSNode, Boolean> doneSet = new IdentityHashMap<UHSNode, Boolean>();  // Nodes can be shared.
+
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( startNode, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				UHSNode node = path.getNode();
+				int target = node.getLinkTarget();
+				if ( target < minId || target > maxId ) return CONTINUE;
+				if ( targetIds != null && !targetIds.contains( new Integer( target ) ) ) return CONTINUE;
+
+				if ( doneSet.put( node, Boolean.TRUE ) == null ) {
+					node.setLinkTarget( target + offset );
+				}
+				return CONTINUE;
+			}
+		});
+	}
+
+
 	/**
 	 * Returns the master Subject node containing the table of contents.
 	 * <p>
@@ -0,0 +1,335 @@
+package net.vhati.openuhs.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.UHSFrozenTree;
+import net.vhati.openuhs.core.UHSParser;
+import net.vhati.openuhs.core.UHSRootNode;
+
+
+/**
+ * Stores parsed trees on disk, so reopening a file can skip parsing.
+ * <p>
+ * A snapshot is a serialized UHSFrozenTree, preceded by a key describing
+ * the UHS file it came from: length, modification time, and the CRC16
+ * stored at the end of the file. If any of those differ, the snapshot is
+ * considered stale and ignored. So are snapshots made by a parser with
+ * a different UHSParser.OUTPUT_VERSION.
+ * <p>
+ * Snapshots are read onto the heap in one go, rather than memory-mapped,
+ * since some platforms (e.g., Windows) won't let a mapped file be
+ * replaced until the mapping is garbage collected.
+ * <p>
+ * Binary content is stored as offsets into the UHS file, whether it was
+ * deferred during parsing or preloaded into the binary hunk array.
+ * Anything else is copied into the snapshot.
+ * <p>
+ * A dedicated cache dir is capped at a total size. When a new snapshot
+ * pushes it over, the least recently used snapshots are deleted.
+ *
+ * @see net.vhati.openuhs.core.UHSParser#setSnapshotCache(UHSSnapshotCache)
+ */
+public class UHSSnapshotCache {
+	private static final int SNAPSHOT_MAGIC = 0x55485353;  // "UHSS"
+	private static final int SNAPSHOT_VERSION = 3;
+	private static final int HEADER_LENGTH = 4 + 4 + 4 + 8 + 8 + 4;
+
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private final Logger logger = LoggerFactory.getLogger( UHSSnapshotCache.class );
+
+	private File cacheDir;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+
+	/**
+	 * Constructs a cache that stores snapshots beside each UHS file.
+	 */
+	public UHSSnapshotCache() {
+		this( null );
+	}
+
+	/**
+	 * Constructs a cache that stores snapshots in a dedicated dir.
+	 *
+	 * @param cacheDir  a dir to hold snapshots (created as needed), or null to store beside each UHS file
+	 */
+	public UHSSnapshotCache( File cacheDir ) {
+		this.cacheDir = cacheDir;
+	}
+
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	/**
+	 * Sets the total size a cache dir may grow to.
+	 * <p>
+	 * This has no effect on snapshots stored beside each UHS file.
+	 *
+	 * @param n  a number of bytes, or 0 for no limit
+	 */
+	public void setMaxBytes( long n ) {
+		if ( n < 0 ) {
+			throw new IllegalArgumentException( String.format( "Cache size limit (%d) must not be negative", n ) );
+		}
+		maxBytes = n;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+
+	/**
+	 * Returns the location of a UHS file's snapshot.
+	 * <p>
+	 * In a cache dir, the name includes a hash of the UHS file's full path,
+	 * so identically named files elsewhere won't collide.
+	 */
+	public File getSnapshotFile( File uhsFile ) {
+		if ( cacheDir == null ) {
+			return new File( uhsFile.getPath() +".snapshot" );
+		}
+
+		int pathHash = uhsFile.getAbsolutePath().hashCode();
+		return new File( cacheDir, String.format( "%s_%08x.snapshot", uhsFile.getName(), pathHash ) );
+	}
+
+
+	/**
+	 * Returns a tree from a UHS file's snapshot.
+	 *
+	 * @param uhsFile  the UHS file the snapshot was made from
+	 * @param binaryDeferred  true to reference binary content within the UHS file, false to read it into arrays
+	 * @return a new tree, or null if there is no snapshot or it was stale
+	 * @throws IOException if the snapshot was unreadable
+	 */
+	public UHSRootNode load( File uhsFile, boolean binaryDeferred ) throws IOException {
+		File snapshotFile = getSnapshotFile( uhsFile );
+		if ( !snapshotFile.exists() ) return null;
+
+		long uhsLength = uhsFile.length();
+		long uhsModified = uhsFile.lastModified();
+		int uhsSum = readStoredChecksum( uhsFile );
+
+		RandomAccessFile raf = null;
+		ByteBuffer buf;
+		try {
+			raf = new RandomAccessFile( snapshotFile, "r" );
+			if ( raf.length() < HEADER_LENGTH ) return null;
+			if ( raf.length() > Integer.MAX_VALUE ) {
+				throw new IOException( String.format( "Snapshot is too large (%d bytes)", raf.length() ) );
+			}
+
+			// Check the header before reading the rest.
+			if ( raf.readInt() != SNAPSHOT_MAGIC ) return null;
+			if ( raf.readInt() != SNAPSHOT_VERSION ) return null;
+			if ( raf.readInt() != UHSParser.OUTPUT_VERSION ) {
+				logger.debug( "Ignoring snapshot of {} from another parser version", uhsFile.getName() );
+				return null;
+			}
+			if ( raf.readLong() != uhsLength || raf.readLong() != uhsModified || raf.readInt() != uhsSum ) {
+				logger.debug( "Ignoring stale snapshot of {}", uhsFile.getName() );
+				return null;
+			}
+
+			byte[] data = new byte[(int)raf.length() - HEADER_LENGTH];
+			raf.readFully( data );
+			buf = ByteBuffer.wrap( data );
+		}
+		catch ( IOException e ) {
+			throw new IOException( String.format( "Could not load snapshot: %s", snapshotFile.getAbsolutePath() ), e );
+		}
+		finally {
+			try {if ( raf != null ) raf.close();} catch ( IOException e ) {}
+		}
+
+		// Mark it as recently used.
+		if ( cacheDir != null ) snapshotFile.setLastModified( System.currentTimeMillis() );
+
+		try {
+			UHSFrozenTree frozenTree = UHSFrozenTree.readFrom( buf, uhsFile, binaryDeferred );
+			return frozenTree.thaw();
+		}
+		catch ( IOException e ) {
+			throw new IOException( String.format( "Could not load snapshot: %s", snapshotFile.getAbsolutePath() ), e );
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a tree parsed from a UHS file.
+	 * <p>
+	 * The snapshot is written to a temporary file first, then renamed,
+	 * replacing any existing snapshot.
+	 *
+	 * @param uhsFile  the UHS file the tree was parsed from
+	 * @param rootNode  the parsed tree
+	 * @throws IOException if the snapshot could not be written
+	 * @throws IllegalArgumentException if the tree could not be frozen
+	 * @see UHSFrozenTree#freeze(UHSRootNode)
+	 */
+	public void store( File uhsFile, UHSRootNode rootNode ) throws IOException {
+		store( uhsFile, rootNode, uhsFile, null, -1 );
+	}
+
+	/**
+	 * Writes a snapshot of a tree parsed from a copy of a UHS file.
+	 * <p>
+	 * This suits a file that was parsed before being renamed into place
+	 * (e.g., a download). Binary content referencing the copy is stored
+	 * as offsets, which will be applied to the UHS file when loaded.
+	 *
+	 * @param uhsFile  the UHS file to key the snapshot on
+	 * @param rootNode  the parsed tree
+	 * @param parsedFile  the file the tree was parsed from, with identical content
+	 * @throws IOException if the snapshot could not be written
+	 * @throws IllegalArgumentException if the tree could not be frozen
+	 */
+	public void store( File uhsFile, UHSRootNode rootNode, File parsedFile ) throws IOException {
+		store( uhsFile, rootNode, parsedFile, null, -1 );
+	}
+
+	/**
+	 * Writes a snapshot, noting where the parser's binary hunk array lies.
+	 *
+	 * @param binaryHunk  an array of the parsed file's bytes, which preloaded content shares, or null
+	 * @param binaryHunkOffset  the file offset of the array's first byte, or -1
+	 * @see UHSFrozenTree#writeTo(DataOutputStream, File, byte[], long)
+	 */
+	void store( File uhsFile, UHSRootNode rootNode, File parsedFile, byte[] binaryHunk, long binaryHunkOffset ) throws IOException {
+		UHSFrozenTree frozenTree = UHSFrozenTree.freeze( rootNode );
+
+		File snapshotFile = getSnapshotFile( uhsFile );
+		File tmpFile = new File( snapshotFile.getPath() +".tmp" );
+
+		if ( cacheDir != null && !cacheDir.exists() && !cacheDir.mkdirs() ) {
+			throw new IOException( String.format( "Could not create snapshot dir: %s", cacheDir.getAbsolutePath() ) );
+		}
+
+		DataOutputStream out = null;
+		boolean completed = false;
+		try {
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) );
+			out.writeInt( SNAPSHOT_MAGIC );
+			out.writeInt( SNAPSHOT_VERSION );
+			out.writeInt( UHSParser.OUTPUT_VERSION );
+			out.writeLong( uhsFile.length() );
+			out.writeLong( uhsFile.lastModified() );
+			out.writeInt( readStoredChecksum( uhsFile ) );
+
+			frozenTree.writeTo( out, parsedFile, binaryHunk, binaryHunkOffset );
+			out.close();
+			out = null;
+
+			if ( snapshotFile.exists() && !snapshotFile.delete() ) {
+				throw new IOException( String.format( "Could not replace existing snapshot: %s", snapshotFile.getAbsolutePath() ) );
+			}
+			if ( !tmpFile.renameTo( snapshotFile ) ) {
+				throw new IOException( String.format( "Could not rename snapshot: %s", tmpFile.getAbsolutePath() ) );
+			}
+			completed = true;
+		}
+		finally {
+			try {if ( out != null ) out.close();} catch ( IOException e ) {}
+
+			if ( !completed ) tmpFile.delete();
+		}
+
+		if ( cacheDir != null && maxBytes > 0 ) trim( snapshotFile );
+	}
+
+	/**
+	 * Deletes a UHS file's snapshot, if any.
+	 *
+	 * @return true if a snapshot existed and was deleted
+	 */
+	public boolean remove( File uhsFile ) {
+		File snapshotFile = getSnapshotFile( uhsFile );
+		return ( snapshotFile.exists() && snapshotFile.delete() );
+	}
+
+
+	/**
+	 * Deletes the least recently used snapshots, until the cache dir fits its limit.
+	 *
+	 * @param keptFile  a snapshot to spare, having just been stored
+	 */
+	private void trim( File keptFile ) {
+		File[] files = cacheDir.listFiles();
+		if ( files == null ) return;
+
+		// Note times once, so the sort sees consistent values.
+		List<File> snapshotFiles = new ArrayList<File>( files.length );
+		final Map<File, Long> modifiedMap = new HashMap<File, Long>( files.length * 2 );
+		long totalBytes = 0;
+		for ( File f : files ) {
+			if ( !f.isFile() || !f.getName().endsWith( ".snapshot" ) ) continue;
+			snapshotFiles.add( f );
+			modifiedMap.put( f, f.lastModified() );
+			totalBytes += f.length();
+		}
+		if ( totalBytes <= maxBytes ) return;
+
+		Collections.sort( snapshotFiles, new Comparator<File>() {
+			@Override
+			public int compare( File a, File b ) {
+				long aModified = modifiedMap.get( a );
+				long bModified = modifiedMap.get( b );
+				return (( aModified < bModified ) ? -1 : (( aModified > bModified ) ? 1 : 0));
+			}
+		});
+
+		for ( File f : snapshotFiles ) {
+			if ( totalBytes <= maxBytes ) break;
+			if ( f.equals( keptFile ) ) continue;
+
+			long len = f.length();
+			if ( f.delete() ) {
+				totalBytes -= len;
+				logger.debug( "Evicted snapshot: {}", f.getName() );
+			}
+		}
+	}
+
+	/**
+	 * Reads the CRC16 stored in the last two bytes of a UHS file.
+	 * <p>
+	 * Files only in the 88a format have no checksum, but the trailing
+	 * bytes still serve to detect changes.
+	 *
+	 * @return an unsigned short, or -1 if the file is too small
+	 */
+	private int readStoredChecksum( File uhsFile ) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( uhsFile, "r" );
+			long len = raf.length();
+			if ( len < 2 ) return -1;
+
+			raf.seek( len-2 );
+			int leastByte = raf.read();
+			int mostByte = raf.read();
+			return ( mostByte << 8 | leastByte );
+		}
+		finally {
+			try {if ( raf != null ) raf.close();} catch ( IOException e ) {}
+		}
+	}
+}
@@ -36,6 +36,7 @@ import net.vhati.openuhs.core.UHSGenerationException;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodeType;
 
 
 /**
@@ -192,8 +193,7 @@ public class UHSWriter {
 		List<UHSNode> levelOne = rootNode.getMasterSubjectNode().getChildren();
 		for ( int o=0; o < levelOne.size(); o++ ) {
 			UHSNode oNode = levelOne.get( o );
-			String oType = oNode.getType();
-			if ( "Subject".equals( oType ) ) {
+			if ( oNode.getNodeType() == UHSNodeType.SUBJECT ) {
 				if ( !oNode.isGroup() ) return false;
 
 				// Check Question nodes
@@ -428,8 +428,6 @@ public class UHSWriter {
 	 * @see #write9xFormat(UHSRootNode, OutputStream)
 	 */
 	private int writeNode( UHSGenerationContext context, UHSNode currentNode, StringBuilder parentBuf, int startIndex ) throws CharacterCodingException, IOException, UHSGenerationException, UnsupportedEncodingException {
-		String type = currentNode.getType();
-
 		if ( context.isPhaseOne() ) {
 			if ( currentNode.getId() != -1 ) {  // Associate id with current line.
 				context.putLine( currentNode.getId(), startIndex );
@@ -440,51 +438,39 @@ public class UHSWriter {
 			}
 		}
 
-		if ( "Root".equals( type ) ) {
-			writeRootNode( context, currentNode, parentBuf, startIndex );
-			return 0;
-		}
-		else if ( "Subject".equals( type ) ) {
-			return writeSubjectNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "NestHint".equals( type ) ) {
-			return writeNestHintNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Hint".equals( type ) ) {
-			return writeHintNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Comment".equals( type ) ) {
-			return writeCommentNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Credit".equals( type ) ) {
-			return writeCreditNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Text".equals( type ) ) {
-			return writeTextNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Link".equals( type ) ) {
-			return writeLinkNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Hyperpng".equals( type ) || "Hypergif".equals( type ) ) {
-			return writeHotSpotNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Sound".equals( type ) ) {
-			return writeSoundNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Blank".equals( type ) ) {
-			return writeBlankNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Version".equals( type ) ) {
-			return writeVersionNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Info".equals( type ) ) {
-			return writeInfoNode( context, currentNode, parentBuf, startIndex );
-		}
-		else if ( "Incentive".equals( type ) ) {
-			return writeIncentiveNode( context, currentNode, parentBuf, startIndex );
-		}
-		else {
-			throw new IllegalArgumentException( "Unexpected version 9x node type: "+ currentNode.getType() );
+		switch ( currentNode.getNodeType() ) {
+			case ROOT:
+				writeRootNode( context, currentNode, parentBuf, startIndex );
+				return 0;
+			case SUBJECT:
+				return writeSubjectNode( context, currentNode, parentBuf, startIndex );
+			case NEST_HINT:
+				return writeNestHintNode( context, currentNode, parentBuf, startIndex );
+			case HINT:
+				return writeHintNode( context, currentNode, parentBuf, startIndex );
+			case COMMENT:
+				return writeCommentNode( context, currentNode, parentBuf, startIndex );
+			case CREDIT:
+				return writeCreditNode( context, currentNode, parentBuf, startIndex );
+			case TEXT:
+				return writeTextNode( context, currentNode, parentBuf, startIndex );
+			case LINK:
+				return writeLinkNode( context, currentNode, parentBuf, startIndex );
+			case HYPERPNG:
+			case HYPERGIF:
+				return writeHotSpotNode( context, currentNode, parentBuf, startIndex );
+			case SOUND:
+				return writeSoundNode( context, currentNode, parentBuf, startIndex );
+			case BLANK:
+				return writeBlankNode( context, currentNode, parentBuf, startIndex );
+			case VERSION:
+				return writeVersionNode( context, currentNode, parentBuf, startIndex );
+			case INFO:
+				return writeInfoNode( context, currentNode, parentBuf, startIndex );
+			case INCENTIVE:
+				return writeIncentiveNode( context, currentNode, parentBuf, startIndex );
+			default:
+				throw new IllegalArgumentException( "Unexpected version 9x node type: "+ currentNode.getType() );
 		}
 	}
 
@@ -609,7 +595,7 @@ public class UHSWriter {
 				throw new UHSGenerationException( "NestHint's first child must not be an addon" );
 			}
 
-			if ( "HintData".equals( tmpNode.getType() ) ) {
+			if ( tmpNode.getNodeType() == UHSNodeType.HINT_DATA ) {
 				// First batch has no divider.
 				// Successive batches begin with a divider and a HintData.
 				// HintData addons do not get dividers when they follow other non-HintData addons.
@@ -810,10 +796,10 @@ public class UHSWriter {
 		// Current node has the title AND the main image.
 
 		buf.append( " " );
-		if ( "Hyperpng".equals( hotspotNode.getType() ) ) {
+		if ( hotspotNode.getNodeType() == UHSNodeType.HYPERPNG ) {
 			buf.append( "hyperpng" );
 		}
-		else if ( "Hypergif".equals( hotspotNode.getType() ) ) {
+		else if ( hotspotNode.getNodeType() == UHSNodeType.HYPERGIF ) {
 			buf.append( "gifa" );
 		}
 		else {
@@ -857,7 +843,7 @@ public class UHSWriter {
 			buf.append( "\r\n" );
 			innerCount++;
 
-			if ( "Overlay".equals( tmpNode.getType() ) ) {  // lines: 3 (Technically it was preceeded by a zone in HyperImage.)
+			if ( tmpNode.getNodeType() == UHSNodeType.OVERLAY ) {  // lines: 3 (Technically it was preceeded by a zone in HyperImage.)
 				// Overlays need the zone's x/y, so don't recurse.
 
 				if ( tmpNode instanceof UHSImageNode == false ) {/* Throw an error */}
@@ -0,0 +1,182 @@
+package net.vhati.openuhs.core;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+
+import net.vhati.openuhs.core.ByteReference;
+
+
+/**
+ * Format info and the sample data's location, from a RIFF WAVE header.
+ * <p>
+ * Only the header is read, so players can stream sample data from
+ * wherever it lives (e.g., a region of a UHS file), and seek to any
+ * frame without decoding what came before.
+ */
+public class WavHeader {
+	/** The formatTag for uncompressed linear PCM. */
+	public static final int FORMAT_PCM = 1;
+
+	private static final int RIFF_ID = 0x46464952;  // "RIFF", little-endian.
+	private static final int WAVE_ID = 0x45564157;  // "WAVE"
+	private static final int FMT_ID = 0x20746d66;   // "fmt "
+	private static final int DATA_ID = 0x61746164;  // "data"
+
+	public int formatTag = 0;
+	public int channels = 0;
+	public int sampleRate = 0;
+	public int blockAlign = 0;
+	public int bitsPerSample = 0;
+
+	/** Offset of the first sample byte, from the start of the file. */
+	public long dataOffset = 0;
+
+	/** Length of the sample data, in bytes. */
+	public long dataSize = 0;
+
+
+	/**
+	 * Returns the size of one frame (a sample for every channel), in bytes.
+	 */
+	public int getBytesPerFrame() {
+		return blockAlign;
+	}
+
+	/**
+	 * Returns the number of whole frames in the sample data.
+	 */
+	public long getTotalFrames() {
+		if ( blockAlign <= 0 ) return 0;
+		return dataSize / blockAlign;
+	}
+
+	/**
+	 * Returns the duration of the sample data, in milliseconds.
+	 */
+	public long getDurationMillis() {
+		if ( sampleRate <= 0 ) return 0;
+		return getTotalFrames() * 1000 / sampleRate;
+	}
+
+	/**
+	 * Returns the file offset of a frame.
+	 *
+	 * @param frame  a frame number, which will be clamped within the data
+	 */
+	public long getFrameOffset( long frame ) {
+		frame = Math.max( 0, Math.min( frame, getTotalFrames() ) );
+		return dataOffset + frame * blockAlign;
+	}
+
+
+	/**
+	 * Reads the header of a WAVE file.
+	 * <p>
+	 * The data chunk's size is clamped to the length of the reference.
+	 *
+	 * @param ref  the contents of an audio file
+	 * @see #read(InputStream)
+	 */
+	public static WavHeader read( ByteReference ref ) throws IOException {
+		InputStream is = null;
+		try {
+			is = ref.getInputStream();
+			WavHeader result = read( is );
+			result.dataSize = Math.max( 0, Math.min( result.dataSize, ref.length() - result.dataOffset ) );
+			return result;
+		}
+		finally {
+			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Reads the header of a WAVE file.
+	 * <p>
+	 * Afterward, the stream's position will be at the first sample byte.
+	 * Chunks other than "fmt " and "data" are skipped.
+	 *
+	 * @param is  a stream at the start of the file
+	 * @throws IOException if the stream isn't a RIFF WAVE file, or ends before the data chunk
+	 */
+	public static WavHeader read( InputStream is ) throws IOException {
+		if ( readIntLE( is ) != RIFF_ID ) {
+			throw new IOException( "Sound bytes didn't begin with RIFF" );  // RIFX (big-endian) is unsupported.
+		}
+		readIntLE( is );  // RIFF size.
+		if ( readIntLE( is ) != WAVE_ID ) {
+			throw new IOException( "RIFF form type was not WAVE" );
+		}
+		long pos = 12;
+
+		WavHeader result = new WavHeader();
+		boolean fmtFound = false;
+
+		while ( true ) {
+			int chunkId = readIntLE( is );
+			long chunkSize = readIntLE( is ) & 0xFFFFFFFFL;
+			pos += 8;
+
+			if ( chunkId == DATA_ID ) {
+				if ( !fmtFound ) throw new IOException( "WAVE data chunk came before the fmt chunk" );
+
+				result.dataOffset = pos;
+				result.dataSize = chunkSize;
+				return result;
+			}
+
+			long skipSize = chunkSize + (chunkSize % 2);  // Chunks are padded to even sizes.
+			if ( chunkId == FMT_ID ) {
+				if ( chunkSize < 16 ) {
+					throw new IOException( String.format( "WAVE fmt chunk was too small: %d", chunkSize ) );
+				}
+				result.formatTag = readShortLE( is );
+				result.channels = readShortLE( is );
+				result.sampleRate = readIntLE( is );
+				readIntLE( is );  // Average bytes per second.
+				result.blockAlign = readShortLE( is );
+				result.bitsPerSample = readShortLE( is );
+				skipSize -= 16;
+				fmtFound = true;
+			}
+			skipFully( is, skipSize );
+			pos += chunkSize + (chunkSize % 2);
+		}
+	}
+
+
+	private static int readIntLE( InputStream is ) throws IOException {
+		int b0 = readByte( is );
+		int b1 = readByte( is );
+		int b2 = readByte( is );
+		int b3 = readByte( is );
+		return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+	}
+
+	private static int readShortLE( InputStream is ) throws IOException {
+		int b0 = readByte( is );
+		int b1 = readByte( is );
+		return (b1 << 8) | b0;
+	}
+
+	private static int readByte( InputStream is ) throws IOException {
+		int b = is.read();
+		if ( b == -1 ) throw new EOFException( "WAVE header ended prematurely" );
+		return b;
+	}
+
+	/**
+	 * Skips bytes, reading if the stream won't skip.
+	 */
+	public static void skipFully( InputStream is, long n ) throws IOException {
+		while ( n > 0 ) {
+			long skipped = is.skip( n );
+			if ( skipped <= 0 ) {
+				readByte( is );
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
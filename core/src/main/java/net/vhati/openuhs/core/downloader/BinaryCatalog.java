@@ -0,0 +1,348 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.openuhs.core.downloader.CatalogItem;
+
+
+/**
+ * A catalog in a compact, versioned binary format.
+ * <p>
+ * Reading it back costs far less than parsing catalog text: no
+ * tokenizing, no date formats, and few string allocations.
+ * <ul>
+ * <li>Each distinct string is stored once, in a table of UTF-8 strings.
+ * Entries refer to them by index.</li>
+ * <li>URLs are split after their last slash, so the shared prefix
+ * ("http://host/dir/") is a single table entry.</li>
+ * <li>Numbers are unsigned LEB128 varints. Dates are seconds since the
+ * epoch, which is all the catalog's precision.</li>
+ * <li>Sizes that are plain decimal numbers are stored as varints,
+ * anything else as a string.</li>
+ * </ul>
+ * <p>
+ * String properties can ride along, for caller-defined metadata.
+ * <p>
+ * Entries' state flags aren't stored.
+ *
+ * @see net.vhati.openuhs.core.downloader.CatalogCache
+ */
+public class BinaryCatalog {
+	private static final int CATALOG_MAGIC = 0x55485343;  // "UHSC"
+	private static final int CATALOG_VERSION = 1;
+
+	private final List<CatalogItem> catalog;
+	private final Map<String, String> properties;
+
+
+	/**
+	 * Constructs a binary catalog.
+	 *
+	 * @param catalog  entries, in catalog order
+	 * @param properties  metadata to store alongside, or null
+	 */
+	public BinaryCatalog( List<CatalogItem> catalog, Map<String, String> properties ) {
+		this.catalog = catalog;
+		this.properties = (( properties != null ) ? properties : Collections.<String, String>emptyMap());
+	}
+
+
+	public List<CatalogItem> getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Returns a stored property, or null.
+	 */
+	public String getProperty( String key ) {
+		return properties.get( key );
+	}
+
+	public Map<String, String> getProperties() {
+		return Collections.unmodifiableMap( properties );
+	}
+
+
+	/**
+	 * Serializes this catalog, for later use with readFrom().
+	 *
+	 * @param os  a stream to write to (not closed)
+	 * @see #readFrom(ByteBuffer)
+	 */
+	public void writeTo( OutputStream os ) throws IOException {
+		// Build the string table, assigning indexes in order of appearance.
+		Map<String, Integer> stringMap = new HashMap<String, Integer>();
+		List<String> stringTable = new ArrayList<String>();
+
+		for ( Map.Entry<String, String> entry : properties.entrySet() ) {
+			addString( stringMap, stringTable, entry.getKey() );
+			addString( stringMap, stringTable, entry.getValue() );
+		}
+		for ( CatalogItem catItem : catalog ) {
+			String url = catItem.getUrl();
+			int split = url.lastIndexOf( '/' ) + 1;
+
+			addString( stringMap, stringTable, catItem.getTitle() );
+			addString( stringMap, stringTable, url.substring( 0, split ) );
+			addString( stringMap, stringTable, url.substring( split ) );
+			addString( stringMap, stringTable, catItem.getName() );
+			if ( parseSize( catItem.getCompressedSize() ) == -1 ) addString( stringMap, stringTable, catItem.getCompressedSize() );
+			if ( parseSize( catItem.getFullSize() ) == -1 ) addString( stringMap, stringTable, catItem.getFullSize() );
+		}
+
+		DataOutputStream out = new DataOutputStream( os );
+		out.writeInt( CATALOG_MAGIC );
+		out.writeInt( CATALOG_VERSION );
+
+		writeVarint( out, stringTable.size() );
+		for ( String s : stringTable ) {
+			byte[] bytes = s.getBytes( "UTF-8" );
+			writeVarint( out, bytes.length );
+			out.write( bytes );
+		}
+
+		writeVarint( out, properties.size() );
+		for ( Map.Entry<String, String> entry : properties.entrySet() ) {
+			writeVarint( out, stringMap.get( entry.getKey() ) );
+			writeVarint( out, stringMap.get( entry.getValue() ) );
+		}
+
+		writeVarint( out, catalog.size() );
+		for ( CatalogItem catItem : catalog ) {
+			String url = catItem.getUrl();
+			int split = url.lastIndexOf( '/' ) + 1;
+
+			writeVarint( out, stringMap.get( catItem.getTitle() ) );
+			writeVarint( out, stringMap.get( url.substring( 0, split ) ) );
+			writeVarint( out, stringMap.get( url.substring( split ) ) );
+			writeVarint( out, stringMap.get( catItem.getName() ) );
+
+			// Zero means no date.
+			Date date = catItem.getDate();
+			writeVarint( out, (( date != null ) ? zigzag( date.getTime() / 1000 ) + 1 : 0) );
+
+			writeSize( out, catItem.getCompressedSize(), stringMap );
+			writeSize( out, catItem.getFullSize(), stringMap );
+		}
+		out.flush();
+	}
+
+	private static void addString( Map<String, Integer> stringMap, List<String> stringTable, String s ) {
+		if ( stringMap.containsKey( s ) ) return;
+
+		stringMap.put( s, stringTable.size() );
+		stringTable.add( s );
+	}
+
+	/**
+	 * Writes a size: a number plus one, or zero and then a string index.
+	 */
+	private static void writeSize( DataOutputStream out, String s, Map<String, Integer> stringMap ) throws IOException {
+		long n = parseSize( s );
+		if ( n != -1 ) {
+			writeVarint( out, n + 1 );
+		} else {
+			writeVarint( out, 0 );
+			writeVarint( out, stringMap.get( s ) );
+		}
+	}
+
+
+	/**
+	 * Deserializes a catalog from a file.
+	 * <p>
+	 * A memory-mapped read avoids copying the file onto the heap first.
+	 * However, some platforms (e.g., Windows) won't let a mapped file be
+	 * deleted or replaced until the mapping is garbage collected.
+	 *
+	 * @param f  a file to read
+	 * @param mapped  true to memory-map the file, false to read it into an array
+	 * @return a new catalog, or null if the file was in another format or version
+	 * @throws IOException if the file was unreadable or malformed
+	 */
+	public static BinaryCatalog readFrom( File f, boolean mapped ) throws IOException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( f, "r" );
+			ByteBuffer buf;
+
+			if ( mapped ) {
+				FileChannel chan = raf.getChannel();
+				buf = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size() );
+			} else {
+				if ( raf.length() > Integer.MAX_VALUE ) {
+					throw new IOException( String.format( "Catalog file is too large (%d bytes)", raf.length() ) );
+				}
+				byte[] bytes = new byte[(int)raf.length()];
+				raf.readFully( bytes );
+				buf = ByteBuffer.wrap( bytes );
+			}
+
+			return readFrom( buf );
+		}
+		finally {
+			try {if ( raf != null ) raf.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Deserializes a catalog.
+	 *
+	 * @param buf  a buffer positioned at the start of a serialized catalog
+	 * @return a new catalog, or null if the data was in another format or version
+	 * @throws IOException if the data was malformed
+	 * @see #writeTo(OutputStream)
+	 */
+	public static BinaryCatalog readFrom( ByteBuffer buf ) throws IOException {
+		try {
+			if ( buf.remaining() < 8 ) return null;
+			if ( buf.getInt() != CATALOG_MAGIC ) return null;
+			if ( buf.getInt() != CATALOG_VERSION ) return null;
+
+			String[] stringTable = new String[readBounded( buf )];
+			byte[] bytes = new byte[64];
+			for ( int i=0; i < stringTable.length; i++ ) {
+				int len = readBounded( buf );
+				if ( len > bytes.length ) bytes = new byte[Math.max( len, bytes.length*2 )];
+				buf.get( bytes, 0, len );
+				stringTable[i] = new String( bytes, 0, len, "UTF-8" );
+			}
+
+			int propertyCount = readBounded( buf );
+			Map<String, String> properties = new LinkedHashMap<String, String>( propertyCount * 2 );
+			for ( int i=0; i < propertyCount; i++ ) {
+				String key = readString( buf, stringTable );
+				properties.put( key, readString( buf, stringTable ) );
+			}
+
+			int itemCount = readBounded( buf );
+			List<CatalogItem> catalog = new ArrayList<CatalogItem>( itemCount );
+			StringBuilder urlBuf = new StringBuilder();
+			for ( int i=0; i < itemCount; i++ ) {
+				CatalogItem catItem = new CatalogItem();
+				catItem.setTitle( readString( buf, stringTable ) );
+
+				urlBuf.setLength( 0 );
+				urlBuf.append( readString( buf, stringTable ) );
+				urlBuf.append( readString( buf, stringTable ) );
+				catItem.setUrl( urlBuf.toString() );
+
+				catItem.setName( readString( buf, stringTable ) );
+
+				long dateValue = readVarint( buf );
+				if ( dateValue != 0 ) catItem.setDate( new Date( unzigzag( dateValue - 1 ) * 1000 ) );
+
+				catItem.setCompressedSize( readSize( buf, stringTable ) );
+				catItem.setFullSize( readSize( buf, stringTable ) );
+				catalog.add( catItem );
+			}
+
+			return new BinaryCatalog( catalog, properties );
+		}
+		catch ( BufferUnderflowException e ) {
+			throw new IOException( "Malformed binary catalog data", e );
+		}
+		catch ( IndexOutOfBoundsException e ) {
+			throw new IOException( "Malformed binary catalog data", e );
+		}
+	}
+
+	private static String readString( ByteBuffer buf, String[] stringTable ) throws IOException {
+		int index = readCount( buf );
+		if ( index >= stringTable.length ) {
+			throw new IOException( String.format( "Binary catalog string index (%d) is out of range", index ) );
+		}
+		return stringTable[index];
+	}
+
+	private static String readSize( ByteBuffer buf, String[] stringTable ) throws IOException {
+		long n = readVarint( buf );
+		if ( n != 0 ) return Long.toString( n - 1 );
+
+		return readString( buf, stringTable );
+	}
+
+
+	private static void writeVarint( DataOutputStream out, long n ) throws IOException {
+		while ( (n & ~0x7FL) != 0 ) {
+			out.writeByte( (int)((n & 0x7F) | 0x80) );
+			n >>>= 7;
+		}
+		out.writeByte( (int)n );
+	}
+
+	private static long readVarint( ByteBuffer buf ) throws IOException {
+		long result = 0;
+		for ( int shift=0; shift < 64; shift += 7 ) {
+			byte b = buf.get();
+			result |= (long)(b & 0x7F) << shift;
+			if ( (b & 0x80) == 0 ) return result;
+		}
+		throw new IOException( "Malformed varint in binary catalog" );
+	}
+
+	/**
+	 * Reads a varint that counts or indexes something in memory.
+	 */
+	private static int readCount( ByteBuffer buf ) throws IOException {
+		long n = readVarint( buf );
+		if ( n < 0 || n > Integer.MAX_VALUE ) {
+			throw new IOException( String.format( "Binary catalog count (%d) is out of range", n ) );
+		}
+		return (int)n;
+	}
+
+	/**
+	 * Reads a count of things that each take at least a byte of the remaining data.
+	 * <p>
+	 * Garbage won't trigger a huge allocation.
+	 */
+	private static int readBounded( ByteBuffer buf ) throws IOException {
+		int n = readCount( buf );
+		if ( n > buf.remaining() ) {
+			throw new IOException( String.format( "Binary catalog count (%d) exceeds the remaining data", n ) );
+		}
+		return n;
+	}
+
+	/**
+	 * Maps signed values to unsigned, so small negatives stay short.
+	 */
+	private static long zigzag( long n ) {
+		return ( (n << 1) ^ (n >> 63) );
+	}
+
+	private static long unzigzag( long n ) {
+		return ( (n >>> 1) ^ -(n & 1) );
+	}
+
+	/**
+	 * Returns a size string's value, if it survives a round trip as a number.
+	 *
+	 * @return the size, or -1 if it wasn't a plain decimal number
+	 */
+	private static long parseSize( String s ) {
+		if ( s.length() == 0 || s.length() > 18 ) return -1;
+		if ( s.length() > 1 && s.charAt( 0 ) == '0' ) return -1;
+
+		for ( int i=0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( c < '0' || c > '9' ) return -1;
+		}
+		return Long.parseLong( s );
+	}
+}
@@ -0,0 +1,236 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.downloader.BinaryCatalog;
+import net.vhati.openuhs.core.downloader.CatalogDiff;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+
+
+/**
+ * Remembers the last catalog fetched, so it needn't be downloaded again.
+ * <p>
+ * Along with the catalog, the time it was fetched and the server's
+ * validators (ETag and Last-Modified response headers) are kept. These
+ * are sent back as a conditional request, which the server can answer
+ * with "304 Not Modified" instead of the whole catalog.
+ * <p>
+ * The cache file is a BinaryCatalog, with the cache info stored as
+ * properties, so loading it involves no text parsing. It can optionally
+ * be memory-mapped.
+ * <p>
+ * Methods are synchronized, so a background task can update the cache
+ * while the UI reads it.
+ *
+ * @see net.vhati.openuhs.core.downloader.CatalogDiff
+ */
+public class CatalogCache {
+	private static final String PROP_FETCHED = "FETCHED";
+	private static final String PROP_ETAG = "ETAG";
+	private static final String PROP_LASTMODIFIED = "LASTMODIFIED";
+
+	private final Logger logger = LoggerFactory.getLogger( CatalogCache.class );
+
+	private final File cacheFile;
+	private boolean memoryMapped = false;
+	private List<CatalogItem> catalog = Collections.emptyList();
+	private long fetchTime = 0;
+	private String etag = null;
+	private String lastModified = null;
+
+
+	public CatalogCache( File cacheFile ) {
+		this.cacheFile = cacheFile;
+	}
+
+
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Sets whether load() memory-maps the cache file.
+	 * <p>
+	 * Leave this off where mapped files can't be replaced (e.g., Windows),
+	 * since store() replaces the file.
+	 *
+	 * @see net.vhati.openuhs.core.downloader.BinaryCatalog#readFrom(File, boolean)
+	 */
+	public synchronized void setMemoryMapped( boolean b ) {
+		memoryMapped = b;
+	}
+
+	public synchronized boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Returns the cached catalog.
+	 *
+	 * @return a read-only list, empty if nothing has been cached
+	 */
+	public synchronized List<CatalogItem> getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Returns when the catalog was last fetched or confirmed unchanged.
+	 *
+	 * @return milliseconds since the epoch, or 0
+	 */
+	public synchronized long getFetchTime() {
+		return fetchTime;
+	}
+
+	public synchronized String getETag() {
+		return etag;
+	}
+
+	public synchronized String getLastModified() {
+		return lastModified;
+	}
+
+
+	/**
+	 * Adds request headers, so the server can reply that nothing has changed.
+	 * <p>
+	 * This must be called before connecting. Nothing is added if no
+	 * catalog has been cached.
+	 */
+	public synchronized void prepareRequest( URLConnection con ) {
+		if ( catalog.isEmpty() ) return;
+
+		if ( etag != null ) con.setRequestProperty( "If-None-Match", etag );
+		if ( lastModified != null ) con.setRequestProperty( "If-Modified-Since", lastModified );
+	}
+
+	/**
+	 * Returns true if a response means the cached catalog is current.
+	 */
+	public synchronized boolean isNotModified( HttpURLConnection con ) throws IOException {
+		return ( !catalog.isEmpty() && con.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED );
+	}
+
+	/**
+	 * Records that the server confirmed the cached catalog is current.
+	 *
+	 * @param con  the connection that returned "304 Not Modified"
+	 */
+	public synchronized void touch( URLConnection con ) {
+		fetchTime = System.currentTimeMillis();
+		readValidators( con );
+	}
+
+	/**
+	 * Replaces the cached catalog with a freshly downloaded one.
+	 *
+	 * @param newCatalog  the parsed catalog
+	 * @param con  the connection it came from, for validators (may be null)
+	 * @return the differences from the previous catalog
+	 */
+	public synchronized CatalogDiff update( List<CatalogItem> newCatalog, URLConnection con ) {
+		CatalogDiff diff = CatalogDiff.compute( catalog, newCatalog );
+
+		catalog = Collections.unmodifiableList( new ArrayList<CatalogItem>( diff.getMerged() ) );
+		fetchTime = System.currentTimeMillis();
+		etag = null;
+		lastModified = null;
+		if ( con != null ) readValidators( con );
+
+		return diff;
+	}
+
+	private void readValidators( URLConnection con ) {
+		String s = con.getHeaderField( "ETag" );
+		if ( s != null ) etag = s;
+
+		s = con.getHeaderField( "Last-Modified" );
+		if ( s != null ) lastModified = s;
+	}
+
+
+	/**
+	 * Reads the cache file.
+	 *
+	 * @return true if a catalog was loaded, false if there was no cache file or it wasn't recognized
+	 * @throws IOException if the cache file was unreadable
+	 */
+	public synchronized boolean load() throws IOException {
+		if ( !cacheFile.exists() ) return false;
+
+		BinaryCatalog binaryCatalog = null;
+		try {
+			binaryCatalog = BinaryCatalog.readFrom( cacheFile, memoryMapped );
+		}
+		catch ( IOException e ) {
+			throw new IOException( String.format( "Could not load catalog cache: %s", cacheFile.getAbsolutePath() ), e );
+		}
+		if ( binaryCatalog == null ) {
+			logger.debug( "Ignoring unrecognized catalog cache: {}", cacheFile.getAbsolutePath() );
+			return false;
+		}
+
+		long newFetchTime = 0;
+		try {
+			String fetchedString = binaryCatalog.getProperty( PROP_FETCHED );
+			if ( fetchedString != null ) newFetchTime = Long.parseLong( fetchedString );
+		}
+		catch ( NumberFormatException e ) {
+		}
+
+		catalog = Collections.unmodifiableList( binaryCatalog.getCatalog() );
+		fetchTime = newFetchTime;
+		etag = binaryCatalog.getProperty( PROP_ETAG );
+		lastModified = binaryCatalog.getProperty( PROP_LASTMODIFIED );
+		return true;
+	}
+
+	/**
+	 * Writes the cache file.
+	 * <p>
+	 * The file is written to a temporary file first, then renamed.
+	 */
+	public synchronized void store() throws IOException {
+		File parentDir = cacheFile.getAbsoluteFile().getParentFile();
+		if ( parentDir != null && !parentDir.exists() ) parentDir.mkdirs();
+
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		properties.put( PROP_FETCHED, Long.toString( fetchTime ) );
+		if ( etag != null ) properties.put( PROP_ETAG, etag );
+		if ( lastModified != null ) properties.put( PROP_LASTMODIFIED, lastModified );
+
+		File tmpFile = new File( cacheFile.getPath() +".tmp" );
+		OutputStream os = null;
+		try {
+			os = new BufferedOutputStream( new FileOutputStream( tmpFile ) );
+			new BinaryCatalog( catalog, properties ).writeTo( os );
+			os.close();
+			os = null;
+
+			if ( cacheFile.exists() && !cacheFile.delete() ) {
+				throw new IOException( String.format( "Could not replace existing catalog cache: %s", cacheFile.getAbsolutePath() ) );
+			}
+			if ( !tmpFile.renameTo( cacheFile ) ) {
+				throw new IOException( String.format( "Could not rename temporary catalog cache: %s", tmpFile.getAbsolutePath() ) );
+			}
+		}
+		finally {
+			try {if ( os != null ) os.close();} catch ( IOException e ) {}
+			if ( tmpFile.exists() ) tmpFile.delete();
+		}
+	}
+}
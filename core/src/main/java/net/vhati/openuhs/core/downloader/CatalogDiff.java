@@ -0,0 +1,154 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.vhati.openuhs.core.downloader.CatalogItem;
+
+
+/**
+ * The differences between two catalogs.
+ * <p>
+ * Entries are matched by name (FNAME). A matched entry has changed if
+ * any of its other catalog fields differ. State flags are ignored.
+ * <p>
+ * The merged catalog is in the new catalog's order, but reuses the old
+ * instances of unchanged entries, so their state flags carry over and
+ * only added or changed entries need to be compared to local files.
+ */
+public class CatalogDiff {
+	private final List<CatalogItem> added;
+	private final List<CatalogItem> changed;
+	private final List<CatalogItem> removed;
+	private final List<CatalogItem> merged;
+
+
+	private CatalogDiff( List<CatalogItem> added, List<CatalogItem> changed, List<CatalogItem> removed, List<CatalogItem> merged ) {
+		this.added = Collections.unmodifiableList( added );
+		this.changed = Collections.unmodifiableList( changed );
+		this.removed = Collections.unmodifiableList( removed );
+		this.merged = merged;
+	}
+
+
+	/**
+	 * Compares an old catalog to a new one.
+	 *
+	 * @param oldCatalog  the previous catalog (may be empty)
+	 * @param newCatalog  the latest catalog
+	 */
+	public static CatalogDiff compute( List<CatalogItem> oldCatalog, List<CatalogItem> newCatalog ) {
+		// Each old entry can only be matched once, in case names repeat.
+		Map<String, List<CatalogItem>> oldItemsByName = new HashMap<String, List<CatalogItem>>( oldCatalog.size() * 2 );
+		for ( CatalogItem oldItem : oldCatalog ) {
+			List<CatalogItem> sameNameItems = oldItemsByName.get( oldItem.getName() );
+			if ( sameNameItems == null ) {
+				sameNameItems = new ArrayList<CatalogItem>( 1 );
+				oldItemsByName.put( oldItem.getName(), sameNameItems );
+			}
+			sameNameItems.add( oldItem );
+		}
+
+		List<CatalogItem> added = new ArrayList<CatalogItem>();
+		List<CatalogItem> changed = new ArrayList<CatalogItem>();
+		List<CatalogItem> merged = new ArrayList<CatalogItem>( newCatalog.size() );
+
+		for ( CatalogItem newItem : newCatalog ) {
+			List<CatalogItem> sameNameItems = oldItemsByName.get( newItem.getName() );
+			if ( sameNameItems == null || sameNameItems.isEmpty() ) {
+				added.add( newItem );
+				merged.add( newItem );
+				continue;
+			}
+
+			CatalogItem oldItem = sameNameItems.remove( 0 );
+			if ( isSameEntry( oldItem, newItem ) ) {
+				merged.add( oldItem );
+			} else {
+				changed.add( newItem );
+				merged.add( newItem );
+			}
+		}
+
+		List<CatalogItem> removed = new ArrayList<CatalogItem>();
+		for ( CatalogItem oldItem : oldCatalog ) {
+			List<CatalogItem> sameNameItems = oldItemsByName.get( oldItem.getName() );
+			if ( sameNameItems.contains( oldItem ) ) removed.add( oldItem );  // Never matched.
+		}
+
+		return new CatalogDiff( added, changed, removed, merged );
+	}
+
+	/**
+	 * Returns true if two entries have the same catalog fields.
+	 */
+	public static boolean isSameEntry( CatalogItem a, CatalogItem b ) {
+		if ( !a.getName().equals( b.getName() ) ) return false;
+		if ( !a.getTitle().equals( b.getTitle() ) ) return false;
+		if ( !a.getUrl().equals( b.getUrl() ) ) return false;
+		if ( !a.getCompressedSize().equals( b.getCompressedSize() ) ) return false;
+		if ( !a.getFullSize().equals( b.getFullSize() ) ) return false;
+
+		Date aDate = a.getDate();
+		Date bDate = b.getDate();
+		return (( aDate == null ) ? bDate == null : aDate.equals( bDate ));
+	}
+
+
+	/**
+	 * Returns entries that weren't in the old catalog.
+	 */
+	public List<CatalogItem> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Returns new instances of entries whose fields differ.
+	 */
+	public List<CatalogItem> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Returns entries from the old catalog that are gone.
+	 */
+	public List<CatalogItem> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Returns the new catalog, reusing unchanged instances from the old one.
+	 * <p>
+	 * The list is mutable, and owned by the caller.
+	 */
+	public List<CatalogItem> getMerged() {
+		return merged;
+	}
+
+	/**
+	 * Returns added and changed entries: those that need colorizing.
+	 */
+	public List<CatalogItem> getAddedAndChanged() {
+		List<CatalogItem> result = new ArrayList<CatalogItem>( added.size() + changed.size() );
+		result.addAll( added );
+		result.addAll( changed );
+		return result;
+	}
+
+	/**
+	 * Returns true if the catalogs had the same entries.
+	 */
+	public boolean isEmpty() {
+		return ( added.isEmpty() && changed.isEmpty() && removed.isEmpty() );
+	}
+
+
+	@Override
+	public String toString() {
+		return String.format( "%d added, %d changed, %d removed", added.size(), changed.size(), removed.size() );
+	}
+}
@@ -0,0 +1,269 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import net.vhati.openuhs.core.downloader.CatalogItem;
+import net.vhati.openuhs.core.downloader.CatalogItemComparator;
+
+
+/**
+ * A read-only snapshot of a catalog, prepared for sorting and searching.
+ * <p>
+ * Sort keys are computed once: lowercased titles, and numeric dates and
+ * sizes. The first sort by each column computes a permutation of the
+ * catalog, which is kept, so later sorts by that column (in either
+ * direction) cost nothing.
+ * <p>
+ * Lowercased titles are also joined into one string, so a title search
+ * is a series of indexOf() calls over it, rather than a lowercase()
+ * per entry.
+ * <p>
+ * Entries' state flags aren't part of the snapshot, and may change.
+ *
+ * @see net.vhati.openuhs.core.downloader.CatalogItemComparator
+ */
+public class CatalogIndex {
+	public static final int SORT_TITLE = CatalogItemComparator.SORT_TITLE;
+	public static final int SORT_NAME = CatalogItemComparator.SORT_NAME;
+	public static final int SORT_DATE = CatalogItemComparator.SORT_DATE;
+	public static final int SORT_FULLSIZE = CatalogItemComparator.SORT_FULLSIZE;
+
+	private static final int SORT_COUNT = 4;
+
+	private final CatalogItem[] items;
+	private final String[] titleKeys;
+	private final long[] dateKeys;
+	private final long[] fullSizes;
+	private final long[] compressedSizes;
+
+	private final String titleText;  // Lowercased titles, each followed by a line break.
+	private final int[] titleOffsets;
+
+	private final int[][] orders = new int[SORT_COUNT][];
+
+
+	/**
+	 * Constructs an index of a catalog.
+	 *
+	 * @param catalog  entries, in catalog order (copied)
+	 */
+	public CatalogIndex( List<CatalogItem> catalog ) {
+		int n = catalog.size();
+		items = catalog.toArray( new CatalogItem[n] );
+		titleKeys = new String[n];
+		dateKeys = new long[n];
+		fullSizes = new long[n];
+		compressedSizes = new long[n];
+		titleOffsets = new int[n];
+
+		StringBuilder buf = new StringBuilder( n * 24 );
+		for ( int i=0; i < n; i++ ) {
+			CatalogItem catItem = items[i];
+
+			// Titles can't contain line breaks (see CatalogParser), but be sure.
+			titleKeys[i] = catItem.getTitle().toLowerCase( Locale.ENGLISH ).replace( '\n', ' ' );
+
+			Date date = catItem.getDate();
+			dateKeys[i] = (( date != null ) ? date.getTime() : Long.MIN_VALUE);
+
+			fullSizes[i] = parseSize( catItem.getFullSize() );
+			compressedSizes[i] = parseSize( catItem.getCompressedSize() );
+
+			titleOffsets[i] = buf.length();
+			buf.append( titleKeys[i] ).append( '\n' );
+		}
+		titleText = buf.toString();
+	}
+
+	/**
+	 * Constructs an empty index.
+	 */
+	public CatalogIndex() {
+		this( Collections.<CatalogItem>emptyList() );
+	}
+
+
+	public int size() {
+		return items.length;
+	}
+
+	/**
+	 * Returns an entry, by its position in catalog order.
+	 */
+	public CatalogItem get( int index ) {
+		return items[index];
+	}
+
+	/**
+	 * Returns all entries, in catalog order.
+	 *
+	 * @return a read-only list
+	 */
+	public List<CatalogItem> getCatalog() {
+		return Collections.unmodifiableList( Arrays.asList( items ) );
+	}
+
+	/**
+	 * Returns an entry's uncompressed size, parsed from the catalog.
+	 *
+	 * @return the size, or -1 if it wasn't a number
+	 */
+	public long getFullSize( int index ) {
+		return fullSizes[index];
+	}
+
+	/**
+	 * Returns an entry's compressed size, parsed from the catalog.
+	 *
+	 * @return the size, or -1 if it wasn't a number
+	 */
+	public long getCompressedSize( int index ) {
+		return compressedSizes[index];
+	}
+
+
+	/**
+	 * Returns catalog positions, in ascending order of a column.
+	 * <p>
+	 * Titles are compared without regard to case. Ties are broken by
+	 * title, then catalog order. Entries without a date, or without a
+	 * numeric size, come first.
+	 * <p>
+	 * The array is computed once per column, and shared. Don't modify it.
+	 *
+	 * @param sortBy  one of: SORT_TITLE, SORT_NAME, SORT_DATE, or SORT_FULLSIZE
+	 * @return a permutation of catalog positions
+	 */
+	public synchronized int[] getOrder( int sortBy ) {
+		if ( sortBy < 0 || sortBy >= SORT_COUNT ) {
+			throw new IllegalArgumentException( String.format( "Unknown sort column: %d", sortBy ) );
+		}
+		if ( orders[sortBy] == null ) orders[sortBy] = computeOrder( sortBy );
+
+		return orders[sortBy];
+	}
+
+	/**
+	 * Returns entries sorted by a column.
+	 *
+	 * @param sortBy  one of: SORT_TITLE, SORT_NAME, SORT_DATE, or SORT_FULLSIZE
+	 * @param reverse  true for descending order
+	 * @return a read-only view, backed by the shared permutation
+	 * @see #getOrder(int)
+	 */
+	public List<CatalogItem> getSorted( int sortBy, final boolean reverse ) {
+		final int[] order = getOrder( sortBy );
+
+		return new AbstractList<CatalogItem>() {
+			@Override
+			public CatalogItem get( int row ) {
+				return items[order[( reverse ? order.length-1 - row : row )]];
+			}
+
+			@Override
+			public int size() {
+				return order.length;
+			}
+		};
+	}
+
+	private int[] computeOrder( final int sortBy ) {
+		Integer[] boxed = new Integer[items.length];
+		for ( int i=0; i < boxed.length; i++ ) {
+			boxed[i] = i;
+		}
+
+		Arrays.sort( boxed, new Comparator<Integer>() {
+			@Override
+			public int compare( Integer boxedA, Integer boxedB ) {
+				int a = boxedA.intValue();
+				int b = boxedB.intValue();
+				int result = 0;
+
+				if ( sortBy == SORT_NAME ) {
+					result = items[a].getName().compareTo( items[b].getName() );
+				}
+				else if ( sortBy == SORT_DATE ) {
+					result = compareLongs( dateKeys[a], dateKeys[b] );
+				}
+				else if ( sortBy == SORT_FULLSIZE ) {
+					result = compareLongs( fullSizes[a], fullSizes[b] );
+				}
+				if ( result == 0 ) result = titleKeys[a].compareTo( titleKeys[b] );
+				if ( result == 0 ) result = items[a].getTitle().compareTo( items[b].getTitle() );
+				if ( result == 0 ) result = compareLongs( a, b );
+
+				return result;
+			}
+		});
+
+		int[] order = new int[boxed.length];
+		for ( int i=0; i < order.length; i++ ) {
+			order[i] = boxed[i].intValue();
+		}
+		return order;
+	}
+
+
+	/**
+	 * Returns the catalog positions of entries whose titles contain a substring.
+	 * <p>
+	 * Matching ignores case.
+	 *
+	 * @param s  a substring to find (an empty string matches everything)
+	 * @return a set of catalog positions
+	 */
+	public BitSet findTitles( String s ) {
+		BitSet result = new BitSet( items.length );
+		if ( s.length() == 0 ) {
+			result.set( 0, items.length );
+			return result;
+		}
+		if ( s.indexOf( '\n' ) != -1 ) return result;
+
+		String findString = s.toLowerCase( Locale.ENGLISH );
+		int pos = 0;
+		while ( (pos=titleText.indexOf( findString, pos )) != -1 ) {
+			int index = Arrays.binarySearch( titleOffsets, pos );
+			if ( index < 0 ) index = -index - 2;  // The title starting before pos.
+
+			result.set( index );
+
+			// Skip the rest of this title.
+			pos = (( index+1 < titleOffsets.length ) ? titleOffsets[index+1] : titleText.length());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if an entry's title contains a substring.
+	 *
+	 * @param index  a catalog position
+	 * @param lowerString  a substring, already lowercased
+	 */
+	public boolean titleContains( int index, String lowerString ) {
+		return titleKeys[index].contains( lowerString );
+	}
+
+
+	private static int compareLongs( long a, long b ) {
+		return (( a < b ) ? -1 : (( a == b ) ? 0 : 1));
+	}
+
+	private static long parseSize( String s ) {
+		if ( s.length() == 0 || s.length() > 18 ) return -1;
+
+		for ( int i=0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( c < '0' || c > '9' ) return -1;
+		}
+		return Long.parseLong( s );
+	}
+}
@@ -1,14 +1,14 @@
 package net.vhati.openuhs.core.downloader;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +57,10 @@ import net.vhati.openuhs.core.downloader.CatalogItem;
  * FDATE is usually just date. Except for "Mozilla", it's both date AND time (and +1 day!?).
  * <p>
  * So FDATE can be "dd-MMM-yy" or "dd-MMM-yy HH:mm:ss".
+ * <p>
+ * The catalog is tokenized in a single pass, so it can be parsed from a
+ * Reader while it downloads, with items handed to a listener as each
+ * FILE tag closes.
  *
  * @see net.vhati.openuhs.core.downloader.CatalogItem
  */
@@ -69,6 +73,23 @@ public class CatalogParser {
 	public static final String DEFAULT_USER_AGENT = "UHSWIN/5.2";
 
 
+	private static final String FILE_TAG = "FILE";
+	private static final String FILE_END_TAG = "/FILE";
+
+	private static final int FIELD_TITLE = 0;
+	private static final int FIELD_URL = 1;
+	private static final int FIELD_NAME = 2;
+	private static final int FIELD_DATE = 3;
+	private static final int FIELD_COMPRESSED_SIZE = 4;
+	private static final int FIELD_FULL_SIZE = 5;
+
+	private static final String[] FIELD_TAGS = new String[] {"FTITLE", "FURL", "FNAME", "FDATE", "FSIZE", "FFULLSIZE"};
+	private static final String[] FIELD_END_TAGS = new String[] {"/FTITLE", "/FURL", "/FNAME", "/FDATE", "/FSIZE", "/FFULLSIZE"};
+
+	// Anything longer between angle brackets is text.
+	private static final int MAX_TAG_LENGTH = 16;
+
+
 	private final Logger logger = LoggerFactory.getLogger( CatalogParser.class );
 
 	/*
@@ -83,70 +104,186 @@ public class CatalogParser {
 
 
 	/**
-	 *
 	 * Parses the catalog of available hint files.
 	 *
 	 * @param catalogString  the xml-like string downloaded from the server
 	 * @return a List of CatalogItem objects
+	 * @see #parseCatalog(Reader, CatalogParserListener)
 	 */
 	public List<CatalogItem> parseCatalog( String catalogString ) {
-		logger.debug( "Catalog parse started" );
-
-		List<CatalogItem> catalog = new ArrayList<CatalogItem>();
+		final List<CatalogItem> catalog = new ArrayList<CatalogItem>();
 
 		if (catalogString == null || catalogString.length() == 0) return catalog;
 
+		try {
+			parseCatalog( new StringReader( catalogString ), new CatalogParserListener() {
+				@Override
+				public void catalogItemParsed( CatalogItem catItem ) {
+					catalog.add( catItem );
+				}
+			});
+		}
+		catch ( IOException e ) {
+			logger.error( "Unexpected error reading catalog string", e );  // StringReader won't throw.
+		}
 
-		Pattern msgPtn = Pattern.compile( "<MESSAGE>(.*?)</MESSAGE>" );
+		return catalog;
+	}
 
-		Pattern fileChunkPtn = Pattern.compile( "(?s)<FILE>(.*?)</FILE>\\s*" );
-		Pattern titlePtn = Pattern.compile( "<FTITLE>(.*?)</FTITLE>" );
-		Pattern urlPtn = Pattern.compile( "<FURL>(.*?)</FURL>" );
-		Pattern namePtn = Pattern.compile( "<FNAME>(.*?)</FNAME>" );
-		Pattern datePtn = Pattern.compile( "<FDATE>(.*?)</FDATE>" );
-		Pattern compressedSizePtn = Pattern.compile( "<FSIZE>(.*?)</FSIZE>" );
-		Pattern fullSizePtn = Pattern.compile( "<FFULLSIZE>(.*?)</FFULLSIZE>" );
+	/**
+	 * Parses the catalog of available hint files, as it's read.
+	 * <p>
+	 * Text outside FILE tags (e.g., a MESSAGE) is skipped. Within a FILE,
+	 * the first complete occurrence of each field tag is used. A field
+	 * value that spans lines is ignored. A FILE left unclosed at the end
+	 * of the catalog is dropped.
+	 * <p>
+	 * The reader is not closed.
+	 *
+	 * @param r  a source of the xml-like text downloaded from the server
+	 * @param listener  a callback to receive each CatalogItem, in catalog order
+	 * @return the number of items parsed
+	 */
+	public int parseCatalog( Reader r, CatalogParserListener listener ) throws IOException {
+		logger.debug( "Catalog parse started" );
 
-		// Let chunk's find() skip the <MESSAGE> tag, if present.
-		// Could've done find(index) from the end of the message.
-		//   and used "\\G" (previous match) for strict back-to-back <FILE> parsing.
+		int itemCount = 0;
+		CatalogItem catItem = null;  // Non-null while inside a FILE.
+		int fieldsSet = 0;           // Bits for fields that have been set.
+		int field = -1;              // The field currently open, or -1.
 
-		Matcher fileChunkMatcher = fileChunkPtn.matcher( catalogString );
-		Matcher m = null;
-		while (fileChunkMatcher.find()) {
-			String fileChunk = fileChunkMatcher.group( 1 );
-			CatalogItem catItem = new CatalogItem();
+		boolean inTag = false;
+		StringBuilder tagBuf = new StringBuilder( MAX_TAG_LENGTH );
+		StringBuilder valueBuf = new StringBuilder();
 
-			m = titlePtn.matcher( fileChunk );
-			if ( m.find() ) catItem.setTitle( m.group( 1 ) );
+		char[] buf = new char[8192];
+		int count;
+		while ( (count=r.read( buf, 0, buf.length )) != -1 ) {
+			for ( int i=0; i < count; i++ ) {
+				char c = buf[i];
 
-			m = urlPtn.matcher( fileChunk );
-			if ( m.find() ) catItem.setUrl( m.group( 1 ) );
+				if ( inTag ) {
+					if ( c == '>' ) {
+						inTag = false;
+						String tag = tagBuf.toString();
 
-			m = namePtn.matcher( fileChunk );
-			if ( m.find() ) catItem.setName( m.group( 1 ) );
+						if ( catItem == null ) {
+							if ( FILE_TAG.equals( tag ) ) {
+								catItem = new CatalogItem();
+								fieldsSet = 0;
+							}
+						}
+						else if ( field != -1 ) {
+							if ( FIELD_END_TAGS[field].equals( tag ) ) {
+								String value = valueBuf.toString();
+								if ( (fieldsSet & (1 << field)) == 0 && !containsLineBreak( value ) ) {
+									setField( catItem, field, value );
+									fieldsSet |= (1 << field);
+								}
+								field = -1;
+							}
+							else if ( FILE_END_TAG.equals( tag ) ) {  // Unclosed field.
+								field = -1;
+								listener.catalogItemParsed( catItem );
+								itemCount++;
+								catItem = null;
+							}
+							else {
+								valueBuf.append( '<' ).append( tag ).append( '>' );
+							}
+						}
+						else if ( FILE_END_TAG.equals( tag ) ) {
+							listener.catalogItemParsed( catItem );
+							itemCount++;
+							catItem = null;
+						}
+						else {
+							for ( int f=0; f < FIELD_TAGS.length; f++ ) {
+								if ( FIELD_TAGS[f].equals( tag ) ) {
+									field = f;
+									valueBuf.setLength( 0 );
+									break;
+								}
+							}
+						}
+					}
+					else if ( c == '<' || tagBuf.length() >= MAX_TAG_LENGTH ) {
+						// Not a tag after all.
+						if ( field != -1 ) valueBuf.append( '<' ).append( tagBuf );
+						tagBuf.setLength( 0 );
 
-			m = datePtn.matcher( fileChunk );
-			if ( m.find() ) {
-				try {
-					catItem.setDate( goofyDateFormat.parse( m.group( 1 ) ) );
+						if ( c != '<' ) {
+							inTag = false;
+							if ( field != -1 ) valueBuf.append( c );
+						}
+					}
+					else {
+						tagBuf.append( c );
+					}
 				}
-				catch ( ParseException e ) {
-					logger.warn( "Unexpected catalog date format: '{}'", m.group( 1 ) );
+				else if ( c == '<' ) {
+					inTag = true;
+					tagBuf.setLength( 0 );
+				}
+				else if ( field != -1 ) {
+					valueBuf.append( c );
 				}
 			}
+		}
 
-			m = compressedSizePtn.matcher( fileChunk );
-			if ( m.find() ) catItem.setCompressedSize( m.group( 1 ) );
+		logger.debug( "Catalog parse finished (count: {})", itemCount );
+
+		return itemCount;
+	}
 
-			m = fullSizePtn.matcher( fileChunk );
-			if ( m.find() ) catItem.setFullSize( m.group(1) );
+	private void setField( CatalogItem catItem, int field, String value ) {
+		switch ( field ) {
+			case FIELD_TITLE:
+				catItem.setTitle( value );
+				break;
+			case FIELD_URL:
+				catItem.setUrl( value );
+				break;
+			case FIELD_NAME:
+				catItem.setName( value );
+				break;
+			case FIELD_DATE:
+				try {
+					catItem.setDate( goofyDateFormat.parse( value ) );
+				}
+				catch ( ParseException e ) {
+					logger.warn( "Unexpected catalog date format: '{}'", value );
+				}
+				break;
+			case FIELD_COMPRESSED_SIZE:
+				catItem.setCompressedSize( value );
+				break;
+			case FIELD_FULL_SIZE:
+				catItem.setFullSize( value );
+				break;
+		}
+	}
 
-			catalog.add( catItem );
+	/**
+	 * Returns true if a string contains a line terminator.
+	 * <p>
+	 * These are the chars a regex '.' won't match. Field values were
+	 * always expected to fit on one line.
+	 */
+	private static boolean containsLineBreak( String s ) {
+		for ( int i=0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' ) return true;
 		}
+		return false;
+	}
 
-		logger.debug( "Catalog parse finished (count: {})", catalog.size() );
 
-		return catalog;
+
+	/**
+	 * A callback to receive CatalogItems as they're parsed.
+	 */
+	public static interface CatalogParserListener {
+		public void catalogItemParsed( CatalogItem catItem );
 	}
 }
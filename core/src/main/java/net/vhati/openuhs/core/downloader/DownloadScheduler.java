@@ -0,0 +1,760 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.UHSChecksumVerifier;
+import net.vhati.openuhs.core.UHSParseException;
+import net.vhati.openuhs.core.UHSParser;
+import net.vhati.openuhs.core.UHSRootNode;
+import net.vhati.openuhs.core.UHSSnapshotCache;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+
+
+/**
+ * Downloads hint files from the catalog, several at a time, unzipping each.
+ * <p>
+ * Each CatalogItem's URL is expected to serve a zip archive with a
+ * lone UHS file inside, which is saved in the destination dir under
+ * the item's name.
+ * <p>
+ * At most a set number of connections are open at once. A download
+ * that fails with a network error or a server-side HTTP status (5xx,
+ * 408, 429) is retried after a delay that doubles with each attempt.
+ * Other HTTP errors fail immediately.
+ * <p>
+ * Optionally, the combined download rate can be capped. Connections
+ * share the allowance, each pausing between reads as needed.
+ * <p>
+ * The zip archive is saved as a partial file ("name.zip.part") in the
+ * destination dir. If a download is interrupted, the partial file is
+ * kept, and the next attempt (or a later scheduler) resumes it with a
+ * Range request, if the server supports that. Once complete, the UHS
+ * file is extracted beside it. Both the archive's CRC32 and the UHS
+ * file's own CRC16 are checked as the inflated bytes are written, and
+ * only if they check out is the file renamed over any existing file.
+ * A failed check discards the partial file and fails the download
+ * without retrying, since the server would likely send the same bytes.
+ * The exception is an archive that was resumed, which might mix two
+ * versions of the file, so that is retried from the start.
+ * <p>
+ * If a UHSSnapshotCache is set, each extracted file is also parsed
+ * before it's committed, so an unparseable download fails like a
+ * corrupt one. Binary content is left in the file, so the tree stays
+ * small. Once the file is committed, a snapshot is stored, so a reader
+ * opening it can skip parsing. The tree isn't kept afterward.
+ * <p>
+ * A DownloadListener is notified from the download threads, so UI
+ * callers will need to hand events over to their own thread.
+ * <p>
+ * This class is meant to be driven from a background task (e.g., a
+ * SwingWorker or AsyncTask), whose thread blocks in download().
+ */
+public class DownloadScheduler {
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final Pattern CONTENT_RANGE_PTN = Pattern.compile( "bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)" );
+
+	private final Logger logger = LoggerFactory.getLogger( DownloadScheduler.class );
+
+	private final File destDir;
+	private String userAgent = System.getProperty( "http.agent" );
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	private int connectTimeout = 15000;
+	private int readTimeout = 30000;
+	private long maxBytesPerSecond = 0;
+	private DownloadListener listener = null;
+	private UHSSnapshotCache snapshotCache = null;
+
+	private final Object throttleLock = new Object();
+	private long throttleNextNanos = 0;
+
+	private final CountDownLatch cancelLatch = new CountDownLatch( 1 );
+	private final Set<HttpURLConnection> openConnections = new HashSet<HttpURLConnection>();
+
+
+	public DownloadScheduler( File destDir ) {
+		this.destDir = destDir;
+	}
+
+
+	public void setUserAgent( String s ) {
+		this.userAgent = s;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * Sets the number of downloads to run at once.
+	 */
+	public void setMaxConnections( int n ) {
+		if ( n < 1 ) {
+			throw new IllegalArgumentException( String.format( "Connection limit (%d) must be at least 1", n ) );
+		}
+		maxConnections = n;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets how many times to try each download, including the first.
+	 */
+	public void setMaxAttempts( int n ) {
+		if ( n < 1 ) {
+			throw new IllegalArgumentException( String.format( "Attempt limit (%d) must be at least 1", n ) );
+		}
+		maxAttempts = n;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the delay before the first retry, in milliseconds.
+	 * <p>
+	 * Each later retry waits twice as long as the one before.
+	 */
+	public void setRetryDelay( long ms ) {
+		retryDelay = ms;
+	}
+
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	/**
+	 * Sets connect and read timeouts, in milliseconds.
+	 */
+	public void setTimeouts( int connectTimeout, int readTimeout ) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Caps the combined rate of all downloads.
+	 *
+	 * @param n  bytes per second, or 0 for no limit
+	 */
+	public void setMaxBytesPerSecond( long n ) {
+		if ( n < 0 ) {
+			throw new IllegalArgumentException( String.format( "Rate limit (%d) must not be negative", n ) );
+		}
+		maxBytesPerSecond = n;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	public void setListener( DownloadListener listener ) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets a cache to store snapshots of downloaded files in.
+	 * <p>
+	 * Downloads will also be parsed before they're committed.
+	 *
+	 * @param cache  a cache, or null to skip parsing
+	 */
+	public void setSnapshotCache( UHSSnapshotCache cache ) {
+		this.snapshotCache = cache;
+	}
+
+	public UHSSnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+
+
+	/**
+	 * Signals that downloads should end as soon as possible.
+	 * <p>
+	 * Open connections are closed, so downloads in progress stop even
+	 * if a read is blocked. Their partial files are kept, to be resumed
+	 * later. Queued downloads and pending retries are skipped.
+	 * <p>
+	 * This method is thread-safe.
+	 */
+	public void cancel() {
+		cancelLatch.countDown();
+
+		synchronized ( openConnections ) {
+			for ( HttpURLConnection con : openConnections ) {
+				con.disconnect();
+			}
+			openConnections.clear();
+		}
+	}
+
+	public boolean isCancelled() {
+		return ( cancelLatch.getCount() == 0 );
+	}
+
+
+	/**
+	 * Returns the file an item's zip archive is downloaded into.
+	 * <p>
+	 * It exists between attempts if a download was interrupted.
+	 */
+	public File getPartFile( CatalogItem catItem ) {
+		return new File( destDir, catItem.getName() +".zip.part" );
+	}
+
+
+	/**
+	 * Downloads catalog items, blocking until all have finished.
+	 * <p>
+	 * If the calling thread is interrupted, downloads are cancelled,
+	 * and the thread's interrupt status is set.
+	 *
+	 * @param catItems  items to download
+	 * @return a result for each item, in the same order
+	 */
+	public List<DownloadResult> download( List<CatalogItem> catItems ) {
+		List<DownloadResult> results = new ArrayList<DownloadResult>( catItems.size() );
+		for ( CatalogItem catItem : catItems ) {
+			results.add( new DownloadResult( catItem ) );
+		}
+		if ( results.isEmpty() ) return results;
+
+		ExecutorService pool = Executors.newFixedThreadPool( Math.min( maxConnections, results.size() ) );
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>( results.size() );
+			for ( final DownloadResult result : results ) {
+				futures.add( pool.submit( new Callable<Void>() {
+					@Override
+					public Void call() {
+						try {
+							downloadItem( result );
+						}
+						catch ( RuntimeException e ) {
+							// Likely thrown by the listener. Don't pass it off as a cancellation.
+							logger.error( "Unexpected error in download thread", e );
+							setStatus( result, DownloadResult.STATUS_ERROR, e );
+						}
+						return null;
+					}
+				}) );
+			}
+
+			for ( Future<?> future : futures ) {
+				try {
+					future.get();
+				}
+				catch ( ExecutionException e ) {
+					logger.error( "Unexpected error in download thread", e.getCause() );
+				}
+			}
+		}
+		catch ( InterruptedException e ) {
+			cancel();
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		for ( DownloadResult result : results ) {
+			synchronized ( result ) {
+				if ( result.status == DownloadResult.STATUS_DOWNLOADING ) {
+					result.status = DownloadResult.STATUS_CANCELLED;  // Never got a turn.
+				}
+			}
+		}
+		return results;
+	}
+
+
+	/**
+	 * Downloads a single item, retrying as needed.
+	 */
+	private void downloadItem( DownloadResult result ) {
+		CatalogItem catItem = result.catItem;
+
+		for ( int attempt=1; attempt <= maxAttempts; attempt++ ) {
+			if ( isCancelled() ) {
+				setStatus( result, DownloadResult.STATUS_CANCELLED, null );
+				break;
+			}
+			result.attempts = attempt;
+			if ( listener != null ) listener.downloadStarted( catItem, attempt );
+
+			try {
+				fetch( result );
+
+				if ( isCancelled() ) {
+					setStatus( result, DownloadResult.STATUS_CANCELLED, null );
+				} else {
+					setStatus( result, DownloadResult.STATUS_COMPLETED, null );
+				}
+				break;
+			}
+			catch ( IOException e ) {
+				if ( isCancelled() ) {  // Likely caused by cancel() closing the connection.
+					setStatus( result, DownloadResult.STATUS_CANCELLED, null );
+					break;
+				}
+
+				boolean retryable = true;
+				if ( e instanceof VerificationException ) {
+					retryable = false;
+				}
+				else if ( e instanceof HttpStatusException ) {
+					retryable = ((HttpStatusException)e).isRetryable();
+				}
+				if ( !retryable || attempt == maxAttempts ) {
+					setStatus( result, DownloadResult.STATUS_ERROR, e );
+					break;
+				}
+
+				long delay = retryDelay << (attempt - 1);
+				logger.warn( "Downloading \"{}\" failed (attempt {} of {}), retrying in {} ms: {}", catItem.getName(), attempt, maxAttempts, delay, e.toString() );
+				try {
+					cancelLatch.await( delay, TimeUnit.MILLISECONDS );  // Wakes early if cancelled.
+				}
+				catch ( InterruptedException f ) {
+					Thread.currentThread().interrupt();
+					setStatus( result, DownloadResult.STATUS_CANCELLED, null );
+					break;
+				}
+			}
+			catch ( RuntimeException e ) {
+				// A bug, not a network problem, so don't retry.
+				logger.error( "Unexpected error downloading \"{}\"", catItem.getName(), e );
+				setStatus( result, DownloadResult.STATUS_ERROR, e );
+				break;
+			}
+		}
+
+		if ( listener != null ) listener.downloadEnded( result );
+	}
+
+	/**
+	 * Makes one attempt at downloading an item.
+	 * <p>
+	 * If cancelled midway, this returns normally, leaving a partial file.
+	 */
+	private void fetch( DownloadResult result ) throws IOException {
+		CatalogItem catItem = result.catItem;
+		File partFile = getPartFile( catItem );
+		File tmpFile = new File( destDir, catItem.getName() +".tmp" );
+		File destFile = new File( destDir, catItem.getName() );
+
+		try {
+			boolean resumed = ( partFile.length() > 0 );
+			if ( !downloadArchive( result, partFile ) ) return;
+
+			UHSChecksumVerifier verifier = null;
+			try {
+				verifier = extractArchive( partFile, tmpFile );
+			}
+			catch ( IOException e ) {
+				partFile.delete();  // Truncated or corrupt, perhaps mixed versions when resumed.
+				String message = String.format( "Downloaded zip archive was unreadable: %s", e.getMessage() );
+				if ( resumed ) throw new IOException( message, e );
+				throw new VerificationException( message, e );
+			}
+			if ( verifier == null ) return;  // Cancelled.
+
+			if ( !verifier.isValid() ) {
+				partFile.delete();
+				throw new VerificationException( String.format( "Downloaded hint file failed its CRC16 check (%d vs %d)", verifier.getCalculatedChecksum(), verifier.getStoredChecksum() ) );
+			}
+
+			UHSRootNode rootNode = null;
+			if ( snapshotCache != null ) {
+				rootNode = parseDownload( tmpFile );
+				if ( rootNode == null ) {
+					partFile.delete();
+					throw new VerificationException( "Downloaded hint file could not be parsed" );
+				}
+			}
+
+			if ( destFile.exists() && !destFile.delete() ) {
+				throw new IOException( String.format( "Could not replace existing file: %s", destFile.getAbsolutePath() ) );
+			}
+			if ( !tmpFile.renameTo( destFile ) ) {
+				throw new IOException( String.format( "Could not rename downloaded file: %s", tmpFile.getAbsolutePath() ) );
+			}
+			partFile.delete();
+			result.file = destFile;
+
+			if ( rootNode != null ) {
+				storeSnapshot( destFile, rootNode, tmpFile );
+			}
+		}
+		finally {
+			if ( tmpFile.exists() ) tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Downloads an item's zip archive into a partial file, resuming what's there.
+	 * <p>
+	 * If the server ignores the Range request, the partial file is
+	 * overwritten. If it rejects the range, the partial file is deleted
+	 * and the whole archive requested.
+	 *
+	 * @return true if the archive is complete, false if cancelled
+	 */
+	private boolean downloadArchive( DownloadResult result, File partFile ) throws IOException {
+		CatalogItem catItem = result.catItem;
+		boolean resumable = true;
+
+		while ( true ) {
+			long offset = (( resumable && partFile.exists() ) ? partFile.length() : 0);
+
+			HttpURLConnection con = null;
+			InputStream downloadStream = null;
+			OutputStream os = null;
+			try {
+				con = (HttpURLConnection)(new URL( catItem.getUrl() ).openConnection());
+				con.setRequestProperty( "User-Agent", userAgent );
+				con.setConnectTimeout( connectTimeout );
+				con.setReadTimeout( readTimeout );
+				if ( offset > 0 ) con.setRequestProperty( "Range", "bytes="+ offset +"-" );
+
+				synchronized ( openConnections ) {
+					if ( isCancelled() ) return false;
+					openConnections.add( con );
+				}
+				con.connect();
+
+				int responseCode = con.getResponseCode();
+				long archiveLength = -1;
+
+				if ( offset > 0 && responseCode == 416 ) {  // Range Not Satisfiable.
+					logger.debug( "Server rejected resuming \"{}\" at {} bytes, starting over", catItem.getName(), offset );
+					resumable = false;
+					continue;
+				}
+				else if ( offset > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL ) {
+					Matcher m = CONTENT_RANGE_PTN.matcher( String.valueOf( con.getHeaderField( "Content-Range" ) ) );
+					if ( !m.find() || Long.parseLong( m.group( 1 ) ) != offset ) {
+						logger.debug( "Server sent an unexpected range for \"{}\", starting over", catItem.getName() );
+						resumable = false;
+						continue;
+					}
+					if ( !"*".equals( m.group( 3 ) ) ) archiveLength = Long.parseLong( m.group( 3 ) );
+
+					logger.info( "Resuming \"{}\" at {} bytes", catItem.getName(), offset );
+				}
+				else if ( responseCode == HttpURLConnection.HTTP_OK ) {
+					offset = 0;  // The server sent everything.
+					archiveLength = parseSize( con.getHeaderField( "Content-Length" ) );
+				}
+				else {
+					HttpStatusException e = new HttpStatusException( responseCode, con.getResponseMessage() );
+					if ( !e.isRetryable() ) partFile.delete();  // Not worth resuming.
+					throw e;
+				}
+
+				// Get the archive's length, if the server reported it.
+				// Fall back to the catalog's claim.
+				long progressLength = archiveLength;
+				if ( progressLength <= 0 ) progressLength = parseSize( catItem.getCompressedSize() );
+
+				downloadStream = con.getInputStream();
+				os = new FileOutputStream( partFile, ( offset > 0 ) );
+
+				byte[] data = new byte[BUFFER_SIZE];
+				long total = offset;
+				int count;
+				while ( (count=downloadStream.read( data )) != -1 ) {
+					if ( isCancelled() ) return false;
+
+					os.write( data, 0, count );
+					total += count;
+					result.bytesReceived += count;
+					if ( listener != null ) listener.downloadProgress( catItem, total, progressLength );
+
+					throttle( count );
+				}
+
+				if ( archiveLength > 0 && total != archiveLength ) {
+					// Keep what arrived; the next attempt resumes it.
+					throw new IOException( String.format( "Download ended early (%d of %d bytes)", total, archiveLength ) );
+				}
+				return true;
+			}
+			finally {
+				try {if ( downloadStream != null ) downloadStream.close();} catch ( IOException e ) {}
+				try {if ( os != null ) os.close();} catch ( IOException e ) {}
+				if ( con != null ) {
+					synchronized ( openConnections ) {
+						openConnections.remove( con );
+					}
+					con.disconnect();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until the rate limit allows more bytes, having just read some.
+	 * <p>
+	 * Each read reserves a slice of time, after any reserved by other
+	 * connections, in proportion to its size. Reads then wait for their
+	 * slices to pass.
+	 *
+	 * @param count  the number of bytes just read
+	 */
+	private void throttle( int count ) throws IOException {
+		if ( maxBytesPerSecond <= 0 ) return;
+
+		long delayNanos;
+		synchronized ( throttleLock ) {
+			long now = System.nanoTime();
+			long sliceStart = Math.max( now, throttleNextNanos );
+			throttleNextNanos = sliceStart + count * 1000000000L / maxBytesPerSecond;
+			delayNanos = throttleNextNanos - now;
+		}
+
+		try {
+			cancelLatch.await( delayNanos, TimeUnit.NANOSECONDS );  // Wakes early if cancelled.
+		}
+		catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Download was interrupted while throttled" );
+		}
+	}
+
+	/**
+	 * Extracts the lone UHS file from a downloaded zip archive.
+	 * <p>
+	 * ZipInputStream checks the entry's CRC32 as it reaches the end.
+	 * The inflated bytes are fed to a UHSChecksumVerifier as they're
+	 * written, so the file needn't be read back to check its CRC16.
+	 *
+	 * @return the verifier, having seen the whole file, or null if cancelled
+	 */
+	private UHSChecksumVerifier extractArchive( File zipFile, File uhsFile ) throws IOException {
+		UHSChecksumVerifier verifier = new UHSChecksumVerifier();
+		ZipInputStream unzipStream = null;
+		OutputStream os = null;
+		try {
+			unzipStream = new ZipInputStream( new BufferedInputStream( new FileInputStream( zipFile ), BUFFER_SIZE ) );
+
+			//No need for a while loop; only one file.
+			//  Each pass reads the zip stream /as if/ it were one entry.
+			//  Contrary to the doc, zip errors can occur if there is no next entry
+			ZipEntry ze = unzipStream.getNextEntry();
+			if ( ze == null ) {
+				throw new IOException( "Downloaded zip archive was empty" );
+			}
+
+			os = new FileOutputStream( uhsFile );
+
+			byte[] data = new byte[BUFFER_SIZE];
+			int count;
+			while ( (count=unzipStream.read( data )) != -1 ) {
+				if ( isCancelled() ) return null;
+
+				os.write( data, 0, count );
+				verifier.update( data, 0, count );
+			}
+			return verifier;
+		}
+		finally {
+			try {if ( unzipStream != null ) unzipStream.close();} catch ( IOException e ) {}
+			try {if ( os != null ) os.close();} catch ( IOException e ) {}
+		}
+	}
+
+	/**
+	 * Parses an extracted file that has yet to be committed.
+	 * <p>
+	 * Binary content is deferred, referencing the file without holding
+	 * it open, so it can still be renamed.
+	 *
+	 * @return the tree, or null if the file could not be parsed
+	 */
+	private UHSRootNode parseDownload( File uhsFile ) throws IOException {
+		UHSParser uhsParser = new UHSParser();
+		uhsParser.setBinaryDeferred( true );
+		try {
+			return uhsParser.parseFile( uhsFile );
+		}
+		catch ( UHSParseException e ) {
+			logger.warn( "Could not parse downloaded file: {}", uhsFile.getName(), e );
+			return null;
+		}
+		catch ( RuntimeException e ) {
+			logger.warn( "Could not parse downloaded file: {}", uhsFile.getName(), e );
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a snapshot of a committed file's tree.
+	 * <p>
+	 * Failure isn't fatal. The file will be parsed when opened instead.
+	 *
+	 * @param uhsFile  the committed file
+	 * @param rootNode  a tree whose binary content references parsedFile
+	 * @param parsedFile  the file that was parsed, before being renamed to uhsFile
+	 */
+	private void storeSnapshot( File uhsFile, UHSRootNode rootNode, File parsedFile ) {
+		try {
+			snapshotCache.store( uhsFile, rootNode, parsedFile );
+		}
+		catch ( IOException e ) {
+			logger.warn( "Could not store a snapshot of {}", uhsFile.getName(), e );
+		}
+		catch ( IllegalArgumentException e ) {
+			logger.warn( "Could not store a snapshot of {}", uhsFile.getName(), e );
+		}
+	}
+
+	private void setStatus( DownloadResult result, int status, Throwable errorCause ) {
+		synchronized ( result ) {
+			result.status = status;
+			result.errorCause = errorCause;
+		}
+	}
+
+	private static long parseSize( String s ) {
+		if ( s == null ) return -1;
+		try {
+			return Long.parseLong( s.trim() );
+		}
+		catch ( NumberFormatException e ) {
+			return -1;
+		}
+	}
+
+
+
+	/**
+	 * The outcome of downloading one CatalogItem.
+	 */
+	public static class DownloadResult {
+		public static final int STATUS_DOWNLOADING = 0;
+		public static final int STATUS_COMPLETED = 1;
+		public static final int STATUS_CANCELLED = 2;
+		public static final int STATUS_ERROR = 3;
+
+		public CatalogItem catItem;
+		public int status = STATUS_DOWNLOADING;
+		public Throwable errorCause = null;
+		public File file = null;
+		public int attempts = 0;
+		public long bytesReceived = 0;  // Downloaded by this scheduler, over all attempts.
+
+		public DownloadResult( CatalogItem catItem ) {
+			this.catItem = catItem;
+		}
+	}
+
+
+
+	/**
+	 * Callbacks for download events.
+	 * <p>
+	 * These are called from download threads, possibly several at once.
+	 */
+	public static interface DownloadListener {
+		/**
+		 * An attempt at downloading an item has begun.
+		 *
+		 * @param attempt  1 for the first attempt, more for retries
+		 */
+		public void downloadStarted( CatalogItem catItem, int attempt );
+
+		/**
+		 * Bytes of an item's zip archive have been downloaded.
+		 *
+		 * @param bytesDone  the number of bytes saved so far, including any resumed from an earlier attempt
+		 * @param bytesTotal  the expected size of the archive, or -1 if unknown
+		 */
+		public void downloadProgress( CatalogItem catItem, long bytesDone, long bytesTotal );
+
+		/**
+		 * An item has completed, failed for good, or been cancelled.
+		 */
+		public void downloadEnded( DownloadResult result );
+	}
+
+
+
+	/**
+	 * An unsuccessful HTTP response.
+	 */
+	public static class HttpStatusException extends IOException {
+		private final int responseCode;
+
+
+		public HttpStatusException( int responseCode, String responseMessage ) {
+			super( String.format( "Server returned HTTP %d %s", responseCode, responseMessage ) );
+			this.responseCode = responseCode;
+		}
+
+
+		public int getResponseCode() {
+			return responseCode;
+		}
+
+		/**
+		 * Returns true if the server might succeed later (timeouts, overload, server errors).
+		 */
+		public boolean isRetryable() {
+			return ( responseCode >= 500 || responseCode == 408 || responseCode == 429 );
+		}
+	}
+
+
+
+	/**
+	 * A downloaded file that failed a check, or couldn't be parsed.
+	 * <p>
+	 * Downloading it again would likely get the same bytes, so it isn't
+	 * retried.
+	 */
+	public static class VerificationException extends IOException {
+
+		public VerificationException( String message ) {
+			super( message );
+		}
+
+		public VerificationException( String message, Throwable cause ) {
+			super( message, cause );
+		}
+	}
+}
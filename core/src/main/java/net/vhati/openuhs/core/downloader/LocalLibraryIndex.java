@@ -0,0 +1,331 @@
+package net.vhati.openuhs.core.downloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.downloader.CatalogItem;
+
+
+/**
+ * An in-memory index of the files in a hints dir.
+ * <p>
+ * Comparing catalog entries to local files is then a map lookup, rather
+ * than a dir listing and a stat per entry.
+ * <p>
+ * The index is kept current by calling fileChanged() and fileRemoved()
+ * when files are written or deleted, typically from a platform's file
+ * watcher. Otherwise, refreshIfChanged() rescans only when the dir's own
+ * modification time suggests files were added, removed, or renamed.
+ * <p>
+ * Lookups don't lock. Updates replace the whole map, so readers always
+ * see a consistent snapshot.
+ * <p>
+ * Downloads in progress (*.part, *.tmp) aren't indexed.
+ */
+public class LocalLibraryIndex {
+
+	/**
+	 * How close to a scan the dir's modification time can be, and still
+	 * be ambiguous, on file systems with coarse timestamps.
+	 */
+	private static final long MODIFIED_GRANULARITY = 2000;
+
+	private final File hintsDir;
+
+	private volatile Map<String, LocalFile> fileMap = Collections.emptyMap();
+	private long scannedDirModified = 0;
+	private long scanTime = 0;
+
+
+	public LocalLibraryIndex( File hintsDir ) {
+		this.hintsDir = hintsDir;
+	}
+
+
+	public File getHintsDir() {
+		return hintsDir;
+	}
+
+
+	/**
+	 * Rescans the hints dir.
+	 * <p>
+	 * Entries for files that haven't changed are kept, along with anything
+	 * they've already read from their files.
+	 */
+	public synchronized void refresh() {
+		long newScanTime = System.currentTimeMillis();
+		long newDirModified = hintsDir.lastModified();
+
+		File[] files = hintsDir.listFiles();
+		if ( files == null ) files = new File[0];
+
+		Map<String, LocalFile> oldFileMap = fileMap;
+		Map<String, LocalFile> newFileMap = new HashMap<String, LocalFile>( files.length * 2 );
+
+		for ( File f : files ) {
+			if ( !f.isFile() || isIncomplete( f.getName() ) ) continue;
+
+			LocalFile localFile = new LocalFile( f );
+			LocalFile oldLocalFile = oldFileMap.get( localFile.getName() );
+			if ( oldLocalFile != null && oldLocalFile.isSameVersion( localFile ) ) {
+				localFile = oldLocalFile;
+			}
+			newFileMap.put( localFile.getName(), localFile );
+		}
+
+		fileMap = newFileMap;
+		scannedDirModified = newDirModified;
+		scanTime = newScanTime;
+	}
+
+	/**
+	 * Rescans the hints dir, if its modification time has changed.
+	 * <p>
+	 * That costs one stat. Files rewritten in place don't change their
+	 * dir's modification time. Report those with fileChanged().
+	 *
+	 * @return true if a scan was needed
+	 */
+	public synchronized boolean refreshIfChanged() {
+		long dirModified = hintsDir.lastModified();
+
+		boolean stale = ( scanTime == 0 || dirModified != scannedDirModified );
+		if ( !stale && scanTime - scannedDirModified < MODIFIED_GRANULARITY ) {
+			// The dir changed right around the last scan. Later changes might share its timestamp.
+			stale = true;
+		}
+		if ( stale ) refresh();
+
+		return stale;
+	}
+
+	/**
+	 * Updates the entry for a file that was created or written.
+	 * <p>
+	 * If the file is gone, its entry is removed.
+	 *
+	 * @param name  a file name within the hints dir
+	 */
+	public synchronized void fileChanged( String name ) {
+		if ( isIncomplete( name ) ) return;
+
+		File f = new File( hintsDir, name );
+		if ( !f.isFile() ) {
+			fileRemoved( name );
+			return;
+		}
+
+		Map<String, LocalFile> newFileMap = new HashMap<String, LocalFile>( fileMap );
+		newFileMap.put( name, new LocalFile( f ) );
+		fileMap = newFileMap;
+	}
+
+	/**
+	 * Removes the entry for a file that was deleted or renamed.
+	 *
+	 * @param name  a file name within the hints dir
+	 */
+	public synchronized void fileRemoved( String name ) {
+		if ( !fileMap.containsKey( name ) ) return;
+
+		Map<String, LocalFile> newFileMap = new HashMap<String, LocalFile>( fileMap );
+		newFileMap.remove( name );
+		fileMap = newFileMap;
+	}
+
+	/**
+	 * Returns true if a file name belongs to a download in progress.
+	 */
+	private static boolean isIncomplete( String name ) {
+		return ( name.endsWith( ".part" ) || name.endsWith( ".tmp" ) );
+	}
+
+
+	/**
+	 * Returns the entry for a local file.
+	 *
+	 * @param name  a file name within the hints dir
+	 * @return the entry, or null if there was no such file
+	 */
+	public LocalFile get( String name ) {
+		return fileMap.get( name );
+	}
+
+	public boolean contains( String name ) {
+		return fileMap.containsKey( name );
+	}
+
+	/**
+	 * Returns every indexed file.
+	 *
+	 * @return a read-only snapshot
+	 */
+	public Collection<LocalFile> getFiles() {
+		return Collections.unmodifiableCollection( fileMap.values() );
+	}
+
+	public int size() {
+		return fileMap.size();
+	}
+
+
+	/**
+	 * Updates state flags on a catalog entry, by comparing it to its local file.
+	 *
+	 * @see net.vhati.openuhs.core.downloader.CatalogItem#resetState()
+	 */
+	public void colorize( CatalogItem catItem ) {
+		catItem.resetState();
+
+		LocalFile localFile = fileMap.get( catItem.getName() );
+		if ( localFile == null ) return;
+
+		catItem.setLocal( true );
+		Date catDate = catItem.getDate();
+		if ( catDate != null && catDate.getTime() > localFile.getLastModified() ) {
+			catItem.setNewer( true );
+		}
+	}
+
+	/**
+	 * Updates state flags on several catalog entries.
+	 *
+	 * @see #colorize(CatalogItem)
+	 */
+	public void colorize( List<CatalogItem> catItems ) {
+		for ( CatalogItem catItem : catItems ) {
+			colorize( catItem );
+		}
+	}
+
+
+
+	/**
+	 * A file in the hints dir, as it was when indexed.
+	 * <p>
+	 * Details that require reading the file are read on first request,
+	 * and remembered until the file's length or modification time change.
+	 */
+	public static class LocalFile {
+		private final Logger logger = LoggerFactory.getLogger( LocalLibraryIndex.class );
+
+		private final File file;
+		private final long length;
+		private final long lastModified;
+
+		private boolean headerRead = false;
+		private int storedChecksum = -1;
+		private String title = null;
+
+
+		public LocalFile( File file ) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getName() {
+			return file.getName();
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns true if another entry describes the same version of the same file.
+		 */
+		public boolean isSameVersion( LocalFile other ) {
+			return ( getName().equals( other.getName() ) && length == other.length && lastModified == other.lastModified );
+		}
+
+		/**
+		 * Returns the CRC16 stored in the last two bytes of the file.
+		 * <p>
+		 * This identifies the file's content more reliably than its
+		 * modification time.
+		 *
+		 * @return an unsigned short, or -1 if unreadable
+		 */
+		public synchronized int getStoredChecksum() {
+			readHeader();
+			return storedChecksum;
+		}
+
+		/**
+		 * Returns the title from the 88a header at the top of the file.
+		 * <p>
+		 * In 9x files, the real title is within the tree, but it
+		 * matches this, barring typos.
+		 *
+		 * @return the title, or null if the file didn't look like a UHS file
+		 */
+		public synchronized String getTitle() {
+			readHeader();
+			return title;
+		}
+
+		private void readHeader() {
+			if ( headerRead ) return;
+			headerRead = true;
+
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile( file, "r" );
+				long len = raf.length();
+				if ( len >= 2 ) {
+					raf.seek( len-2 );
+					int leastByte = raf.read();
+					int mostByte = raf.read();
+					if ( leastByte != -1 && mostByte != -1 ) {
+						storedChecksum = ( mostByte << 8 | leastByte );
+					}
+				}
+			}
+			catch ( IOException e ) {
+				logger.debug( "Could not read checksum of {}", file.getName(), e );
+			}
+			finally {
+				try {if ( raf != null ) raf.close();} catch ( IOException e ) {}
+			}
+
+			BufferedReader r = null;
+			try {
+				r = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "US-ASCII" ) );
+				String signature = r.readLine();
+				if ( "UHS".equals( signature ) ) {
+					title = r.readLine();
+				}
+			}
+			catch ( IOException e ) {
+				logger.debug( "Could not read title of {}", file.getName(), e );
+			}
+			finally {
+				try {if ( r != null ) r.close();} catch ( IOException e ) {}
+			}
+		}
+	}
+}
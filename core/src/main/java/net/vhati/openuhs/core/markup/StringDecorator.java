@@ -3,6 +3,12 @@ package net.vhati.openuhs.core.markup;
 import net.vhati.openuhs.core.markup.DecoratedFragment;
 
 
+/**
+ * Splits raw node content into formatted fragments.
+ * <p>
+ * Decorators must not hold per-node state. Parsers share a single
+ * instance of each among all the nodes they create.
+ */
 public abstract class StringDecorator {
 	/** The sequence representing line breaks, as expected from the parser. */
 	public static final char[] linebreak = new char[] {'^','b','r','e','a','k','^'};
@@ -22,6 +22,8 @@ import javax.swing.event.AncestorListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.vhati.openuhs.core.UHSSnapshotCache;
+import net.vhati.openuhs.core.downloader.CatalogCache;
 import net.vhati.openuhs.core.downloader.CatalogItem;
 import net.vhati.openuhs.desktopreader.Nerfable;
 import net.vhati.openuhs.desktopreader.UHSReaderAboutPanel;
@@ -30,6 +32,7 @@ import net.vhati.openuhs.desktopreader.UHSReaderConfigPanel;
 import net.vhati.openuhs.desktopreader.downloader.CatalogTableModel;
 import net.vhati.openuhs.desktopreader.downloader.UHSDownloaderPanel;
 import net.vhati.openuhs.desktopreader.reader.AudioNodePanel;
+import net.vhati.openuhs.desktopreader.reader.BufferedImageCache;
 import net.vhati.openuhs.desktopreader.reader.DefaultNodePanel;
 import net.vhati.openuhs.desktopreader.reader.HotSpotNodePanel;
 import net.vhati.openuhs.desktopreader.reader.ImageNodePanel;
@@ -63,10 +66,18 @@ public class UHSReaderFrame extends JFrame implements Nerfable {
 
 		final JTabbedPane tabbedPane = new JTabbedPane();
 		readerPanel.setHintsDir( hintsDir );
+		setSnapshotCache( new UHSSnapshotCache( new File( appDataDir, "cache" ) ) );
+		// Decoded images are shared, so back/forward doesn't decode them again.
+		BufferedImageCache imageCache = new BufferedImageCache( Math.min( 64L*1024*1024, Runtime.getRuntime().maxMemory() / 8 ) );
+		ImageNodePanel imagePanel = new ImageNodePanel();
+		imagePanel.setImageCache( imageCache );
+		HotSpotNodePanel hotspotPanel = new HotSpotNodePanel();
+		hotspotPanel.setImageCache( imageCache );
+
 		readerPanel.registerNodePanel( new DefaultNodePanel() );
 		readerPanel.registerNodePanel( new AudioNodePanel() );
-		readerPanel.registerNodePanel( new ImageNodePanel() );
-		readerPanel.registerNodePanel( new HotSpotNodePanel() );
+		readerPanel.registerNodePanel( imagePanel );
+		readerPanel.registerNodePanel( hotspotPanel );
 		readerPanel.registerNodePanel( new RootNodePanel() );
 		tabbedPane.add( readerPanel, "Reader" );
 
@@ -223,12 +234,25 @@ public class UHSReaderFrame extends JFrame implements Nerfable {
 
 	public void setAppDataDir( File d ) {
 		appDataDir = d;
+		setSnapshotCache( new UHSSnapshotCache( new File( appDataDir, "cache" ) ) );
+		downloaderPanel.setCatalogCache( new CatalogCache( new File( appDataDir, "cached_catalog.bin" ) ) );
 	}
 
 	public File getAppDataDir() {
 		return appDataDir;
 	}
 
+	/**
+	 * Shares a snapshot cache between the reader and downloader.
+	 * <p>
+	 * New downloads are snapshotted as they're saved, so the reader can
+	 * open them without parsing.
+	 */
+	private void setSnapshotCache( UHSSnapshotCache cache ) {
+		readerPanel.setSnapshotCache( cache );
+		downloaderPanel.setSnapshotCache( cache );
+	}
+
 	public void setUserDataDir( File d ) {
 		userDataDir = d;
 		hintsDir = new File( userDataDir, "hints" );
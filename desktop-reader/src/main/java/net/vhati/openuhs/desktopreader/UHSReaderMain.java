@@ -1,15 +1,25 @@
 package net.vhati.openuhs.desktopreader;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.CodeSource;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.JFrame;
@@ -33,14 +43,25 @@ import ch.qos.logback.core.filter.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.vhati.openuhs.core.ByteReference;
 import net.vhati.openuhs.core.Proto4xUHSParser;
-import net.vhati.openuhs.core.UHSAudioNode;
-import net.vhati.openuhs.core.UHSImageNode;
+import net.vhati.openuhs.core.UHSExtractor;
+import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
+import net.vhati.openuhs.core.UHSParseException;
 import net.vhati.openuhs.core.UHSParser;
 import net.vhati.openuhs.core.UHSRootNode;
 import net.vhati.openuhs.core.UHSWriter;
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+import net.vhati.openuhs.core.downloader.CatalogParser;
+import net.vhati.openuhs.core.downloader.CatalogParser.CatalogParserListener;
+import net.vhati.openuhs.core.downloader.DownloadScheduler;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadListener;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadResult;
+import net.vhati.openuhs.core.downloader.LocalLibraryIndex;
 import net.vhati.openuhs.desktopreader.UHSReaderConfig;
 import net.vhati.openuhs.desktopreader.UHSReaderFrame;
 import net.vhati.openuhs.desktopreader.UHSXML;
@@ -75,6 +96,11 @@ public class UHSReaderMain {
 		OptionSpec<Void> optionSave9x = parser.accepts( "save-9x", "save as 9x format (in this dir)" );
 		OptionSpec<Void> optionPrint = parser.acceptsAll( Arrays.asList( "p", "print" ), "print the hint file's content as indented text" );
 		OptionSpec<File> optionScanDir = parser.accepts( "scan-dir", "scan all files in a dir for parse errors" ).withRequiredArg().describedAs( "dir" ).ofType( File.class );
+		OptionSpec<File> optionSyncDir = parser.accepts( "sync-dir", "download new and updated hint files from the catalog into a dir (implies --batch)" ).withRequiredArg().describedAs( "dir" ).ofType( File.class );
+		OptionSpec<String> optionCatalogUrl = parser.accepts( "catalog-url", "the catalog to sync from" ).withRequiredArg().describedAs( "url" ).defaultsTo( CatalogParser.DEFAULT_CATALOG_URL );
+		OptionSpec<Integer> optionSyncConnections = parser.accepts( "sync-connections", "number of files to download at once" ).withRequiredArg().describedAs( "n" ).ofType( Integer.class ).defaultsTo( DownloadScheduler.DEFAULT_MAX_CONNECTIONS );
+		OptionSpec<Integer> optionSyncRate = parser.accepts( "sync-rate", "cap the combined download rate" ).withRequiredArg().describedAs( "KB/s" ).ofType( Integer.class );
+		OptionSpec<Void> optionSyncVerify = parser.accepts( "sync-verify", "also replace local files that fail their CRC16 check" );
 		OptionSpec<File> optionEtc = parser.nonOptions().ofType( File.class );
 
 		File jarDir = getJarDir( UHSReaderMain.class );
@@ -155,43 +181,52 @@ public class UHSReaderMain {
 				File scanDir = options.valueOf( optionScanDir );
 
 				long scanStartNano = System.nanoTime();
+				ExecutorService validationPool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
 
 				for ( File f : scanDir.listFiles() ) {
 					try {
-						UHSRootNode tmpRootNode = null;
+						UHSRootNode tmpRootNode = scanFile( f, options.has( optionForce88a ), validationPool );
 
-						if ( f.getName().matches( "(?i).*[.]uhs$" ) ) {
-							logger.info( "Scanning \"{}\"", f.getName() );
-							UHSParser uhsParser = new UHSParser();
-
-							if ( options.has( optionForce88a ) ) {
-								uhsParser.setForce88a( true );
-							}
-							tmpRootNode = uhsParser.parseFile( f );
-						}
-						else if ( f.getName().matches( "(?i).*[.]puhs" ) ) {
-							logger.info( "Scanning \"{}\"", f.getName() );
-							Proto4xUHSParser protoParser = new Proto4xUHSParser();
-
-							tmpRootNode = protoParser.parseFile( f );
-						}
-
-						if ( tmpRootNode != null ) {
-							if ( options.has( optionSummary ) ) {
-								printSummary( f, tmpRootNode );
-							}
-							validateNode( tmpRootNode, tmpRootNode );
+						if ( tmpRootNode != null && options.has( optionSummary ) ) {
+							printSummary( f, tmpRootNode );
 						}
 					}
 					catch ( Exception e ) {
 						logger.error( "Parsing/validating \"{}\" failed", f.getName(), e );
 					}
 				}
+				validationPool.shutdown();
 
 				long scanDurationNano = System.nanoTime() - scanStartNano;
 				logger.info( "Dir scan completed ({} seconds)", String.format( "%.2f", ((double)scanDurationNano / 1000000000) ) );
 			}
 
+			// Bring a dir up to date with the catalog.
+			if ( options.has( optionSyncDir ) ) {
+				File syncDir = options.valueOf( optionSyncDir );
+				if ( !syncDir.isDirectory() ) {
+					logger.error( "Not a dir: {}", syncDir.getAbsolutePath() );
+					throw new ExitException();
+				}
+
+				DownloadScheduler scheduler = new DownloadScheduler( syncDir );
+				try {
+					scheduler.setMaxConnections( options.valueOf( optionSyncConnections ) );
+					if ( options.has( optionSyncRate ) ) {
+						scheduler.setMaxBytesPerSecond( options.valueOf( optionSyncRate ) * 1024L );
+					}
+				}
+				catch ( IllegalArgumentException e ) {
+					logger.error( e.getMessage() );
+					throw new ExitException();
+				}
+
+				CatalogCache catalogCache = new CatalogCache( new File( appDataDir, "cached_catalog.bin" ) );
+
+				boolean synced = syncLibrary( syncDir, options.valueOf( optionCatalogUrl ), catalogCache, scheduler, options.has( optionSyncVerify ), options.has( optionForce88a ) );
+				if ( !synced ) throw new ExitException();
+			}
+
 			if ( etcFile != null ) {
 				try {
 					if ( etcFile.getName().matches( "(?i).*[.]uhs$" ) ) {
@@ -243,13 +278,22 @@ public class UHSReaderMain {
 				}
 				if ( options.has( optionSaveBin ) ) {
 					String basename = etcFile.getName().replaceAll( "[.][^.]*$", "" );
+					ExecutorService extractionPool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
 					try {
-						extractNode( rootNode, new File( "./" ), basename +"_", 1 );
+						UHSExtractor extractor = createExtractor();
+						extractor.setExecutor( extractionPool );
+						extractor.extract( rootNode, new File( "./" ), basename +"_", 1 );
+
+						double elapsedSeconds = (double)extractor.getElapsedNanos() / 1000000000;
+						logger.info( "Extracted {} files, {} bytes ({} seconds, {} KB/s)", extractor.getFilesWritten(), extractor.getBytesWritten(), String.format( "%.2f", elapsedSeconds ), String.format( "%.1f", extractor.getBytesPerSecond() / 1024 ) );
 					}
 					catch ( IOException e ) {
 						logger.error( "Extracting binary content failed", e );
 						throw new ExitException();
 					}
+					finally {
+						extractionPool.shutdown();
+					}
 				}
 				if ( options.has( optionSave88a ) ) {
 					UHSWriter uhsWriter = new UHSWriter();
@@ -288,7 +332,8 @@ public class UHSReaderMain {
 			}
 			// Done with CLI.
 
-			if ( !options.has( optionBatch ) ) {
+			// Syncing is unattended, so it never opens the GUI.
+			if ( !options.has( optionBatch ) && !options.has( optionSyncDir ) ) {
 				// Fork log into a file.
 				LoggerContext lc = (LoggerContext)LoggerFactory.getILoggerFactory();
 
@@ -398,6 +443,264 @@ public class UHSReaderMain {
 	}
 
 
+	/**
+	 * Parses a hint file and scans it for log-worthy problems.
+	 * <p>
+	 * The parser is picked by file extension: "uhs" or "puhs".
+	 *
+	 * @param f  a file to scan
+	 * @param force88a  true to parse 9x files as if using an 88a reader
+	 * @param executor  an executor to validate subtrees in parallel, or null
+	 * @return the parsed tree, or null if the file wasn't a hint file
+	 * @see #validateNode(UHSRootNode, UHSNode, ExecutorService)
+	 */
+	public static UHSRootNode scanFile( File f, boolean force88a, ExecutorService executor ) throws IOException, UHSParseException {
+		UHSRootNode rootNode = null;
+
+		if ( f.getName().matches( "(?i).*[.]uhs$" ) ) {
+			logger.info( "Scanning \"{}\"", f.getName() );
+			UHSParser uhsParser = new UHSParser();
+			uhsParser.setForce88a( force88a );
+
+			rootNode = uhsParser.parseFile( f );
+		}
+		else if ( f.getName().matches( "(?i).*[.]puhs" ) ) {
+			logger.info( "Scanning \"{}\"", f.getName() );
+			Proto4xUHSParser protoParser = new Proto4xUHSParser();
+
+			rootNode = protoParser.parseFile( f );
+		}
+
+		if ( rootNode != null ) {
+			validateNode( rootNode, rootNode, executor );
+		}
+		return rootNode;
+	}
+
+
+	/**
+	 * Downloads new and updated hint files from the catalog into a dir.
+	 * <p>
+	 * A catalog entry is wanted if there's no local file by its name, or
+	 * if it's dated after the local file's modification time. Optionally,
+	 * local files that fail their CRC16 check are wanted as well.
+	 * <p>
+	 * Entries without a name or url are skipped, as are any after the
+	 * first with a given name.
+	 * <p>
+	 * Each downloaded file is then parsed and validated, and a summary
+	 * is printed, with throughput.
+	 *
+	 * @param syncDir  the dir to update
+	 * @param catalogUrl  the catalog's url
+	 * @param catalogCache  a cache to make a conditional request with, or null
+	 * @param scheduler  a scheduler saving into syncDir, with its limits set
+	 * @param verifyLocal  true to check the CRC16 of every local file
+	 * @param force88a  true to parse 9x files as if using an 88a reader
+	 * @return true if every wanted file was downloaded and parsed
+	 */
+	public static boolean syncLibrary( File syncDir, String catalogUrl, CatalogCache catalogCache, DownloadScheduler scheduler, boolean verifyLocal, boolean force88a ) {
+		long fetchStartNano = System.nanoTime();
+		List<CatalogItem> catalog = null;
+		try {
+			catalog = fetchCatalog( catalogUrl, catalogCache );
+		}
+		catch ( IOException e ) {
+			logger.error( "Fetching the catalog failed", e );
+			return false;
+		}
+		long fetchDurationNano = System.nanoTime() - fetchStartNano;
+
+		LocalLibraryIndex libraryIndex = new LocalLibraryIndex( syncDir );
+		libraryIndex.refresh();
+		libraryIndex.colorize( catalog );
+
+		List<CatalogItem> wantedItems = new ArrayList<CatalogItem>();
+		Set<String> seenNames = new HashSet<String>();
+		int newCount = 0;
+		int newerCount = 0;
+		int damagedCount = 0;
+		UHSParser checkParser = new UHSParser();
+
+		for ( CatalogItem catItem : catalog ) {
+			if ( catItem.getName().trim().length() == 0 || catItem.getUrl().trim().length() == 0 ) {
+				logger.warn( "Skipping a catalog entry with no name or url: \"{}\"", catItem.getTitle() );
+				continue;
+			}
+			// Entries sharing a name would overwrite each other.
+			if ( !seenNames.add( catItem.getName() ) ) {
+				logger.warn( "Skipping a duplicate catalog entry for \"{}\"", catItem.getName() );
+				continue;
+			}
+
+			if ( !catItem.isLocal() ) {
+				newCount++;
+				wantedItems.add( catItem );
+			}
+			else if ( catItem.isNewer() ) {
+				newerCount++;
+				wantedItems.add( catItem );
+			}
+			else if ( verifyLocal ) {
+				File localFile = libraryIndex.get( catItem.getName() ).getFile();
+				boolean intact = false;
+				try {
+					intact = checkParser.verifyChecksum( localFile );
+				}
+				catch ( IOException e ) {
+					logger.warn( "Could not check \"{}\"", localFile.getName(), e );
+				}
+				if ( !intact ) {
+					logger.info( "Local file \"{}\" failed its CRC16 check", localFile.getName() );
+					damagedCount++;
+					wantedItems.add( catItem );
+				}
+			}
+		}
+
+		scheduler.setUserAgent( CatalogParser.DEFAULT_USER_AGENT );
+		scheduler.setListener(new DownloadListener() {
+			@Override
+			public void downloadStarted( CatalogItem catItem, int attempt ) {
+				if ( attempt == 1 ) {
+					logger.info( "Downloading \"{}\"", catItem.getName() );
+				}
+			}
+
+			@Override
+			public void downloadProgress( CatalogItem catItem, long bytesDone, long bytesTotal ) {
+			}
+
+			@Override
+			public void downloadEnded( DownloadResult result ) {
+				if ( result.status == DownloadResult.STATUS_ERROR ) {
+					logger.error( "Downloading \"{}\" failed: {}", result.catItem.getName(), result.errorCause.toString() );
+				}
+			}
+		});
+
+		long downloadStartNano = System.nanoTime();
+		List<DownloadResult> results = scheduler.download( wantedItems );
+		long downloadDurationNano = System.nanoTime() - downloadStartNano;
+
+		int downloadedCount = 0;
+		int failedCount = 0;
+		int unparseableCount = 0;
+		long bytesReceived = 0;
+
+		ExecutorService validationPool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try {
+			for ( DownloadResult result : results ) {
+				bytesReceived += result.bytesReceived;
+
+				if ( result.status != DownloadResult.STATUS_COMPLETED ) {
+					failedCount++;
+					continue;
+				}
+				downloadedCount++;
+
+				try {
+					scanFile( result.file, force88a, validationPool );
+				}
+				catch ( Exception e ) {
+					logger.error( "Parsing/validating \"{}\" failed", result.file.getName(), e );
+					unparseableCount++;
+				}
+			}
+		}
+		finally {
+			validationPool.shutdown();
+		}
+
+		double fetchSeconds = (double)fetchDurationNano / 1000000000;
+		double downloadSeconds = (double)downloadDurationNano / 1000000000;
+		double kbPerSecond = (( downloadDurationNano > 0 ) ? bytesReceived / 1024.0 / downloadSeconds : 0);
+
+		System.out.println( String.format( "Catalog:\t%d entries (%.2f seconds)", catalog.size(), fetchSeconds ) );
+		System.out.println( String.format( "Local:\t%d files", libraryIndex.size() ) );
+		System.out.println( String.format( "Wanted:\t%d new, %d newer, %d damaged", newCount, newerCount, damagedCount ) );
+		System.out.println( String.format( "Downloaded:\t%d files, %d bytes (%.2f seconds, %.1f KB/s)", downloadedCount, bytesReceived, downloadSeconds, kbPerSecond ) );
+		System.out.println( String.format( "Failed:\t%d", failedCount ) );
+		System.out.println( String.format( "Unparseable:\t%d", unparseableCount ) );
+		System.out.println( "" );
+
+		return ( failedCount == 0 && unparseableCount == 0 );
+	}
+
+	/**
+	 * Downloads and parses the catalog, without a GUI.
+	 * <p>
+	 * If a cache is given, it's loaded, and the request is conditional.
+	 * The cache is updated afterward.
+	 *
+	 * @param urlString  the catalog's url
+	 * @param catalogCache  a cache, or null
+	 * @return the catalog
+	 */
+	public static List<CatalogItem> fetchCatalog( String urlString, CatalogCache catalogCache ) throws IOException {
+		if ( catalogCache != null ) {
+			try {
+				catalogCache.load();
+			}
+			catch ( IOException e ) {
+				logger.warn( "Could not load catalog cache", e );
+			}
+		}
+
+		HttpURLConnection con = null;
+		BufferedReader r = null;
+		try {
+			con = (HttpURLConnection)(new URL( urlString ).openConnection());
+			con.setRequestProperty( "User-Agent", CatalogParser.DEFAULT_USER_AGENT );
+			if ( catalogCache != null ) catalogCache.prepareRequest( con );
+			con.connect();
+
+			List<CatalogItem> catalog = null;
+
+			if ( catalogCache != null && catalogCache.isNotModified( con ) ) {
+				logger.info( "Catalog is unchanged since it was cached" );
+				catalogCache.touch( con );
+				catalog = catalogCache.getCatalog();
+			}
+			else {
+				if ( con.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+					throw new IOException( String.format( "Server returned HTTP %d %s", con.getResponseCode(), con.getResponseMessage() ) );
+				}
+
+				r = new BufferedReader( new InputStreamReader( con.getInputStream(), CatalogParser.DEFAULT_CATALOG_ENCODING ) );
+
+				final List<CatalogItem> newCatalog = new ArrayList<CatalogItem>();
+				CatalogParser catalogParser = new CatalogParser();
+				catalogParser.parseCatalog( r, new CatalogParserListener() {
+					@Override
+					public void catalogItemParsed( CatalogItem catItem ) {
+						newCatalog.add( catItem );
+					}
+				});
+				catalog = newCatalog;
+
+				if ( catalogCache != null ) {
+					catalog = catalogCache.update( newCatalog, con ).getMerged();
+				}
+			}
+
+			if ( catalogCache != null ) {
+				try {
+					catalogCache.store();
+				}
+				catch ( IOException e ) {
+					logger.warn( "Could not store catalog cache", e );
+				}
+			}
+			return catalog;
+		}
+		finally {
+			try {if ( r != null ) r.close();} catch ( IOException e ) {}
+			if ( con != null ) con.disconnect();
+		}
+	}
+
+
 	/**
 	 * Prints a description of a UHS file.
 	 */
@@ -454,7 +757,16 @@ public class UHSReaderMain {
 
 
 	/**
-	 * Recursively scans a node and its descendents for log-worthy problems.
+	 * Scans a node and its descendents for log-worthy problems.
+	 *
+	 * @see #validateNode(UHSRootNode, UHSNode, ExecutorService)
+	 */
+	public static void validateNode( UHSRootNode rootNode, UHSNode currentNode ) {
+		validateNode( rootNode, currentNode, null );
+	}
+
+	/**
+	 * Scans a node and its descendents for log-worthy problems.
 	 * <p>
 	 * This method doesn't return anything. It just calls methods not
 	 * encountered during basic parsing to give loggers a chance to complain.
@@ -462,91 +774,91 @@ public class UHSReaderMain {
 	 * <ul>
 	 * <li>String content decorators may complain about markup.</li>
 	 * <li>Nodes may have link target ids which have not been registered.</li>
+	 * <li>HotSpot nodes may have overlapping zones.</li>
 	 * </ul>
+	 *
+	 * @param rootNode  the root of the tree, to resolve links against
+	 * @param currentNode  a node to start validating from
+	 * @param executor  an executor to validate subtrees in parallel, or null
 	 */
-	public static void validateNode( UHSRootNode rootNode, UHSNode currentNode ) {
-		if ( currentNode.getStringContentDecorator() != null ) {
-			currentNode.getDecoratedStringFragments();
-		}
+	public static void validateNode( final UHSRootNode rootNode, UHSNode currentNode, ExecutorService executor ) {
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.setExecutor( executor );
+		walker.walk( currentNode, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				UHSNode node = path.getNode();
+				if ( node.getStringContentDecorator() != null ) {
+					node.getDecoratedStringFragments();
+				}
 
-		int linkTarget = currentNode.getLinkTarget();
-		if ( linkTarget != -1 ) {
-			if ( rootNode.getNodeByLinkId( linkTarget ) == null ) {
-				logger.warn( "Node has an unresolvable link target id: {}", linkTarget );
-			}
-		}
-		else {
-			if ( currentNode.getChildren() != null ) {
-				for ( UHSNode tmpNode : currentNode.getChildren() ) {
-					validateNode( rootNode, tmpNode );
+				if ( node instanceof UHSHotSpotNode ) {
+					for ( int[] pair : ((UHSHotSpotNode)node).getSpotIndex().getOverlappingZones() ) {
+						logger.warn( "HotSpot node (\"{}\") has overlapping zones: children {} and {}", node.getRawStringContent(), pair[0], pair[1] );
+					}
 				}
+
+				int linkTarget = node.getLinkTarget();
+				if ( linkTarget != -1 ) {
+					if ( rootNode.getNodeByLinkId( linkTarget ) == null ) {
+						logger.warn( "Node has an unresolvable link target id: {}", linkTarget );
+					}
+					return SKIP_CHILDREN;
+				}
+				return CONTINUE;
 			}
-		}
+		});
 	}
 
 
 	/**
-	 * Recursively extracts the binary content of a node and its children to files.
+	 * Extracts the binary content of a node and its descendents to files.
+	 *
+	 * @see #extractNode(UHSNode, File, String, int, ExecutorService)
+	 */
+	public static int extractNode( UHSNode currentNode, File destDir, String basename, int n ) throws IOException {
+		return extractNode( currentNode, destDir, basename, n, null );
+	}
+
+	/**
+	 * Extracts the binary content of a node and its descendents to files.
 	 * <p>
 	 * Extensions are guessed.
+	 * <p>
+	 * Files are numbered in tree order before any are written, so names
+	 * are the same whether or not an executor is used.
 	 *
 	 * @param currentNode  a node to start extracting from
 	 * @param destDir  the destination dir
 	 * @param basename  prefix for extracted files
 	 * @param n  a number for uniqueness, incrementing with each file
+	 * @param executor  an executor to write files in parallel, or null
 	 * @return a new value for n
-	 * @see net.vhati.openuhs.desktopreader.UHSUtil#getFileExtension(byte[])
+	 * @see #createExtractor()
 	 */
-	public static int extractNode( UHSNode currentNode, File destDir, String basename, int n ) throws IOException {
-		ByteReference contentRef = null;
-		if ( currentNode instanceof UHSImageNode ) {  // Includes UHSHotSpotNode subclass.
-			UHSImageNode imageNode = (UHSImageNode)currentNode;
-			contentRef = imageNode.getRawImageContent();
-		}
-		else if ( currentNode instanceof UHSAudioNode ) {
-			UHSAudioNode audioNode = (UHSAudioNode)currentNode;
-			contentRef = audioNode.getRawAudioContent();
-		}
-
-		if ( contentRef != null ) {
-			int id = currentNode.getId();
-			String idStr = (( id == -1 ) ? "" : "_"+id);
-
-			File destFile = null;
-			InputStream sigStream = null;;
-			InputStream contentStream = null;;
-			FileOutputStream fos = null;
-			try {
-				sigStream = contentRef.getInputStream();
-				String extension = UHSUtil.guessFileExtension( sigStream );
-				sigStream.close();
-
-				destFile = new File( destDir, (basename + n + idStr +"."+ extension) );
+	public static int extractNode( UHSNode currentNode, File destDir, String basename, int n, ExecutorService executor ) throws IOException {
+		UHSExtractor extractor = createExtractor();
+		extractor.setExecutor( executor );
+		return extractor.extract( currentNode, destDir, basename, n );
+	}
 
-				contentStream = contentRef.getInputStream();
-				fos = new FileOutputStream( destFile );
-				byte[] buf = new byte[512];
-				int count;
-				while ( (count=contentStream.read( buf )) != -1 ) {
-					fos.write( buf, 0, count );
-				}
-			}
-			catch ( IOException e ) {
-				throw new IOException( String.format( "Error extracting binary content of %s node (\"%s\") to a file: %s", currentNode.getType(), currentNode.getRawStringContent(), (( destFile != null ) ? destFile.getAbsolutePath() : null ), e ) );
-			}
-			finally {
-				try {if ( sigStream != null ) sigStream.close();} catch ( IOException e ) {}
-				try {if ( contentStream != null ) contentStream.close();} catch ( IOException e ) {}
-				try {if ( fos != null ) fos.close();} catch ( IOException e ) {}
+	/**
+	 * Returns an extractor that guesses extensions by file format signatures.
+	 *
+	 * @see net.vhati.openuhs.desktopreader.UHSUtil#guessFileExtension(ByteBuffer)
+	 */
+	public static UHSExtractor createExtractor() {
+		return new UHSExtractor() {
+			@Override
+			protected int getSignatureLength() {
+				return UHSUtil.getMaximumSignatureLength();
 			}
-			n++;
-		}
 
-		for (int i=0; i < currentNode.getChildCount(); i++) {
-			n = extractNode( currentNode.getChild( i ), destDir, basename, n );
-		}
-
-		return n;
+			@Override
+			protected String guessFileExtension( ByteBuffer buf ) throws IOException {
+				return UHSUtil.guessFileExtension( buf );
+			}
+		};
 	}
 
 	/**
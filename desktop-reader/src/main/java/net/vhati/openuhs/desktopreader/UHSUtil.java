@@ -2,6 +2,7 @@ package net.vhati.openuhs.desktopreader;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -74,6 +75,29 @@ public class UHSUtil {
 		return "bin";
 	}
 
+	/**
+	 * Returns the appropriate extension, bsaed on recognizing file format signatures.
+	 * <p>
+	 * Bytes are inspected from the buffer's current position, which
+	 * will not be changed.
+	 *
+	 * @param buf  a ByteBuffer to inspect
+	 * @return jpg, gif, png, wav, or bin (if unknown)
+	 * @see #guessFileExtension(InputStream)
+	 */
+	public static String guessFileExtension( ByteBuffer buf ) throws IOException {
+		if ( buf.remaining() < maxSigLength ) {
+			throw new IOException( "Could not completely read signature bytes" );
+		}
+
+		for ( FormatSignature sig : sigList ) {
+			if ( bufferContains( buf, buf.position(), sig.bytes ) ) {
+				return sig.extension;
+			}
+		}
+		return "bin";
+	}
+
 
 	/**
 	 * Returns true if an array's elements appear inside another array.
@@ -92,6 +116,23 @@ public class UHSUtil {
 		return true;
 	}
 
+	/**
+	 * Returns true if an array's elements appear inside a buffer.
+	 *
+	 * @param a  haystack
+	 * @param offset  absolute index in haystack for the comparison
+	 * @param b  needle
+	 * @return true if every byte of needle matches haystack, beginning at start
+	 */
+	private static boolean bufferContains( ByteBuffer a, int offset, byte[] b ) {
+		if ( a.limit() < offset + b.length ) return false;
+
+		for ( int i=0; i < b.length; i++ ) {
+			if ( a.get( offset+i ) != b[i] ) return false;
+		}
+		return true;
+	}
+
 
 	/**
 	 * The signatire of a known file format.
@@ -3,8 +3,8 @@ package net.vhati.openuhs.desktopreader;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import org.jdom2.Document;
 import org.jdom2.JDOMException;
@@ -23,6 +23,9 @@ import net.vhati.openuhs.core.UHSBatchNode;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
 
 
 public class UHSXML {
@@ -48,10 +51,11 @@ public class UHSXML {
 
 
 	/**
-	 * Recursively exports a node and its children to xml Elements.
+	 * Exports a node and its descendants to xml Elements.
 	 * <p>
 	 * Extensions are guessed.
 	 *
+	 * @param parentElement  an element to add the node's element to
 	 * @param currentNode  a node to start extracting from
 	 * @param basename  prefix for referenced binary files
 	 * @param n  a number for uniqueness, incrementing with each file
@@ -59,6 +63,23 @@ public class UHSXML {
 	 * @see net.vhati.openuhs.desktopreader.UHSUtil#guessFileExtension(InputStream)
 	 */
 	private static int exportNode( Element parentElement, UHSNode currentNode, String basename, int n ) throws IOException {
+		ExportVisitor visitor = new ExportVisitor( parentElement, basename, n );
+
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( currentNode, visitor );
+
+		if ( visitor.error != null ) throw visitor.error;
+		return visitor.n;
+	}
+
+	/**
+	 * Creates an element for a node, without its children.
+	 *
+	 * @param currentNode  the node to describe
+	 * @param basename  prefix for referenced binary files
+	 * @param n  a number for uniqueness, to use if the node has binary content
+	 */
+	private static Element createNodeElement( UHSNode currentNode, String basename, int n ) throws IOException {
 		Element currentElement = null;
 		if ( currentNode instanceof UHSHotSpotNode ) {
 			currentElement = new Element( "hotspot-node" );
@@ -103,104 +124,120 @@ public class UHSXML {
 				contentElement.setContent( new CDATA( contentString ) );
 				currentElement.addContent( contentElement );
 		}
-		if ( currentNode instanceof UHSAudioNode ) {
-			UHSAudioNode audioNode = (UHSAudioNode)currentNode;
-			String contentTypeString = "audio";
 
-			ByteReference audioRef = audioNode.getRawAudioContent();
+		ByteReference binRef = null;
+		String contentTypeString = null;
+		if ( currentNode instanceof UHSAudioNode ) {
+			binRef = ((UHSAudioNode)currentNode).getRawAudioContent();
+			contentTypeString = "audio";
+		}
+		else if ( currentNode instanceof UHSImageNode ) {
+			binRef = ((UHSImageNode)currentNode).getRawImageContent();
+			contentTypeString = "image";
+		}
+		if ( contentTypeString != null ) {
 			InputStream is = null;
 			String ext = null;
 			try {
-				is = audioRef.getInputStream();
+				is = binRef.getInputStream();
 				ext = UHSUtil.guessFileExtension( is );
 			}
 			catch ( IOException e ) {
-				throw new IOException( String.format( "Error loading binary content of %s node (\"%s\")", audioNode.getType(), audioNode.getRawStringContent() ), e );
+				throw new IOException( String.format( "Error loading binary content of %s node (\"%s\")", currentNode.getType(), currentNode.getRawStringContent() ), e );
 			}
 			finally {
 				try {if ( is != null ) is.close();} catch ( IOException e ) {}
 			}
 
 			String contentString = String.format( "%s%d%s.%s", basename, n, (( id == -1 ) ? "" : "_"+id), ext );
-			n++;
 
 			Element contentElement = new Element( "content" );
 				contentElement.setAttribute( "type", contentTypeString );
 				contentElement.setContent( new CDATA( contentString ) );
 				currentElement.addContent( contentElement );
 		}
-		if ( currentNode instanceof UHSImageNode ) {
-			UHSImageNode imageNode = (UHSImageNode)currentNode;
-			String contentTypeString = "image";
 
-			ByteReference imageRef = imageNode.getRawImageContent();
-			InputStream is = null;
-			String ext = null;
-			try {
-				is = imageRef.getInputStream();
-				ext = UHSUtil.guessFileExtension( is );
-			}
-			catch ( IOException e ) {
-				throw new IOException( String.format( "Error loading binary content of %s node (\"%s\")", imageNode.getType(), imageNode.getRawStringContent() ), e );
-			}
-			finally {
-				try {if ( is != null ) is.close();} catch ( IOException e ) {}
-			}
+		return currentElement;
+	}
 
-			String contentString = String.format( "%s%d%s.%s", basename, n, (( id == -1 ) ? "" : "_"+id), ext );
-			n++;
+	/**
+	 * Creates a wrapper element to hold a child node's element.
+	 * <p>
+	 * Hotspot and batch parents add attributes describing the child.
+	 */
+	private static Element createChildElement( UHSNode parentNode, UHSNode childNode ) {
+		Element childElement = null;
+		if ( parentNode instanceof UHSHotSpotNode ) {
+			HotSpot spot = ((UHSHotSpotNode)parentNode).getSpot( childNode );
+			childElement = new Element( "hotspot-child" );
+				childElement.setAttribute( "zx", spot.zoneX+"" );
+				childElement.setAttribute( "zy", spot.zoneY+"" );
+				childElement.setAttribute( "zw", spot.zoneW+"" );
+				childElement.setAttribute( "zh", spot.zoneH+"" );
+				childElement.setAttribute( "px", spot.x+"" );
+				childElement.setAttribute( "py", spot.y+"" );
+		}
+		else if ( parentNode instanceof UHSBatchNode ) {
+			childElement = new Element( "batch-child" );
+				childElement.setAttribute( "addon", Boolean.toString( ((UHSBatchNode)parentNode).isAddon( childNode ) ) );
+		}
+		else {
+			childElement = new Element( "child" );
+		}
+		return childElement;
+	}
 
-			Element contentElement = new Element( "content" );
-				contentElement.setAttribute( "type", contentTypeString );
-				contentElement.setContent( new CDATA( contentString ) );
-				currentElement.addContent( contentElement );
+
+
+	/**
+	 * Builds elements as nodes are walked, in tree order.
+	 * <p>
+	 * Each node's element is remembered by its path, so children can
+	 * find where they belong.
+	 */
+	private static class ExportVisitor implements UHSNodeVisitor {
+		private final Map<UHSNodePath, Element> elementMap = new IdentityHashMap<UHSNodePath, Element>();
+		private final Element topElement;
+		private final String basename;
+
+		public int n;
+		public IOException error = null;
+
+
+		public ExportVisitor( Element topElement, String basename, int n ) {
+			this.topElement = topElement;
+			this.basename = basename;
+			this.n = n;
 		}
 
-		// Children.
-		if ( currentNode instanceof UHSHotSpotNode ) {
-			UHSHotSpotNode hotspotNode = (UHSHotSpotNode)currentNode;
-
-			List<UHSNode> children = hotspotNode.getChildren();
-			if ( children != null ) {
-				for ( UHSNode tmpNode : children ) {
-					HotSpot spot = hotspotNode.getSpot( tmpNode );
-					Element childElement = new Element( "hotspot-child" );
-						childElement.setAttribute( "zx", spot.zoneX+"" );
-						childElement.setAttribute( "zy", spot.zoneY+"" );
-						childElement.setAttribute( "zw", spot.zoneW+"" );
-						childElement.setAttribute( "zh", spot.zoneH+"" );
-						childElement.setAttribute( "px", spot.x+"" );
-						childElement.setAttribute( "py", spot.y+"" );
-						currentElement.addContent( childElement );
-						n = exportNode( childElement, tmpNode, basename, n );
-				}
+
+		@Override
+		public int visitNode( UHSNodePath path ) {
+			UHSNode currentNode = path.getNode();
+
+			Element currentElement = null;
+			try {
+				currentElement = createNodeElement( currentNode, basename, n );
 			}
-		}
-		else if ( currentNode instanceof UHSBatchNode ) {
-			List<UHSNode> children = currentNode.getChildren();
-			if ( children != null ) {
-				int childCount = children.size();
-				for ( UHSNode tmpNode : children ) {
-					Element childElement = new Element( "batch-child" );
-						childElement.setAttribute( "addon", Boolean.toString( ((UHSBatchNode)currentNode).isAddon( tmpNode ) ) );
-						currentElement.addContent( childElement );
-						n = exportNode( childElement, tmpNode, basename, n );
-				}
+			catch ( IOException e ) {
+				error = e;
+				return TERMINATE;
 			}
-		}
-		else {
-			List<UHSNode> children = currentNode.getChildren();
-			if ( children != null ) {
-				int childCount = children.size();
-				for ( UHSNode tmpNode : children ) {
-					Element childElement = new Element( "child" );
-						currentElement.addContent( childElement );
-						n = exportNode( childElement, tmpNode, basename, n );
-				}
+			if ( currentNode instanceof UHSAudioNode || currentNode instanceof UHSImageNode ) n++;
+
+			UHSNodePath parentPath = path.getParentPath();
+			if ( parentPath == null ) {
+				topElement.addContent( currentElement );
+			} else {
+				Element childElement = createChildElement( parentPath.getNode(), currentNode );
+				childElement.addContent( currentElement );
+				elementMap.get( parentPath ).addContent( childElement );
 			}
-		}
 
-		parentElement.addContent( currentElement );
-		return n;
+			if ( currentNode.getChildCount() > 0 ) {
+				elementMap.put( path, currentElement );
+			}
+			return CONTINUE;
+		}
 	}
 }
@@ -0,0 +1,255 @@
+package net.vhati.openuhs.desktopreader.downloader;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.SwingWorker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogDiff;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+import net.vhati.openuhs.core.downloader.CatalogParser;
+import net.vhati.openuhs.core.downloader.CatalogParser.CatalogParserListener;
+import net.vhati.openuhs.desktopreader.downloader.FetchUnitException;
+
+
+/**
+ * A background task that downloads the catalog, parsing it as it arrives.
+ * <p>
+ * The catalog text is never held in memory whole. Items are passed to
+ * the event thread in batches, while the download continues. The
+ * result has the full list, since batches may trail the final state
+ * change.
+ * <p>
+ * If a CatalogCache is set, the request is conditional. When the server
+ * reports no changes, the cached catalog is the result. Otherwise the
+ * cache is updated, and the result includes a diff.
+ * <p>
+ * Progress can be monitored with a PropertyChangeListener.
+ * <p>
+ * Available properties:
+ * <ul>
+ * <li>state: One of the SwingWorker.StateValue constants.</li>
+ * <li>progress: Overall progress, from 0 to 100.</li>
+ * <li>PROP_ITEMS: a List of newly parsed CatalogItems (new value only).</li>
+ * </ul>
+ */
+public class CatalogFetchTask extends SwingWorker<CatalogFetchTask.CatalogFetchResult, CatalogItem> {
+
+	// First generic is the result, returned by doInBackground().
+	// Second generic is for returning intermediate results while running.
+
+	public static final String PROP_ITEMS = "items";
+
+	private final Logger logger = LoggerFactory.getLogger( CatalogFetchTask.class );
+
+	private volatile boolean aborting = false;
+	private String userAgent = System.getProperty( "http.agent" );
+	private String encoding = CatalogParser.DEFAULT_CATALOG_ENCODING;
+	private CatalogCache catalogCache = null;
+
+	private String urlString;
+
+
+	public CatalogFetchTask( String urlString ) {
+		this.urlString = urlString;
+	}
+
+
+	public void setUserAgent( String s ) {
+		this.userAgent = s;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	public void setEncoding( String s ) {
+		this.encoding = s;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Sets a cache to make conditional requests with, and to update.
+	 *
+	 * @param c  a cache, or null
+	 */
+	public void setCatalogCache( CatalogCache c ) {
+		this.catalogCache = c;
+	}
+
+	public CatalogCache getCatalogCache() {
+		return catalogCache;
+	}
+
+
+	/**
+	 * Signals that the task should end gracefully.
+	 * <p>
+	 * SwingWorker's cancel() will cause get() to throw a CancellationException.
+	 * Use this method instead.
+	 * <p>
+	 * This method is thread-safe.
+	 */
+	public void abortTask() {
+		aborting = true;
+	}
+
+
+	// This runs in a background thread, unlike the other methods here.
+	@Override
+	public CatalogFetchResult doInBackground() {
+		HttpURLConnection con = null;
+		InputStream downloadStream = null;
+		BufferedReader r = null;
+
+		CatalogFetchResult fetchResult = new CatalogFetchResult( urlString );
+		Exception ex = null;
+		long startTime = System.nanoTime();
+
+		try {
+			con = (HttpURLConnection)(new URL( urlString ).openConnection());
+			con.setRequestProperty( "User-Agent", userAgent );
+			if ( catalogCache != null ) catalogCache.prepareRequest( con );
+			con.connect();
+
+			if ( catalogCache != null && catalogCache.isNotModified( con ) ) {
+				catalogCache.touch( con );
+				storeCache();
+
+				fetchResult.notModified = true;
+				fetchResult.catalog = catalogCache.getCatalog();
+				fetchResult.status = CatalogFetchResult.STATUS_COMPLETED;
+				return fetchResult;
+			}
+
+			if ( con.getResponseCode() != HttpURLConnection.HTTP_OK ) {
+				throw new FetchUnitException( "Server returned HTTP "+ con.getResponseCode() +" "+ con.getResponseMessage() );
+			}
+
+			// Get the file's length, if the server reports it. (possibly -1).
+			final int contentLength = con.getContentLength();
+
+			// Count bytes for progress, and bail out of the parser if aborted.
+			downloadStream = new FilterInputStream( con.getInputStream() ) {
+				private long total = 0;
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return (( read( b, 0, 1 ) == -1 ) ? -1 : (b[0] & 0xFF));
+				}
+
+				@Override
+				public int read( byte[] b, int off, int len ) throws IOException {
+					if ( CatalogFetchTask.this.isCancelled() || aborting ) {
+						throw new InterruptedIOException( "Catalog fetch was cancelled" );
+					}
+					int count = super.read( b, off, len );
+					if ( count > 0 ) {
+						total += count;
+						if ( contentLength > 0 ) {
+							CatalogFetchTask.this.setProgress( (int)Math.min( 100, total * 100 / contentLength ) );
+						}
+					}
+					return count;
+				}
+			};
+			r = new BufferedReader( new InputStreamReader( downloadStream, encoding ) );
+
+			final List<CatalogItem> catalog = new ArrayList<CatalogItem>();
+			CatalogParser catalogParser = new CatalogParser();
+			catalogParser.parseCatalog( r, new CatalogParserListener() {
+				@Override
+				public void catalogItemParsed( CatalogItem catItem ) {
+					catalog.add( catItem );
+					publish( catItem );  // Coalesced into batches for process().
+				}
+			});
+			fetchResult.catalog = catalog;
+			logger.debug( "Downloading and parsing catalog ({} entries) took {} ms", catalog.size(), (System.nanoTime() - startTime) / 1000000 );
+
+			if ( catalogCache != null ) {
+				long cacheStartTime = System.nanoTime();
+				fetchResult.diff = catalogCache.update( catalog, con );
+				fetchResult.catalog = fetchResult.diff.getMerged();
+				storeCache();
+				logger.debug( "Updating catalog cache took {} ms", (System.nanoTime() - cacheStartTime) / 1000000 );
+			}
+
+			fetchResult.status = CatalogFetchResult.STATUS_COMPLETED;
+		}
+		catch ( InterruptedIOException e ) {
+			fetchResult.status = CatalogFetchResult.STATUS_CANCELLED;
+		}
+		catch ( IOException e ) {
+			ex = e;
+		}
+		catch ( FetchUnitException e ) {
+			ex = e;
+		}
+		finally {
+			try {if ( r != null ) r.close();} catch ( IOException e ) {}
+			try {if ( downloadStream != null ) downloadStream.close();} catch ( IOException e ) {}
+			if ( con != null ) con.disconnect();
+		}
+		if ( ex != null ) {
+			fetchResult.status = CatalogFetchResult.STATUS_ERROR;
+			fetchResult.errorCause = ex;
+		}
+
+		return fetchResult;
+	}
+
+	private void storeCache() {
+		try {
+			catalogCache.store();
+		}
+		catch ( IOException e ) {
+			logger.warn( "Could not store catalog cache", e );
+		}
+	}
+
+	@Override
+	protected void process( List<CatalogItem> chunks ) {
+		this.firePropertyChange( PROP_ITEMS, null, chunks );
+	}
+
+	@Override
+	protected void done() {
+		// Could trugger callbacks here, or let the listener react to a status change.
+	}
+
+
+
+	public static class CatalogFetchResult {
+		public static final int STATUS_DOWNLOADING = 0;
+		public static final int STATUS_COMPLETED = 1;
+		public static final int STATUS_CANCELLED = 2;
+		public static final int STATUS_ERROR = 3;
+
+		public String urlString;
+		public int status = STATUS_DOWNLOADING;
+		public Throwable errorCause = null;
+		public List<CatalogItem> catalog = null;
+		public boolean notModified = false;
+		public CatalogDiff diff = null;
+
+		public CatalogFetchResult( String urlString ) {
+			this.urlString = urlString;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package net.vhati.openuhs.desktopreader.downloader;
+
+import java.util.Date;
+import java.util.List;
+import javax.swing.SwingWorker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogIndex;
+import net.vhati.openuhs.core.downloader.CatalogItem;
+import net.vhati.openuhs.core.downloader.LocalLibraryIndex;
+
+
+/**
+ * A background task that readies a catalog for the table.
+ * <p>
+ * An index is built and sorted by the table's column, and entries'
+ * state flags are resolved against local files. The event thread then
+ * only has to swap the finished index into the table model.
+ * <p>
+ * If no catalog is given, the CatalogCache is loaded instead.
+ * <p>
+ * Each stage's duration is logged at the debug level.
+ *
+ * @see CatalogTableModel#setCatalog(CatalogIndex)
+ */
+public class CatalogPrepTask extends SwingWorker<CatalogIndex, Object> {
+
+	private final Logger logger = LoggerFactory.getLogger( CatalogPrepTask.class );
+
+	private List<CatalogItem> catalog;
+	private List<CatalogItem> staleItems = null;
+	private CatalogCache catalogCache = null;
+	private LocalLibraryIndex libraryIndex = null;
+	private int sortBy = CatalogIndex.SORT_TITLE;
+
+
+	/**
+	 * Constructs a task.
+	 *
+	 * @param catalog  entries to prepare, or null to load them from the CatalogCache
+	 */
+	public CatalogPrepTask( List<CatalogItem> catalog ) {
+		this.catalog = catalog;
+	}
+
+
+	/**
+	 * Sets which entries' state flags need updating.
+	 *
+	 * @param staleItems  some entries of the catalog, or null for all
+	 */
+	public void setStaleItems( List<CatalogItem> staleItems ) {
+		this.staleItems = staleItems;
+	}
+
+	public void setCatalogCache( CatalogCache c ) {
+		this.catalogCache = c;
+	}
+
+	/**
+	 * Sets the index to resolve state flags with, or null to skip that.
+	 */
+	public void setLibraryIndex( LocalLibraryIndex libraryIndex ) {
+		this.libraryIndex = libraryIndex;
+	}
+
+	/**
+	 * Sets the column to sort by in advance.
+	 *
+	 * @param sortBy  one of CatalogIndex's SORT constants
+	 */
+	public void setSortColumn( int sortBy ) {
+		this.sortBy = sortBy;
+	}
+
+
+	// This runs in a background thread, unlike the other methods here.
+	@Override
+	public CatalogIndex doInBackground() throws Exception {
+		long startTime = System.nanoTime();
+		long stageTime = startTime;
+
+		if ( catalog == null ) {
+			if ( catalogCache == null ) return new CatalogIndex();
+
+			// A fetch may have already filled the cache.
+			if ( catalogCache.getCatalog().isEmpty() && catalogCache.load() ) {
+				logger.info( "Loaded cached catalog (fetched {})", new Date( catalogCache.getFetchTime() ) );
+			}
+			catalog = catalogCache.getCatalog();
+			stageTime = logStage( "Loading cache", stageTime );
+		}
+
+		CatalogIndex catalogIndex = new CatalogIndex( catalog );
+		stageTime = logStage( "Indexing", stageTime );
+
+		catalogIndex.getOrder( sortBy );
+		stageTime = logStage( "Sorting", stageTime );
+
+		if ( libraryIndex != null ) {
+			libraryIndex.refreshIfChanged();
+			libraryIndex.colorize( (( staleItems != null ) ? staleItems : catalog) );
+			stageTime = logStage( "Resolving local state", stageTime );
+		}
+
+		logger.debug( "Prepared catalog ({} entries) in {} ms", catalogIndex.size(), (stageTime - startTime) / 1000000 );
+		return catalogIndex;
+	}
+
+	/**
+	 * Logs how long a stage took.
+	 *
+	 * @param stage  a description
+	 * @param stageStartTime  System.nanoTime() when the stage began
+	 * @return System.nanoTime() now
+	 */
+	private long logStage( String stage, long stageStartTime ) {
+		long now = System.nanoTime();
+		logger.debug( "{} took {} ms", stage, (now - stageStartTime) / 1000000 );
+		return now;
+	}
+
+	@Override
+	protected void done() {
+		// Could trugger callbacks here, or let the listener react to a status change.
+	}
+}
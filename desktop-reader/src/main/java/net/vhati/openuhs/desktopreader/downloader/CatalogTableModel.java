@@ -2,24 +2,40 @@ package net.vhati.openuhs.desktopreader.downloader;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import javax.swing.table.AbstractTableModel;
 
+import net.vhati.openuhs.core.downloader.CatalogIndex;
 import net.vhati.openuhs.core.downloader.CatalogItem;
-import net.vhati.openuhs.core.downloader.CatalogItemComparator;
 
 
+/**
+ * A table model for catalog entries.
+ * <p>
+ * Rows are a view over a CatalogIndex. Sorting swaps in the index's
+ * permutation for a column, and finding searches its title text, so
+ * neither touches the entries themselves.
+ * <p>
+ * Entries appended while streaming are shown in catalog order, and the
+ * index is rebuilt when next needed.
+ */
 public class CatalogTableModel extends AbstractTableModel {
-	private Comparator<CatalogItem> comparator = new CatalogItemComparator();
 	private DateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd" );
+	private int sortBy = CatalogIndex.SORT_TITLE;
+	private boolean sortReversed = false;
 
-	List<CatalogItem> dataVector = new Vector<CatalogItem>();
+	List<CatalogItem> dataVector = new ArrayList<CatalogItem>();
 	List<String> colVector = new Vector<String>();
 
+	private CatalogIndex catalogIndex = null;  // Null when stale.
+	private int[] rowOrder = null;  // Catalog positions from the index, or null for catalog order.
+
 
 	public CatalogTableModel( String[] columnNames ) {
 		for ( int i=0; i < columnNames.length; i++ ) {
@@ -48,22 +64,23 @@ public class CatalogTableModel extends AbstractTableModel {
 	public Object getValueAt( int row, int column ) {
 		if ( column < 0 || column >= colVector.size() || row < 0 || row >= dataVector.size() ) return null;
 
+		CatalogItem catItem = getUHS( row );
 		Object value = null;
 		if ( getColumnName( column ).equals( "Title" ) ) {
-			value = dataVector.get( row ).getTitle();
+			value = catItem.getTitle();
 		}
 		else if ( getColumnName( column ).equals( "Name" ) ) {
-			value = dataVector.get( row ).getName();
+			value = catItem.getName();
 		}
 		else if (getColumnName( column ).equals( "Date" ) ) {
-			Date uhsDate = dataVector.get( row ).getDate();
-			value = (( uhsDate != null ) ? dateFormat.format( dataVector.get( row ).getDate() ) : "");
+			Date uhsDate = catItem.getDate();
+			value = (( uhsDate != null ) ? dateFormat.format( uhsDate ) : "");
 		}
 		else if ( getColumnName( column ).equals( "Size" ) ) {
-			value = dataVector.get( row ).getCompressedSize();
+			value = catItem.getCompressedSize();
 		}
 		else if ( getColumnName( column ).equals( "FullSize" ) ) {
-			value = dataVector.get( row ).getFullSize();
+			value = catItem.getFullSize();
 		}
 		return value;
 	}
@@ -74,52 +91,152 @@ public class CatalogTableModel extends AbstractTableModel {
 	}
 
 
-	public void addUHS( CatalogItem catItem ) {
-		dataVector.add( catItem );
+	/**
+	 * Replaces all rows with a prepared catalog, sorted by the current column.
+	 */
+	public void setCatalog( CatalogIndex newIndex ) {
+		dataVector = new ArrayList<CatalogItem>( newIndex.getCatalog() );
+		catalogIndex = newIndex;
+		rowOrder = catalogIndex.getOrder( sortBy );
 		this.fireTableDataChanged();
 	}
 
+	/**
+	 * Returns a copy of the current entries, in catalog order.
+	 */
+	public List<CatalogItem> getCatalog() {
+		return new ArrayList<CatalogItem>( dataVector );
+	}
+
+	/**
+	 * Returns an index of the current rows, building it if necessary.
+	 * <p>
+	 * Positions in the index are row positions in catalog order.
+	 */
+	public CatalogIndex getCatalogIndex() {
+		if ( catalogIndex == null ) catalogIndex = new CatalogIndex( dataVector );
+		return catalogIndex;
+	}
+
+
+	public void addUHS( CatalogItem catItem ) {
+		addUHSs( new CatalogItem[] {catItem} );
+	}
+
 	public void addUHSs( CatalogItem[] catItems ) {
+		if ( catItems.length == 0 ) return;
+
+		int firstRow = dataVector.size();
 		for ( int i=0; i < catItems.length; i++ ) {
 			dataVector.add( catItems[i] );
 		}
-		this.fireTableDataChanged();
+		catalogIndex = null;
+
+		if ( rowOrder != null ) {
+			sort();  // Keep the sorted view.
+		} else {
+			this.fireTableRowsInserted( firstRow, dataVector.size()-1 );
+		}
 	}
 
 
 	public void removeUHSs( int[] indeces ) {
-		Vector<Integer> indexVector = new Vector<Integer>();
+		Map<CatalogItem, Boolean> doomedItems = new IdentityHashMap<CatalogItem, Boolean>();
 		for ( int i=0; i < indeces.length; i++ ) {
-			indexVector.add( new Integer( indeces[i] ) );
+			CatalogItem catItem = getUHS( indeces[i] );
+			if ( catItem != null ) doomedItems.put( catItem, Boolean.TRUE );
 		}
-		Collections.sort( indexVector );
 
-		for ( int i=indexVector.size()-1; i >= 0; i-- ) {
-			dataVector.remove( indexVector.get( i ).intValue() );
+		List<CatalogItem> newDataVector = new ArrayList<CatalogItem>( dataVector.size() );
+		for ( CatalogItem catItem : dataVector ) {
+			if ( !doomedItems.containsKey( catItem ) ) newDataVector.add( catItem );
+		}
+		dataVector = newDataVector;
+		catalogIndex = null;
+
+		if ( rowOrder != null ) {
+			sort();
+		} else {
+			this.fireTableDataChanged();
 		}
-		this.fireTableDataChanged();
 	}
 
 
 	public CatalogItem getUHS( int row ) {
 		if ( row < 0 || row >= dataVector.size() ) return null;
-		return dataVector.get( row );
+		return dataVector.get( getCatalogPosition( row ) );
+	}
+
+	/**
+	 * Returns the position in catalog order of the entry at a row.
+	 */
+	private int getCatalogPosition( int row ) {
+		if ( rowOrder == null ) return row;
+
+		return rowOrder[( sortReversed ? rowOrder.length-1 - row : row )];
+	}
+
+
+	/**
+	 * Returns the first row, at or after a given one, whose title contains a substring.
+	 * <p>
+	 * The search wraps around, and ignores case.
+	 *
+	 * @param s  a substring to find
+	 * @param fromRow  the row to start at
+	 * @return a row, or -1
+	 */
+	public int findTitle( String s, int fromRow ) {
+		int rowCount = getRowCount();
+		if ( rowCount == 0 ) return -1;
+		if ( fromRow < 0 || fromRow >= rowCount ) fromRow = 0;
+
+		BitSet matches = getCatalogIndex().findTitles( s );
+		if ( matches.isEmpty() ) return -1;
+
+		for ( int i=0; i < rowCount; i++ ) {
+			int row = (fromRow + i) % rowCount;
+			if ( matches.get( getCatalogPosition( row ) ) ) return row;
+		}
+		return -1;
 	}
 
 
 	public void clear() {
-		dataVector.clear();
+		dataVector = new ArrayList<CatalogItem>();
+		catalogIndex = null;
+		rowOrder = null;
 		this.fireTableDataChanged();
 	}
 
 
+	/**
+	 * Sorts rows by the current column.
+	 */
 	public void sort() {
-		Collections.sort( dataVector, comparator );
+		rowOrder = getCatalogIndex().getOrder( sortBy );
 		this.fireTableDataChanged();
 	}
 
-	public void sort( Comparator<CatalogItem> c ) {
-		comparator = c;
+	/**
+	 * Sorts rows by a column.
+	 * <p>
+	 * After the first sort by a column, sorting by it again is free.
+	 *
+	 * @param sortBy  one of CatalogIndex's SORT constants
+	 * @param reverse  true for descending order
+	 */
+	public void sort( int sortBy, boolean reverse ) {
+		this.sortBy = sortBy;
+		this.sortReversed = reverse;
 		sort();
 	}
+
+	public int getSortColumn() {
+		return sortBy;
+	}
+
+	public boolean isSortReversed() {
+		return sortReversed;
+	}
 }
@@ -18,10 +18,6 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -48,15 +44,18 @@ import javax.swing.event.ListSelectionListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.vhati.openuhs.core.UHSSnapshotCache;
+import net.vhati.openuhs.core.downloader.CatalogCache;
+import net.vhati.openuhs.core.downloader.CatalogIndex;
 import net.vhati.openuhs.core.downloader.CatalogItem;
-import net.vhati.openuhs.core.downloader.CatalogItemComparator;
 import net.vhati.openuhs.core.downloader.CatalogParser;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadResult;
+import net.vhati.openuhs.core.downloader.LocalLibraryIndex;
 import net.vhati.openuhs.desktopreader.Nerfable;
+import net.vhati.openuhs.desktopreader.downloader.CatalogFetchTask;
+import net.vhati.openuhs.desktopreader.downloader.CatalogFetchTask.CatalogFetchResult;
 import net.vhati.openuhs.desktopreader.downloader.CatalogTableCellRenderer;
 import net.vhati.openuhs.desktopreader.downloader.CatalogTableModel;
-import net.vhati.openuhs.desktopreader.downloader.StringFetchTask;
-import net.vhati.openuhs.desktopreader.downloader.StringFetchTask.StringFetchResult;
-import net.vhati.openuhs.desktopreader.downloader.UHSFetchTask.UHSFetchResult;
 import net.vhati.openuhs.desktopreader.reader.UHSReaderPanel;
 
 
@@ -77,8 +76,12 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 	private MouseListener readerClickListener = null;
 
 	private File hintsDir = new File( "./" );
+	private LocalLibraryIndex libraryIndex = new LocalLibraryIndex( hintsDir );
 
-	private StringFetchTask catalogFetchTask = null;
+	private CatalogCache catalogCache = null;
+	private UHSSnapshotCache snapshotCache = null;
+	private CatalogFetchTask catalogFetchTask = null;
+	private CatalogPrepTask catalogPrepTask = null;
 	private UHSFetchTask uhsFetchTask = null;
 
 
@@ -178,24 +181,22 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 				int index = catalogTable.getColumnModel().getColumnIndexAtX( e.getX() );
 				int col = catalogTable.convertColumnIndexToModel( index );
 
-				int sortBy = CatalogItemComparator.SORT_TITLE;
+				int sortBy = CatalogIndex.SORT_TITLE;
 				boolean reverse = false;
 				if ( "Title".equals( catalogTableModel.getColumnName( col ) ) ) {
-					sortBy = CatalogItemComparator.SORT_TITLE;
+					sortBy = CatalogIndex.SORT_TITLE;
 				}
 				else if ( "Date".equals( catalogTableModel.getColumnName( col ) ) ) {
-					sortBy = CatalogItemComparator.SORT_DATE;
+					sortBy = CatalogIndex.SORT_DATE;
 					reverse = true;
 				}
 				else if ( "FullSize".equals( catalogTableModel.getColumnName( col ) ) ) {
-					sortBy = CatalogItemComparator.SORT_FULLSIZE;
+					sortBy = CatalogIndex.SORT_FULLSIZE;
 				}
 				else if ( "Name".equals( catalogTableModel.getColumnName( col ) ) ) {
-					sortBy = CatalogItemComparator.SORT_NAME;
+					sortBy = CatalogIndex.SORT_NAME;
 				}
-				Comparator<CatalogItem> c = new CatalogItemComparator( sortBy );
-				if ( reverse ) c = Collections.reverseOrder( c );
-				catalogTableModel.sort( c );
+				catalogTableModel.sort( sortBy, reverse );
 			}
 		});
 
@@ -238,6 +239,7 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 	 */
 	public void setHintsDir( File d ) {
 		hintsDir = d;
+		libraryIndex = new LocalLibraryIndex( hintsDir );
 	}
 
 	/**
@@ -247,6 +249,49 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 		return hintsDir;
 	}
 
+	/**
+	 * Returns the index of files in the hints dir.
+	 * <p>
+	 * Anything that writes or deletes hint files behind this panel's back
+	 * should report it to the index.
+	 */
+	public LocalLibraryIndex getLibraryIndex() {
+		return libraryIndex;
+	}
+
+	/**
+	 * Sets a cache to remember the catalog between sessions, and loads it.
+	 * <p>
+	 * Refreshing will then only download the catalog if it has changed.
+	 *
+	 * @param c  a cache, or null
+	 */
+	public void setCatalogCache( CatalogCache c ) {
+		catalogCache = c;
+		if ( catalogCache == null ) return;
+
+		setCatalog( null, null );  // Load it in the background.
+	}
+
+	public CatalogCache getCatalogCache() {
+		return catalogCache;
+	}
+
+	/**
+	 * Sets a cache to store snapshots of downloaded hint files in.
+	 * <p>
+	 * Pass the reader's cache, so it can open new downloads without parsing.
+	 *
+	 * @param cache  a cache, or null
+	 */
+	public void setSnapshotCache( UHSSnapshotCache cache ) {
+		snapshotCache = cache;
+	}
+
+	public UHSSnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+
 
 	private void cancelFetching() {
 		if ( catalogFetchTask != null && !catalogFetchTask.isDone() ) {
@@ -268,14 +313,13 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 		List<CatalogItem> wantedItems = new ArrayList<CatalogItem>(rows.length);
 		List<CatalogItem> existingItems = new ArrayList<CatalogItem>(rows.length);
 
-		String[] hintNames = hintsDir.list();
-		Arrays.sort( hintNames );
+		libraryIndex.refreshIfChanged();
 
 		for ( int i=0; i < rows.length; i++ ) {
 			CatalogItem catItem = catalogTableModel.getUHS( rows[i] );
 			if ( catItem.getName().length() == 0 ) continue;
 
-			if ( Arrays.binarySearch( hintNames, catItem.getName() ) >= 0 ) {
+			if ( libraryIndex.contains( catItem.getName() ) ) {
 				existingItems.add( catItem );
 			}
 			wantedItems.add( catItem );
@@ -294,6 +338,7 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 				for ( CatalogItem catItem : existingItems ) {
 					File uhsFile = new File( hintsDir, catItem.getName() );
 					uhsFile.delete();
+					libraryIndex.fileRemoved( catItem.getName() );
 				}
 				existingItems.clear();
 			}
@@ -314,6 +359,7 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 
 		uhsFetchTask = new UHSFetchTask( hintsDir, catItems.toArray( new CatalogItem[catItems.size()] ) );
 		uhsFetchTask.setUserAgent( CatalogParser.DEFAULT_USER_AGENT );
+		uhsFetchTask.setSnapshotCache( snapshotCache );
 
 		final boolean single = ( catItems.size() == 1 );
 		uhsFetchTask.addPropertyChangeListener(new PropertyChangeListener() {
@@ -356,12 +402,14 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 					}
 					else if ( SwingWorker.StateValue.DONE.equals( e.getNewValue() ) ) {
 						try {
-							List<UHSFetchResult> fetchResults = uhsFetchTask.get();  // get() blocks!
+							List<DownloadResult> fetchResults = uhsFetchTask.get();  // get() blocks!
 
-							for ( UHSFetchResult fetchResult : fetchResults ) {
-								if ( fetchResult.status != UHSFetchResult.STATUS_COMPLETED ) {
+							for ( DownloadResult fetchResult : fetchResults ) {
+								libraryIndex.fileChanged( fetchResult.catItem.getName() );
 
-									if ( fetchResult.status != UHSFetchResult.STATUS_CANCELLED ) {
+								if ( fetchResult.status != DownloadResult.STATUS_COMPLETED ) {
+
+									if ( fetchResult.status != DownloadResult.STATUS_CANCELLED ) {
 										Throwable t = fetchResult.errorCause;
 										logger.error( "Downloading \"{}\" failed: {}", fetchResult.catItem.getName(), (( t != null ) ? t : "Unknown error") );
 									}
@@ -388,21 +436,41 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 
 	private void fetchCatalog() {
 		cancelFetching();
+		catalogPrepTask = null;  // Ignore any pending catalog when it finishes.
 
-		catalogFetchTask = new StringFetchTask( CatalogParser.DEFAULT_CATALOG_URL );
+		catalogFetchTask = new CatalogFetchTask( CatalogParser.DEFAULT_CATALOG_URL );
 		catalogFetchTask.setUserAgent( CatalogParser.DEFAULT_USER_AGENT );
 		catalogFetchTask.setEncoding( CatalogParser.DEFAULT_CATALOG_ENCODING );
+		catalogFetchTask.setCatalogCache( catalogCache );
+
+		// Only show rows as they arrive if there's nothing to show already.
+		final boolean streamable = ( catalogTableModel.getRowCount() == 0 );
 
 		catalogFetchTask.addPropertyChangeListener(new PropertyChangeListener() {
 			private ProgressMonitor progressDlg = null;
+			private boolean streaming = false;
+			private boolean finished = false;
 
 			@Override
+			@SuppressWarnings("unchecked")
 			public void propertyChange( PropertyChangeEvent e ) {
-				if ( "progress".equals( e.getPropertyName() ) ) {
+				if ( CatalogFetchTask.PROP_ITEMS.equals( e.getPropertyName() ) ) {
+					if ( finished || !streamable ) return;  // The result has everything.
+
+					// Replace the old catalog once the new one starts arriving.
+					if ( !streaming ) {
+						streaming = true;
+						catalogTableModel.clear();
+					}
+					List<CatalogItem> chunks = (List<CatalogItem>)e.getNewValue();
+					catalogTableModel.addUHSs( chunks.toArray( new CatalogItem[chunks.size()] ) );
+				}
+				else if ( "progress".equals( e.getPropertyName() ) ) {
 					int progress = ((Integer)e.getNewValue()).intValue();
 
 					progressDlg.setProgress( progress );
 					progressDlg.setNote( String.format( "Catalog %d%%", progress ) );
+					if ( progressDlg.isCanceled() ) catalogFetchTask.abortTask();
 				}
 				else if ( "state".equals( e.getPropertyName() ) ) {
 					if ( SwingWorker.StateValue.STARTED.equals( e.getNewValue() ) ) {
@@ -414,29 +482,42 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 						if ( progressDlg.isCanceled() ) catalogFetchTask.abortTask();
 					}
 					else if ( SwingWorker.StateValue.DONE.equals( e.getNewValue() ) ) {
+						finished = true;
 						try {
-							StringFetchResult fetchResult = catalogFetchTask.get();  // get() blocks!
+							CatalogFetchResult fetchResult = catalogFetchTask.get();  // get() blocks!
 
-							if ( fetchResult.status == StringFetchResult.STATUS_COMPLETED ) {
+							if ( fetchResult.status == CatalogFetchResult.STATUS_COMPLETED ) {
 
-								CatalogParser catalogParser = new CatalogParser();
-								List<CatalogItem> catalog = catalogParser.parseCatalog( fetchResult.content );
-								if ( catalog.size() > 0 ) {
-									catalogTableModel.clear();
+								List<CatalogItem> catalog = fetchResult.catalog;
+								if ( fetchResult.notModified ) {
+									logger.info( "Catalog has not changed since the last fetch" );
+									// The cache's own load may have been superseded before it could fill the table.
+									if ( streaming || catalogTableModel.getRowCount() == 0 ) setCatalog( catalog, null );
+								}
+								else if ( catalog.size() > 0 ) {
+									if ( fetchResult.diff != null ) {
+										logger.info( "Catalog fetched: {}", fetchResult.diff );
+									}
 
-									for ( CatalogItem catItem : catalog ) {
-										catalogTableModel.addUHS( catItem );
+									if ( fetchResult.diff != null && !streaming ) {
+										// Unchanged rows kept their instances, and their colors.
+										setCatalog( catalog, fetchResult.diff.getAddedAndChanged() );
+									}
+									else {
+										setCatalog( catalog, null );
 									}
-									catalogTableModel.sort();
-									colorizeTable();
 								}
 								else {
 									// TODO: ...
 								}
 							}
 							else {
-								if ( fetchResult.status != StringFetchResult.STATUS_CANCELLED ) {
-									// TODO: ...
+								if ( fetchResult.status != CatalogFetchResult.STATUS_CANCELLED ) {
+									Throwable t = fetchResult.errorCause;
+									logger.error( "Could not fetch catalog: {}", (( t != null ) ? t : "Unknown error") );
+								}
+								if ( streaming ) {  // Keep the partial catalog.
+									setCatalog( catalogTableModel.getCatalog(), null );
 								}
 							}
 						}
@@ -458,57 +539,82 @@ public class UHSDownloaderPanel extends JPanel implements ActionListener {
 	}
 
 
-	private void colorizeTable() {
-		catalogTable.clearSelection();
+	/**
+	 * Prepares a catalog in the background, then swaps it into the table.
+	 * <p>
+	 * Indexing, sorting, and comparing entries to local files all happen
+	 * off the event thread.
+	 *
+	 * @param catalog  the new catalog, or null to load the CatalogCache
+	 * @param staleItems  entries whose state flags need updating, or null for all
+	 * @see CatalogPrepTask
+	 */
+	private void setCatalog( List<CatalogItem> catalog, List<CatalogItem> staleItems ) {
+		final CatalogPrepTask prepTask = new CatalogPrepTask( catalog );
+		prepTask.setStaleItems( staleItems );
+		prepTask.setCatalogCache( catalogCache );
+		prepTask.setLibraryIndex( libraryIndex );
+		prepTask.setSortColumn( catalogTableModel.getSortColumn() );
+
+		prepTask.addPropertyChangeListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange( PropertyChangeEvent e ) {
+				if ( !"state".equals( e.getPropertyName() ) ) return;
+				if ( !SwingWorker.StateValue.DONE.equals( e.getNewValue() ) ) return;
+				if ( prepTask != catalogPrepTask ) return;  // Superseded.
+
+				catalogPrepTask = null;
+				try {
+					CatalogIndex newIndex = prepTask.get();  // get() blocks!
+
+					long swapStartTime = System.nanoTime();
+					catalogTable.clearSelection();
+					catalogTableModel.setCatalog( newIndex );
+					catalogTable.repaint();
+					logger.debug( "Swapping catalog into table took {} ms", (System.nanoTime() - swapStartTime) / 1000000 );
+				}
+				catch ( Exception ex ) {
+					// InterruptedException, while get() was blocking.
+					// java.util.concurrent.ExecutionException, if SwingWorker threw something.
 
-		String[] hintNames = hintsDir.list();
-		Arrays.sort( hintNames );
+					logger.error( "Could not prepare catalog", ex );
+				}
+			}
+		});
 
-		for ( int i=0; i < catalogTableModel.getRowCount(); i++ ) {
-			CatalogItem catItem = catalogTableModel.getUHS( i );
-			catItem.resetState();
+		catalogPrepTask = prepTask;
+		prepTask.execute();
+	}
 
-			if ( Arrays.binarySearch( hintNames, catItem.getName()) >= 0 ) {
-				catItem.setLocal( true );
-				File uhsFile = new File( hintsDir, catItem.getName() );
-				Date localDate = new Date( uhsFile.lastModified() );
+	private void colorizeTable() {
+		catalogTable.clearSelection();
 
-				if ( catItem.getDate() != null && catItem.getDate().after( localDate ) ) {
-					catItem.setNewer( true );
-				}
-			}
+		List<CatalogItem> catItems = new ArrayList<CatalogItem>( catalogTableModel.getRowCount() );
+		for ( int i=0; i < catalogTableModel.getRowCount(); i++ ) {
+			catItems.add( catalogTableModel.getUHS( i ) );
 		}
+		colorizeItems( catItems );
+	}
+
+	/**
+	 * Updates state flags on catalog entries, by comparing them to local files.
+	 * <p>
+	 * The hints dir is only rescanned if files were added or removed since
+	 * the last time.
+	 */
+	private void colorizeItems( List<CatalogItem> catItems ) {
+		libraryIndex.refreshIfChanged();
+		libraryIndex.colorize( catItems );
 		catalogTable.repaint();
 	}
 
 
 	private void find( String s ) {
 		if ( s.length() == 0 ) return;
-		String findString = s.toLowerCase();
 
-		Rectangle viewRect = catalogTableScroll.getViewport().getViewRect();
 		int selRow = catalogTable.getSelectedRow();
-		int rowCount = catalogTableModel.getRowCount();
-		int foundRow = -1;
-
-		if ( selRow >= 0 ) {
-			for ( int i=selRow+1; i < rowCount; i++ ) {
-				CatalogItem catItem = catalogTableModel.getUHS( i );
-				if ( catItem.getTitle().toLowerCase().indexOf( findString ) != -1 ) {
-					foundRow = i;
-					break;
-				}
-			}
-		}
-		if ( foundRow == -1 ) {
-			for ( int i=0; i < (selRow >= 0 ? selRow : rowCount); i++ ) {
-				CatalogItem catItem = catalogTableModel.getUHS( i );
-				if ( catItem.getTitle().toLowerCase().indexOf( findString ) != -1 ) {
-					foundRow = i;
-					break;
-				}
-			}
-		}
+		int foundRow = catalogTableModel.findTitle( s, selRow+1 );
+
 		if ( foundRow != -1 ) {
 			catalogTable.scrollRectToVisible( new Rectangle( catalogTable.getCellRect( foundRow, 0, true ) ) );
 			catalogTable.setRowSelectionInterval( foundRow, foundRow );
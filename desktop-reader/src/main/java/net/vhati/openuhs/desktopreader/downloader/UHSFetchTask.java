@@ -1,26 +1,22 @@
 package net.vhati.openuhs.desktopreader.downloader;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipEntry;
 import javax.swing.SwingWorker;
 
+import net.vhati.openuhs.core.UHSSnapshotCache;
 import net.vhati.openuhs.core.downloader.CatalogItem;
-import net.vhati.openuhs.desktopreader.downloader.FetchUnitException;
+import net.vhati.openuhs.core.downloader.DownloadScheduler;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadListener;
+import net.vhati.openuhs.core.downloader.DownloadScheduler.DownloadResult;
 
 
 /**
- * A background task that downloads a hint file, while unzipping it.
+ * A background task that downloads and unzips hint files.
+ * <p>
+ * Several files are downloaded at once, by a DownloadScheduler.
+ * Interrupted downloads are resumed the next time they are fetched.
  * <p>
  * Progress can be monitored with a PropertyChangeListener.
  * <p>
@@ -28,11 +24,11 @@ import net.vhati.openuhs.desktopreader.downloader.FetchUnitException;
  * <ul>
  * <li>state: One of the SwingWorker.StateValue constants.</li>
  * <li>progress: Overall progress, from 0 to 100.</li>
- * <li>PROP_UNIT_NAME: the name of an individual download currently in progress.</li>
- * <li>PROP_UNIT_PROGRESS: progress for an individual download.</li>
+ * <li>PROP_UNIT_NAME: the name of the individual download most recently started.</li>
+ * <li>PROP_UNIT_PROGRESS: progress for that download.</li>
  * </ul>
  */
-public class UHSFetchTask extends SwingWorker<List<UHSFetchTask.UHSFetchResult>, Object> {
+public class UHSFetchTask extends SwingWorker<List<DownloadResult>, Object> {
 
 	// First generic is the result, returned by doInBackground().
 	// Second generic is for returning intermediate results while running. (Unused)
@@ -40,25 +36,49 @@ public class UHSFetchTask extends SwingWorker<List<UHSFetchTask.UHSFetchResult>,
 	public static final String PROP_UNIT_NAME = "unitName";
 	public static final String PROP_UNIT_PROGRESS = "unitProgress";
 
-	private volatile boolean aborting = false;
-	private String userAgent = System.getProperty( "http.agent" );
-
-	private File destDir;
+	private final DownloadScheduler scheduler;
 	private CatalogItem[] catItems;
 
+	private final Object unitLock = new Object();
+	private CatalogItem unitItem = null;
+	private int unitProgress = 0;
+	private int endedCount = 0;
+
 
 	public UHSFetchTask( File destDir, CatalogItem... catItems ) {
-		this.destDir = destDir;
+		this.scheduler = new DownloadScheduler( destDir );
 		this.catItems = catItems;
 	}
 
 
 	public void setUserAgent( String s ) {
-		this.userAgent = s;
+		scheduler.setUserAgent( s );
 	}
 
 	public String getUserAgent() {
-		return userAgent;
+		return scheduler.getUserAgent();
+	}
+
+	/**
+	 * Sets a cache to store snapshots of downloaded files in.
+	 * <p>
+	 * Each download is then parsed before it's saved, and the reader can
+	 * open it without parsing again.
+	 *
+	 * @param cache  a cache, or null
+	 * @see net.vhati.openuhs.core.downloader.DownloadScheduler#setSnapshotCache(UHSSnapshotCache)
+	 */
+	public void setSnapshotCache( UHSSnapshotCache cache ) {
+		scheduler.setSnapshotCache( cache );
+	}
+
+	/**
+	 * Returns the scheduler, to adjust connection and retry limits.
+	 * <p>
+	 * Its listener is set by this task.
+	 */
+	public DownloadScheduler getScheduler() {
+		return scheduler;
 	}
 
 
@@ -71,141 +91,60 @@ public class UHSFetchTask extends SwingWorker<List<UHSFetchTask.UHSFetchResult>,
 	 * This method is thread-safe.
 	 */
 	public void abortTask() {
-		aborting = true;
+		scheduler.cancel();
 	}
 
 
+	// This runs in a background thread, unlike the other methods here.
 	@Override
-	protected List<UHSFetchResult> doInBackground() {
-		List<UHSFetchResult> fetchResults = new ArrayList<UHSFetchResult>( catItems.length );
-		String unitName = null;
-		int unitProgress = 0;
-
-		for ( int unitIndex=0; unitIndex < catItems.length; unitIndex++ ) {
-			CatalogItem catItem = catItems[unitIndex];
-			UHSFetchResult fetchResult = new UHSFetchResult( catItem );
-
-			if ( isCancelled() || aborting ) {
-				fetchResult.status = UHSFetchResult.STATUS_CANCELLED;
-				fetchResults.add( fetchResult );
-				continue;
+	protected List<DownloadResult> doInBackground() {
+		// SwingWorker delivers property changes on the event thread,
+		// so these callbacks, from the scheduler's threads, can fire them.
+		scheduler.setListener(new DownloadListener() {
+			@Override
+			public void downloadStarted( CatalogItem catItem, int attempt ) {
+				String unitNameOld;
+				int unitProgressOld;
+				synchronized ( unitLock ) {
+					unitNameOld = (( unitItem != null ) ? unitItem.getName() : null);
+					unitProgressOld = unitProgress;
+					unitItem = catItem;
+					unitProgress = 0;
+				}
+				UHSFetchTask.this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_NAME, unitNameOld, catItem.getName() );
+				UHSFetchTask.this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_PROGRESS, unitProgressOld, 0 );
 			}
 
-			String unitNameOld = unitName;
-			unitName = catItem.getName();
-			this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_NAME, unitNameOld, unitName );
-
-			int unitProgressOld = unitProgress;
-			unitProgress = 0;
-			this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_PROGRESS, unitProgressOld, unitProgress );
-
-			HttpURLConnection con = null;
-			InputStream downloadStream = null;
-			ZipInputStream unzipStream = null;
-			OutputStream os = null;
-			File uhsFile = null;
-
-			String urlString = catItem.getUrl();
-			Exception ex = null;
-			try {
-				con = (HttpURLConnection)(new URL( urlString ).openConnection());
-				con.setRequestProperty( "User-Agent", userAgent );
-				con.connect();
-
-				if ( con.getResponseCode() != HttpURLConnection.HTTP_OK ) {
-					throw new FetchUnitException( String.format( "Server returned HTTP %s %s", con.getResponseCode(), con.getResponseMessage() ) );
-				}
+			@Override
+			public void downloadProgress( CatalogItem catItem, long bytesDone, long bytesTotal ) {
+				if ( bytesTotal <= 0 ) return;
 
-				// Get the zip file's length, if the server reports it. (possibly -1).
-				//int zipLength = con.getContentLength();
-
-				downloadStream = con.getInputStream();
-				unzipStream = new ZipInputStream( new BufferedInputStream( downloadStream ) );
-
-				//No need for a while loop; only one file.
-				//  Each pass reads the zip stream /as if/ it were one entry.
-				//  Contrary to the doc, zip errors can occur if there is no next entry
-				ZipEntry ze;
-				if ( (ze = unzipStream.getNextEntry()) != null ) {
-					// Get the uncompressed uhs file's length. (possibly -1)
-					long uhsLength = ze.getSize();
-
-					// Presumably ze.getName().equals( catItem.getName() ).
-
-					uhsFile = new File( destDir, catItem.getName() );
-					fetchResult.file = uhsFile;
-					os = new FileOutputStream( uhsFile );
-
-					byte data[] = new byte[4096];
-					long total = 0;
-					int count;
-					while ( (count=unzipStream.read( data )) != -1 ) {
-						if ( this.isCancelled() || aborting ) {
-							fetchResult.status = UHSFetchResult.STATUS_CANCELLED;
-							break;
-						}
-						total += count;
-						if ( uhsLength > 0 ) {
-							unitProgressOld = unitProgress;
-							unitProgress = (int)(total * 100 / uhsLength);
-							this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_PROGRESS, unitProgressOld, unitProgress );
-						}
-						os.write( data, 0, count );
-					}
+				int unitProgressOld;
+				int unitProgressNew = (int)Math.min( 100, bytesDone * 100 / bytesTotal );
+				synchronized ( unitLock ) {
+					if ( catItem != unitItem ) return;  // Only the latest download is shown.
+					unitProgressOld = unitProgress;
+					unitProgress = unitProgressNew;
 				}
+				UHSFetchTask.this.getPropertyChangeSupport().firePropertyChange( PROP_UNIT_PROGRESS, unitProgressOld, unitProgressNew );
+			}
 
-				if ( fetchResult.status == UHSFetchResult.STATUS_DOWNLOADING ) {
-					fetchResult.status = UHSFetchResult.STATUS_COMPLETED;
+			@Override
+			public void downloadEnded( DownloadResult result ) {
+				synchronized ( unitLock ) {  // Keep progress from going backward.
+					endedCount++;
+					UHSFetchTask.this.setProgress( endedCount * 100 / catItems.length );
 				}
-				fetchResults.add( fetchResult );
-			}
-			catch ( IOException e ) {
-				ex = e;
-			}
-			catch ( FetchUnitException e ) {
-				ex = e;
-			}
-			finally {
-				try {if ( unzipStream != null ) unzipStream.close();} catch ( IOException e ) {}
-				try {if ( downloadStream != null ) downloadStream.close();} catch ( IOException e ) {}
-				try {if ( os != null ) os.close();} catch ( IOException e ) {}
-				if ( con != null ) con.disconnect();
-			}
-			if ( ex != null ) {
-				fetchResult.status = UHSFetchResult.STATUS_ERROR;
-				fetchResult.errorCause = ex;
-				fetchResults.add( fetchResult );
-			}
-			if ( fetchResult.status != UHSFetchResult.STATUS_COMPLETED && fetchResult.file != null && fetchResult.file.exists() ) {
-				fetchResult.file.delete();
 			}
+		});
 
-			this.setProgress( ((unitIndex+1) * 100 / catItems.length) );
-		}
+		if ( this.isCancelled() ) scheduler.cancel();
 
-		return fetchResults;
+		return scheduler.download( Arrays.asList( catItems ) );
 	}
 
 	@Override
 	protected void done() {
 		// Could trugger callbacks here, or let the listener react to a status change.
 	}
-
-
-
-	public static class UHSFetchResult {
-		public static final int STATUS_DOWNLOADING = 0;
-		public static final int STATUS_COMPLETED = 1;
-		public static final int STATUS_CANCELLED = 2;
-		public static final int STATUS_ERROR = 3;
-
-		public CatalogItem catItem;
-		public int status = STATUS_DOWNLOADING;
-		public Throwable errorCause = null;
-		public File file = null;
-
-		public UHSFetchResult( CatalogItem catItem ) {
-			this.catItem = catItem;
-		}
-	}
 }
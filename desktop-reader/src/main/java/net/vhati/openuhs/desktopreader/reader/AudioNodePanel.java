@@ -3,8 +3,6 @@ package net.vhati.openuhs.desktopreader.reader;
 import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
-import java.io.InputStream;
-import java.io.IOException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,33 +55,11 @@ public class AudioNodePanel extends NodePanel {
 		gridC.fill = GridBagConstraints.HORIZONTAL;
 		gridC.insets = new Insets( 1, 2, 1, 2 );
 
+		// The player streams from the reference, reading only the header now.
 		ByteReference audioRef = audioNode.getRawAudioContent();
-		InputStream is = null;
-		try {
-			is = audioRef.getInputStream();
-			byte[] audioBytes = new byte[(int)audioRef.length()];
-			int offset = 0;
-			int count = 0;
-			while ( offset < audioBytes.length && (count=is.read( audioBytes, offset, audioBytes.length-offset )) >= 0 ) {
-				offset += count;
-			}
-			if ( offset < audioBytes.length ) {
-				throw new IOException( "Could not completely read audio content" );
-			}
-
-			playerPanel = new MinimalSoundPlayer( audioBytes );
-			this.add( playerPanel, gridC );
-			gridC.gridy++;
-		}
-		catch ( IOException e ) {
-			logger.error( "Error loading binary content of {} node (\"{}\"): {}", audioNode.getType(), audioNode.getRawStringContent(), e );
-
-			reset();
-			return;
-		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
-		}
+		playerPanel = new MinimalSoundPlayer( audioRef );
+		this.add( playerPanel, gridC );
+		gridC.gridy++;
 
 		this.revalidate();
 		this.repaint();
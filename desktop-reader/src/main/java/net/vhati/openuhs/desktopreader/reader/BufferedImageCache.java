@@ -0,0 +1,64 @@
+package net.vhati.openuhs.desktopreader.reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.InputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+import net.vhati.openuhs.core.ByteBufferInputStream;
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.DecodedCache;
+
+
+/**
+ * A cache of images decoded by ImageIO.
+ * <p>
+ * Images from this cache may be shown by several panels, and should
+ * not be drawn upon or flushed.
+ */
+public class BufferedImageCache extends DecodedCache<BufferedImage> {
+
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param maxBytes  the total size of decoded pixels to hold strongly
+	 */
+	public BufferedImageCache( long maxBytes ) {
+		super( maxBytes );
+	}
+
+
+	/**
+	 * Decodes an image. Variants aren't used.
+	 */
+	@Override
+	protected BufferedImage decode( ByteReference ref, int variant ) throws IOException {
+		return decodeImage( ref );
+	}
+
+	@Override
+	protected long sizeOf( BufferedImage image ) {
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		long elementBytes = DataBuffer.getDataTypeSize( dataBuffer.getDataType() ) / 8;
+		return (long)dataBuffer.getSize() * dataBuffer.getNumBanks() * Math.max( elementBytes, 1 );
+	}
+
+
+	/**
+	 * Decodes an image, without caching.
+	 */
+	public static BufferedImage decodeImage( ByteReference ref ) throws IOException {
+		InputStream is = null;
+		try {
+			is = new ByteBufferInputStream( ref.getByteBuffer() );
+			BufferedImage image = ImageIO.read( is );
+			if ( image == null ) throw new IOException( "No ImageIO reader recognized the image" );
+			return image;
+		}
+		finally {
+			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+		}
+	}
+}
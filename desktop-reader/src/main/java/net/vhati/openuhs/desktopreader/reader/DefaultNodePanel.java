@@ -12,6 +12,7 @@ import javax.swing.BorderFactory;
 import javax.swing.JComponent;
 
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodeType;
 import net.vhati.openuhs.core.UHSRootNode;
 import net.vhati.openuhs.desktopreader.reader.NodePanel;
 import net.vhati.openuhs.desktopreader.reader.UHSTextArea;
@@ -100,7 +101,7 @@ public class DefaultNodePanel extends NodePanel {
 			if ( tmpNode.isLink() || this.getNavCtrl().isNodeVisitable( tmpNode ) ) {
 				tmpUHSArea.addMouseListener( clickListener );
 			}
-			else if ( tmpNode.getType().equals( "Blank" ) == false ) {
+			else if ( tmpNode.getNodeType() != UHSNodeType.BLANK ) {
 				allClickable = false;
 			}
 		}
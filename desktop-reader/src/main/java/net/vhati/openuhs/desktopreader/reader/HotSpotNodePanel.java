@@ -1,5 +1,6 @@
 package net.vhati.openuhs.desktopreader.reader;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Component;
@@ -7,16 +8,18 @@ import java.awt.Cursor;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Rectangle;
 import java.awt.Stroke;
+import java.awt.Transparency;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
-import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import javax.imageio.ImageIO;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
 import javax.swing.ToolTipManager;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.event.MouseInputListener;
@@ -25,10 +28,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.FileRegionByteReference;
 import net.vhati.openuhs.core.HotSpot;
+import net.vhati.openuhs.core.SharedFileChannel;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodeType;
+import net.vhati.openuhs.desktopreader.reader.BufferedImageCache;
 import net.vhati.openuhs.desktopreader.reader.NodePanel;
 
 
@@ -43,9 +50,14 @@ public class HotSpotNodePanel extends NodePanel {
 
 	protected UHSHotSpotNode hotspotNode = null;
 	protected BufferedImage mainImage = null;
+	protected BufferedImageCache imageCache = null;
+	private ImageLoadTask loadTask = null;
 
 	protected List<ZoneHolder> zoneHolders = new ArrayList<ZoneHolder>();
 
+	private BufferedImage compositeImage = null;
+	private Rectangle compositeDirtyRect = null;
+
 	protected Cursor zoneCursor = Cursor.getPredefinedCursor( Cursor.HAND_CURSOR );
 
 	protected BasicStroke zoneStroke;
@@ -61,16 +73,16 @@ public class HotSpotNodePanel extends NodePanel {
 		zoneListener = new MouseInputAdapter() {
 			@Override
 			public void mouseMoved( MouseEvent e ) {
-				boolean inZone = false;
-				for ( ZoneHolder zoneHolder : zoneHolders ) {
-					if ( zoneHolder.zoneRect.contains( e.getX(), e.getY() ) ) {
-						inZone = true;
-						HotSpotNodePanel.this.setCursor( zoneCursor );
-						HotSpotNodePanel.this.setToolTipText( zoneHolder.title );
-						break;
-					}
+				ZoneHolder hoverHolder = null;
+				if ( hotspotNode != null ) {
+					int zoneIndex = hotspotNode.getSpotIndex().getFirstZoneAt( e.getX(), e.getY() );
+					if ( zoneIndex != -1 ) hoverHolder = zoneHolders.get( zoneIndex );
 				}
-				if ( !inZone ) {
+				if ( hoverHolder != null ) {
+					HotSpotNodePanel.this.setCursor( zoneCursor );
+					HotSpotNodePanel.this.setToolTipText( hoverHolder.title );
+				}
+				else {
 					HotSpotNodePanel.this.setCursor( Cursor.getDefaultCursor() );
 					HotSpotNodePanel.this.setToolTipText( null );
 				}
@@ -85,17 +97,20 @@ public class HotSpotNodePanel extends NodePanel {
 
 			@Override
 			public void mouseClicked( MouseEvent e ) {
-				for ( ZoneHolder zoneHolder : zoneHolders ) {
-					if ( zoneHolder.zoneRect.contains( e.getX(), e.getY() ) ) {
-						if ( zoneHolder.imageRef != null ) {
-							zoneHolder.revealed = !zoneHolder.revealed;
-							HotSpotNodePanel.this.repaint();
-							// Keep looping through layers? Sure.
-						}
-						else if ( zoneHolder.linkTarget != -1 ) {
-							HotSpotNodePanel.this.getNavCtrl().setReaderNode( zoneHolder.linkTarget );
-							break;
-						}
+				if ( hotspotNode == null ) return;
+
+				// Zones are checked in child order, like the layers.
+				for ( int zoneIndex : hotspotNode.getSpotIndex().getZonesAt( e.getX(), e.getY() ) ) {
+					ZoneHolder zoneHolder = zoneHolders.get( zoneIndex );
+
+					if ( zoneHolder.imageRef != null ) {
+						zoneHolder.revealed = !zoneHolder.revealed;
+						invalidateComposite( zoneHolder.overlayRect.union( zoneHolder.zoneRect ) );
+						// Keep looping through layers? Sure.
+					}
+					else if ( zoneHolder.linkTarget != -1 ) {
+						HotSpotNodePanel.this.getNavCtrl().setReaderNode( zoneHolder.linkTarget );
+						break;
 					}
 				}
 			}
@@ -105,6 +120,22 @@ public class HotSpotNodePanel extends NodePanel {
 	}
 
 
+	/**
+	 * Sets a cache to hold decoded images, possibly shared with other panels.
+	 * <p>
+	 * Revisiting a node will then reuse its main image and overlays.
+	 *
+	 * @param imageCache  a cache, or null to decode every time
+	 */
+	public void setImageCache( BufferedImageCache imageCache ) {
+		this.imageCache = imageCache;
+	}
+
+	public BufferedImageCache getImageCache() {
+		return imageCache;
+	}
+
+
 	@Override
 	public boolean accept( UHSNode node ) {
 		if ( node instanceof UHSHotSpotNode ) return true;
@@ -119,86 +150,150 @@ public class HotSpotNodePanel extends NodePanel {
 		super.setNode( node, showAll );
 		hotspotNode = (UHSHotSpotNode)node;
 
-		InputStream is = null;
-		try {
-			// The main image is visible and full size.
-
-			ByteReference mainImageRef = hotspotNode.getRawImageContent();
-			is = mainImageRef.getInputStream();
-			mainImage = ImageIO.read( is );
-			is.close();
-
-			// Stretch to fit the main image.
-			Dimension mainImageSize = new Dimension( mainImage.getWidth(), mainImage.getHeight() );
-			this.setPreferredSize( mainImageSize );
-			this.setMinimumSize( mainImageSize );
-
-			for ( int i=0; i < node.getChildCount(); i++ ) {
-				UHSNode childNode = node.getChild( i );
-				String childType = childNode.getType();
+		// Lay out zones now, but leave images the cache doesn't have to a background task.
 
-				HotSpot spot = hotspotNode.getSpot( childNode );
+		List<ZoneHolder> pendingHolders = new ArrayList<ZoneHolder>();
 
-				ZoneHolder zoneHolder = new ZoneHolder();
-				zoneHolder.zoneRect = new Rectangle( spot.zoneX, spot.zoneY, spot.zoneW, spot.zoneH );
-				zoneHolder.title = childNode.getDecoratedStringContent();
+		for ( int i=0; i < node.getChildCount(); i++ ) {
+			UHSNode childNode = node.getChild( i );
 
-				if ( "Overlay".equals( childType ) && childNode instanceof UHSImageNode ) {
-					UHSImageNode overlayNode = (UHSImageNode)childNode;
+			HotSpot spot = hotspotNode.getSpot( childNode );
 
-					zoneHolder.imageRef = overlayNode.getRawImageContent();
-					if ( zoneHolder.imageRef != null ) {
+			ZoneHolder zoneHolder = new ZoneHolder();
+			zoneHolder.zoneRect = new Rectangle( spot.zoneX, spot.zoneY, spot.zoneW, spot.zoneH );
+			zoneHolder.title = childNode.getDecoratedStringContent();
 
-						is = zoneHolder.imageRef.getInputStream();
-						BufferedImage overlayImage = ImageIO.read( is );
-						is.close();
+			if ( childNode.getNodeType() == UHSNodeType.OVERLAY && childNode instanceof UHSImageNode ) {
+				UHSImageNode overlayNode = (UHSImageNode)childNode;
 
-						zoneHolder.image = overlayImage;
-						zoneHolder.overlayRect = new Rectangle( spot.x, spot.y, overlayImage.getWidth(), overlayImage.getHeight() );
+				zoneHolder.imageRef = overlayNode.getRawImageContent();
+				if ( zoneHolder.imageRef != null ) {
+					zoneHolder.overlayRect = new Rectangle( spot.x, spot.y, 0, 0 );  // Sized once decoded.
 
-						if ( showAll ) zoneHolder.revealed = true;
+					BufferedImage overlayImage = (( imageCache != null ) ? imageCache.peek( zoneHolder.imageRef ) : null);
+					if ( overlayImage != null ) {
+						setZoneImage( zoneHolder, overlayImage );
+					} else {
+						pendingHolders.add( zoneHolder );
 					}
-				}
-				else if ( childNode.isLink() ) {  // Follow the link when clicked.
-					zoneHolder.linkTarget = childNode.getLinkTarget();
-				}
-				else if ( childNode.getId() != -1 ) {  // Visit that child when clicked.
-					zoneHolder.linkTarget = childNode.getId();
-				}
-				else {
-					logger.error( "Unexpected {} child of UHSHotSpotNode", childNode.getType() );
-				}
 
-				zoneHolders.add( zoneHolder );
+					if ( showAll ) zoneHolder.revealed = true;
+				}
+			}
+			else if ( childNode.isLink() ) {  // Follow the link when clicked.
+				zoneHolder.linkTarget = childNode.getLinkTarget();
 			}
+			else if ( childNode.getId() != -1 ) {  // Visit that child when clicked.
+				zoneHolder.linkTarget = childNode.getId();
+			}
+			else {
+				logger.error( "Unexpected {} child of UHSHotSpotNode", childNode.getType() );
+			}
+
+			zoneHolders.add( zoneHolder );
 		}
-		catch ( IOException e ) {
-			logger.error( "Error loading binary content within {} node (\"{}\"): {}", hotspotNode.getType(), hotspotNode.getRawStringContent(), e );
 
-			reset();
-			return;
+		// The main image is visible and full size.
+
+		ByteReference mainImageRef = hotspotNode.getRawImageContent();
+		BufferedImage cachedMainImage = (( imageCache != null ) ? imageCache.peek( mainImageRef ) : null);
+		if ( cachedMainImage != null ) {
+			setMainImage( cachedMainImage );
+			mainImageRef = null;
 		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
+
+		if ( mainImageRef != null || !pendingHolders.isEmpty() ) {
+			loadTask = new ImageLoadTask( mainImageRef, pendingHolders );
+			loadTask.execute();
 		}
 
 		this.revalidate();
 		this.repaint();
 	}
 
+	/**
+	 * Shows the main image, stretching to fit it.
+	 */
+	private void setMainImage( BufferedImage image ) {
+		mainImage = image;
+
+		Dimension mainImageSize = new Dimension( mainImage.getWidth(), mainImage.getHeight() );
+		this.setPreferredSize( mainImageSize );
+		this.setMinimumSize( mainImageSize );
+		this.revalidate();
+
+		discardComposite();
+		this.repaint();
+	}
+
+	/**
+	 * Gives a zone its overlay image.
+	 */
+	private void setZoneImage( ZoneHolder zoneHolder, BufferedImage image ) {
+		zoneHolder.image = image;
+		zoneHolder.overlayRect.setSize( image.getWidth(), image.getHeight() );
+
+		if ( compositeImage != null && !new Rectangle( 0, 0, compositeImage.getWidth(), compositeImage.getHeight() ).contains( zoneHolder.overlayRect ) ) {
+			discardComposite();  // Outgrew it.
+		}
+		invalidateComposite( zoneHolder.overlayRect.union( zoneHolder.zoneRect ) );
+	}
+
+	/**
+	 * Marks an area of the composite as stale, and schedules a repaint of just that area.
+	 */
+	private void invalidateComposite( Rectangle r ) {
+		Rectangle dirtyRect = new Rectangle( r );
+		dirtyRect.grow( 1, 1 );  // Outlines are drawn along the far edges.
+
+		if ( compositeDirtyRect == null ) {
+			compositeDirtyRect = dirtyRect;
+		} else {
+			compositeDirtyRect.add( dirtyRect );
+		}
+		this.repaint( dirtyRect );
+	}
+
+	/**
+	 * Discards the composite, to be rebuilt entirely on the next paint.
+	 */
+	private void discardComposite() {
+		if ( compositeImage != null ) compositeImage.flush();
+		compositeImage = null;
+		compositeDirtyRect = null;
+	}
+
+	/**
+	 * Decodes an image, or fetches it from the cache.
+	 * <p>
+	 * This is called from background threads.
+	 */
+	private BufferedImage readImage( ByteReference ref ) throws IOException {
+		BufferedImageCache cache = imageCache;
+		if ( cache != null ) return cache.get( ref );
+		return BufferedImageCache.decodeImage( ref );
+	}
+
 	@Override
 	public void reset() {
-		if ( mainImage != null ) {
-			mainImage.flush();
-			mainImage = null;
+		if ( loadTask != null ) {
+			// Don't interrupt: that would close a FileChannel other readers share.
+			loadTask.cancel( false );
+			loadTask = null;
 		}
 
-		for ( ZoneHolder zoneHolder : zoneHolders ) {
-			if ( zoneHolder.image != null ) {
-				zoneHolder.image.flush();
+		if ( imageCache == null ) {  // Cached images may still be in use elsewhere.
+			if ( mainImage != null ) mainImage.flush();
+
+			for ( ZoneHolder zoneHolder : zoneHolders ) {
+				if ( zoneHolder.image != null ) {
+					zoneHolder.image.flush();
+				}
 			}
 		}
+		mainImage = null;
 		zoneHolders.clear();
+		discardComposite();
 
 		hotspotNode = null;
 		super.reset();
@@ -219,17 +314,83 @@ public class HotSpotNodePanel extends NodePanel {
 	}
 
 
+	/**
+	 * Draws from a composite of the main image, revealed overlays, and zone outlines.
+	 * <p>
+	 * The composite is only redrawn where reveal state or images have
+	 * changed, so ordinary repaints (e.g., scrolling, tooltips) are a
+	 * single image copy.
+	 */
 	@Override
 	public void paintComponent( Graphics g ) {
 		super.paintComponent( g );
-		Graphics2D g2d = (Graphics2D)g;
 
+		updateComposite();
+		if ( compositeImage != null ) {
+			g.drawImage( compositeImage, 0, 0, null );
+		}
+	}
+
+	/**
+	 * Creates the composite if needed, and redraws any stale area.
+	 */
+	private void updateComposite() {
+		if ( compositeImage == null ) {
+			if ( mainImage == null && zoneHolders.isEmpty() ) return;
+			Rectangle contentRect = getContentBounds();
+
+			GraphicsConfiguration gc = this.getGraphicsConfiguration();
+			if ( gc != null ) {
+				compositeImage = gc.createCompatibleImage( contentRect.width, contentRect.height, Transparency.TRANSLUCENT );
+			} else {
+				compositeImage = new BufferedImage( contentRect.width, contentRect.height, BufferedImage.TYPE_INT_ARGB );
+			}
+			compositeDirtyRect = contentRect;
+		}
+		if ( compositeDirtyRect == null ) return;
+
+		Graphics2D g2d = compositeImage.createGraphics();
+		try {
+			g2d.clip( compositeDirtyRect );
+			g2d.setComposite( AlphaComposite.Clear );
+			g2d.fill( compositeDirtyRect );
+			g2d.setComposite( AlphaComposite.SrcOver );
+
+			paintLayers( g2d );
+		}
+		finally {
+			g2d.dispose();
+		}
+		compositeDirtyRect = null;
+	}
+
+	/**
+	 * Returns an area from the origin enclosing the main image and every zone.
+	 */
+	private Rectangle getContentBounds() {
+		Rectangle contentRect = new Rectangle();
+		if ( mainImage != null ) {
+			contentRect.add( new Rectangle( 0, 0, mainImage.getWidth(), mainImage.getHeight() ) );
+		}
+		for ( ZoneHolder zoneHolder : zoneHolders ) {
+			contentRect.add( zoneHolder.zoneRect );
+			if ( zoneHolder.overlayRect != null ) contentRect.add( zoneHolder.overlayRect );
+		}
+		contentRect.width += 1;  // Outlines are drawn along the far edges.
+		contentRect.height += 1;
+		return contentRect;
+	}
+
+	/**
+	 * Draws the main image, revealed overlays, and zone outlines.
+	 */
+	private void paintLayers( Graphics2D g2d ) {
 		if ( mainImage != null ) {
 			g2d.drawImage( mainImage, 0, 0, null );
 		}
 
 		for ( ZoneHolder zoneHolder : zoneHolders ) {
-			if ( zoneHolder.imageRef != null && zoneHolder.revealed ) {
+			if ( zoneHolder.image != null && zoneHolder.revealed ) {
 				g2d.drawImage( zoneHolder.image, zoneHolder.overlayRect.x, zoneHolder.overlayRect.y, null );
 			}
 		}
@@ -242,8 +403,10 @@ public class HotSpotNodePanel extends NodePanel {
 				if ( !zoneHolder.revealed ) {
 					g2d.setStroke( zoneStroke );
 
-					g2d.setColor( Color.GRAY );
-					g2d.drawRect( zoneHolder.overlayRect.x, zoneHolder.overlayRect.y, zoneHolder.overlayRect.width, zoneHolder.overlayRect.height );
+					if ( zoneHolder.image != null ) {  // Overlay size is unknown until decoded.
+						g2d.setColor( Color.GRAY );
+						g2d.drawRect( zoneHolder.overlayRect.x, zoneHolder.overlayRect.y, zoneHolder.overlayRect.width, zoneHolder.overlayRect.height );
+					}
 
 					g2d.setColor( Color.ORANGE );
 					g2d.drawRect( zoneHolder.zoneRect.x, zoneHolder.zoneRect.y, zoneHolder.zoneRect.width, zoneHolder.zoneRect.height );
@@ -277,4 +440,109 @@ public class HotSpotNodePanel extends NodePanel {
 
 		public boolean revealed = false;
 	}
+
+
+
+	/**
+	 * A background task that decodes the main image, then overlays in zone order.
+	 * <p>
+	 * Each image is handed to the EDT as soon as it's ready. Results
+	 * arriving after the panel has moved on to another node are ignored.
+	 */
+	private class ImageLoadTask extends SwingWorker<Void, LoadedImage> {
+		private final ByteReference mainImageRef;
+		private final List<ZoneHolder> pendingHolders;
+
+
+		/**
+		 * Constructs a task.
+		 *
+		 * @param mainImageRef  the main image, or null if it's already shown
+		 * @param pendingHolders  zones whose overlays need decoding
+		 */
+		public ImageLoadTask( ByteReference mainImageRef, List<ZoneHolder> pendingHolders ) {
+			this.mainImageRef = mainImageRef;
+			this.pendingHolders = pendingHolders;
+		}
+
+
+		// This runs in a background thread, unlike the other methods here.
+		@Override
+		protected Void doInBackground() throws IOException {
+			// Overlays live in the same file, so hold it open until they're all read.
+			SharedFileChannel binaryChannel = null;
+			ByteReference firstRef = (( mainImageRef != null ) ? mainImageRef : pendingHolders.get( 0 ).imageRef);
+			if ( firstRef instanceof FileRegionByteReference ) {
+				SharedFileChannel firstChannel = ((FileRegionByteReference)firstRef).getChannel();
+				firstChannel.acquire();
+				binaryChannel = firstChannel;
+			}
+
+			try {
+				if ( mainImageRef != null ) {
+					publish( new LoadedImage( null, readImage( mainImageRef ) ) );
+				}
+
+				for ( ZoneHolder zoneHolder : pendingHolders ) {
+					if ( isCancelled() ) break;
+
+					publish( new LoadedImage( zoneHolder, readImage( zoneHolder.imageRef ) ) );
+				}
+			}
+			finally {
+				if ( binaryChannel != null ) binaryChannel.release();
+			}
+			return null;
+		}
+
+		@Override
+		protected void process( List<LoadedImage> chunks ) {
+			if ( loadTask != this ) return;
+
+			for ( LoadedImage loaded : chunks ) {
+				if ( loaded.zoneHolder == null ) {
+					setMainImage( loaded.image );
+				} else {
+					setZoneImage( loaded.zoneHolder, loaded.image );
+				}
+			}
+		}
+
+		@Override
+		protected void done() {
+			if ( loadTask != this ) return;
+			loadTask = null;
+
+			try {
+				get();
+			}
+			catch ( ExecutionException e ) {
+				logger.error( "Error loading binary content within {} node (\"{}\"): {}", hotspotNode.getType(), hotspotNode.getRawStringContent(), e.getCause() );
+
+				reset();
+			}
+			catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+
+
+	private static class LoadedImage {
+		public final ZoneHolder zoneHolder;
+		public final BufferedImage image;
+
+
+		/**
+		 * Constructs a result.
+		 *
+		 * @param zoneHolder  the zone the image belongs to, or null for the main image
+		 * @param image  the decoded image
+		 */
+		public LoadedImage( ZoneHolder zoneHolder, BufferedImage image ) {
+			this.zoneHolder = zoneHolder;
+			this.image = image;
+		}
+	}
 }
@@ -3,9 +3,8 @@ package net.vhati.openuhs.desktopreader.reader;
 import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
-import java.io.InputStream;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 
@@ -15,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import net.vhati.openuhs.core.ByteReference;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.desktopreader.reader.BufferedImageCache;
 import net.vhati.openuhs.desktopreader.reader.NodePanel;
 
 
@@ -28,6 +28,7 @@ public class ImageNodePanel extends NodePanel {
 	private final Logger logger = LoggerFactory.getLogger( ImageNodePanel.class );
 
 	protected UHSImageNode imageNode = null;
+	protected BufferedImageCache imageCache = null;
 
 
 	public ImageNodePanel() {
@@ -37,6 +38,20 @@ public class ImageNodePanel extends NodePanel {
 	}
 
 
+	/**
+	 * Sets a cache to hold decoded images, possibly shared with other panels.
+	 *
+	 * @param imageCache  a cache, or null to decode every time
+	 */
+	public void setImageCache( BufferedImageCache imageCache ) {
+		this.imageCache = imageCache;
+	}
+
+	public BufferedImageCache getImageCache() {
+		return imageCache;
+	}
+
+
 	@Override
 	public boolean accept( UHSNode node ) {
 		if ( node instanceof UHSImageNode ) return true;
@@ -60,11 +75,10 @@ public class ImageNodePanel extends NodePanel {
 		gridC.insets = new Insets( 1, 2, 1, 2 );
 
 		ByteReference imageRef = imageNode.getRawImageContent();
-		InputStream is = null;
 		try {
-			is = imageRef.getInputStream();
+			BufferedImage image = (( imageCache != null ) ? imageCache.get( imageRef ) : BufferedImageCache.decodeImage( imageRef ));
 
-			JLabel imageLbl = new JLabel( new ImageIcon( ImageIO.read( is ) ) );
+			JLabel imageLbl = new JLabel( new ImageIcon( image ) );
 			this.add( imageLbl, gridC );
 			gridC.gridy++;
 		}
@@ -74,9 +88,6 @@ public class ImageNodePanel extends NodePanel {
 			reset();
 			return;
 		}
-		finally {
-			try {if ( is != null ) is.close();} catch ( IOException e ) {}
-		}
 
 		this.revalidate();
 		this.repaint();
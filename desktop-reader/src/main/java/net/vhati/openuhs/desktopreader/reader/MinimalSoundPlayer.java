@@ -3,15 +3,16 @@ package net.vhati.openuhs.desktopreader.reader;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -22,16 +23,37 @@ import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.vhati.openuhs.core.ByteBufferInputStream;
+import net.vhati.openuhs.core.ByteReference;
+import net.vhati.openuhs.core.WavHeader;
+
 
 /**
  * A simple swing component to play sounds.
+ * <p>
+ * Uncompressed WAVE sounds given as a ByteReference are streamed
+ * through a SourceDataLine, so playback starts without reading the
+ * whole sound. Anything else is loaded into a Clip.
  */
 public class MinimalSoundPlayer extends JPanel {
 	private static String playText = ">";
 	private static String stopText = "X";
 
-	private byte[] bytes = null;
+	private final Logger logger = LoggerFactory.getLogger( MinimalSoundPlayer.class );
+
+	private ByteBuffer sound = null;
 	private Clip clip = null;
+
+	private ByteReference soundRef = null;
+	private WavHeader wavHeader = null;
+	private AudioFormat streamFormat = null;
+	private SourceDataLine line = null;
+	private StreamThread streamThread = null;
+	private int lineStartPosition = 0;
+
 	private int duration = 0;
 	private int position = 0;
 	private Timer timer = null;
@@ -41,17 +63,63 @@ public class MinimalSoundPlayer extends JPanel {
 
 
 	public MinimalSoundPlayer( byte[] b ) {
+		this( ByteBuffer.wrap( b ) );
+	}
+
+	/**
+	 * Constructs a player for a buffer of sound file data.
+	 * <p>
+	 * The buffer is read in place, and not modified.
+	 *
+	 * @param buf  the contents of an audio file
+	 */
+	public MinimalSoundPlayer( ByteBuffer buf ) {
 		super( new BorderLayout() );
+		layoutControls();
+
+		openClip( buf );
+		initControls();
+	}
+
+	/**
+	 * Constructs a player that streams a sound as it plays.
+	 * <p>
+	 * If the sound isn't an uncompressed WAVE, it's loaded into a Clip
+	 * instead.
+	 *
+	 * @param ref  the contents of an audio file
+	 */
+	public MinimalSoundPlayer( ByteReference ref ) {
+		super( new BorderLayout() );
+		layoutControls();
+
+		if ( !openStream( ref ) ) {
+			try {
+				openClip( ref.getByteBuffer() );
+			}
+			catch ( IOException e ) {
+				logger.error( "Could not read sound", e );
+			}
+		}
+		initControls();
+	}
+
+
+	private void layoutControls() {
 		JPanel ctrlPanel = new JPanel();
 			ctrlPanel.setLayout(new BoxLayout( ctrlPanel, BoxLayout.X_AXIS ));
 				ctrlPanel.add( playBtn );
 				ctrlPanel.add( Box.createHorizontalStrut( 10 ) );
 				ctrlPanel.add( slider );
 		this.add( ctrlPanel, BorderLayout.NORTH );
+	}
 
-
+	/**
+	 * Loads a whole sound into a Clip.
+	 */
+	private void openClip( ByteBuffer buf ) {
 		try {
-			InputStream is = new ByteArrayInputStream( b );
+			InputStream is = new ByteBufferInputStream( buf.duplicate() );
 			AudioInputStream ain = AudioSystem.getAudioInputStream( is );
 			try {
 				//This used to be the entirety of the try{...}
@@ -76,27 +144,64 @@ public class MinimalSoundPlayer extends JPanel {
 				}
 			}
 			catch( LineUnavailableException e ) {
-				e.printStackTrace();
+				logger.error( "Could not open an audio line", e );
+			}
+			catch( IllegalArgumentException e ) {  // No line supports the format.
+				logger.error( "No audio line supports the sound's format", e );
 			}
 			finally {
 				ain.close();
 			}
-			bytes = b;
-			duration = (int)(clip.getMicrosecondLength() / 1000);
+			sound = buf;
+			if ( clip != null ) duration = (int)(clip.getMicrosecondLength() / 1000);
 		}
 		catch ( UnsupportedAudioFileException e ) {
-			e.printStackTrace();
+			logger.error( "Unsupported sound format", e );
 		}
 		catch ( IOException e ) {
-			e.printStackTrace();
+			logger.error( "Could not read sound", e );
 		}
+	}
 
+	/**
+	 * Reads a sound's header, to stream it later.
+	 *
+	 * @return true if streaming is possible, false otherwise
+	 */
+	private boolean openStream( ByteReference ref ) {
+		WavHeader header;
+		try {
+			header = WavHeader.read( ref );
+		}
+		catch ( IOException e ) {
+			logger.debug( "Sound can't be streamed: {}", e.getMessage() );
+			return false;
+		}
+		if ( header.formatTag != WavHeader.FORMAT_PCM || header.blockAlign <= 0 || header.sampleRate <= 0 ) {
+			logger.debug( "Sound can't be streamed: WAVE format {}", header.formatTag );
+			return false;
+		}
+
+		// WAVE samples are unsigned if 8-bit, signed otherwise.
+		AudioFormat format = new AudioFormat( header.sampleRate, header.bitsPerSample, header.channels, (header.bitsPerSample > 8), false );
+		if ( !AudioSystem.isLineSupported( new DataLine.Info( SourceDataLine.class, format ) ) ) {
+			logger.debug( "Sound can't be streamed: no line supports {}", format );
+			return false;
+		}
 
-		if ( bytes != null ) {
+		soundRef = ref;
+		wavHeader = header;
+		streamFormat = format;
+		duration = (int)header.getDurationMillis();
+		return true;
+	}
+
+	private void initControls() {
+		if ( clip != null || streamFormat != null ) {
 			slider.setMaximum( duration );
 			playBtn.addActionListener(new ActionListener() {
 				public void actionPerformed( ActionEvent e ) {
-					if ( !clip.isActive() ) start();
+					if ( !isPlaying() ) start();
 					else stop();
 				}
 			});
@@ -109,8 +214,8 @@ public class MinimalSoundPlayer extends JPanel {
 			});
 			timer = new Timer(100, new ActionListener() {
 				public void actionPerformed( ActionEvent e ) {
-					if ( clip.isActive() ) {
-						position = (int)(clip.getMicrosecondPosition() / 1000);
+					if ( isPlaying() ) {
+						position = getPlaybackPosition();
 						slider.setValue( position );
 					}
 					else {
@@ -125,11 +230,44 @@ public class MinimalSoundPlayer extends JPanel {
 		}
 	}
 
+
+	/**
+	 * Returns true if sound is playing (or about to).
+	 */
+	private boolean isPlaying() {
+		if ( clip != null ) return clip.isActive();
+		return ( streamThread != null && streamThread.isAlive() );
+	}
+
+	/**
+	 * Returns the current playback position, in milliseconds.
+	 */
+	private int getPlaybackPosition() {
+		if ( clip != null ) return (int)(clip.getMicrosecondPosition() / 1000);
+		if ( line != null ) return lineStartPosition + (int)(line.getMicrosecondPosition() / 1000);
+		return position;
+	}
+
 	/**
 	 * Halts playback.
 	 */
 	public void stop() {
-		clip.stop();
+		if ( timer == null ) return;
+
+		if ( clip != null ) {
+			clip.stop();
+		}
+		else if ( line != null ) {
+			position = Math.min( getPlaybackPosition(), duration );
+
+			streamThread.abort();
+			streamThread = null;
+
+			line.stop();
+			line.flush();
+			line.close();  // Unblocks the thread if it's writing.
+			line = null;
+		}
 		timer.stop();
 		playBtn.setText( playText );
 	}
@@ -138,7 +276,28 @@ public class MinimalSoundPlayer extends JPanel {
 	 * Begins/continues playback.
 	 */
 	public void start() {
-		clip.start();
+		if ( timer == null ) return;
+
+		if ( clip != null ) {
+			clip.start();
+		}
+		else if ( line == null ) {
+			try {
+				line = (SourceDataLine)AudioSystem.getLine( new DataLine.Info( SourceDataLine.class, streamFormat ) );
+				line.open( streamFormat );
+			}
+			catch ( LineUnavailableException e ) {
+				logger.error( "Could not open an audio line", e );
+				line = null;
+				return;
+			}
+			lineStartPosition = position;
+
+			long startFrame = (long)position * wavHeader.sampleRate / 1000;
+			streamThread = new StreamThread( line, soundRef, wavHeader, startFrame );
+			streamThread.start();
+			line.start();
+		}
 		timer.start();
 		playBtn.setText( stopText );
 	}
@@ -150,17 +309,109 @@ public class MinimalSoundPlayer extends JPanel {
 	 */
 	public void seek( int newPos ) {
 		if ( newPos < 0 || newPos > duration ) return;
-		position = newPos;
-		clip.setMicrosecondPosition( position * 1000 );
+
+		if ( clip != null ) {
+			position = newPos;
+			clip.setMicrosecondPosition( position * 1000 );
+		}
+		else if ( line != null ) {  // Restart the stream from the new frame.
+			stop();
+			position = newPos;
+			start();
+		}
+		else {
+			position = newPos;
+		}
 		slider.setValue( position );
 	}
 
 	/**
 	 * Gets the sound this component is playing.
 	 *
-	 * @return the sound
+	 * @return a read-only view of the sound, or null if it's being streamed
+	 * @see #getSoundReference()
+	 */
+	public ByteBuffer getSound() {
+		if ( sound == null ) return null;
+		return sound.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets the sound this component is streaming.
+	 *
+	 * @return a reference, or null if the sound was loaded into a Clip
+	 */
+	public ByteReference getSoundReference() {
+		return soundRef;
+	}
+
+
+
+	/**
+	 * A background thread that feeds sample data to a line.
+	 * <p>
+	 * Writes block while the line's buffer is full, so only a buffer's
+	 * worth is read ahead of playback.
 	 */
-	public byte[] getSound() {
-		return bytes;
+	private class StreamThread extends Thread {
+		private volatile boolean aborting = false;
+
+		private final SourceDataLine line;
+		private final ByteReference ref;
+		private final WavHeader header;
+		private final long startFrame;
+
+
+		public StreamThread( SourceDataLine line, ByteReference ref, WavHeader header, long startFrame ) {
+			super( "Sound Stream" );
+			this.setDaemon( true );
+
+			this.line = line;
+			this.ref = ref;
+			this.header = header;
+			this.startFrame = startFrame;
+		}
+
+		public void abort() {
+			aborting = true;
+		}
+
+		@Override
+		public void run() {
+			InputStream is = null;
+			try {
+				long startOffset = header.getFrameOffset( startFrame );
+				long remaining = header.dataOffset + header.dataSize - startOffset;
+
+				is = ref.getInputStream();
+				WavHeader.skipFully( is, startOffset );
+
+				// Write half the line's buffer at a time, in whole frames.
+				int frameSize = header.getBytesPerFrame();
+				byte[] buf = new byte[Math.max( frameSize, (line.getBufferSize() / 2) / frameSize * frameSize )];
+				int pending = 0;
+
+				while ( !aborting && remaining > 0 ) {
+					int count = is.read( buf, pending, (int)Math.min( (long)(buf.length - pending), remaining ) );
+					if ( count == -1 ) break;
+					remaining -= count;
+					pending += count;
+
+					int writable = pending / frameSize * frameSize;
+					if ( writable == 0 ) continue;
+					line.write( buf, 0, writable );
+
+					pending -= writable;
+					System.arraycopy( buf, writable, buf, 0, pending );
+				}
+				if ( !aborting ) line.drain();
+			}
+			catch ( IOException e ) {
+				if ( !aborting ) logger.error( "Error streaming sound", e );
+			}
+			finally {
+				try {if ( is != null ) is.close();} catch ( IOException e ) {}
+			}
+		}
 	}
 }
@@ -130,17 +130,15 @@ public class RootNodePanel extends NodePanel {
 				tmpUHSArea.addMouseListener( clickListener );
 			}
 
-			if ( "Version".equals( tmpNode.getType() ) ) {
-				tmpUHSArea.setOverrideText( String.format( "%s: %s", tmpNode.getType(), tmpNode.getRawStringContent() ) );
-			}
-			else if ( "Incentive".equals( tmpNode.getType() ) ) {
-				tmpUHSArea.setOverrideText( String.format( "%s: %s", tmpNode.getType(), tmpNode.getRawStringContent() ) );
-			}
-			else if ( "Info".equals( tmpNode.getType() ) ) {
-				tmpUHSArea.setOverrideText( String.format( "%s: %s", tmpNode.getType(), tmpNode.getRawStringContent() ) );
-			}
-			else if ( "Credits".equals( tmpNode.getType() ) ) {
-				tmpUHSArea.setOverrideText( String.format( "%s: %s", tmpNode.getType(), tmpNode.getRawStringContent() ) );
+			switch ( tmpNode.getNodeType() ) {
+				case VERSION:
+				case INCENTIVE:
+				case INFO:
+				case CREDITS:
+					tmpUHSArea.setOverrideText( String.format( "%s: %s", tmpNode.getType(), tmpNode.getRawStringContent() ) );
+					break;
+				default:
+					break;
 			}
 		}
 
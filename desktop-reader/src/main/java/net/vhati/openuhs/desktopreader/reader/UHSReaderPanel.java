@@ -37,8 +37,12 @@ import net.vhati.openuhs.core.UHSAudioNode;
 import net.vhati.openuhs.core.UHSHotSpotNode;
 import net.vhati.openuhs.core.UHSImageNode;
 import net.vhati.openuhs.core.UHSNode;
+import net.vhati.openuhs.core.UHSNodePath;
+import net.vhati.openuhs.core.UHSNodeVisitor;
+import net.vhati.openuhs.core.UHSNodeWalker;
 import net.vhati.openuhs.core.UHSParser;
 import net.vhati.openuhs.core.UHSRootNode;
+import net.vhati.openuhs.core.UHSSnapshotCache;
 import net.vhati.openuhs.desktopreader.Nerfable;
 import net.vhati.openuhs.desktopreader.reader.NodePanel;
 import net.vhati.openuhs.desktopreader.reader.UHSReaderNavCtrl;
@@ -96,6 +100,7 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl, ActionLi
 	private JCheckBox showAllBox = null;
 
 	private File hintsDir = new File( "./" );
+	private UHSSnapshotCache snapshotCache = null;
 
 
 	public UHSReaderPanel() {
@@ -264,6 +269,19 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl, ActionLi
 		return hintsDir;
 	}
 
+	/**
+	 * Sets a cache of parsed trees, to speed up reopening files.
+	 *
+	 * @param cache  a cache, or null to always parse (default is null)
+	 */
+	public void setSnapshotCache( UHSSnapshotCache cache ) {
+		snapshotCache = cache;
+	}
+
+	public UHSSnapshotCache getSnapshotCache() {
+		return snapshotCache;
+	}
+
 
 	/**
 	 * Registers a reusable NodePanel to handle a UHSNode class (and its subclasses).
@@ -334,6 +352,7 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl, ActionLi
 				try {
 					if ( f.getName().matches( "(?i).*[.]uhs$" ) ) {
 						UHSParser uhsParser = new UHSParser();
+						uhsParser.setSnapshotCache( snapshotCache );
 						rootNode = uhsParser.parseFile( f );
 					}
 					else if ( f.getName().matches( "(?i).*[.]puhs" ) ) {
@@ -506,39 +525,60 @@ public class UHSReaderPanel extends JPanel implements UHSReaderNavCtrl, ActionLi
 
 
 	/**
-	 * Recursively searches for a phrase within children of a node.
+	 * Searches for a phrase within descendants of a node.
 	 * <p>
-	 * This'll go into an infinite loop if two nodes have each other as children.
-	 * Luckily real UHS files aren't structured that way.
-	 * Link targets don't count as children.
+	 * Each node with a matching child is listed once, titled with
+	 * the chain of ancestors leading to it. Link targets don't count
+	 * as children.
 	 *
 	 * @param resultsNode  an existing temporary node to add results to
 	 * @param prefix  phrase to prepend to result titles (use "")
-	 * @param depth  recursion level reminder (use 0)
+	 * @param depth  the starting node's depth, affecting prefix separators (use 0)
 	 * @param input  the phrase to search for (must be lowercase)
 	 */
-	public void searchNode( UHSNode resultsNode, String prefix, int depth, UHSNode currentNode, String input ) {
+	public void searchNode( final UHSNode resultsNode, final String prefix, final int depth, UHSNode currentNode, final String input ) {
 		if ( input == null || input.length() == 0 ) return;
 		// Assuming input is lower case because toLowering it here would be wasteful.
 
-		prefix = (( depth > 1 ) ? prefix+" : " : "") + currentNode.getDecoratedStringContent();
-
-		depth++;
-		boolean beenListed = false;
-		for ( int i=0; i < currentNode.getChildCount(); i++ ) {
-			UHSNode tmpNode = currentNode.getChild( i );
-
-			if ( beenListed == false ) {
-				if ( tmpNode.getDecoratedStringContent().toLowerCase().indexOf( input ) != -1 ) {
-					UHSNode newNode = new UHSNode( "Result" );
-					newNode.setRawStringContent( prefix );
-					newNode.setChildren( currentNode.getChildren() );
-					resultsNode.addChild( newNode );
-					beenListed = true;
+		UHSNodeWalker walker = new UHSNodeWalker();
+		walker.walk( currentNode, new UHSNodeVisitor() {
+			@Override
+			public int visitNode( UHSNodePath path ) {
+				UHSNode node = path.getNode();
+
+				for ( int i=0; i < node.getChildCount(); i++ ) {
+					UHSNode tmpNode = node.getChild( i );
+
+					if ( tmpNode.getDecoratedStringContent().toLowerCase().indexOf( input ) != -1 ) {
+						UHSNode newNode = new UHSNode( "Result" );
+						newNode.setRawStringContent( getResultTitle( path, prefix, depth ) );
+						newNode.setChildren( node.getChildren() );
+						resultsNode.addChild( newNode );
+						break;
+					}
 				}
+				return CONTINUE;
 			}
-			searchNode( resultsNode, prefix, depth, tmpNode, input );
+		});
+	}
+
+	/**
+	 * Returns the title of a search result, built from its ancestors.
+	 * <p>
+	 * Nodes below the first level are joined with " : ".
+	 *
+	 * @param path  the node to describe
+	 * @param prefix  phrase to prepend, from above where the search started
+	 * @param startDepth  the depth where the search started
+	 */
+	private String getResultTitle( UHSNodePath path, String prefix, int startDepth ) {
+		String parentTitle = prefix;
+		if ( path.getParentPath() != null ) {
+			parentTitle = getResultTitle( path.getParentPath(), prefix, startDepth );
 		}
+
+		int absoluteDepth = startDepth + path.getDepth();
+		return (( absoluteDepth > 1 ) ? parentTitle+" : " : "") + path.getNode().getDecoratedStringContent();
 	}
 
 